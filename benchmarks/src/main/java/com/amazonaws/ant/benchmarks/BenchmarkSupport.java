@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.stub.LocalAwsStub;
+
+/**
+ * Helpers shared by the benchmarks: synthetic file trees, projects pointed at
+ * a {@link LocalAwsStub}, and quieting the tasks' per-file output.
+ */
+public class BenchmarkSupport {
+
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Creates a directory of files with random content, spread over
+     * subdirectories of a hundred files each. Files larger than a megabyte
+     * repeat the same random megabyte, so that trees of large files can be
+     * created about as fast as the disk writes.
+     *
+     * @param prefix
+     *            The prefix of the directory name.
+     * @param fileCount
+     *            How many files to create.
+     * @param fileSize
+     *            The size of each file, in bytes.
+     * @return The new directory.
+     */
+    public static File createTree(String prefix, int fileCount, long fileSize)
+            throws IOException {
+        File root = createTempDirectory(prefix);
+        fillTree(root, fileCount, fileSize);
+        return root;
+    }
+
+    /**
+     * Fills a directory with files like {@link #createTree}.
+     */
+    public static void fillTree(File root, int fileCount, long fileSize)
+            throws IOException {
+        Random random = new Random(fileCount);
+        byte[] content = new byte[(int) Math.min(fileSize, CHUNK_SIZE)];
+        for (int i = 0; i < fileCount; i++) {
+            File directory = new File(root, "dir" + i / FILES_PER_DIRECTORY);
+            directory.mkdirs();
+            random.nextBytes(content);
+            OutputStream out = new FileOutputStream(new File(directory, "file"
+                    + i + ".bin"));
+            try {
+                for (long written = 0; written < fileSize; written += content.length) {
+                    out.write(content, 0,
+                            (int) Math.min(content.length, fileSize - written));
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Creates an empty temporary directory.
+     */
+    public static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Deletes a directory and everything in it, if it exists.
+     */
+    public static void delete(File directory) throws IOException {
+        if (directory != null && directory.exists()) {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Creates a project whose tasks send their requests to the given stub.
+     */
+    public static Project createProject(LocalAwsStub stub) {
+        Project project = new Project();
+        project.init();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+        return project;
+    }
+
+    /**
+     * Adds a task to a project, with placeholder credentials.
+     */
+    public static <T extends AWSAntTask> T configure(T task, Project project) {
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+        return task;
+    }
+
+    /**
+     * Discards what the tasks print to standard output, which would otherwise
+     * be a line per file and dominate small transfers. The benchmark harness
+     * reports its results over its own channel.
+     */
+    public static void silenceStandardOutput() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
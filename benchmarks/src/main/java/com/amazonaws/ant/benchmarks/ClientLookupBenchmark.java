@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.s3.CreateS3BucketTask;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Measures looking up the shared client of a project, which every task does
+ * before its first call. No requests are sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientLookupBenchmark {
+
+    private AWSAntTask task;
+
+    @Setup
+    public void setUp() {
+        Project project = new Project();
+        project.init();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, "http://127.0.0.1:1");
+        task = BenchmarkSupport.configure(new CreateS3BucketTask(), project);
+        task.getOrCreateClient(AmazonS3Client.class);
+    }
+
+    @Benchmark
+    public AmazonS3Client lookUpClient() {
+        return task.getOrCreateClient(AmazonS3Client.class);
+    }
+
+    /**
+     * Many tasks inside &lt;parallel&gt; looking up the client at once.
+     */
+    @Benchmark
+    @Threads(8)
+    public AmazonS3Client lookUpClientConcurrently() {
+        return task.getOrCreateClient(AmazonS3Client.class);
+    }
+}
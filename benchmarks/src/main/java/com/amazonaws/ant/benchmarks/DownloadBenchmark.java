@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.s3.DownloadFileFromS3Task;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Measures download-from-s3 against a {@link LocalAwsStub}: downloading every
+ * object under a prefix, which lists the bucket first, and downloading a
+ * single object, which is mostly the write path to the local file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+
+    private static final String BUCKET_NAME = "benchmark-bucket";
+    private static final String KEY_PREFIX = "benchmark/";
+
+    @Param({ "100" })
+    public int objectCount;
+
+    @Param({ "4096", "1048576" })
+    public int objectSize;
+
+    private LocalAwsStub stub;
+    private Project project;
+    private File work;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.silenceStandardOutput();
+        stub = new LocalAwsStub();
+        AmazonS3Client client = AWSTestUtils.createStubClient(
+                AmazonS3Client.class, stub);
+        client.createBucket(BUCKET_NAME);
+        Random random = new Random(objectCount);
+        byte[] content = new byte[objectSize];
+        for (int i = 0; i < objectCount; i++) {
+            random.nextBytes(content);
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(objectSize);
+            client.putObject(BUCKET_NAME, KEY_PREFIX + "object" + i,
+                    new ByteArrayInputStream(content), metadata);
+        }
+        project = BenchmarkSupport.createProject(stub);
+        work = BenchmarkSupport.createTempDirectory("download");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        stub.stop();
+        BenchmarkSupport.delete(work);
+    }
+
+    @Benchmark
+    public void downloadPrefix() {
+        DownloadFileFromS3Task task = BenchmarkSupport.configure(
+                new DownloadFileFromS3Task(), project);
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix(KEY_PREFIX);
+        task.setDir(new File(work, "prefix").getPath());
+        task.execute();
+    }
+
+    @Benchmark
+    public void downloadObject() {
+        DownloadFileFromS3Task task = BenchmarkSupport.configure(
+                new DownloadFileFromS3Task(), project);
+        task.setBucketName(BUCKET_NAME);
+        task.setKey(KEY_PREFIX + "object0");
+        task.setFile(new File(work, "object0"));
+        task.execute();
+    }
+}
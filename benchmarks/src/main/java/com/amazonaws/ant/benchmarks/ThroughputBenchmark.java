@@ -0,0 +1,396 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.IntrospectionHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.s3.DownloadFileFromS3Task;
+import com.amazonaws.ant.s3.UploadFileSetToS3Task;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * An end-to-end throughput benchmark of upload-to-s3 and download-from-s3. It
+ * creates a tree of files shaped like one of a few profiles, uploads it with
+ * the real task through a {@link Project}, downloads it back under its
+ * prefix, and reports files per second, megabytes per second, peak heap and
+ * peak thread count of each phase as JSON.
+ * <p>
+ * The stand-in for S3 keeps objects on disk and runs in the same JVM, so the
+ * heap it needs is small, but its threads are part of the thread counts. The
+ * thread count at the start of each phase is reported next to the peak.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.amazonaws.ant.benchmarks.ThroughputBenchmark
+ *     &lt;small-files|large-files|huge-files&gt; [--scale fraction] [--work dir]
+ *     [--report file] [--keep] [--upload-attr name=value]...
+ *     [--download-attr name=value]...
+ * </pre>
+ *
+ * {@code --scale} multiplies the file count of the profile, for quick runs.
+ * {@code --upload-attr} and {@code --download-attr} set attributes of the
+ * tasks as a buildfile would, so that settings can be compared run by run.
+ */
+public class ThroughputBenchmark {
+
+    private static final String BUCKET_NAME = "throughput-bucket";
+    private static final String KEY_PREFIX = "throughput/";
+    private static final double MEGABYTE = 1024 * 1024;
+
+    /**
+     * The shapes of trees the benchmark can transfer.
+     */
+    enum Profile {
+        SMALL_FILES("small-files", 100000, 4 * 1024),
+        LARGE_FILES("large-files", 1000, 10 * 1024 * 1024),
+        HUGE_FILES("huge-files", 5, 2L * 1024 * 1024 * 1024);
+
+        final String name;
+        final int fileCount;
+        final long fileSize;
+
+        private Profile(String name, int fileCount, long fileSize) {
+            this.name = name;
+            this.fileCount = fileCount;
+            this.fileSize = fileSize;
+        }
+
+        static Profile named(String name) {
+            for (Profile profile : values()) {
+                if (profile.name.equals(name)) {
+                    return profile;
+                }
+            }
+            throw new IllegalArgumentException("Unknown profile " + name);
+        }
+    }
+
+    private Profile profile;
+    private double scale = 1;
+    private File work;
+    private File report;
+    private boolean keep;
+    private final Map<String, String> uploadAttributes = new LinkedHashMap<String, String>();
+    private final Map<String, String> downloadAttributes = new LinkedHashMap<String, String>();
+
+    public static void main(String[] args) throws Exception {
+        ThroughputBenchmark benchmark = new ThroughputBenchmark();
+        try {
+            benchmark.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ThroughputBenchmark <small-files|large-files|huge-files>"
+                    + " [--scale fraction] [--work dir] [--report file] [--keep]"
+                    + " [--upload-attr name=value]... [--download-attr name=value]...");
+            System.exit(2);
+        }
+        benchmark.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--keep".equals(arg)) {
+                keep = true;
+            } else if (arg.startsWith("--")) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value for "
+                            + arg);
+                }
+                String value = args[++i];
+                if ("--scale".equals(arg)) {
+                    scale = Double.parseDouble(value);
+                } else if ("--work".equals(arg)) {
+                    work = new File(value);
+                } else if ("--report".equals(arg)) {
+                    report = new File(value);
+                } else if ("--upload-attr".equals(arg)) {
+                    putAttribute(uploadAttributes, value);
+                } else if ("--download-attr".equals(arg)) {
+                    putAttribute(downloadAttributes, value);
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } else if (profile == null) {
+                profile = Profile.named(arg);
+            } else {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+        }
+        if (profile == null) {
+            throw new IllegalArgumentException("Missing profile");
+        }
+    }
+
+    private static void putAttribute(Map<String, String> attributes,
+            String assignment) {
+        int equals = assignment.indexOf('=');
+        if (equals < 1) {
+            throw new IllegalArgumentException("Expected name=value but got "
+                    + assignment);
+        }
+        attributes.put(assignment.substring(0, equals),
+                assignment.substring(equals + 1));
+    }
+
+    private void run() throws IOException {
+        int fileCount = Math.max(1, (int) Math.round(profile.fileCount * scale));
+        long totalBytes = fileCount * profile.fileSize;
+        if (work == null) {
+            work = BenchmarkSupport.createTempDirectory("throughput");
+        } else {
+            work.mkdirs();
+        }
+        File storage = new File(work, "storage");
+        File download = new File(work, "download");
+        storage.mkdirs();
+
+        PrintStream out = System.out;
+        out.println("Creating " + fileCount + " files of " + profile.fileSize
+                + " bytes in " + work);
+        File tree = new File(work, "tree");
+        BenchmarkSupport.fillTree(tree, fileCount, profile.fileSize);
+
+        LocalAwsStub stub = new LocalAwsStub();
+        List<PhaseResult> results = new ArrayList<PhaseResult>();
+        try {
+            stub.setStorageDirectory(storage);
+            AWSTestUtils.createStubClient(AmazonS3Client.class, stub)
+                    .createBucket(BUCKET_NAME);
+            Project project = BenchmarkSupport.createProject(stub);
+            BenchmarkSupport.silenceStandardOutput();
+
+            UploadFileSetToS3Task upload = BenchmarkSupport.configure(
+                    new UploadFileSetToS3Task(), project);
+            upload.setBucketName(BUCKET_NAME);
+            upload.setKeyPrefix(KEY_PREFIX);
+            FileSet fileSet = new FileSet();
+            fileSet.setDir(tree);
+            upload.addFileset(fileSet);
+            setAttributes(project, upload, uploadAttributes);
+            results.add(measure("upload", upload, fileCount, totalBytes));
+
+            DownloadFileFromS3Task downloadTask = BenchmarkSupport.configure(
+                    new DownloadFileFromS3Task(), project);
+            downloadTask.setBucketName(BUCKET_NAME);
+            downloadTask.setKeyPrefix(KEY_PREFIX);
+            downloadTask.setDir(download.getPath());
+            setAttributes(project, downloadTask, downloadAttributes);
+            results.add(measure("download", downloadTask, fileCount,
+                    totalBytes));
+        } finally {
+            System.setOut(out);
+            stub.stop();
+            if (!keep) {
+                BenchmarkSupport.delete(work);
+            }
+        }
+
+        String json = toJson(fileCount, totalBytes, results);
+        out.print(json);
+        if (report != null) {
+            Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(report), "UTF-8");
+            try {
+                writer.write(json);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private static void setAttributes(Project project, Task task,
+            Map<String, String> attributes) {
+        IntrospectionHelper helper = IntrospectionHelper.getHelper(project,
+                task.getClass());
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            helper.setAttribute(project, task, attribute.getKey(),
+                    attribute.getValue());
+        }
+    }
+
+    /**
+     * Runs a task and records how long it took and the peak heap and threads
+     * while it ran.
+     */
+    private PhaseResult measure(String phase, Task task, int fileCount,
+            long totalBytes) throws IOException {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int startThreads = threads.getThreadCount();
+        long[] startGc = gcTotals();
+
+        long start = System.nanoTime();
+        task.execute();
+        long nanos = System.nanoTime() - start;
+
+        PhaseResult result = new PhaseResult();
+        result.phase = phase;
+        result.seconds = nanos / 1e9;
+        result.filesPerSecond = fileCount / result.seconds;
+        result.megabytesPerSecond = totalBytes / MEGABYTE / result.seconds;
+        for (MemoryPoolMXBean pool : heapPools) {
+            result.peakHeapBytes += pool.getPeakUsage().getUsed();
+        }
+        result.startThreads = startThreads;
+        result.peakThreads = threads.getPeakThreadCount();
+        long[] endGc = gcTotals();
+        result.gcCount = endGc[0] - startGc[0];
+        result.gcMillis = endGc[1] - startGc[1];
+
+        if ("download".equals(phase)) {
+            verifyDownload(totalBytes);
+        }
+        return result;
+    }
+
+    private void verifyDownload(long totalBytes) {
+        // The task writes the objects under dir + File.pathSeparator + key
+        File[] siblings = work.listFiles();
+        long downloaded = 0;
+        if (siblings != null) {
+            for (File sibling : siblings) {
+                if (sibling.getName().startsWith("download")) {
+                    downloaded += FileUtils.sizeOf(sibling);
+                }
+            }
+        }
+        if (downloaded != totalBytes) {
+            throw new IllegalStateException("Downloaded " + downloaded
+                    + " bytes but uploaded " + totalBytes);
+        }
+    }
+
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private String toJson(int fileCount, long totalBytes,
+            List<PhaseResult> results) {
+        StringBuilder json = new StringBuilder("{\"profile\":\"")
+                .append(profile.name).append("\",\"fileCount\":")
+                .append(fileCount).append(",\"fileSize\":")
+                .append(profile.fileSize).append(",\"totalBytes\":")
+                .append(totalBytes).append(",\"processors\":")
+                .append(Runtime.getRuntime().availableProcessors())
+                .append(",\"maxHeapBytes\":")
+                .append(Runtime.getRuntime().maxMemory())
+                .append(",\"uploadAttributes\":")
+                .append(toJson(uploadAttributes))
+                .append(",\"downloadAttributes\":")
+                .append(toJson(downloadAttributes)).append(",\"phases\":[");
+        for (int i = 0; i < results.size(); i++) {
+            PhaseResult result = results.get(i);
+            if (i > 0) {
+                json.append(",");
+            }
+            json.append("\n{\"phase\":\"").append(result.phase)
+                    .append("\",\"seconds\":")
+                    .append(format(result.seconds))
+                    .append(",\"filesPerSecond\":")
+                    .append(format(result.filesPerSecond))
+                    .append(",\"megabytesPerSecond\":")
+                    .append(format(result.megabytesPerSecond))
+                    .append(",\"peakHeapBytes\":")
+                    .append(result.peakHeapBytes)
+                    .append(",\"startThreads\":").append(result.startThreads)
+                    .append(",\"peakThreads\":").append(result.peakThreads)
+                    .append(",\"gcCount\":").append(result.gcCount)
+                    .append(",\"gcMillis\":").append(result.gcMillis)
+                    .append("}");
+        }
+        return json.append("\n]}\n").toString();
+    }
+
+    private static String toJson(Map<String, String> attributes) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (json.length() > 1) {
+                json.append(",");
+            }
+            json.append(jsonString(attribute.getKey())).append(":")
+                    .append(jsonString(attribute.getValue()));
+        }
+        return json.append("}").toString();
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append("\"").toString();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static class PhaseResult {
+        String phase;
+        double seconds;
+        double filesPerSecond;
+        double megabytesPerSecond;
+        long peakHeapBytes;
+        int startThreads;
+        int peakThreads;
+        long gcCount;
+        long gcMillis;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.s3.UploadFileSetToS3Task;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Measures upload-to-s3 against a {@link LocalAwsStub}: scanning the fileset
+ * alone, and the whole task, which also maps each file to its key and uploads
+ * it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+    private static final String BUCKET_NAME = "benchmark-bucket";
+
+    @Param({ "1000" })
+    public int fileCount;
+
+    @Param({ "4096", "262144" })
+    public int fileSize;
+
+    private LocalAwsStub stub;
+    private Project project;
+    private File tree;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.silenceStandardOutput();
+        stub = new LocalAwsStub();
+        AWSTestUtils.createStubClient(AmazonS3Client.class, stub)
+                .createBucket(BUCKET_NAME);
+        project = BenchmarkSupport.createProject(stub);
+        tree = BenchmarkSupport.createTree("upload", fileCount, fileSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        stub.stop();
+        BenchmarkSupport.delete(tree);
+    }
+
+    @Benchmark
+    public String[] scanFileset() {
+        return createFileSet().getDirectoryScanner(project).getIncludedFiles();
+    }
+
+    @Benchmark
+    public void upload() {
+        UploadFileSetToS3Task task = BenchmarkSupport.configure(
+                new UploadFileSetToS3Task(), project);
+        task.addFileset(createFileSet());
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix("benchmark/");
+        task.execute();
+    }
+
+    private FileSet createFileSet() {
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(tree);
+        return fileSet;
+    }
+}
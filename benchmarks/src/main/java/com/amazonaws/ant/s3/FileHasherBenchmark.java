@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.ant.benchmarks.BenchmarkSupport;
+
+/**
+ * Measures computing the ETag of a file, which skipUnchanged does for every
+ * file that has an object of the same size: hashing through memory-mapped
+ * windows against a direct buffer, and a single-part ETag against a
+ * multipart one, whose parts are hashed in parallel. It is in the package of
+ * {@link FileHasher} to reach it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileHasherBenchmark {
+
+    private static final long PART_SIZE = 8L * 1024 * 1024;
+
+    @Param({ "1048576", "67108864" })
+    public long fileSize;
+
+    private File tree;
+    private File file;
+    private FileInputStream in;
+    private FileChannel channel;
+    private FileHasher hasher;
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = BenchmarkSupport.createTree("hash", 1, fileSize);
+        file = new File(new File(tree, "dir0"), "file0.bin");
+        in = new FileInputStream(file);
+        channel = in.getChannel();
+        hasher = FileHasher.forAvailableProcessors();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        hasher.shutdown();
+        in.close();
+        BenchmarkSupport.delete(tree);
+    }
+
+    @Benchmark
+    public byte[] hashMapped() throws IOException {
+        return FileHasher.md5(channel, 0, fileSize, true);
+    }
+
+    @Benchmark
+    public byte[] hashWithDirectBuffer() throws IOException {
+        return FileHasher.md5(channel, 0, fileSize, false);
+    }
+
+    @Benchmark
+    public String singlePartETag() throws IOException {
+        return hasher.eTag(file, 0);
+    }
+
+    @Benchmark
+    public String multipartETag() throws IOException {
+        return hasher.eTag(file, PART_SIZE);
+    }
+}
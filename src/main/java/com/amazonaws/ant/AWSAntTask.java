@@ -16,18 +16,27 @@ package com.amazonaws.ant;
 
 import java.lang.reflect.Constructor;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.tools.ant.Task;
 
 import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.ant.metrics.ApiMetricCollector;
+import com.amazonaws.ant.metrics.MetricsRegistry;
+import com.amazonaws.ant.tracing.Tracer;
+import com.amazonaws.ant.tracing.TracingHandler;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.metrics.RequestMetricCollector;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
 
 /**
  * Base class for AWS-related Ant tasks. Handles all shared logic.
@@ -36,9 +45,17 @@ public abstract class AWSAntTask extends Task {
 
     private static final String CLIENT_CACHE_REFERENCE = "clientCache";
     private static final String USER_AGENT_PREFIX = "AWS Ant Tasks/";
+
+    /**
+     * The property that sets the endpoint of every task in the project that
+     * doesn't set its own awsEndpoint.
+     */
+    public static final String ENDPOINT_PROPERTY = "aws.endpoint";
+
     protected String awsAccessKeyId;
     protected String awsSecretKey;
     protected String awsRegion;
+    protected String awsEndpoint;
 
     /**
      * Sets AWS Access Key.
@@ -73,29 +90,85 @@ public abstract class AWSAntTask extends Task {
     public void setAWSRegion(String awsRegion) {
         this.awsRegion = awsRegion;
     }
+
+    /**
+     * Sets the endpoint to send requests to, such as a local stand-in for AWS.
+     * Overrides the region's endpoint and the "aws.endpoint" property.
+     * 
+     * @param awsEndpoint
+     *            The endpoint URL, for example "http://localhost:4567".
+     */
+    public void setAWSEndpoint(String awsEndpoint) {
+        this.awsEndpoint = awsEndpoint;
+    }
+
+    /**
+     * Returns the endpoint requests of this task are sent to instead of the
+     * region's endpoint: the awsEndpoint attribute if set, otherwise the
+     * "aws.endpoint" property of the project.
+     * 
+     * @return The endpoint URL, or null to use the region's endpoint.
+     */
+    protected String getEndpoint() {
+        if (awsEndpoint != null) {
+            return awsEndpoint;
+        }
+        return getProject() == null ? null : getProject().getProperty(
+                ENDPOINT_PROPERTY);
+    }
     
+    /**
+     * Returns the client of the specified class for this task's region and
+     * endpoint, creating it the first time it is needed. Clients are shared by
+     * all tasks in the project, and are created only once even when tasks run
+     * concurrently.
+     * 
+     * @param clientClass
+     *            The class of the web service client returned
+     * @return The shared web service client
+     */
     @SuppressWarnings("unchecked")
     public <T extends AmazonWebServiceClient> T getOrCreateClient(
-            Class<T> clientClass) {
-        if(getProject().getReference(CLIENT_CACHE_REFERENCE) == null) {
-            Map<List<String>, Object> cache = new HashMap<List<String>, Object>();
-            getProject().addReference(CLIENT_CACHE_REFERENCE, cache);
+            final Class<T> clientClass) {
+        final String endpoint = getEndpoint();
+        List<String> key = Arrays.asList(clientClass.getName(), this.awsRegion,
+                endpoint);
+        return (T) getClientCache().get(key,
+                new Callable<AmazonWebServiceClient>() {
+                    public AmazonWebServiceClient call() {
+                        T newClient = createClient(clientClass);
+                        Region region = RegionUtils.getRegion(awsRegion);
+                        if (region != null) {
+                            newClient.setRegion(region);
+                        }
+                        if (endpoint != null) {
+                            newClient.setEndpoint(endpoint);
+                            if (newClient instanceof AmazonS3Client) {
+                                // Bucket names can't be put in the host name
+                                // of an arbitrary endpoint
+                                ((AmazonS3Client) newClient)
+                                        .setS3ClientOptions(new S3ClientOptions()
+                                                .withPathStyleAccess(true));
+                            }
+                        }
+                        return newClient;
+                    }
+                });
+    }
+
+    private ConcurrentCache<List<String>, AmazonWebServiceClient> getClientCache() {
+        ConcurrentCache<List<String>, AmazonWebServiceClient> cache = getProject()
+                .getReference(CLIENT_CACHE_REFERENCE);
+        if (cache != null) {
+            return cache;
         }
-        Map<List<String>, Object> cache = getProject().getReference(CLIENT_CACHE_REFERENCE);
-        
-        List<String> key = Arrays.asList(clientClass.getName(), this.awsRegion);
-        
-        T client = (T) cache.get(key);
-        if(client == null) {
-            T newClient = createClient(clientClass);
-            Region region = RegionUtils.getRegion(this.awsRegion);
-            if(region != null) {
-                newClient.setRegion(region);
+        synchronized (getProject()) {
+            cache = getProject().getReference(CLIENT_CACHE_REFERENCE);
+            if (cache == null) {
+                cache = new ConcurrentCache<List<String>, AmazonWebServiceClient>();
+                getProject().addReference(CLIENT_CACHE_REFERENCE, cache);
             }
-            cache.put(key, newClient);
-            return newClient;
-        } else {
-            return client;
+            return cache;
         }
     }
     
@@ -104,7 +177,10 @@ public abstract class AWSAntTask extends Task {
      * credentials if they are specified, otherwise the credentials used will be
      * according to the standard credential chain(Environment variables, Java
      * System Properties, credential profiles file, instance profile
-     * credentials)
+     * credentials). Every call made by the client is subject to the rate
+     * limits configured in the project's {@link RateLimiter} and to the
+     * bandwidth limit of its {@link BandwidthLimiter}, is recorded in the
+     * project's {@link MetricsRegistry}, and is traced if tracing is enabled.
      * 
      * @param clientClass
      *            The class of the web service client returned
@@ -114,19 +190,70 @@ public abstract class AWSAntTask extends Task {
         try {
             ClientConfiguration clientConfiguration = new ClientConfiguration()
                     .withUserAgent(USER_AGENT_PREFIX + this.getClass().getSimpleName());
+            if (getProject() == null) {
+                return newClient(clientClass, clientConfiguration);
+            }
+            RateLimitingHandler rateLimitingHandler = new RateLimitingHandler(
+                    RateLimiter.getRateLimiter(getProject()), awsRegion);
+            clientConfiguration.setRetryPolicy(rateLimitingHandler
+                    .getRetryPolicy());
+            MetricsRegistry metricsRegistry = MetricsRegistry
+                    .getRegistry(getProject());
+            metricsRegistry.adoptTask(this);
+            ApiMetricCollector metricCollector = new ApiMetricCollector(
+                    metricsRegistry);
+            TracingHandler tracingHandler = new TracingHandler(getProject());
+
+            AWSCredentialsProvider credentialsProvider;
             if (awsSecretKey != null && awsAccessKeyId != null) {
-                Constructor<T> constructor = clientClass.getConstructor(
-                        AWSCredentials.class, ClientConfiguration.class);
-                return constructor.newInstance(new BasicAWSCredentials(
-                        awsAccessKeyId, awsSecretKey), clientConfiguration);
+                credentialsProvider = new StaticCredentialsProvider(
+                        new BasicAWSCredentials(awsAccessKeyId, awsSecretKey));
+            } else {
+                credentialsProvider = new DefaultAWSCredentialsProviderChain();
             }
-            Constructor<T> constructor = clientClass
-                    .getConstructor(ClientConfiguration.class);
-            return constructor
-                    .newInstance(clientConfiguration);
+            Constructor<T> constructor = clientClass.getConstructor(
+                    AWSCredentialsProvider.class, ClientConfiguration.class,
+                    RequestMetricCollector.class);
+            T client = constructor.newInstance(credentialsProvider,
+                    clientConfiguration, metricCollector);
+
+            String service = client.getServiceName();
+            rateLimitingHandler.setService(service);
+            metricCollector.setService(service);
+            tracingHandler.setService(service);
+            client.addRequestHandler(tracingHandler);
+            client.addRequestHandler(rateLimitingHandler);
+            client.addRequestHandler(new BandwidthLimitingHandler(
+                    BandwidthLimiter.getBandwidthLimiter(getProject())));
+            return client;
         } catch (Exception e) {
             throw new RuntimeException("Unable to create client: "
                     + e.getMessage(), e);
         }
     }
+
+    /**
+     * Returns the tracer of this task's project, which records nothing unless
+     * tracing was enabled.
+     *
+     * @return The tracer to record spans in
+     */
+    protected Tracer getTracer() {
+        return Tracer.getTracer(getProject());
+    }
+
+    private <T extends AmazonWebServiceClient> T newClient(
+            Class<T> clientClass, ClientConfiguration clientConfiguration)
+            throws Exception {
+        if (awsSecretKey != null && awsAccessKeyId != null) {
+            Constructor<T> constructor = clientClass.getConstructor(
+                    AWSCredentials.class, ClientConfiguration.class);
+            return constructor.newInstance(new BasicAWSCredentials(
+                    awsAccessKeyId, awsSecretKey), clientConfiguration);
+        }
+        Constructor<T> constructor = clientClass
+                .getConstructor(ClientConfiguration.class);
+        return constructor
+                .newInstance(clientConfiguration);
+    }
 }
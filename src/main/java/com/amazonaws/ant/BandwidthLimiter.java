@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.io.InputStream;
+import java.util.PriorityQueue;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * A project-scoped limit on the bandwidth of all transfers to and from AWS.
+ * Transfers take one token per byte from a single token bucket, so the limit
+ * holds across every task in the build, including tasks run in parallel.
+ * When several transfers wait for tokens, the one with the highest priority
+ * is served first, and transfers of equal priority are served in the order
+ * they started waiting.
+ * <p>
+ * The priority of a transfer is the current priority of the thread that
+ * starts it. Threads inherit the current priority of the thread that creates
+ * them, so the transfer threads a task starts share its priority.
+ */
+public class BandwidthLimiter {
+
+    /**
+     * The priority of transfers started by threads that haven't set one.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
+
+    private static final String BANDWIDTH_LIMITER_REFERENCE = "awsBandwidthLimiter";
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    private final InheritableThreadLocal<Integer> currentPriority = new InheritableThreadLocal<Integer>();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    private long sequence;
+
+    /**
+     * Returns the bandwidth limiter of the given project, creating it if
+     * needed.
+     *
+     * @param project
+     *            The project whose bandwidth limiter to return.
+     * @return The bandwidth limiter of the project.
+     */
+    public static BandwidthLimiter getBandwidthLimiter(Project project) {
+        synchronized (project) {
+            BandwidthLimiter limiter = project
+                    .getReference(BANDWIDTH_LIMITER_REFERENCE);
+            if (limiter == null) {
+                limiter = new BandwidthLimiter();
+                project.addReference(BANDWIDTH_LIMITER_REFERENCE, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Sets the limit. The bucket holds at most a second's worth of bytes, and
+     * starts full.
+     *
+     * @param bytesPerSecond
+     *            The sustained number of bytes per second, or 0 to remove the
+     *            limit.
+     */
+    public synchronized void setLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException(
+                    "bytesPerSecond cannot be negative");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    /**
+     * @return Whether transfers are limited.
+     */
+    public synchronized boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Sets the priority of the transfers the current thread, and threads it
+     * creates from now on, start.
+     *
+     * @param priority
+     *            The priority. Higher priorities are served first.
+     * @return The priority that was current before, to restore when done.
+     */
+    public int setCurrentPriority(int priority) {
+        int previous = getCurrentPriority();
+        currentPriority.set(priority);
+        return previous;
+    }
+
+    /**
+     * @return The priority of the transfers the current thread starts.
+     */
+    public int getCurrentPriority() {
+        Integer priority = currentPriority.get();
+        return priority == null ? DEFAULT_PRIORITY : priority;
+    }
+
+    /**
+     * Wraps a stream so that reading it takes tokens at the current thread's
+     * priority.
+     *
+     * @param in
+     *            The stream to throttle.
+     * @return The throttled stream.
+     */
+    public InputStream throttle(InputStream in) {
+        return new ThrottledInputStream(in, this, getCurrentPriority());
+    }
+
+    /**
+     * Takes tokens for bytes that were transferred, waiting while the bucket
+     * is in debt or a transfer of higher priority is waiting. The bucket may
+     * go into debt, and later transfers then wait for it to be repaid.
+     *
+     * @param bytes
+     *            The number of bytes transferred.
+     * @param priority
+     *            The priority of the transfer.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(long bytes, int priority)
+            throws InterruptedException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        Waiter waiter = new Waiter(priority, sequence++);
+        waiters.add(waiter);
+        try {
+            while (bytesPerSecond > 0) {
+                refill();
+                if (tokens >= 0 && waiters.peek() == waiter) {
+                    tokens -= bytes;
+                    return;
+                }
+                if (tokens >= 0) {
+                    // Woken when the waiter ahead takes its tokens
+                    wait();
+                } else {
+                    // At least a millisecond, as wait(0) would wait for a
+                    // notification that may never come
+                    wait(Math.max(1, (long) Math.ceil(-tokens * 1000
+                            / bytesPerSecond)));
+                }
+            }
+        } finally {
+            waiters.remove(waiter);
+            notifyAll();
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos)
+                * (double) bytesPerSecond / NANOS_PER_SECOND);
+        lastRefillNanos = now;
+    }
+
+    /**
+     * A transfer waiting for tokens, ordered by priority and then by arrival.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        private final int priority;
+        private final long sequence;
+
+        Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Waiter other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1
+                    : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
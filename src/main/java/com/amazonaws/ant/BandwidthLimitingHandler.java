@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+
+/**
+ * Connects one client to the project's {@link BandwidthLimiter}. The content
+ * of every request, and of every object the client gets from S3, is read
+ * through a throttled stream while a limit is set.
+ */
+public class BandwidthLimitingHandler extends RequestHandler2 {
+
+    private final BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * @param bandwidthLimiter
+     *            The bandwidth limiter to take tokens from.
+     */
+    public BandwidthLimitingHandler(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        if (request.getContent() != null && bandwidthLimiter.isLimited()) {
+            request.setContent(bandwidthLimiter.throttle(request.getContent()));
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        if (response == null
+                || !(response.getAwsResponse() instanceof S3Object)
+                || !bandwidthLimiter.isLimited()) {
+            return;
+        }
+        S3Object object = (S3Object) response.getAwsResponse();
+        S3ObjectInputStream content = object.getObjectContent();
+        if (content != null) {
+            object.setObjectContent(new S3ObjectInputStream(bandwidthLimiter
+                    .throttle(content), content.getHttpRequest()));
+        }
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response,
+            Exception e) {
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * A thread-safe cache that computes each value at most once. Reads of
+ * computed values take no locks. When several threads ask for a missing value
+ * at the same time, one of them computes it and the others wait for the
+ * result, so tasks running inside &lt;parallel&gt; never duplicate work. A
+ * value whose computation fails is not cached.
+ *
+ * @param <K>
+ *            The type of the keys.
+ * @param <V>
+ *            The type of the values.
+ */
+public class ConcurrentCache<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> entries = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Returns the value of a key, computing it if it is not cached yet.
+     *
+     * @param key
+     *            The key to look up.
+     * @param loader
+     *            Computes the value if it is missing. Called at most once per
+     *            key unless it fails.
+     * @return The value of the key.
+     */
+    public V get(K key, Callable<V> loader) {
+        FutureTask<V> entry = entries.get(key);
+        if (entry == null) {
+            FutureTask<V> newEntry = new FutureTask<V>(loader);
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+                newEntry.run();
+            }
+        }
+        return await(key, entry);
+    }
+
+    /**
+     * Returns the value of a key if it is cached, waiting for it if another
+     * thread is computing it.
+     *
+     * @param key
+     *            The key to look up.
+     * @return The value of the key, or null if it is not cached or could not
+     *         be computed.
+     */
+    public V getIfPresent(K key) {
+        FutureTask<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return await(key, entry);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private V await(K key, FutureTask<V> entry) {
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            entries.remove(key, entry);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BuildException(cause.getMessage(), cause);
+        }
+    }
+}
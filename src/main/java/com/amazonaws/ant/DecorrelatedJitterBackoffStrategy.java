@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.Random;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.RetryPolicy;
+
+/**
+ * Waits a random time between the base delay and three times the previous
+ * delay before each retry, capped at a maximum. Clients that were throttled at
+ * the same moment then spread their retries out instead of retrying in step.
+ * The SDK retries a request on the thread that made it, so the previous delay
+ * is kept per thread and reset by the first retry of every request.
+ */
+public class DecorrelatedJitterBackoffStrategy implements
+        RetryPolicy.BackoffStrategy {
+
+    public static final long DEFAULT_BASE_DELAY_IN_MS = 100;
+    public static final long DEFAULT_MAX_DELAY_IN_MS = 1000 * 20;
+
+    private static final Random RANDOM = new Random();
+
+    private final long baseDelayInMs;
+    private final long maxDelayInMs;
+    private final ThreadLocal<Long> previousDelay = new ThreadLocal<Long>();
+
+    public DecorrelatedJitterBackoffStrategy() {
+        this(DEFAULT_BASE_DELAY_IN_MS, DEFAULT_MAX_DELAY_IN_MS);
+    }
+
+    /**
+     * @param baseDelayInMs
+     *            The shortest delay, and the upper bound of the first delay.
+     * @param maxDelayInMs
+     *            The longest delay.
+     */
+    public DecorrelatedJitterBackoffStrategy(long baseDelayInMs,
+            long maxDelayInMs) {
+        this.baseDelayInMs = baseDelayInMs;
+        this.maxDelayInMs = maxDelayInMs;
+    }
+
+    public long delayBeforeNextRetry(AmazonWebServiceRequest originalRequest,
+            AmazonClientException exception, int retriesAttempted) {
+        Long previous = previousDelay.get();
+        if (retriesAttempted == 0 || previous == null) {
+            previous = baseDelayInMs;
+        }
+        long delay = nextDelay(previous);
+        previousDelay.set(delay);
+        return delay;
+    }
+
+    /**
+     * @param previousDelay
+     *            The delay before the previous retry, or the base delay before
+     *            the first one.
+     * @return A random delay between the base delay and three times the
+     *         previous delay, at most the maximum delay.
+     */
+    long nextDelay(long previousDelay) {
+        long upper = Math.max(baseDelayInMs, previousDelay * 3);
+        long delay = baseDelayInMs
+                + (long) (RANDOM.nextDouble() * (upper - baseDelayInMs));
+        return Math.min(maxDelayInMs, delay);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+/**
+ * Helpers for the JSON that the tasks write by hand, such as traces and
+ * metrics reports.
+ */
+public final class JsonUtils {
+
+    private JsonUtils() {
+    }
+
+    /**
+     * Quotes a string as a JSON string, escaping quotes, backslashes and
+     * control characters.
+     *
+     * @param value
+     *            The string to quote.
+     * @return The JSON string, with its quotes.
+     */
+    public static String quote(String value) {
+        StringBuilder escaped = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.append("\"").toString();
+    }
+}
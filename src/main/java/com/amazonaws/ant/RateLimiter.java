@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * A project-scoped set of rate limits on AWS API calls, with one token bucket
+ * per service and region. Limits are configured per service and optionally
+ * per region, and a bucket is created for each service and region that is
+ * actually called. Calls to services without a configured limit are not
+ * limited.
+ * <p>
+ * The rate of a bucket adapts to throttling: it is halved whenever the
+ * service answers with a throttling error, and grows back towards the
+ * configured rate with every successful call.
+ */
+public class RateLimiter {
+
+    /**
+     * Matches every service or every region when used in a limit.
+     */
+    public static final String ANY = "*";
+
+    private static final String RATE_LIMITER_REFERENCE = "awsRateLimiter";
+    private static final double MIN_RATE_FRACTION = 0.05;
+    private static final double RECOVERY_FRACTION = 0.01;
+
+    private final ConcurrentMap<String, double[]> limits = new ConcurrentHashMap<String, double[]>();
+    private final ConcurrentMap<String, AdaptiveBucket> buckets = new ConcurrentHashMap<String, AdaptiveBucket>();
+
+    /**
+     * Returns the rate limiter of the given project, creating it if needed.
+     *
+     * @param project
+     *            The project whose rate limiter to return.
+     * @return The rate limiter of the project.
+     */
+    public static RateLimiter getRateLimiter(Project project) {
+        synchronized (project) {
+            RateLimiter limiter = project.getReference(RATE_LIMITER_REFERENCE);
+            if (limiter == null) {
+                limiter = new RateLimiter();
+                project.addReference(RATE_LIMITER_REFERENCE, limiter);
+            }
+            return limiter;
+        }
+    }
+
+    /**
+     * Sets the rate limit of a service in a region. Buckets that already exist
+     * for the service and region are reset to the new limit.
+     *
+     * @param service
+     *            The service, such as "s3" or "opsworks", or "*" for all
+     *            services.
+     * @param region
+     *            The region, as given to the awsRegion attribute of the tasks,
+     *            or "*" for all regions.
+     * @param permitsPerSecond
+     *            The sustained number of calls per second.
+     * @param burst
+     *            How many calls may be made at once after a quiet period.
+     */
+    public void setLimit(String service, String region,
+            double permitsPerSecond, double burst) {
+        limits.put(key(service, region), new double[] { permitsPerSecond,
+                burst });
+        buckets.clear();
+    }
+
+    /**
+     * Takes a permit for a call to a service, waiting if necessary.
+     *
+     * @param service
+     *            The service being called.
+     * @param region
+     *            The region being called, or null for the default region.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public void acquire(String service, String region)
+            throws InterruptedException {
+        AdaptiveBucket bucket = getBucket(service, region);
+        if (bucket != null) {
+            bucket.acquire();
+        }
+    }
+
+    /**
+     * Records that a call to a service succeeded.
+     */
+    public void onSuccess(String service, String region) {
+        AdaptiveBucket bucket = getBucket(service, region);
+        if (bucket != null) {
+            bucket.recover();
+        }
+    }
+
+    /**
+     * Records that a call to a service was throttled.
+     */
+    public void onThrottle(String service, String region) {
+        AdaptiveBucket bucket = getBucket(service, region);
+        if (bucket != null) {
+            bucket.backOff();
+        }
+    }
+
+    /**
+     * Returns the current rate of a service in a region.
+     *
+     * @return The current rate, in calls per second, or 0 if the service is
+     *         not limited.
+     */
+    public double getCurrentRate(String service, String region) {
+        AdaptiveBucket bucket = getBucket(service, region);
+        return bucket == null ? 0 : bucket.getPermitsPerSecond();
+    }
+
+    private AdaptiveBucket getBucket(String service, String region) {
+        if (limits.isEmpty()) {
+            return null;
+        }
+        String bucketKey = key(service, region);
+        AdaptiveBucket bucket = buckets.get(bucketKey);
+        if (bucket == null) {
+            double[] limit = findLimit(service, region);
+            if (limit == null) {
+                return null;
+            }
+            AdaptiveBucket newBucket = new AdaptiveBucket(limit[0], limit[1]);
+            bucket = buckets.putIfAbsent(bucketKey, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    private double[] findLimit(String service, String region) {
+        double[] limit = limits.get(key(service, region));
+        if (limit == null) {
+            limit = limits.get(key(service, ANY));
+        }
+        if (limit == null) {
+            limit = limits.get(key(ANY, region));
+        }
+        if (limit == null) {
+            limit = limits.get(key(ANY, ANY));
+        }
+        return limit;
+    }
+
+    private static String key(String service, String region) {
+        return service + "/" + (region == null ? "" : region);
+    }
+
+    /**
+     * A token bucket whose rate is cut in half on throttling and grows back
+     * by a small step on every success, never exceeding the configured rate.
+     */
+    private static class AdaptiveBucket extends TokenBucket {
+        private final double maxPermitsPerSecond;
+        private final double burst;
+
+        AdaptiveBucket(double permitsPerSecond, double burst) {
+            super(permitsPerSecond, burst);
+            this.maxPermitsPerSecond = permitsPerSecond;
+            this.burst = burst;
+        }
+
+        synchronized void backOff() {
+            setRate(Math.max(maxPermitsPerSecond * MIN_RATE_FRACTION,
+                    getPermitsPerSecond() / 2), burst);
+        }
+
+        synchronized void recover() {
+            double rate = getPermitsPerSecond();
+            if (rate < maxPermitsPerSecond) {
+                setRate(Math.min(maxPermitsPerSecond, rate
+                        + maxPermitsPerSecond * RECOVERY_FRACTION), burst);
+            }
+        }
+    }
+}
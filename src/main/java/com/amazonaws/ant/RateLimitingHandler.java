@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+
+/**
+ * Connects one client to the project's {@link RateLimiter}. As a request
+ * handler it takes a permit before every call and reports successful calls.
+ * As the retry condition of the client it sees every failed attempt, including
+ * the ones the SDK retries on its own, and reports throttling errors.
+ */
+public class RateLimitingHandler extends RequestHandler2 implements
+        RetryPolicy.RetryCondition {
+
+    private final RateLimiter rateLimiter;
+    private final String region;
+    private volatile String service;
+
+    /**
+     * @param rateLimiter
+     *            The rate limiter to report to.
+     * @param region
+     *            The region of the client, or null for the default region.
+     */
+    public RateLimitingHandler(RateLimiter rateLimiter, String region) {
+        this.rateLimiter = rateLimiter;
+        this.region = region;
+    }
+
+    /**
+     * Set the service of the client. Must be called before the client is used.
+     *
+     * @param service
+     *            The service name, such as "s3".
+     */
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    /**
+     * @return A retry policy that retries the same errors as the SDK default,
+     *         with decorrelated-jitter backoff, and reports throttling errors
+     *         to this handler.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return new RetryPolicy(this, new DecorrelatedJitterBackoffStrategy(),
+                PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        try {
+            rateLimiter.acquire(service, region);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException(
+                    "Interrupted while waiting for the rate limiter", e);
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        rateLimiter.onSuccess(service, region);
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response,
+            Exception e) {
+        // Throttling errors were already reported by shouldRetry
+    }
+
+    public boolean shouldRetry(AmazonWebServiceRequest originalRequest,
+            AmazonClientException exception, int retriesAttempted) {
+        if (exception instanceof AmazonServiceException
+                && RetryUtils
+                        .isThrottlingException((AmazonServiceException) exception)) {
+            rateLimiter.onThrottle(service, region);
+        }
+        return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(
+                originalRequest, exception, retriesAttempted);
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import com.amazonaws.Request;
+
+/**
+ * Helpers for describing the calls the clients make, shared by the handlers
+ * that trace and measure them.
+ */
+public final class RequestUtils {
+
+    private RequestUtils() {
+    }
+
+    /**
+     * Names the operation of a call after its request class, such as
+     * "DescribeStacks" for a DescribeStacksRequest.
+     *
+     * @param request
+     *            The request being executed.
+     * @return The operation name, or "Unknown" if the request has no
+     *         original request.
+     */
+    public static String operationOf(Request<?> request) {
+        if (request.getOriginalRequest() == null) {
+            return "Unknown";
+        }
+        String name = request.getOriginalRequest().getClass().getSimpleName();
+        return name.endsWith("Request") ? name.substring(0,
+                name.length() - "Request".length()) : name;
+    }
+}
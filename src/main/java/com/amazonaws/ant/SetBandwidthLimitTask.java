@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Sets the bandwidth limit that all transfers of this project's AWS tasks
+ * share.
+ */
+public class SetBandwidthLimitTask extends Task {
+
+    private long kilobytesPerSecond = -1;
+
+    /**
+     * Set the sustained number of kilobytes per second that all transfers
+     * together may use, or 0 to remove the limit. Required.
+     *
+     * @param kilobytesPerSecond
+     *            The number of kilobytes per second.
+     */
+    public void setKilobytesPerSecond(long kilobytesPerSecond) {
+        this.kilobytesPerSecond = kilobytesPerSecond;
+    }
+
+    private void checkParams() {
+        if (kilobytesPerSecond < 0) {
+            throw new BuildException(
+                    "Missing parameter: kilobytesPerSecond must be set to 0 or a positive number");
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        BandwidthLimiter.getBandwidthLimiter(getProject()).setLimit(
+                kilobytesPerSecond * 1024);
+        if (kilobytesPerSecond == 0) {
+            System.out.println("Not limiting the bandwidth of AWS transfers");
+        } else {
+            System.out.println("Limiting AWS transfers to "
+                    + kilobytesPerSecond + " KB per second");
+        }
+    }
+}
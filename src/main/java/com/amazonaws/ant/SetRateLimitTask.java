@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Sets the rate limit that all AWS tasks of this project share for calls to
+ * a service in a region.
+ */
+public class SetRateLimitTask extends Task {
+
+    private String service = RateLimiter.ANY;
+    private String region = RateLimiter.ANY;
+    private double permitsPerSecond;
+    private int burst;
+
+    /**
+     * Set the service to limit, such as "s3", "cloudformation",
+     * "elasticbeanstalk" or "opsworks". Not required, default is all services.
+     *
+     * @param service
+     *            The service to limit.
+     */
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    /**
+     * Set the region to limit, as given to the awsRegion attribute of the
+     * tasks. Not required, default is all regions.
+     *
+     * @param region
+     *            The region to limit.
+     */
+    public void setRegion(String region) {
+        this.region = region;
+    }
+
+    /**
+     * Set the sustained number of calls per second. Required.
+     *
+     * @param permitsPerSecond
+     *            The number of calls per second.
+     */
+    public void setPermitsPerSecond(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * Set how many calls may be made at once after a quiet period. Not
+     * required, default is the number of calls per second, rounded up.
+     *
+     * @param burst
+     *            The burst size.
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    private void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+        if (permitsPerSecond <= 0) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: permitsPerSecond must be set to a positive number \n");
+        }
+        if (burst < 0) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: burst cannot be negative \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        int burstSize = burst > 0 ? burst : (int) Math.ceil(permitsPerSecond);
+        RateLimiter.getRateLimiter(getProject()).setLimit(service, region,
+                permitsPerSecond, burstSize);
+        System.out.println("Limiting " + service + " calls in region "
+                + region + " to " + permitsPerSecond
+                + " per second with a burst of " + burstSize);
+    }
+}
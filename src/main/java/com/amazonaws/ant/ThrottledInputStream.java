@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A stream that takes a token from a {@link BandwidthLimiter} for every byte
+ * read. Reads are split into chunks, so that transfers sharing the limiter
+ * take turns often.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+    static final int MAX_READ_SIZE = 64 * 1024;
+
+    private final BandwidthLimiter limiter;
+    private final int priority;
+
+    ThrottledInputStream(InputStream in, BandwidthLimiter limiter, int priority) {
+        super(in);
+        this.limiter = limiter;
+        this.priority = priority;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, Math.min(len, MAX_READ_SIZE));
+        if (count > 0) {
+            acquire(count);
+        }
+        return count;
+    }
+
+    private void acquire(int bytes) throws IOException {
+        try {
+            limiter.acquire(bytes, priority);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for the bandwidth limiter");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+/**
+ * A thread-safe token bucket. Tokens are added continuously at a fixed rate up
+ * to a maximum (the burst size), and each acquired permit removes one token.
+ * Callers block until enough tokens are available.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000L * 1000L;
+
+    private double permitsPerSecond;
+    private double burst;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param permitsPerSecond
+     *            The rate at which tokens are added.
+     * @param burst
+     *            The maximum number of tokens the bucket holds. The bucket
+     *            starts full.
+     */
+    public TokenBucket(double permitsPerSecond, double burst) {
+        setRate(permitsPerSecond, burst);
+        this.tokens = this.burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Changes the rate and burst size of the bucket. Tokens already in the
+     * bucket are kept, up to the new burst size.
+     *
+     * @param permitsPerSecond
+     *            The rate at which tokens are added. Must be positive.
+     * @param burst
+     *            The maximum number of tokens the bucket holds. Must be at
+     *            least 1.
+     */
+    public synchronized void setRate(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException(
+                    "permitsPerSecond must be positive and burst at least 1");
+        }
+        refill();
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    /**
+     * @return The rate at which tokens are added, per second.
+     */
+    public synchronized double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Takes one token, waiting until one is available.
+     *
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    /**
+     * Takes a number of tokens, waiting until they are available. Requests
+     * larger than the burst size are allowed; the bucket then goes into debt
+     * and later callers wait for it to be repaid.
+     *
+     * @param permits
+     *            The number of tokens to take.
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting.
+     */
+    public void acquire(double permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= permits;
+            waitNanos = tokens >= 0 ? 0
+                    : (long) (-tokens * NANOS_PER_SECOND / permitsPerSecond);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    /**
+     * Takes one token if one is available right now.
+     *
+     * @return Whether a token was taken.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (permitsPerSecond > 0) {
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos)
+                    * permitsPerSecond / NANOS_PER_SECOND);
+        }
+        lastRefillNanos = now;
+    }
+}
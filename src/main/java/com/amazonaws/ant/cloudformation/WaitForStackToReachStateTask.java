@@ -17,6 +17,8 @@ package com.amazonaws.ant.cloudformation;
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.tracing.Span;
+import com.amazonaws.ant.tracing.Tracer;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
 import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
 
@@ -74,13 +76,21 @@ public class WaitForStackToReachStateTask extends AWSAntTask {
     public void execute() {
         checkParams();
         AmazonCloudFormationClient client = getOrCreateClient(AmazonCloudFormationClient.class);
-        if (!waitForCloudFormationStackToReachStatus(client, stackName, status)) {
+        if (!waitForCloudFormationStackToReachStatus(client, stackName,
+                status, getTracer())) {
             throw new BuildException("The stack update or creation failed");
         }
     }
 
     public static boolean waitForCloudFormationStackToReachStatus(
             AmazonCloudFormationClient client, String stackName, String status) {
+        return waitForCloudFormationStackToReachStatus(client, stackName,
+                status, Tracer.getTracer(null));
+    }
+
+    public static boolean waitForCloudFormationStackToReachStatus(
+            AmazonCloudFormationClient client, String stackName,
+            String status, Tracer tracer) {
         int count = 0;
         while (true) {
             if (count++ == 100) {
@@ -89,16 +99,23 @@ public class WaitForStackToReachStateTask extends AWSAntTask {
                 return false;
             }
             try {
-                Thread.sleep(1000 * 30);
+                tracer.sleep(1000 * 30);
             } catch (InterruptedException e) {
                 System.out.println(e.getMessage());
                 return false;
             }
-            String stackStatus = client
-                    .describeStacks(
-                            new DescribeStacksRequest()
-                                    .withStackName(stackName)).getStacks()
-                    .get(0).getStackStatus();
+            Span poll = tracer.startSpan("poll stack " + stackName,
+                    Tracer.CATEGORY_POLL);
+            String stackStatus;
+            try {
+                stackStatus = client
+                        .describeStacks(
+                                new DescribeStacksRequest()
+                                        .withStackName(stackName)).getStacks()
+                        .get(0).getStackStatus();
+            } finally {
+                poll.end();
+            }
             if (stackStatus.equals(status)) {
                 return true;
             } else if (stackStatus.contains(FAILED)) {
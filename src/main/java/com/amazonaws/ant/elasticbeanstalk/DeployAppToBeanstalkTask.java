@@ -19,11 +19,12 @@ import java.io.File;
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
-import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.ant.BandwidthLimiter;
 import com.amazonaws.services.elasticbeanstalk.AWSElasticBeanstalkClient;
 import com.amazonaws.services.elasticbeanstalk.model.CreateApplicationVersionRequest;
 import com.amazonaws.services.elasticbeanstalk.model.S3Location;
 import com.amazonaws.services.elasticbeanstalk.model.UpdateEnvironmentRequest;
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 
@@ -41,6 +42,7 @@ public class DeployAppToBeanstalkTask extends AWSAntTask {
     private String applicationName;
     private String environmentName;
     private File file;
+    private int priority = BandwidthLimiter.DEFAULT_PRIORITY;
 
     /**
      * Specify the name of the bucket in S3 to upload your application file to.
@@ -122,6 +124,19 @@ public class DeployAppToBeanstalkTask extends AWSAntTask {
         this.environmentName = environmentName;
     }
 
+    /**
+     * Set the priority of the upload of the application file under the
+     * bandwidth limit set with set-aws-bandwidth-limit. When transfers wait
+     * for bandwidth, those with a higher priority go first. Not required,
+     * default is 0.
+     * 
+     * @param priority
+     *            The priority of the upload.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     private void checkParams() {
         StringBuilder errors = new StringBuilder("");
         boolean areMissingParams = false;
@@ -164,13 +179,12 @@ public class DeployAppToBeanstalkTask extends AWSAntTask {
         vRequest.setDescription(versionDescription);
         String s3key = key == null ? file.getName() : key;
         if (file != null) {
-            TransferManager tm;
-            if (awsSecretKey != null && awsAccessKeyId != null) {
-                tm = new TransferManager(new BasicAWSCredentials(
-                        awsAccessKeyId, awsSecretKey));
-            } else {
-                tm = new TransferManager();
-            }
+            BandwidthLimiter bandwidthLimiter = BandwidthLimiter
+                    .getBandwidthLimiter(getProject());
+            int previousPriority = bandwidthLimiter
+                    .setCurrentPriority(priority);
+            TransferManager tm = new TransferManager(
+                    getOrCreateClient(AmazonS3Client.class));
             System.out.println("Uploading file " + file.getName() + " to S3");
             try {
                 Upload u = tm.upload(bucketName, s3key, file);
@@ -178,6 +192,9 @@ public class DeployAppToBeanstalkTask extends AWSAntTask {
             } catch (Exception e) {
                 throw new BuildException("Error when trying to upload file: "
                         + e.getMessage(), e);
+            } finally {
+                tm.shutdownNow(false);
+                bandwidthLimiter.setCurrentPriority(previousPriority);
             }
             System.out.println("Upload successful");
         }
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.elasticbeanstalk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.services.elasticbeanstalk.AWSElasticBeanstalkClient;
+import com.amazonaws.services.elasticbeanstalk.model.ApplicationVersionDescription;
+import com.amazonaws.services.elasticbeanstalk.model.DeleteApplicationVersionRequest;
+import com.amazonaws.services.elasticbeanstalk.model.DescribeApplicationVersionsRequest;
+import com.amazonaws.services.elasticbeanstalk.model.DescribeEnvironmentsRequest;
+import com.amazonaws.services.elasticbeanstalk.model.EnvironmentDescription;
+import com.amazonaws.services.elasticbeanstalk.model.EnvironmentStatus;
+import com.amazonaws.services.elasticbeanstalk.model.S3Location;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+/**
+ * Task for deleting old versions of an AWS Elastic Beanstalk application. The
+ * newest versions, as well as any version currently deployed to a live
+ * environment, are kept; all other versions are deleted in parallel batches.
+ * The source bundles of deleted versions can optionally be removed from S3 as
+ * well.
+ */
+public class PruneApplicationVersionsTask extends AWSAntTask {
+
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private String applicationName;
+    private int versionsToKeep = 10;
+    private int batchSize = 10;
+    private int threads = 4;
+    private boolean deleteSourceBundles;
+
+    /**
+     * Set the name of the application whose versions should be pruned.
+     * Required.
+     *
+     * @param applicationName
+     *            The name of the application in Elastic Beanstalk.
+     */
+    public void setApplicationName(String applicationName) {
+        this.applicationName = applicationName;
+    }
+
+    /**
+     * Set how many of the newest application versions to keep. Versions
+     * deployed to a live environment are always kept and do not count against
+     * this number. Not required, default is 10.
+     *
+     * @param versionsToKeep
+     *            The number of most recently created versions to keep.
+     */
+    public void setVersionsToKeep(int versionsToKeep) {
+        this.versionsToKeep = versionsToKeep;
+    }
+
+    /**
+     * Set how many versions to delete concurrently before waiting for the
+     * batch to complete. Not required, default is 10.
+     *
+     * @param batchSize
+     *            The number of versions to delete in each batch.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set how many threads to use to delete versions. Not required, default is
+     * 4.
+     *
+     * @param threads
+     *            The number of threads to issue delete requests with.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set whether to also delete the source bundles of the deleted versions
+     * from S3. Not required, default is false.
+     *
+     * @param deleteSourceBundles
+     *            Whether to delete the source bundles of pruned versions.
+     */
+    public void setDeleteSourceBundles(boolean deleteSourceBundles) {
+        this.deleteSourceBundles = deleteSourceBundles;
+    }
+
+    private void checkParams() {
+        StringBuilder errors = new StringBuilder("");
+        boolean areMalformedParams = false;
+        if (applicationName == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: applicationName is required \n");
+        }
+        if (versionsToKeep < 0) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: versionsToKeep cannot be negative \n");
+        }
+        if (batchSize < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: batchSize must be at least 1 \n");
+        }
+        if (threads < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: threads must be at least 1 \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        final AWSElasticBeanstalkClient client = getOrCreateClient(AWSElasticBeanstalkClient.class);
+
+        List<ApplicationVersionDescription> versions;
+        Set<String> liveVersionLabels;
+        try {
+            versions = client.describeApplicationVersions(
+                    new DescribeApplicationVersionsRequest()
+                            .withApplicationName(applicationName))
+                    .getApplicationVersions();
+            liveVersionLabels = getLiveVersionLabels(client);
+        } catch (Exception e) {
+            throw new BuildException(
+                    "Could not describe application versions of "
+                            + applicationName + ": " + e.getMessage(), e);
+        }
+
+        List<ApplicationVersionDescription> versionsToDelete = selectVersionsToDelete(
+                versions, liveVersionLabels);
+        System.out.println("Found " + versions.size() + " versions of "
+                + applicationName + ", " + versionsToDelete.size()
+                + " will be deleted.");
+        if (versionsToDelete.isEmpty()) {
+            return;
+        }
+
+        List<ApplicationVersionDescription> deletedVersions = deleteVersions(
+                client, versionsToDelete);
+        if (deleteSourceBundles) {
+            Set<ApplicationVersionDescription> keptVersions = new HashSet<ApplicationVersionDescription>(
+                    versions);
+            keptVersions.removeAll(versionsToDelete);
+            deleteSourceBundles(deletedVersions, keptVersions);
+        }
+        System.out.println("Deleted " + deletedVersions.size()
+                + " application versions of " + applicationName);
+    }
+
+    private Set<String> getLiveVersionLabels(AWSElasticBeanstalkClient client) {
+        Set<String> liveVersionLabels = new HashSet<String>();
+        List<EnvironmentDescription> environments = client
+                .describeEnvironments(
+                        new DescribeEnvironmentsRequest()
+                                .withApplicationName(applicationName)
+                                .withIncludeDeleted(false)).getEnvironments();
+        for (EnvironmentDescription environment : environments) {
+            String status = environment.getStatus();
+            if (EnvironmentStatus.Terminated.toString().equals(status)
+                    || EnvironmentStatus.Terminating.toString().equals(status)) {
+                continue;
+            }
+            if (environment.getVersionLabel() != null) {
+                liveVersionLabels.add(environment.getVersionLabel());
+            }
+        }
+        return liveVersionLabels;
+    }
+
+    private List<ApplicationVersionDescription> selectVersionsToDelete(
+            List<ApplicationVersionDescription> versions,
+            Set<String> liveVersionLabels) {
+        List<ApplicationVersionDescription> newestFirst = new ArrayList<ApplicationVersionDescription>(
+                versions);
+        Collections.sort(newestFirst,
+                new Comparator<ApplicationVersionDescription>() {
+                    public int compare(ApplicationVersionDescription first,
+                            ApplicationVersionDescription second) {
+                        return dateOf(second).compareTo(dateOf(first));
+                    }
+                });
+
+        List<ApplicationVersionDescription> versionsToDelete = new LinkedList<ApplicationVersionDescription>();
+        int kept = 0;
+        for (ApplicationVersionDescription version : newestFirst) {
+            if (liveVersionLabels.contains(version.getVersionLabel())) {
+                System.out.println("Keeping version "
+                        + version.getVersionLabel()
+                        + ", it is deployed to a live environment");
+            } else if (kept < versionsToKeep) {
+                kept++;
+            } else {
+                versionsToDelete.add(version);
+            }
+        }
+        return versionsToDelete;
+    }
+
+    private static Date dateOf(ApplicationVersionDescription version) {
+        return version.getDateCreated() == null ? new Date(0) : version
+                .getDateCreated();
+    }
+
+    private List<ApplicationVersionDescription> deleteVersions(
+            final AWSElasticBeanstalkClient client,
+            List<ApplicationVersionDescription> versionsToDelete) {
+        List<ApplicationVersionDescription> deletedVersions = new LinkedList<ApplicationVersionDescription>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                threads, batchSize));
+        try {
+            List<ApplicationVersionDescription> batch = new ArrayList<ApplicationVersionDescription>(
+                    batchSize);
+            for (ApplicationVersionDescription version : versionsToDelete) {
+                batch.add(version);
+                if (batch.size() == batchSize) {
+                    deletedVersions.addAll(deleteBatch(executor, client, batch));
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                deletedVersions.addAll(deleteBatch(executor, client, batch));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return deletedVersions;
+    }
+
+    private List<ApplicationVersionDescription> deleteBatch(
+            ExecutorService executor, final AWSElasticBeanstalkClient client,
+            List<ApplicationVersionDescription> batch) {
+        List<Future<ApplicationVersionDescription>> futures = new ArrayList<Future<ApplicationVersionDescription>>(
+                batch.size());
+        for (final ApplicationVersionDescription version : batch) {
+            futures.add(executor.submit(new Callable<ApplicationVersionDescription>() {
+                public ApplicationVersionDescription call() {
+                    client.deleteApplicationVersion(new DeleteApplicationVersionRequest(
+                            applicationName, version.getVersionLabel())
+                            .withDeleteSourceBundle(false));
+                    System.out.println("Deleted version "
+                            + version.getVersionLabel());
+                    return version;
+                }
+            }));
+        }
+
+        List<ApplicationVersionDescription> deletedVersions = new ArrayList<ApplicationVersionDescription>(
+                batch.size());
+        for (Future<ApplicationVersionDescription> future : futures) {
+            try {
+                deletedVersions.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BuildException(e.getMessage(), e);
+            } catch (ExecutionException e) {
+                throw new BuildException(
+                        "Could not delete application version: "
+                                + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return deletedVersions;
+    }
+
+    /**
+     * Deletes the source bundles of deleted versions. Versions often share a
+     * bundle's location, since deploy-beanstalk-app uploads to the same key
+     * by default, so the bundles that kept versions still point to are left
+     * alone.
+     */
+    private void deleteSourceBundles(
+            List<ApplicationVersionDescription> deletedVersions,
+            Set<ApplicationVersionDescription> keptVersions) {
+        Set<List<String>> keptBundles = new HashSet<List<String>>();
+        for (ApplicationVersionDescription version : keptVersions) {
+            S3Location bundle = version.getSourceBundle();
+            if (bundle != null) {
+                keptBundles.add(Arrays.asList(bundle.getS3Bucket(),
+                        bundle.getS3Key()));
+            }
+        }
+        AmazonS3Client s3Client = getOrCreateClient(AmazonS3Client.class);
+        Map<String, List<KeyVersion>> keysByBucket = new LinkedHashMap<String, List<KeyVersion>>();
+        Set<List<String>> seenBundles = new HashSet<List<String>>();
+        for (ApplicationVersionDescription version : deletedVersions) {
+            S3Location bundle = version.getSourceBundle();
+            if (bundle == null || bundle.getS3Bucket() == null
+                    || bundle.getS3Key() == null) {
+                continue;
+            }
+            List<String> location = Arrays.asList(bundle.getS3Bucket(),
+                    bundle.getS3Key());
+            if (keptBundles.contains(location)) {
+                System.out.println("Keeping source bundle s3://"
+                        + bundle.getS3Bucket() + "/" + bundle.getS3Key()
+                        + ", a kept version still uses it");
+                continue;
+            }
+            if (!seenBundles.add(location)) {
+                continue;
+            }
+            List<KeyVersion> keys = keysByBucket.get(bundle.getS3Bucket());
+            if (keys == null) {
+                keys = new ArrayList<KeyVersion>();
+                keysByBucket.put(bundle.getS3Bucket(), keys);
+            }
+            keys.add(new KeyVersion(bundle.getS3Key()));
+        }
+
+        for (Map.Entry<String, List<KeyVersion>> entry : keysByBucket
+                .entrySet()) {
+            List<KeyVersion> keys = entry.getValue();
+            for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_DELETE) {
+                List<KeyVersion> chunk = keys.subList(i,
+                        Math.min(i + MAX_KEYS_PER_DELETE, keys.size()));
+                try {
+                    s3Client.deleteObjects(new DeleteObjectsRequest(entry
+                            .getKey()).withKeys(chunk).withQuiet(true));
+                } catch (MultiObjectDeleteException e) {
+                    System.err.println(e.getErrors().size()
+                            + " source bundles in bucket " + entry.getKey()
+                            + " could not be deleted: " + e.getMessage());
+                } catch (Exception e) {
+                    throw new BuildException(
+                            "Could not delete source bundles from bucket "
+                                    + entry.getKey() + ": " + e.getMessage(), e);
+                }
+            }
+            System.out.println("Deleted " + keys.size()
+                    + " source bundles from bucket " + entry.getKey());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.ant.RequestUtils;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+
+/**
+ * Records every call of a client in a {@link MetricsRegistry}, using the
+ * request metrics the SDK gathers while executing the call.
+ */
+public class ApiMetricCollector extends RequestMetricCollector {
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final MetricsRegistry registry;
+    private volatile String service = "unknown";
+
+    /**
+     * @param registry
+     *            The registry to record calls in.
+     */
+    public ApiMetricCollector(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Set the service of the client. Should be called before the client is
+     * used.
+     *
+     * @param service
+     *            The service name, such as "s3".
+     */
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    @Override
+    public void collectMetrics(Request<?> request, Response<?> response) {
+        try {
+            AWSRequestMetrics requestMetrics = request.getAWSRequestMetrics();
+            TimingInfo timing = requestMetrics.getTimingInfo();
+            Double latency = timing.getTimeTakenMillisIfKnown();
+            List<Object> exceptions = requestMetrics
+                    .getProperty(Field.Exception);
+            boolean failed = response == null
+                    || (exceptions != null && !exceptions.isEmpty());
+
+            registry.getMetrics(service, RequestUtils.operationOf(request))
+                    .record(latency == null ? 0 : latency.longValue(), failed,
+                    Math.max(0, counter(timing, Field.RequestCount) - 1),
+                    counter(timing, Field.ThrottleException),
+                    contentLength(request.getHeaders()),
+                    response == null || response.getHttpResponse() == null ? 0
+                            : contentLength(response.getHttpResponse()
+                                    .getHeaders()));
+        } catch (RuntimeException e) {
+            // Metrics must never break a call
+        }
+    }
+
+    private static long counter(TimingInfo timing, Field field) {
+        Number value = timing.getCounter(field.name());
+        return value == null ? 0 : value.longValue();
+    }
+
+    private static long contentLength(Map<String, String> headers) {
+        if (headers == null) {
+            return 0;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (CONTENT_LENGTH.equalsIgnoreCase(header.getKey())) {
+                try {
+                    return Long.parseLong(header.getValue().trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
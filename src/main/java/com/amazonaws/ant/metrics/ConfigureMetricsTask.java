@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.metrics;
+
+import java.io.File;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Configures how the AWS API metrics of this project are reported when the
+ * build finishes.
+ */
+public class ConfigureMetricsTask extends Task {
+
+    private File file;
+    private String format = MetricsRegistry.FORMAT_JSON;
+    private boolean printSummary = true;
+
+    /**
+     * Set a file to write the metrics to when the build finishes. Not
+     * required; if not set, no file is written.
+     *
+     * @param file
+     *            The file to write the metrics to.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Set the format of the metrics file, either "json" or "prometheus". Not
+     * required, default is "json".
+     *
+     * @param format
+     *            The format of the metrics file.
+     */
+    public void setFormat(String format) {
+        this.format = format.toLowerCase();
+    }
+
+    /**
+     * Set whether to print a summary of the metrics when the build finishes.
+     * Not required, default is true.
+     *
+     * @param printSummary
+     *            Whether to print a summary.
+     */
+    public void setPrintSummary(boolean printSummary) {
+        this.printSummary = printSummary;
+    }
+
+    public void execute() {
+        if (!MetricsRegistry.FORMAT_JSON.equals(format)
+                && !MetricsRegistry.FORMAT_PROMETHEUS.equals(format)) {
+            throw new BuildException("Malformed parameter: format must be either \""
+                    + MetricsRegistry.FORMAT_JSON + "\" or \""
+                    + MetricsRegistry.FORMAT_PROMETHEUS + "\"");
+        }
+        MetricsRegistry registry = MetricsRegistry.getRegistry(getProject());
+        registry.setPrintSummary(printSummary);
+        registry.setOutput(file, format);
+    }
+}
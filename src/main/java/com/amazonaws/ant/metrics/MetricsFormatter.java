@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.metrics;
+
+import java.util.List;
+
+import com.amazonaws.ant.JsonUtils;
+
+/**
+ * Formats API metrics as a human-readable summary, as JSON, or in the
+ * Prometheus text exposition format.
+ */
+public class MetricsFormatter {
+
+    private static final String PREFIX = "aws_ant_api_";
+
+    /**
+     * Formats metrics as a table with one row per task, service and operation.
+     *
+     * @param metrics
+     *            The metrics to format.
+     * @return The table, ending with a newline.
+     */
+    public static String formatSummary(List<OperationMetrics> metrics) {
+        int taskWidth = "Task".length();
+        int operationWidth = "Operation".length();
+        for (OperationMetrics m : metrics) {
+            taskWidth = Math.max(taskWidth, m.getTask().length());
+            operationWidth = Math.max(operationWidth, m.getService().length()
+                    + 1 + m.getOperation().length());
+        }
+        String rowFormat = "%-" + taskWidth + "s %-" + operationWidth
+                + "s %7s %6s %7s %9s %8s %8s %8s %10s %10s%n";
+        StringBuilder summary = new StringBuilder("AWS API calls:\n");
+        summary.append(String.format(rowFormat, "Task", "Operation", "Calls",
+                "Errors", "Retries", "Throttles", "p50(ms)", "p99(ms)",
+                "max(ms)", "Sent", "Received"));
+        for (OperationMetrics m : metrics) {
+            summary.append(String.format(rowFormat, m.getTask(),
+                    m.getService() + "." + m.getOperation(), m.getCalls(),
+                    m.getErrors(), m.getRetries(), m.getThrottles(),
+                    m.getLatencyPercentileInMs(50),
+                    m.getLatencyPercentileInMs(99), m.getLatencyMaxInMs(),
+                    formatBytes(m.getBytesSent()),
+                    formatBytes(m.getBytesReceived())));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Formats metrics as a JSON document.
+     *
+     * @param metrics
+     *            The metrics to format.
+     * @return The JSON document.
+     */
+    public static String formatJson(List<OperationMetrics> metrics) {
+        StringBuilder json = new StringBuilder("{\"operations\":[");
+        for (int i = 0; i < metrics.size(); i++) {
+            OperationMetrics m = metrics.get(i);
+            if (i > 0) {
+                json.append(",");
+            }
+            json.append("\n{\"task\":").append(JsonUtils.quote(m.getTask()))
+                    .append(",\"service\":").append(JsonUtils.quote(m.getService()))
+                    .append(",\"operation\":")
+                    .append(JsonUtils.quote(m.getOperation()))
+                    .append(",\"calls\":").append(m.getCalls())
+                    .append(",\"errors\":").append(m.getErrors())
+                    .append(",\"retries\":").append(m.getRetries())
+                    .append(",\"throttles\":").append(m.getThrottles())
+                    .append(",\"bytesSent\":").append(m.getBytesSent())
+                    .append(",\"bytesReceived\":").append(m.getBytesReceived())
+                    .append(",\"latencyMs\":{\"sum\":")
+                    .append(m.getLatencySumInMs()).append(",\"max\":")
+                    .append(m.getLatencyMaxInMs()).append(",\"p50\":")
+                    .append(m.getLatencyPercentileInMs(50))
+                    .append(",\"p90\":").append(m.getLatencyPercentileInMs(90))
+                    .append(",\"p99\":").append(m.getLatencyPercentileInMs(99))
+                    .append(",\"buckets\":{");
+            long[] buckets = m.getLatencyBuckets();
+            for (int b = 0; b < buckets.length; b++) {
+                if (b > 0) {
+                    json.append(",");
+                }
+                json.append("\"").append(bucketLabel(b)).append("\":")
+                        .append(buckets[b]);
+            }
+            json.append("}}}");
+        }
+        json.append("\n]}\n");
+        return json.toString();
+    }
+
+    /**
+     * Formats metrics in the Prometheus text exposition format. Latencies are
+     * exported as a histogram with cumulative buckets.
+     *
+     * @param metrics
+     *            The metrics to format.
+     * @return The metrics, one sample per line.
+     */
+    public static String formatPrometheus(List<OperationMetrics> metrics) {
+        StringBuilder text = new StringBuilder();
+        counter(text, metrics, "calls_total", "Number of API calls.");
+        counter(text, metrics, "errors_total", "Number of API calls that failed.");
+        counter(text, metrics, "retries_total", "Number of retried attempts.");
+        counter(text, metrics, "throttles_total", "Number of throttled attempts.");
+        counter(text, metrics, "bytes_sent_total", "Bytes sent in API calls.");
+        counter(text, metrics, "bytes_received_total", "Bytes received in API calls.");
+
+        String name = PREFIX + "latency_ms";
+        text.append("# HELP ").append(name)
+                .append(" Latency of API calls in milliseconds.\n");
+        text.append("# TYPE ").append(name).append(" histogram\n");
+        for (OperationMetrics m : metrics) {
+            String labels = labels(m);
+            long[] buckets = m.getLatencyBuckets();
+            long cumulative = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                cumulative += buckets[b];
+                text.append(name).append("_bucket{").append(labels)
+                        .append(",le=\"").append(bucketLabel(b)).append("\"} ")
+                        .append(cumulative).append("\n");
+            }
+            text.append(name).append("_sum{").append(labels).append("} ")
+                    .append(m.getLatencySumInMs()).append("\n");
+            text.append(name).append("_count{").append(labels).append("} ")
+                    .append(m.getCalls()).append("\n");
+        }
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text,
+            List<OperationMetrics> metrics, String suffix, String help) {
+        String name = PREFIX + suffix;
+        text.append("# HELP ").append(name).append(" ").append(help)
+                .append("\n");
+        text.append("# TYPE ").append(name).append(" counter\n");
+        for (OperationMetrics m : metrics) {
+            text.append(name).append("{").append(labels(m)).append("} ")
+                    .append(counterValue(m, suffix)).append("\n");
+        }
+    }
+
+    private static long counterValue(OperationMetrics m, String suffix) {
+        if ("calls_total".equals(suffix)) {
+            return m.getCalls();
+        } else if ("errors_total".equals(suffix)) {
+            return m.getErrors();
+        } else if ("retries_total".equals(suffix)) {
+            return m.getRetries();
+        } else if ("throttles_total".equals(suffix)) {
+            return m.getThrottles();
+        } else if ("bytes_sent_total".equals(suffix)) {
+            return m.getBytesSent();
+        }
+        return m.getBytesReceived();
+    }
+
+    private static String labels(OperationMetrics m) {
+        return "task=\"" + escapeLabel(m.getTask()) + "\",service=\""
+                + escapeLabel(m.getService()) + "\",operation=\""
+                + escapeLabel(m.getOperation()) + "\"";
+    }
+
+    private static String bucketLabel(int bucket) {
+        return bucket < OperationMetrics.LATENCY_BUCKETS_IN_MS.length ? String
+                .valueOf(OperationMetrics.LATENCY_BUCKETS_IN_MS[bucket])
+                : "+Inf";
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1fKB", bytes / 1024.0);
+        } else if (bytes < 1024L * 1024 * 1024) {
+            return String.format("%.1fMB", bytes / (1024.0 * 1024));
+        }
+        return String.format("%.1fGB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
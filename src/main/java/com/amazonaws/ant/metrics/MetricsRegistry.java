@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Collects the API metrics of a project, keyed by task, service and
+ * operation. The registry listens to the build so that it knows which task
+ * each call is made for, including calls made from threads the task starts,
+ * and reports the metrics when the build finishes.
+ */
+public class MetricsRegistry implements BuildListener {
+
+    public static final String FORMAT_JSON = "json";
+    public static final String FORMAT_PROMETHEUS = "prometheus";
+
+    private static final String METRICS_REGISTRY_REFERENCE = "awsMetricsRegistry";
+    private static final String NO_TASK = "(none)";
+
+    // Collecting request metrics makes the SDK log a line per call to this
+    // logger. The same numbers are summarized at the end of the build, so it
+    // is quieted. The reference keeps the logger's level from being collected.
+    private static final Logger LATENCY_LOGGER = Logger
+            .getLogger("com.amazonaws.latency");
+
+    private final ConcurrentMap<List<String>, OperationMetrics> metrics = new ConcurrentHashMap<List<String>, OperationMetrics>();
+    private final InheritableThreadLocal<String> currentTask = new InheritableThreadLocal<String>();
+    private final Map<Task, String> enclosingTasks = new ConcurrentHashMap<Task, String>();
+
+    private volatile boolean printSummary = true;
+    private volatile File file;
+    private volatile String format = FORMAT_JSON;
+
+    /**
+     * Returns the metrics registry of the given project, creating it and
+     * adding it as a build listener if needed.
+     *
+     * @param project
+     *            The project whose registry to return.
+     * @return The registry of the project.
+     */
+    public static MetricsRegistry getRegistry(Project project) {
+        synchronized (project) {
+            MetricsRegistry registry = project
+                    .getReference(METRICS_REGISTRY_REFERENCE);
+            if (registry == null) {
+                if (LATENCY_LOGGER.getLevel() == null) {
+                    LATENCY_LOGGER.setLevel(Level.WARNING);
+                }
+                registry = new MetricsRegistry();
+                project.addReference(METRICS_REGISTRY_REFERENCE, registry);
+                project.addBuildListener(registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Set whether to print a summary when the build finishes.
+     */
+    public void setPrintSummary(boolean printSummary) {
+        this.printSummary = printSummary;
+    }
+
+    /**
+     * Set a file to write the metrics to when the build finishes, and its
+     * format, either "json" or "prometheus".
+     */
+    public void setOutput(File file, String format) {
+        this.file = file;
+        this.format = format;
+    }
+
+    /**
+     * Makes the given task the one that calls on this thread, and on threads
+     * it starts, are recorded for. Does nothing if the task is already
+     * current.
+     *
+     * @param task
+     *            The task that started.
+     */
+    public void enterTask(Task task) {
+        if (task == null || enclosingTasks.containsKey(task)) {
+            return;
+        }
+        String enclosing = currentTask.get();
+        enclosingTasks.put(task, enclosing == null ? NO_TASK : enclosing);
+        currentTask.set(nameOf(task));
+    }
+
+    /**
+     * Makes the given task current if no task is current on this thread. Used
+     * for the task that creates the registry, which started before the
+     * registry was listening to the build.
+     *
+     * @param task
+     *            The task that is running.
+     */
+    public void adoptTask(Task task) {
+        if (currentTask.get() == null) {
+            enterTask(task);
+        }
+    }
+
+    /**
+     * Restores the task that was current before the given task started.
+     *
+     * @param task
+     *            The task that finished.
+     */
+    public void exitTask(Task task) {
+        if (task == null) {
+            return;
+        }
+        String enclosing = enclosingTasks.remove(task);
+        if (enclosing != null) {
+            currentTask.set(NO_TASK.equals(enclosing) ? null : enclosing);
+        }
+    }
+
+    /**
+     * Returns the metrics of an operation called by the current task,
+     * creating them if needed.
+     *
+     * @param service
+     *            The service called.
+     * @param operation
+     *            The operation called.
+     * @return The metrics to record the call in.
+     */
+    public OperationMetrics getMetrics(String service, String operation) {
+        String task = currentTask.get();
+        if (task == null) {
+            task = NO_TASK;
+        }
+        List<String> key = Arrays.asList(task, service, operation);
+        OperationMetrics operationMetrics = metrics.get(key);
+        if (operationMetrics == null) {
+            OperationMetrics newMetrics = new OperationMetrics(task, service,
+                    operation);
+            operationMetrics = metrics.putIfAbsent(key, newMetrics);
+            if (operationMetrics == null) {
+                operationMetrics = newMetrics;
+            }
+        }
+        return operationMetrics;
+    }
+
+    /**
+     * @return A snapshot of all recorded metrics, sorted by task, service and
+     *         operation.
+     */
+    public List<OperationMetrics> getAllMetrics() {
+        List<OperationMetrics> all = new ArrayList<OperationMetrics>(
+                metrics.values());
+        Collections.sort(all, new Comparator<OperationMetrics>() {
+            public int compare(OperationMetrics a, OperationMetrics b) {
+                int result = a.getTask().compareTo(b.getTask());
+                if (result == 0) {
+                    result = a.getService().compareTo(b.getService());
+                }
+                if (result == 0) {
+                    result = a.getOperation().compareTo(b.getOperation());
+                }
+                return result;
+            }
+        });
+        return all;
+    }
+
+    private static String nameOf(Task task) {
+        return task.getTaskName() != null ? task.getTaskName() : task
+                .getClass().getSimpleName();
+    }
+
+    public void taskStarted(BuildEvent event) {
+        enterTask(event.getTask());
+    }
+
+    public void taskFinished(BuildEvent event) {
+        exitTask(event.getTask());
+    }
+
+    public void buildFinished(BuildEvent event) {
+        List<OperationMetrics> all = getAllMetrics();
+        if (all.isEmpty()) {
+            return;
+        }
+        if (printSummary) {
+            System.out.print(MetricsFormatter.formatSummary(all));
+        }
+        if (file != null) {
+            String output = FORMAT_PROMETHEUS.equals(format) ? MetricsFormatter
+                    .formatPrometheus(all) : MetricsFormatter.formatJson(all);
+            try {
+                writeFile(file, output);
+                System.out.println("Wrote AWS API metrics to " + file);
+            } catch (IOException e) {
+                System.out.println("Could not write AWS API metrics to "
+                        + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void writeFile(File file, String output) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                "UTF-8");
+        try {
+            writer.write(output);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics of one service operation called by one task: call, error, retry
+ * and throttle counts, bytes transferred, and a latency histogram. All
+ * updates are lock-free.
+ */
+public class OperationMetrics {
+
+    /**
+     * The upper bounds, in milliseconds, of the latency histogram buckets.
+     * A last, unbounded bucket holds everything slower.
+     */
+    public static final long[] LATENCY_BUCKETS_IN_MS = { 5, 10, 25, 50, 100,
+            250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final String task;
+    private final String service;
+    private final String operation;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong latencySumInMs = new AtomicLong();
+    private final AtomicLong latencyMaxInMs = new AtomicLong();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(
+            LATENCY_BUCKETS_IN_MS.length + 1);
+
+    OperationMetrics(String task, String service, String operation) {
+        this.task = task;
+        this.service = service;
+        this.operation = operation;
+    }
+
+    /**
+     * Records one call.
+     *
+     * @param latencyInMs
+     *            How long the call took, including retries.
+     * @param failed
+     *            Whether the call ended in an error.
+     * @param retryCount
+     *            How many times the call was retried.
+     * @param throttleCount
+     *            How many attempts of the call were throttled.
+     * @param sent
+     *            The number of bytes sent.
+     * @param received
+     *            The number of bytes received.
+     */
+    public void record(long latencyInMs, boolean failed, long retryCount,
+            long throttleCount, long sent, long received) {
+        calls.incrementAndGet();
+        if (failed) {
+            errors.incrementAndGet();
+        }
+        retries.addAndGet(retryCount);
+        throttles.addAndGet(throttleCount);
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+        latencySumInMs.addAndGet(latencyInMs);
+        long max = latencyMaxInMs.get();
+        while (latencyInMs > max
+                && !latencyMaxInMs.compareAndSet(max, latencyInMs)) {
+            max = latencyMaxInMs.get();
+        }
+        latencyBuckets.incrementAndGet(bucketOf(latencyInMs));
+    }
+
+    private static int bucketOf(long latencyInMs) {
+        for (int i = 0; i < LATENCY_BUCKETS_IN_MS.length; i++) {
+            if (latencyInMs <= LATENCY_BUCKETS_IN_MS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BUCKETS_IN_MS.length;
+    }
+
+    /**
+     * Estimates a latency percentile from the histogram.
+     *
+     * @param percentile
+     *            The percentile, between 0 and 100.
+     * @return The upper bound of the bucket the percentile falls in, or the
+     *         maximum latency if it falls in the last bucket.
+     */
+    public long getLatencyPercentileInMs(double percentile) {
+        long total = calls.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS_IN_MS.length; i++) {
+            seen += latencyBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(LATENCY_BUCKETS_IN_MS[i], latencyMaxInMs.get());
+            }
+        }
+        return latencyMaxInMs.get();
+    }
+
+    /**
+     * @return The number of calls in each latency bucket, not cumulative. The
+     *         last entry counts the calls slower than every bound.
+     */
+    public long[] getLatencyBuckets() {
+        long[] counts = new long[latencyBuckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyBuckets.get(i);
+        }
+        return counts;
+    }
+
+    public String getTask() {
+        return task;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getLatencySumInMs() {
+        return latencySumInMs.get();
+    }
+
+    public long getLatencyMaxInMs() {
+        return latencyMaxInMs.get();
+    }
+}
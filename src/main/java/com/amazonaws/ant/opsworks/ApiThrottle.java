@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.Deployment;
+import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
+
+/**
+ * A project-scoped limit on how many deployments may be in flight at once,
+ * shared by all OpsWorks tasks. A slot is taken when a deployment is submitted
+ * and only given back once the deployment has succeeded or failed, as seen by
+ * a {@link DeploymentWaiter} or the monitor-opsworks-deployments task. A
+ * submission that finds every slot taken describes the deployments in flight
+ * itself, so deployments nobody waits for still give their slots back. The
+ * rate of OpsWorks calls and the retries of throttled calls are handled for
+ * every client by the project's {@link com.amazonaws.ant.RateLimiter}.
+ */
+public class ApiThrottle {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT_DEPLOYMENTS = 10;
+    private static final long POLL_INTERVAL_IN_MS = 1000 * 5;
+    private static final String RUNNING = "running";
+
+    private final Set<String> inFlight = new HashSet<String>();
+    private int submitting;
+    private int maxInFlightDeployments = DEFAULT_MAX_IN_FLIGHT_DEPLOYMENTS;
+    private long pollIntervalInMs = POLL_INTERVAL_IN_MS;
+
+    /**
+     * Returns the throttle of the given project, creating it with the default
+     * settings if needed.
+     *
+     * @param project
+     *            The project whose throttle to return.
+     * @return The throttle of the project.
+     */
+    public static ApiThrottle getThrottle(Project project) {
+        synchronized (project) {
+            ApiThrottle throttle = project
+                    .getReference(Constants.API_THROTTLE_REFERENCE);
+            if (throttle == null) {
+                throttle = new ApiThrottle();
+                project.addReference(Constants.API_THROTTLE_REFERENCE,
+                        throttle);
+            }
+            return throttle;
+        }
+    }
+
+    /**
+     * Changes how many deployments may be in flight at once. Deployments
+     * already in flight keep their slots.
+     *
+     * @param maxInFlightDeployments
+     *            The number of deployments that may be running at once.
+     */
+    public synchronized void setMaxInFlightDeployments(
+            int maxInFlightDeployments) {
+        this.maxInFlightDeployments = maxInFlightDeployments;
+        notifyAll();
+    }
+
+    /**
+     * Changes how long a blocked submission waits before describing the
+     * deployments in flight again.
+     */
+    synchronized void setPollIntervalInMs(long pollIntervalInMs) {
+        this.pollIntervalInMs = pollIntervalInMs;
+    }
+
+    /**
+     * @return The number of deployments submitted and not yet seen to finish.
+     */
+    synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Submits a deployment. Blocks while the maximum number of deployments are
+     * in flight. The slot taken is kept until {@link #deploymentFinished} is
+     * called with the returned ID, or given back right away if the call fails.
+     *
+     * @param client
+     *            The client used to describe the deployments in flight while
+     *            blocked.
+     * @param call
+     *            The call that submits the deployment and returns its ID.
+     * @return The ID of the submitted deployment.
+     */
+    public String submitDeployment(AWSOpsWorksClient client,
+            Callable<String> call) {
+        reserve(client);
+        String deploymentId = null;
+        try {
+            deploymentId = call.call();
+            return deploymentId;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BuildException(e.getMessage(), e);
+        } finally {
+            synchronized (this) {
+                submitting--;
+                if (deploymentId != null) {
+                    inFlight.add(deploymentId);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gives back the slot of a deployment that has succeeded or failed. Does
+     * nothing for deployments this throttle does not know about.
+     *
+     * @param deploymentId
+     *            The ID of the finished deployment.
+     */
+    public synchronized void deploymentFinished(String deploymentId) {
+        if (inFlight.remove(deploymentId)) {
+            notifyAll();
+        }
+    }
+
+    private void reserve(AWSOpsWorksClient client) {
+        try {
+            while (true) {
+                List<String> running;
+                synchronized (this) {
+                    if (submitting + inFlight.size() < maxInFlightDeployments) {
+                        submitting++;
+                        return;
+                    }
+                    running = new ArrayList<String>(inFlight);
+                }
+                releaseFinished(client, running);
+                synchronized (this) {
+                    if (submitting + inFlight.size() >= maxInFlightDeployments) {
+                        wait(pollIntervalInMs);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
+    private void releaseFinished(AWSOpsWorksClient client,
+            List<String> deploymentIds) {
+        if (deploymentIds.isEmpty()) {
+            return;
+        }
+        for (Deployment deployment : client.describeDeployments(
+                new DescribeDeploymentsRequest()
+                        .withDeploymentIds(deploymentIds)).getDeployments()) {
+            if (!RUNNING.equalsIgnoreCase(deployment.getStatus())) {
+                deploymentFinished(deployment.getDeploymentId());
+            }
+        }
+    }
+}
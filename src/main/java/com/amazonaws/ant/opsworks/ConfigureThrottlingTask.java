@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+import com.amazonaws.ant.RateLimiter;
+
+/**
+ * Limits the rate of OpsWorks calls in the project's {@link RateLimiter}, and
+ * sets the limit on running deployments shared by the OpsWorks tasks of this
+ * project. OpsWorks calls are not rate limited unless this task or
+ * set-aws-rate-limit is used. Call it before the tasks it should apply to.
+ */
+public class ConfigureThrottlingTask extends Task {
+
+    public static final double DEFAULT_REQUESTS_PER_SECOND = 5;
+    public static final int DEFAULT_BURST = 10;
+
+    private double requestsPerSecond = DEFAULT_REQUESTS_PER_SECOND;
+    private int burst = DEFAULT_BURST;
+    private int maxInFlightDeployments = ApiThrottle.DEFAULT_MAX_IN_FLIGHT_DEPLOYMENTS;
+
+    /**
+     * Set the sustained number of OpsWorks calls per second. Not required,
+     * default is 5.
+     *
+     * @param requestsPerSecond
+     *            The number of calls per second.
+     */
+    public void setRequestsPerSecond(double requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    /**
+     * Set how many calls may be made at once after a quiet period. Not
+     * required, default is 10.
+     *
+     * @param burst
+     *            The burst size.
+     */
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * Set how many deployments may be running at once across all tasks of the
+     * project. Not required, default is 10.
+     *
+     * @param maxInFlightDeployments
+     *            The number of deployments that may be running at once.
+     */
+    public void setMaxInFlightDeployments(int maxInFlightDeployments) {
+        this.maxInFlightDeployments = maxInFlightDeployments;
+    }
+
+    private void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+        if (requestsPerSecond <= 0) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: requestsPerSecond must be positive \n");
+        }
+        if (burst < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: burst must be at least 1 \n");
+        }
+        if (maxInFlightDeployments < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: maxInFlightDeployments must be at least 1 \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        RateLimiter.getRateLimiter(getProject()).setLimit("opsworks",
+                RateLimiter.ANY, requestsPerSecond, burst);
+        ApiThrottle.getThrottle(getProject()).setMaxInFlightDeployments(
+                maxInFlightDeployments);
+    }
+}
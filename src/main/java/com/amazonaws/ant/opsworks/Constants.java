@@ -33,4 +33,19 @@ public class Constants {
     // "appId" but it is already set, this sets a reference in the project to
     // true.
     public static final String APP_ID_REFERENCE = "appIdAlreadyUsed";
+
+    // The IdRegistry holding the instance, layer and deployment IDs created
+    // in this project.
+    public static final String ID_REGISTRY_REFERENCE = "opsworksIdRegistry";
+
+    // The ResourceCache indexing existing stacks, layers and apps, used when
+    // a create task's ifExists attribute is "reuse".
+    public static final String RESOURCE_CACHE_REFERENCE = "opsworksResourceCache";
+
+    // The ApiThrottle shared by the OpsWorks tasks of this project.
+    public static final String API_THROTTLE_REFERENCE = "opsworksApiThrottle";
+
+    // Values of the ifExists attribute of the create tasks
+    public static final String IF_EXISTS_CREATE = "create";
+    public static final String IF_EXISTS_REUSE = "reuse";
 }
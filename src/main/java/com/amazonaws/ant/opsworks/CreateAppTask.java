@@ -18,6 +18,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.tools.ant.BuildException;
 
@@ -52,6 +53,9 @@ public class CreateAppTask extends AWSAntTask {
     private String propertyNameForAppId = Constants.APP_ID_PROPERTY;
     private boolean enableSsl;
     private boolean useAwsKeysForRepo;
+    private String ifExists = Constants.IF_EXISTS_CREATE;
+    private String appId;
+    private boolean created;
     private List<DataSource> dataSources = new LinkedList<DataSource>();
     private List<String> domains = new LinkedList<String>();
     private Map<String, String> attributes = new HashMap<String, String>();
@@ -280,6 +284,19 @@ public class CreateAppTask extends AWSAntTask {
         attributes.put(appAttribute.getKey(), appAttribute.getValue());
     }
 
+    /**
+     * Set what to do if an app with the same shortname (or name, if no
+     * shortname is set) in this stack already exists. "create" always creates
+     * a new app; "reuse" uses the ID of the existing one instead. Not
+     * required, defaults to "create".
+     * 
+     * @param ifExists
+     *            Either "create" or "reuse".
+     */
+    public void setIfExists(String ifExists) {
+        this.ifExists = ResourceCache.checkIfExists(ifExists);
+    }
+
     private void checkParams() {
         StringBuilder errors = new StringBuilder("");
         boolean areMalformedParams = false;
@@ -342,6 +359,26 @@ public class CreateAppTask extends AWSAntTask {
         }
     }
 
+    /**
+     * Get the ID of the app found or created by the last execution of this
+     * task.
+     * 
+     * @return The ID of the app, or null if the task has not run yet.
+     */
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Get whether the last execution of this task created a new app, as
+     * opposed to reusing an existing one.
+     * 
+     * @return True if a new app was created.
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
     /**
      * Creates an app using the specified parameters. It also sets the "appId"
      * property to the ID of the created app. However it will only do this if
@@ -350,7 +387,43 @@ public class CreateAppTask extends AWSAntTask {
      */
     public void execute() {
         checkParams();
-        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        final AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        ResourceCache cache = ResourceCache.getCache(getProject());
+        appId = null;
+        created = false;
+        if (Constants.IF_EXISTS_REUSE.equals(ifExists)) {
+            appId = cache.findOrCreateApp(client, stackId, name, shortname,
+                    new Callable<String>() {
+                        public String call() {
+                            created = true;
+                            return createApp(client);
+                        }
+                    });
+            if (!created) {
+                System.out.println("Reusing existing app " + name
+                        + " with appId " + appId);
+            }
+        } else {
+            appId = createApp(client);
+            created = true;
+            cache.putApp(stackId, name, shortname, appId);
+        }
+        if (appId != null) {
+            // The check and the update must not interleave with another
+            // task doing the same inside <parallel>
+            synchronized (getProject()) {
+                if (propertyNameForAppId.equals(Constants.APP_ID_PROPERTY)
+                        && getProject().getProperty(Constants.APP_ID_PROPERTY) != null) {
+                    getProject().addReference(Constants.APP_ID_REFERENCE, true);
+                } else {
+                    getProject().addReference(Constants.APP_ID_REFERENCE, false);
+                    getProject().setNewProperty(propertyNameForAppId, appId);
+                }
+            }
+        }
+    }
+
+    private String createApp(AWSOpsWorksClient client) {
         CreateAppRequest createAppRequest = new CreateAppRequest()
                 .withStackId(stackId).withName(name).withType(type)
                 .withEnableSsl(enableSsl).withShortname(shortname)
@@ -389,15 +462,7 @@ public class CreateAppTask extends AWSAntTask {
             throw new BuildException("Could not create app: " + e.getMessage(),
                     e);
         }
-        if (appId != null) {
-            if (propertyNameForAppId.equals(Constants.APP_ID_PROPERTY)
-                    && getProject().getProperty(Constants.APP_ID_PROPERTY) != null) {
-                getProject().addReference(Constants.APP_ID_REFERENCE, true);
-            } else {
-                getProject().addReference(Constants.APP_ID_REFERENCE, false);
-                getProject().setNewProperty(propertyNameForAppId, appId);
-            }
-        }
+        return appId;
     }
 
     /**
@@ -14,13 +14,20 @@
  */
 package com.amazonaws.ant.opsworks;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.ant.SimpleNestedElement;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.Architecture;
 import com.amazonaws.services.opsworks.model.AutoScalingType;
@@ -32,6 +39,8 @@ public class CreateInstanceTask extends AWSAntTask {
 
     
     private List<String> layerIds = new LinkedList<String>();
+    private List<String> instanceIds = new ArrayList<String>();
+    private List<String> environmentLayerIds;
     private String stackId;
     private String instanceType;
     private String os;
@@ -41,13 +50,18 @@ public class CreateInstanceTask extends AWSAntTask {
     private String virtualizationType;
     private String subnetId;
     private String propertyNameForInstanceId;
+    private String waitForState;
+    private String layerShortnames;
     private Architecture architecture;
     private AutoScalingType autoScalingType;
     private RootDeviceType rootDeviceType = RootDeviceType.Ebs;
     private boolean installUpdatesOnBoot = true;
     private boolean ebsOptimized;
     private boolean useProjectLayerIds = true;
+    private boolean useProjectLayerIdsSet;
     private boolean startOnCreate = true;
+    private int count = 1;
+    private int maxConcurrentRequests = 5;
 
     /**
      * Allows you to add a proconfigured nested LayerId element. At least one
@@ -192,6 +206,34 @@ public class CreateInstanceTask extends AWSAntTask {
      */
     public void setUseProjectLayerIds(boolean useProjectLayerIds) {
         this.useProjectLayerIds = useProjectLayerIds;
+        useProjectLayerIdsSet = true;
+    }
+
+    /**
+     * Adds the layers of an environment to this instance in place of all
+     * layers created earlier in the project, unless useProjectLayerIds was set
+     * explicitly. Used by opsworks-environment for its nested instances.
+     * 
+     * @param environmentLayerIds
+     *            The IDs of the layers of the environment.
+     */
+    void setEnvironmentLayerIds(List<String> environmentLayerIds) {
+        if (!useProjectLayerIdsSet) {
+            this.environmentLayerIds = environmentLayerIds;
+        }
+    }
+
+    /**
+     * Set a comma-separated list of shortnames of layers in the stack to add
+     * this instance to. The shortnames are resolved to layer IDs when the task
+     * runs. If set, the layers created earlier in this project are not added
+     * automatically. Not required.
+     * 
+     * @param layerShortnames
+     *            A comma-separated list of layer shortnames.
+     */
+    public void setLayerShortnames(String layerShortnames) {
+        this.layerShortnames = layerShortnames;
     }
 
     /**
@@ -252,6 +294,51 @@ public class CreateInstanceTask extends AWSAntTask {
         this.propertyNameForInstanceId = propertyToSet;
     }
 
+    /**
+     * Set how many identical instances to create. Not required, defaults to 1.
+     * If more than one instance is created, the property set by
+     * propertyNameForInstanceId will hold a comma-separated list of their IDs.
+     * 
+     * @param count
+     *            The number of instances to create.
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * Set how many createInstance and startInstance calls may be in flight at
+     * once when creating more than one instance. Not required, defaults to 5.
+     * 
+     * @param maxConcurrentRequests
+     *            The number of requests to make concurrently.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Set a state, such as "online", to wait for all created instances to
+     * reach before this task finishes. Not required; by default the task does
+     * not wait.
+     * 
+     * @param waitForState
+     *            The state to wait for the created instances to reach.
+     */
+    public void setWaitForState(String waitForState) {
+        this.waitForState = waitForState;
+    }
+
+    /**
+     * Get the IDs of the instances created by this task.
+     * 
+     * @return The IDs of the created instances, in the order their creation
+     *         was submitted.
+     */
+    public List<String> getInstanceIds() {
+        return instanceIds;
+    }
+
     public void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -267,84 +354,220 @@ public class CreateInstanceTask extends AWSAntTask {
                         + " property as stackId");
             }
         }
-        if (useProjectLayerIds) {
-            addProjectLayerIds();
+        if (count < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: count must be at least 1 \n");
         }
-        if (layerIds.size() <= 0) {
+        if (maxConcurrentRequests < 1) {
             areMalformedParams = true;
-            errors.append("Missing parameter: You must specify at least one LayerId \n");
+            errors.append("Malformed parameter: maxConcurrentRequests must be at least 1 \n");
         }
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
     }
 
-    private void addProjectLayerIds() {
-        String projectLayerIds = getProject().getProperty(Constants.LAYER_IDS_PROPERTY);
-        for (String layerId : projectLayerIds.split(",")) {
-            layerIds.add(layerId);
+    /**
+     * Gathers the layers to add the instances to: the nested LayerIds, plus
+     * the layers named by layerShortnames, the environment's layers or the
+     * layers created earlier in the project. Resolved anew on every execution,
+     * so that running the task again doesn't add the layers twice.
+     */
+    private List<String> resolveLayerIds() {
+        List<String> resolvedLayerIds = new ArrayList<String>(layerIds);
+        if (layerShortnames != null) {
+            addLayerIdsByShortname(resolvedLayerIds);
+        } else if (environmentLayerIds != null) {
+            resolvedLayerIds.addAll(environmentLayerIds);
+        } else if (useProjectLayerIds) {
+            resolvedLayerIds.addAll(IdRegistry.getRegistry(getProject()).get(
+                    IdType.LAYER));
+        }
+        if (resolvedLayerIds.isEmpty()) {
+            throw new BuildException("Missing parameter: You must specify at least one LayerId \n");
+        }
+        return resolvedLayerIds;
+    }
+
+    private void addLayerIdsByShortname(List<String> resolvedLayerIds) {
+        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        ResourceCache cache = ResourceCache.getCache(getProject());
+        for (String shortname : layerShortnames.split(",")) {
+            shortname = shortname.trim();
+            if (shortname.length() == 0) {
+                continue;
+            }
+            String layerId;
+            try {
+                layerId = cache.findLayerId(client, stackId, shortname);
+            } catch (Exception e) {
+                throw new BuildException("Could not describe layers: "
+                        + e.getMessage(), e);
+            }
+            if (layerId == null) {
+                throw new BuildException("No layer with shortname "
+                        + shortname + " in stack " + stackId);
+            }
+            resolvedLayerIds.add(layerId);
         }
     }
 
     /**
-     * Creates an instance according to the set parameters. Also sets an
-     * instanceId property. Which property will be set depends on what order
-     * this instance is created in the project. If it is the first instance
-     * created in this Ant build, instanceId1 is set. If it's the second,
-     * instanceId2 is set, etc. The ID is also printed for you to set to your
-     * own property for later use.
+     * Creates an instance according to the set parameters, or "count"
+     * instances concurrently if count is greater than 1. The IDs of the created
+     * instances are appended to the "instanceIds" property, and assigned to
+     * the property named by propertyNameForInstanceId if it is set, even if
+     * creating or starting some of them fails. If waitForState is set, the
+     * task blocks until all created instances reach that state.
      */
     public void execute() {
         checkParams();
+        List<String> resolvedLayerIds = resolveLayerIds();
         AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
         CreateInstanceRequest createInstanceRequest = new CreateInstanceRequest()
                 .withStackId(stackId)
                 .withInstallUpdatesOnBoot(installUpdatesOnBoot)
-                .withEbsOptimized(ebsOptimized).withLayerIds(layerIds)
+                .withEbsOptimized(ebsOptimized).withLayerIds(resolvedLayerIds)
                 .withInstanceType(instanceType).withOs(os)
                 .withAmiId(amiId).withSshKeyName(sshKeyName)
                 .withAvailabilityZone(availabilityZone)
                 .withVirtualizationType(virtualizationType)
                 .withRootDeviceType(rootDeviceType).withSubnetId(subnetId);
-        String instanceId;
         if(autoScalingType != null) {
             createInstanceRequest.setAutoScalingType(autoScalingType);
         }
         if(architecture != null) {
             createInstanceRequest.setArchitecture(architecture);
         }
+        String[] createdIds = new String[count];
+        List<String> createdInstanceIds;
         try {
-            instanceId = client.createInstance(createInstanceRequest)
-                    .getInstanceId();
-            if (startOnCreate) {
-                client.startInstance(new StartInstanceRequest()
-                        .withInstanceId(instanceId));
-                System.out.println("Starting created instance.");
+            if (count == 1) {
+                try {
+                    createInstance(client, createInstanceRequest, createdIds,
+                            0);
+                } catch (Exception e) {
+                    throw new BuildException("Could not create Instance: "
+                            + e.getMessage(), e);
+                }
+            } else {
+                createInstances(client, createInstanceRequest, createdIds);
             }
-            Thread.sleep(10); // Wait for the instance metadata to populate
-            System.out
-                    .println("Created instance with instanceId "
-                            + instanceId
-                            + ". View the status of this instance at https://console.aws.amazon.com/opsworks/home?#/stack/"
-                            + stackId + "/instances");
-        } catch (Exception e) {
-            throw new BuildException("Could not create Instance: "
-                    + e.getMessage(), e);
+        } finally {
+            // Also record the instances that were created before a failure,
+            // so that they can be cleaned up
+            createdInstanceIds = recordInstanceIds(createdIds);
         }
 
-        if (instanceId != null) {
-            if (getProject().getProperty(Constants.INSTANCE_IDS_PROPERTY) == null) {
-                getProject().setProperty(Constants.INSTANCE_IDS_PROPERTY, instanceId);
-            } else {
-                getProject().setProperty(
-                        Constants.INSTANCE_IDS_PROPERTY,
-                        getProject().getProperty(Constants.INSTANCE_IDS_PROPERTY) + ","
-                                + instanceId);
+        if (waitForState != null) {
+            try {
+                new InstanceWaiter(client).withTracer(getTracer())
+                        .waitForInstances(createdInstanceIds, waitForState);
+            } catch (InterruptedException e) {
+                throw new BuildException(e.getMessage(), e);
             }
-            if (propertyNameForInstanceId != null) {
-                getProject().setProperty(propertyNameForInstanceId, instanceId);
+        }
+    }
+
+    /**
+     * Creates an instance and stores its ID in the given slot before starting
+     * it, so that the instance is known even if it fails to start.
+     */
+    private void createInstance(AWSOpsWorksClient client,
+            CreateInstanceRequest createInstanceRequest, String[] createdIds,
+            int index) {
+        String instanceId = client.createInstance(
+                createInstanceRequest.clone()).getInstanceId();
+        synchronized (createdIds) {
+            createdIds[index] = instanceId;
+        }
+        if (startOnCreate) {
+            client.startInstance(new StartInstanceRequest()
+                    .withInstanceId(instanceId));
+            System.out.println("Starting created instance.");
+        }
+        System.out
+                .println("Created instance with instanceId "
+                        + instanceId
+                        + ". View the status of this instance at https://console.aws.amazon.com/opsworks/home?#/stack/"
+                        + stackId + "/instances");
+    }
+
+    private void createInstances(final AWSOpsWorksClient client,
+            final CreateInstanceRequest createInstanceRequest,
+            final String[] createdIds) {
+        System.out.println("Creating " + count + " instances...");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                count, maxConcurrentRequests));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(count);
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        createInstance(client, createInstanceRequest,
+                                createdIds, index);
+                        return null;
+                    }
+                }));
+            }
+            Throwable failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException(e.getMessage(), e);
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                }
+            }
+            if (failure != null) {
+                throw new BuildException("Could not create Instance: "
+                        + failure.getMessage() + ". Created instances: "
+                        + createdInstanceIds(createdIds), failure);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The IDs of the instances created so far, in the order their
+     *         creation was submitted.
+     */
+    private static List<String> createdInstanceIds(String[] createdIds) {
+        List<String> createdInstanceIds = new ArrayList<String>();
+        synchronized (createdIds) {
+            for (String instanceId : createdIds) {
+                if (instanceId != null) {
+                    createdInstanceIds.add(instanceId);
+                }
+            }
+        }
+        return createdInstanceIds;
+    }
+
+    private List<String> recordInstanceIds(String[] createdIds) {
+        List<String> createdInstanceIds = createdInstanceIds(createdIds);
+        instanceIds.addAll(createdInstanceIds);
+        if (createdInstanceIds.isEmpty()) {
+            return createdInstanceIds;
+        }
+        IdRegistry.getRegistry(getProject()).addAll(IdType.INSTANCE,
+                createdInstanceIds);
+        if (propertyNameForInstanceId != null) {
+            StringBuilder joinedIds = new StringBuilder();
+            for (String instanceId : createdInstanceIds) {
+                if (joinedIds.length() > 0) {
+                    joinedIds.append(",");
+                }
+                joinedIds.append(instanceId);
             }
+            getProject().setProperty(propertyNameForInstanceId,
+                    joinedIds.toString());
         }
+        return createdInstanceIds;
     }
 
     /**
@@ -18,12 +18,14 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.ant.KeyValueNestedElement;
 import com.amazonaws.ant.SimpleNestedElement;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.CreateLayerRequest;
 import com.amazonaws.services.opsworks.model.Recipes;
@@ -53,6 +55,9 @@ public class CreateLayerTask extends AWSAntTask {
     private boolean installUpdatesOnBoot = true;
     private boolean useEbsOptimizedInstances = true;
     private boolean isSetCustomRecipe;
+    private String ifExists = Constants.IF_EXISTS_CREATE;
+    private String layerId;
+    private boolean created;
 
     /**
      * Allows you to add any number of preconfigured LayerAttribute nested
@@ -273,6 +278,18 @@ public class CreateLayerTask extends AWSAntTask {
         this.propertyNameForLayerId = propertyToSet;
     }
 
+    /**
+     * Set what to do if a layer with the same shortname in this stack already
+     * exists. "create" always creates a new layer; "reuse" uses the ID of the
+     * existing one instead. Not required, defaults to "create".
+     * 
+     * @param ifExists
+     *            Either "create" or "reuse".
+     */
+    public void setIfExists(String ifExists) {
+        this.ifExists = ResourceCache.checkIfExists(ifExists);
+    }
+
     private void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -306,6 +323,26 @@ public class CreateLayerTask extends AWSAntTask {
         }
     }
 
+    /**
+     * Get the ID of the layer found or created by the last execution of this
+     * task.
+     * 
+     * @return The ID of the layer, or null if the task has not run yet.
+     */
+    public String getLayerId() {
+        return layerId;
+    }
+
+    /**
+     * Get whether the last execution of this task created a new layer, as
+     * opposed to reusing an existing one.
+     * 
+     * @return True if a new layer was created.
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
     /**
      * Creates a layer according to the set parameters. Also sets a layerId
      * property. Which property will be set depends on what order this layer is
@@ -315,7 +352,36 @@ public class CreateLayerTask extends AWSAntTask {
      */
     public void execute() {
         checkParams();
-        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        final AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        ResourceCache cache = ResourceCache.getCache(getProject());
+        layerId = null;
+        created = false;
+        if (Constants.IF_EXISTS_REUSE.equals(ifExists)) {
+            layerId = cache.findOrCreateLayer(client, stackId, shortname,
+                    new Callable<String>() {
+                        public String call() {
+                            created = true;
+                            return createLayer(client);
+                        }
+                    });
+            if (!created) {
+                System.out.println("Reusing existing layer " + shortname
+                        + " with ID " + layerId);
+            }
+        } else {
+            layerId = createLayer(client);
+            created = true;
+            cache.putLayer(stackId, shortname, layerId);
+        }
+        if (layerId != null) {
+            IdRegistry.getRegistry(getProject()).add(IdType.LAYER, layerId);
+            if (propertyNameForLayerId != null) {
+                getProject().setProperty(propertyNameForLayerId, layerId);
+            }
+        }
+    }
+
+    private String createLayer(AWSOpsWorksClient client) {
         CreateLayerRequest createLayerRequest = new CreateLayerRequest()
                 .withStackId(stackId).withType(type).withName(name)
                 .withShortname(shortname)
@@ -354,19 +420,7 @@ public class CreateLayerTask extends AWSAntTask {
                     + e.getMessage(), e);
         }
         System.out.println("Created layer with ID " + layerId);
-        if (layerId != null) {
-            if (getProject().getProperty(Constants.LAYER_IDS_PROPERTY) == null) {
-                getProject().setProperty(Constants.LAYER_IDS_PROPERTY, layerId);
-            } else {
-                getProject().setProperty(
-                        Constants.LAYER_IDS_PROPERTY,
-                        getProject().getProperty(Constants.LAYER_IDS_PROPERTY) + ","
-                                + layerId);
-            }
-            if (propertyNameForLayerId != null) {
-                getProject().setProperty(propertyNameForLayerId, layerId);
-            }
-        }
+        return layerId;
     }
 
     /**
@@ -16,6 +16,7 @@ package com.amazonaws.ant.opsworks;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.tools.ant.BuildException;
 
@@ -56,6 +57,9 @@ public class CreateStackTask extends AWSAntTask {
     private boolean useOpsworksSecurityGroups = true;
     private boolean manageBerkshelf;
     private boolean startOnCreate = true;
+    private String ifExists = Constants.IF_EXISTS_CREATE;
+    private String stackId;
+    private boolean created;
 
     /**
      * Allows you to add any number of attributes (Key-value pairs) to associate
@@ -329,6 +333,18 @@ public class CreateStackTask extends AWSAntTask {
         this.propertyNameForStackId = propertyNameForStackId;
     }
 
+    /**
+     * Set what to do if a stack with the same name already exists. "create"
+     * always creates a new stack; "reuse" uses the ID of the existing one
+     * instead. Not required, defaults to "create".
+     * 
+     * @param ifExists
+     *            Either "create" or "reuse".
+     */
+    public void setIfExists(String ifExists) {
+        this.ifExists = ResourceCache.checkIfExists(ifExists);
+    }
+
     public void checkParams() {
         StringBuilder errors = new StringBuilder("");
         boolean areMalformedParams = false;
@@ -373,13 +389,76 @@ public class CreateStackTask extends AWSAntTask {
     }
 
     /**
-     * Creates a stack according to the set parameters. Also sets the stackId
-     * property to the created stack's ID. The ID is also printed for you to set
-     * to your own property for later use.
+     * Get the ID of the stack found or created by the last execution of this
+     * task.
+     * 
+     * @return The ID of the stack, or null if the task has not run yet.
+     */
+    public String getStackId() {
+        return stackId;
+    }
+
+    /**
+     * Get whether the last execution of this task created a new stack, as
+     * opposed to reusing an existing one.
+     * 
+     * @return True if a new stack was created.
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Creates a stack according to the set parameters, or finds the existing
+     * stack with the same name if ifExists is "reuse". Also sets the stackId
+     * property to the stack's ID. The ID is also printed for you to set to your
+     * own property for later use.
      */
     public void execute() {
         checkParams();
-        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        final AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        ResourceCache cache = ResourceCache.getCache(getProject());
+        stackId = null;
+        created = false;
+        if (Constants.IF_EXISTS_REUSE.equals(ifExists)) {
+            stackId = cache.findOrCreateStack(client, name,
+                    new Callable<String>() {
+                        public String call() {
+                            created = true;
+                            return createStack(client);
+                        }
+                    });
+            if (!created) {
+                System.out.println("Reusing existing stack " + name
+                        + " with stackId " + stackId);
+            }
+        } else {
+            stackId = createStack(client);
+            created = true;
+            cache.putStack(name, stackId);
+        }
+        // The stack is recorded before it is started, so that it is known to
+        // be created even if it fails to start
+        if (created && startOnCreate) {
+            startStack(client);
+        }
+
+        if (stackId != null) {
+            // The check and the update must not interleave with another
+            // task doing the same inside <parallel>
+            synchronized (getProject()) {
+                if (propertyNameForStackId.equals(Constants.STACK_ID_PROPERTY)
+                        && getProject().getProperty(Constants.STACK_ID_PROPERTY) != null) {
+                    getProject().addReference(Constants.STACK_ID_REFERENCE, true);
+                } else {
+                    getProject().addReference(Constants.STACK_ID_REFERENCE, false);
+                    getProject().setNewProperty(propertyNameForStackId, stackId);
+                }
+            }
+        }
+    }
+
+    private String createStack(AWSOpsWorksClient client) {
         CreateStackRequest createStackRequest = new CreateStackRequest()
                 .withName(name).withRegion(region)
                 .withServiceRoleArn(serviceRoleArn)
@@ -426,19 +505,16 @@ public class CreateStackTask extends AWSAntTask {
             throw new BuildException("Could not create stack: "
                     + e.getMessage(), e);
         }
+        return stackId;
+    }
 
-        if (startOnCreate) {
+    private void startStack(AWSOpsWorksClient client) {
+        try {
             client.startStack(new StartStackRequest().withStackId(stackId));
             System.out.println("Started stack.");
-        }
-        if (stackId != null) {
-            if (propertyNameForStackId.equals(Constants.STACK_ID_PROPERTY)
-                    && getProject().getProperty(Constants.STACK_ID_PROPERTY) != null) {
-                getProject().addReference(Constants.STACK_ID_REFERENCE, true);
-            } else {
-                getProject().addReference(Constants.STACK_ID_REFERENCE, false);
-                getProject().setNewProperty(propertyNameForStackId, stackId);
-            }
+        } catch (Exception e) {
+            throw new BuildException("Could not start stack " + stackId + ": "
+                    + e.getMessage(), e);
         }
     }
 
@@ -18,11 +18,13 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.tools.ant.BuildException;
 
 import com.amazonaws.ant.AWSAntTask;
 import com.amazonaws.ant.SimpleNestedElement;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.CreateDeploymentRequest;
 import com.amazonaws.services.opsworks.model.DeploymentCommand;
@@ -180,8 +182,8 @@ public class DeployAppTask extends AWSAntTask {
      */
     public void execute() {
         checkParams();
-        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
-        CreateDeploymentRequest createDeploymentRequest = new CreateDeploymentRequest()
+        final AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        final CreateDeploymentRequest createDeploymentRequest = new CreateDeploymentRequest()
                 .withStackId(stackId).withAppId(appId).withCommand(command)
                 .withInstanceIds(instanceIds);
         if (comment != null) {
@@ -192,8 +194,13 @@ public class DeployAppTask extends AWSAntTask {
         }
         String deploymentId;
         try {
-            deploymentId = client.createDeployment(createDeploymentRequest)
-                    .getDeploymentId();
+            deploymentId = ApiThrottle.getThrottle(getProject())
+                    .submitDeployment(client, new Callable<String>() {
+                        public String call() {
+                            return client.createDeployment(
+                                    createDeploymentRequest).getDeploymentId();
+                        }
+                    });
             System.out
                     .println("Deployment request submitted. You can view the status of your deployment at https://console.aws.amazon.com/opsworks/home?#/stack/"
                             + stackId + "/deployments/" + deploymentId);
@@ -203,18 +210,12 @@ public class DeployAppTask extends AWSAntTask {
                     + e.getMessage(), e);
         }
         if (deploymentId != null) {
-            if (getProject().getProperty(Constants.DEPLOYMENT_IDS_PROPERTY) == null) {
-                getProject().setProperty(Constants.DEPLOYMENT_IDS_PROPERTY, deploymentId);
-            } else {
-                getProject().setProperty(
-                        Constants.DEPLOYMENT_IDS_PROPERTY,
-                        getProject().getProperty(Constants.DEPLOYMENT_IDS_PROPERTY) + ","
-                                + deploymentId);
-            }
+            IdRegistry.getRegistry(getProject()).add(IdType.DEPLOYMENT,
+                    deploymentId);
             if (propertyNameForDeploymentId != null) {
                 getProject().setProperty(propertyNameForDeploymentId, deploymentId);
-                setDescription(deploymentId);
             }
+            setDescription(deploymentId);
         }
     }
 
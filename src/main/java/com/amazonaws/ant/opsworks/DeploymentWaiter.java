@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.tracing.Span;
+import com.amazonaws.ant.tracing.Tracer;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.Deployment;
+import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
+
+/**
+ * Polls OpsWorks for the status of a set of deployments until all of them
+ * have finished. All outstanding deployments are described in a single call
+ * per poll, and the delay between polls grows exponentially up to a maximum.
+ */
+public class DeploymentWaiter {
+
+    public static final String SUCCESSFUL = "successful";
+    public static final String FAILED = "failed";
+
+    private final AWSOpsWorksClient client;
+    private long initialDelayInMs = 1000 * 5;
+    private long maxDelayInMs = 1000 * 30;
+    private long timeoutInMs = 1000 * 60 * 60;
+    private boolean failFast = true;
+    private Tracer tracer = Tracer.getTracer(null);
+    private ApiThrottle throttle;
+
+    /**
+     * @param client
+     *            The client to use to access AWS OpsWorks.
+     */
+    public DeploymentWaiter(AWSOpsWorksClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Set how long to wait before the first poll. The delay doubles after
+     * every poll until it reaches the maximum delay.
+     *
+     * @param initialDelayInMs
+     *            How long to wait before the first poll.
+     * @return This object for method chaining.
+     */
+    public DeploymentWaiter withInitialDelayInMs(long initialDelayInMs) {
+        this.initialDelayInMs = initialDelayInMs;
+        return this;
+    }
+
+    /**
+     * Set the longest time to wait between two polls.
+     *
+     * @param maxDelayInMs
+     *            The longest time to wait between two polls.
+     * @return This object for method chaining.
+     */
+    public DeploymentWaiter withMaxDelayInMs(long maxDelayInMs) {
+        this.maxDelayInMs = maxDelayInMs;
+        return this;
+    }
+
+    /**
+     * Set how long to wait in total before giving up.
+     *
+     * @param timeoutInMs
+     *            How long to wait in total before giving up.
+     * @return This object for method chaining.
+     */
+    public DeploymentWaiter withTimeoutInMs(long timeoutInMs) {
+        this.timeoutInMs = timeoutInMs;
+        return this;
+    }
+
+    /**
+     * Set whether to throw a BuildException as soon as any deployment fails,
+     * instead of waiting for all deployments to finish.
+     *
+     * @param failFast
+     *            Whether to fail as soon as any deployment fails.
+     * @return This object for method chaining.
+     */
+    public DeploymentWaiter withFailFast(boolean failFast) {
+        this.failFast = failFast;
+        return this;
+    }
+
+    /**
+     * Set the tracer to record each poll and each sleep in.
+     *
+     * @param tracer
+     *            The tracer to record spans in.
+     * @return This object for method chaining.
+     */
+    public DeploymentWaiter withTracer(Tracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    /**
+     * Set the throttle to give the slot of each deployment back to as soon as
+     * the deployment is seen to succeed or fail.
+     *
+     * @param throttle
+     *            The throttle the deployments were submitted through.
+     * @return This object for method chaining.
+     */
+    public DeploymentWaiter withThrottle(ApiThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Waits for all of the given deployments to either succeed or fail.
+     *
+     * @param deploymentIds
+     *            The IDs of the deployments to wait for.
+     * @return The final status of each deployment, keyed by deployment ID.
+     * @throws InterruptedException
+     *             If the thread is interrupted
+     */
+    public Map<String, String> waitForDeployments(
+            Collection<String> deploymentIds) throws InterruptedException {
+        Map<String, String> finalStatuses = new HashMap<String, String>();
+        Set<String> pending = new HashSet<String>(deploymentIds);
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        long delay = initialDelayInMs;
+        while (!pending.isEmpty()) {
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new BuildException("Deployments " + pending
+                        + " never failed or succeeded");
+            }
+            tracer.sleep(delay);
+            delay = Math.min(delay * 2, maxDelayInMs);
+
+            Span poll = tracer.startSpan("poll deployments",
+                    Tracer.CATEGORY_POLL).addArg("pending", pending.size());
+            try {
+                List<Deployment> deployments = client.describeDeployments(
+                        new DescribeDeploymentsRequest().withDeploymentIds(pending))
+                        .getDeployments();
+                for (Deployment deployment : deployments) {
+                    String status = deployment.getStatus();
+                    System.out.println(deployment.getDeploymentId() + " : "
+                            + status);
+                    if (throttle != null
+                            && (FAILED.equalsIgnoreCase(status) || SUCCESSFUL
+                                    .equalsIgnoreCase(status))) {
+                        throttle.deploymentFinished(deployment
+                                .getDeploymentId());
+                    }
+                    if (FAILED.equalsIgnoreCase(status)) {
+                        if (failFast) {
+                            throw new BuildException("Deployment "
+                                    + deployment.getDeploymentId() + " failed");
+                        }
+                    } else if (!SUCCESSFUL.equalsIgnoreCase(status)) {
+                        continue;
+                    }
+                    finalStatuses.put(deployment.getDeploymentId(),
+                            status.toLowerCase());
+                    pending.remove(deployment.getDeploymentId());
+                }
+            } finally {
+                poll.end();
+            }
+        }
+        return finalStatuses;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.TaskContainer;
+import org.apache.tools.ant.UnknownElement;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.DeleteAppRequest;
+import com.amazonaws.services.opsworks.model.DeleteInstanceRequest;
+import com.amazonaws.services.opsworks.model.DeleteLayerRequest;
+import com.amazonaws.services.opsworks.model.DeleteStackRequest;
+import com.amazonaws.services.opsworks.model.StopInstanceRequest;
+
+/**
+ * Provisions a whole OpsWorks environment from nested create-opsworks-stack,
+ * create-opsworks-layer, create-opsworks-app and create-opsworks-instance
+ * elements. The nested elements are run as a plan rather than in the order
+ * they are written: the stack first, then all layers and apps concurrently,
+ * then all instances concurrently. Every nested element is pointed at the
+ * environment's stack. If any element fails, the resources created so far are
+ * deleted again, unless rollbackOnFailure is false.
+ */
+public class EnvironmentTask extends AWSAntTask implements TaskContainer {
+
+    private static final String STOPPED = "stopped";
+
+    private List<Task> tasks = new LinkedList<Task>();
+    private String stackId;
+    private String waitForState;
+    private int maxConcurrentRequests = 5;
+    private boolean rollbackOnFailure = true;
+
+    private CreateStackTask stackTask;
+    private List<CreateLayerTask> layerTasks = new ArrayList<CreateLayerTask>();
+    private List<CreateAppTask> appTasks = new ArrayList<CreateAppTask>();
+    private List<CreateInstanceTask> instanceTasks = new ArrayList<CreateInstanceTask>();
+
+    /**
+     * Allows you to add the nested create-opsworks-stack,
+     * create-opsworks-layer, create-opsworks-app and create-opsworks-instance
+     * elements of this environment.
+     *
+     * @param task
+     *            A nested task.
+     */
+    public void addTask(Task task) {
+        tasks.add(task);
+    }
+
+    /**
+     * The ID of an existing stack to provision the environment in. Either this
+     * or a nested create-opsworks-stack element must be given.
+     *
+     * @param stackId
+     *            The ID of the stack to use.
+     */
+    public void setStackId(String stackId) {
+        this.stackId = stackId;
+    }
+
+    /**
+     * Set a state to wait for all created instances to reach, such as
+     * "online". Not required; if not set, the task does not wait.
+     *
+     * @param waitForState
+     *            The state to wait for.
+     */
+    public void setWaitForState(String waitForState) {
+        this.waitForState = waitForState;
+    }
+
+    /**
+     * Set how many create requests may be in flight at once. Not required,
+     * default is 5.
+     *
+     * @param maxConcurrentRequests
+     *            The maximum number of concurrent create requests.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Set whether to delete the resources created by this task if any part of
+     * the environment fails to be created. Resources that were reused rather
+     * than created are never deleted. Not required, default is true.
+     *
+     * @param rollbackOnFailure
+     *            Whether to delete created resources on failure.
+     */
+    public void setRollbackOnFailure(boolean rollbackOnFailure) {
+        this.rollbackOnFailure = rollbackOnFailure;
+    }
+
+    private void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+        if (stackTask != null && stackId != null) {
+            areMalformedParams = true;
+            errors.append("You cannot set stackId and also nest a create-opsworks-stack element \n");
+        }
+        if (stackTask == null && stackId == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: stackId is required unless a create-opsworks-stack element is nested \n");
+        }
+        if (maxConcurrentRequests < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: maxConcurrentRequests must be at least 1 \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    /**
+     * Creates the stack, then the layers and apps, then the instances,
+     * running the creations of each step concurrently. Rolls back the created
+     * resources if any step fails.
+     */
+    public void execute() {
+        classifyTasks();
+        checkParams();
+        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        ExecutorService executor = Executors
+                .newFixedThreadPool(maxConcurrentRequests);
+        try {
+            if (stackTask != null) {
+                runStep("stack", executor,
+                        Collections.<Task> singletonList(stackTask));
+                stackId = stackTask.getStackId();
+            }
+            List<Task> layersAndApps = new ArrayList<Task>();
+            layersAndApps.addAll(inStack(layerTasks));
+            layersAndApps.addAll(inStack(appTasks));
+            runStep("layers and apps", executor, layersAndApps);
+            runStep("instances", executor, inStack(instanceTasks));
+
+            if (waitForState != null) {
+                new InstanceWaiter(client).withTracer(getTracer())
+                        .waitForInstances(getCreatedInstanceIds(), waitForState);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(client, new BuildException(e.getMessage(), e));
+        } catch (BuildException e) {
+            fail(client, e);
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println("Environment in stack " + stackId + " is ready");
+    }
+
+    private void classifyTasks() {
+        for (Task task : tasks) {
+            if (task instanceof UnknownElement) {
+                task.maybeConfigure();
+                task = ((UnknownElement) task).getTask();
+            }
+            if (task instanceof CreateStackTask) {
+                if (stackTask != null) {
+                    throw new BuildException(
+                            "Only one create-opsworks-stack element may be nested");
+                }
+                stackTask = (CreateStackTask) task;
+            } else if (task instanceof CreateLayerTask) {
+                layerTasks.add((CreateLayerTask) task);
+            } else if (task instanceof CreateAppTask) {
+                appTasks.add((CreateAppTask) task);
+            } else if (task instanceof CreateInstanceTask) {
+                instanceTasks.add((CreateInstanceTask) task);
+            } else {
+                throw new BuildException(
+                        "Only <create-opsworks-stack>, <create-opsworks-layer>, <create-opsworks-app> and <create-opsworks-instance> elements are supported");
+            }
+        }
+    }
+
+    private List<Task> inStack(List<? extends Task> stepTasks) {
+        List<Task> tasksInStack = new ArrayList<Task>(stepTasks.size());
+        // Instances join the layers of this environment, not every layer
+        // created in the project
+        List<String> layerIds = new ArrayList<String>(layerTasks.size());
+        for (CreateLayerTask layerTask : layerTasks) {
+            if (layerTask.getLayerId() != null) {
+                layerIds.add(layerTask.getLayerId());
+            }
+        }
+        for (Task task : stepTasks) {
+            if (task instanceof CreateLayerTask) {
+                ((CreateLayerTask) task).setStackId(stackId);
+            } else if (task instanceof CreateAppTask) {
+                ((CreateAppTask) task).setStackId(stackId);
+            } else if (task instanceof CreateInstanceTask) {
+                ((CreateInstanceTask) task).setStackId(stackId);
+                ((CreateInstanceTask) task).setEnvironmentLayerIds(layerIds);
+            }
+            tasksInStack.add(task);
+        }
+        return tasksInStack;
+    }
+
+    private void runStep(String step, ExecutorService executor,
+            List<Task> stepTasks) throws InterruptedException {
+        if (stepTasks.isEmpty()) {
+            return;
+        }
+        System.out.println("Creating " + step + " (" + stepTasks.size()
+                + " elements)");
+        List<Future<?>> futures = new ArrayList<Future<?>>(stepTasks.size());
+        for (final Task task : stepTasks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    task.execute();
+                    return null;
+                }
+            }));
+        }
+        // Wait for every request of the step, even after a failure, so that
+        // everything that was created is known to the rollback.
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof BuildException) {
+            throw (BuildException) failure;
+        } else if (failure != null) {
+            throw new BuildException(failure.getMessage(), failure);
+        }
+    }
+
+    private List<String> getCreatedInstanceIds() {
+        List<String> instanceIds = new ArrayList<String>();
+        for (CreateInstanceTask instanceTask : instanceTasks) {
+            instanceIds.addAll(instanceTask.getInstanceIds());
+        }
+        return instanceIds;
+    }
+
+    private void fail(AWSOpsWorksClient client, BuildException e) {
+        if (!rollbackOnFailure) {
+            throw new BuildException("Could not create environment: "
+                    + e.getMessage(), e);
+        }
+        System.out.println("Could not create environment: " + e.getMessage()
+                + ". Rolling back created resources.");
+        rollback(client);
+        throw new BuildException("Could not create environment, created resources were rolled back: "
+                + e.getMessage(), e);
+    }
+
+    /*
+     * Deletes created resources in the reverse order of creation, and removes
+     * the IDs of the deleted instances and layers from the IdRegistry. Failures
+     * are reported but do not stop the rest of the rollback.
+     */
+    private void rollback(AWSOpsWorksClient client) {
+        IdRegistry registry = IdRegistry.getRegistry(getProject());
+        List<String> instanceIds = getCreatedInstanceIds();
+        if (!instanceIds.isEmpty()) {
+            for (String instanceId : instanceIds) {
+                try {
+                    client.stopInstance(new StopInstanceRequest()
+                            .withInstanceId(instanceId));
+                } catch (Exception e) {
+                    System.out.println("Could not stop instance "
+                            + instanceId + ": " + e.getMessage());
+                }
+            }
+            try {
+                new InstanceWaiter(client).withTracer(getTracer())
+                        .waitForInstances(instanceIds, STOPPED);
+            } catch (Exception e) {
+                System.out.println("Instances did not all stop: "
+                        + e.getMessage());
+            }
+            for (String instanceId : instanceIds) {
+                try {
+                    client.deleteInstance(new DeleteInstanceRequest()
+                            .withInstanceId(instanceId));
+                    registry.remove(IdType.INSTANCE, instanceId);
+                    System.out.println("Deleted instance " + instanceId);
+                } catch (Exception e) {
+                    System.out.println("Could not delete instance "
+                            + instanceId + ": " + e.getMessage());
+                }
+            }
+        }
+        for (CreateAppTask appTask : appTasks) {
+            if (appTask.isCreated()) {
+                try {
+                    client.deleteApp(new DeleteAppRequest().withAppId(appTask
+                            .getAppId()));
+                    System.out.println("Deleted app " + appTask.getAppId());
+                } catch (Exception e) {
+                    System.out.println("Could not delete app "
+                            + appTask.getAppId() + ": " + e.getMessage());
+                }
+            }
+        }
+        for (CreateLayerTask layerTask : layerTasks) {
+            if (layerTask.isCreated()) {
+                try {
+                    client.deleteLayer(new DeleteLayerRequest()
+                            .withLayerId(layerTask.getLayerId()));
+                    registry.remove(IdType.LAYER, layerTask.getLayerId());
+                    System.out.println("Deleted layer "
+                            + layerTask.getLayerId());
+                } catch (Exception e) {
+                    System.out.println("Could not delete layer "
+                            + layerTask.getLayerId() + ": " + e.getMessage());
+                }
+            }
+        }
+        if (stackTask != null && stackTask.isCreated()) {
+            try {
+                client.deleteStack(new DeleteStackRequest()
+                        .withStackId(stackTask.getStackId()));
+                System.out.println("Deleted stack " + stackTask.getStackId());
+            } catch (Exception e) {
+                System.out.println("Could not delete stack "
+                        + stackTask.getStackId() + ": " + e.getMessage());
+            }
+        }
+    }
+}
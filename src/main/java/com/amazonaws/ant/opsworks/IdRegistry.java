@@ -0,0 +1,253 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.PropertyHelper;
+
+/**
+ * A thread-safe registry of the IDs of the instances, layers and deployments
+ * created during a build. One registry is stored as a reference in each
+ * project, so tasks can share IDs without re-parsing comma-separated
+ * properties. Reading the "instanceIds", "layerIds" and "deploymentIds"
+ * properties is served from the registry. So that subprojects started with
+ * antcall or ant inherit them, the IDs are also written to those properties
+ * once at the end of every task that recorded some, rather than on every
+ * add.
+ */
+public class IdRegistry {
+
+    /**
+     * The kinds of IDs kept in the registry, along with the name of the
+     * property each kind can be read from.
+     */
+    public enum IdType {
+        INSTANCE(Constants.INSTANCE_IDS_PROPERTY),
+        LAYER(Constants.LAYER_IDS_PROPERTY),
+        DEPLOYMENT(Constants.DEPLOYMENT_IDS_PROPERTY);
+
+        private final String propertyName;
+
+        private IdType(String propertyName) {
+            this.propertyName = propertyName;
+        }
+
+        public String getPropertyName() {
+            return propertyName;
+        }
+    }
+
+    private final Map<IdType, Queue<String>> ids = new EnumMap<IdType, Queue<String>>(
+            IdType.class);
+    private final Set<IdType> unstored = EnumSet.noneOf(IdType.class);
+    private final Project project;
+
+    IdRegistry(Project project) {
+        this.project = project;
+        for (IdType type : IdType.values()) {
+            ids.put(type, new ConcurrentLinkedQueue<String>());
+        }
+    }
+
+    /**
+     * Returns the registry of the given project, creating it if needed. When
+     * the registry is created, any IDs already set in the "instanceIds",
+     * "layerIds" or "deploymentIds" properties are copied into it.
+     *
+     * @param project
+     *            The project whose registry to return.
+     * @return The registry of the project.
+     */
+    public static IdRegistry getRegistry(Project project) {
+        synchronized (project) {
+            IdRegistry registry = project
+                    .getReference(Constants.ID_REGISTRY_REFERENCE);
+            if (registry == null) {
+                registry = new IdRegistry(project);
+                for (IdType type : IdType.values()) {
+                    String existingIds = project.getProperty(type
+                            .getPropertyName());
+                    if (existingIds != null) {
+                        for (String id : existingIds.split(",")) {
+                            if (id.length() > 0) {
+                                registry.ids.get(type).add(id);
+                            }
+                        }
+                    }
+                }
+                project.addReference(Constants.ID_REGISTRY_REFERENCE, registry);
+                PropertyHelper.getPropertyHelper(project).add(
+                        new RegistryPropertyEvaluator(registry));
+                project.addBuildListener(new StoringListener(registry));
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Records an ID.
+     *
+     * @param type
+     *            The kind of ID to record.
+     * @param id
+     *            The ID to record.
+     */
+    public void add(IdType type, String id) {
+        ids.get(type).add(id);
+        markUnstored(type);
+    }
+
+    /**
+     * Records several IDs of the same kind.
+     *
+     * @param type
+     *            The kind of IDs to record.
+     * @param idsToAdd
+     *            The IDs to record.
+     */
+    public void addAll(IdType type, Collection<String> idsToAdd) {
+        ids.get(type).addAll(idsToAdd);
+        markUnstored(type);
+    }
+
+    /**
+     * Forgets an ID, such as that of a resource that was deleted again.
+     *
+     * @param type
+     *            The kind of ID to forget.
+     * @param id
+     *            The ID to forget.
+     */
+    public void remove(IdType type, String id) {
+        ids.get(type).remove(id);
+        markUnstored(type);
+    }
+
+    private synchronized void markUnstored(IdType type) {
+        unstored.add(type);
+    }
+
+    /**
+     * Writes the IDs of every kind that changed since the last call to their
+     * property. Subprojects only inherit stored properties, not the registry.
+     * A kind whose IDs were all removed is stored as an empty string, as Ant
+     * properties cannot be unset.
+     */
+    synchronized void store() {
+        for (IdType type : unstored) {
+            String joined = join(type);
+            project.setProperty(type.getPropertyName(), joined == null ? ""
+                    : joined);
+        }
+        unstored.clear();
+    }
+
+    /**
+     * Returns a snapshot of the recorded IDs of a kind.
+     *
+     * @param type
+     *            The kind of IDs to return.
+     * @return The recorded IDs, in the order they were recorded.
+     */
+    public List<String> get(IdType type) {
+        return new ArrayList<String>(ids.get(type));
+    }
+
+    /**
+     * Returns the recorded IDs of a kind as a comma-separated string.
+     *
+     * @param type
+     *            The kind of IDs to join.
+     * @return The joined IDs, or null if none have been recorded.
+     */
+    public String join(IdType type) {
+        StringBuilder joined = new StringBuilder();
+        for (String id : ids.get(type)) {
+            if (joined.length() > 0) {
+                joined.append(",");
+            }
+            joined.append(id);
+        }
+        return joined.length() == 0 ? null : joined.toString();
+    }
+
+    /**
+     * Stores the registry's IDs in their properties whenever a task finishes.
+     */
+    private static class StoringListener implements BuildListener {
+        private final IdRegistry registry;
+
+        StoringListener(IdRegistry registry) {
+            this.registry = registry;
+        }
+
+        public void taskFinished(BuildEvent event) {
+            registry.store();
+        }
+
+        public void buildFinished(BuildEvent event) {
+            registry.store();
+        }
+
+        public void buildStarted(BuildEvent event) {
+        }
+
+        public void targetStarted(BuildEvent event) {
+        }
+
+        public void targetFinished(BuildEvent event) {
+        }
+
+        public void taskStarted(BuildEvent event) {
+        }
+
+        public void messageLogged(BuildEvent event) {
+        }
+    }
+
+    /**
+     * Resolves the "instanceIds", "layerIds" and "deploymentIds" properties
+     * from the registry when they are read.
+     */
+    private static class RegistryPropertyEvaluator implements
+            PropertyHelper.PropertyEvaluator {
+        private final IdRegistry registry;
+
+        RegistryPropertyEvaluator(IdRegistry registry) {
+            this.registry = registry;
+        }
+
+        public Object evaluate(String property, PropertyHelper propertyHelper) {
+            for (IdType type : IdType.values()) {
+                if (type.getPropertyName().equals(property)) {
+                    return registry.join(type);
+                }
+            }
+            return null;
+        }
+    }
+}
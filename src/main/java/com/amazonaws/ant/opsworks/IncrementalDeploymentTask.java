@@ -14,10 +14,17 @@
  */
 package com.amazonaws.ant.opsworks;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Task;
@@ -25,13 +32,18 @@ import org.apache.tools.ant.TaskContainer;
 import org.apache.tools.ant.UnknownElement;
 
 import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.tracing.Span;
+import com.amazonaws.ant.tracing.Tracer;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
 import com.amazonaws.services.opsworks.model.Deployment;
 import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.Instance;
 
 public class IncrementalDeploymentTask extends AWSAntTask {
 
     private LinkedList<DeploymentGroup> deploymentGroups = new LinkedList<DeploymentGroup>();
+    private CanaryGroup canaryGroup;
 
     /**
      * Allows you to add any number of nested DeploymentGroup elements to this
@@ -45,13 +57,44 @@ public class IncrementalDeploymentTask extends AWSAntTask {
     }
 
     /**
-     * Deploys each deployment in each deployment group, waits for the
-     * deployments to succeed, then deploys the next group until finished.
+     * Allows you to add one nested CanaryGroup element. The canary group is
+     * always deployed first, and the other groups are only deployed if it
+     * passes its soak period.
+     * 
+     * @param canaryGroup
+     *            A preconfigured CanaryGroup object.
+     */
+    public void addConfiguredCanaryGroup(CanaryGroup canaryGroup) {
+        if (this.canaryGroup != null) {
+            throw new BuildException("Only one CanaryGroup may be specified");
+        }
+        this.canaryGroup = canaryGroup;
+    }
+
+    /**
+     * Deploys the canary group if there is one and waits for it to pass its
+     * soak period. Then deploys each deployment in each deployment group, waits
+     * for the deployments to succeed, then deploys the next group until
+     * finished.
      */
     public void execute() {
         AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        if (canaryGroup != null) {
+            canaryGroup.setClient(client);
+            canaryGroup.setTracer(getTracer());
+            canaryGroup.setThrottle(ApiThrottle.getThrottle(getProject()));
+            try {
+                canaryGroup.deployApps();
+            } catch (BuildException e) {
+                throw new BuildException(e.getMessage() + " The remaining "
+                        + deploymentGroups.size()
+                        + " deployment groups were not deployed.", e);
+            }
+        }
         for (DeploymentGroup deploymentGroup : deploymentGroups) {
             deploymentGroup.setClient(client);
+            deploymentGroup.setTracer(getTracer());
+            deploymentGroup.setThrottle(ApiThrottle.getThrottle(getProject()));
             deploymentGroup.deployApps();
         }
     }
@@ -62,9 +105,13 @@ public class IncrementalDeploymentTask extends AWSAntTask {
      * first group to succeed in order to deploy, etc.
      */
     public static class DeploymentGroup implements TaskContainer {
+        private static final int MAX_CONCURRENT_SUBMISSIONS = 10;
+
         private List<Task> deployAppTasks = new LinkedList<Task>();
         private Set<String> deploymentIds = new HashSet<String>();
-        private AWSOpsWorksClient client;
+        protected AWSOpsWorksClient client;
+        protected Tracer tracer = Tracer.getTracer(null);
+        protected ApiThrottle throttle;
 
         /**
          * Allows you to add any number of nested DeployAppTask deployment
@@ -98,31 +145,108 @@ public class IncrementalDeploymentTask extends AWSAntTask {
             this.client = client;
         }
 
+        /**
+         * Set the tracer to record the waits of this group in.
+         * 
+         * @param tracer
+         *            The tracer to record spans in.
+         */
+        public void setTracer(Tracer tracer) {
+            this.tracer = tracer;
+        }
+
+        /**
+         * Set the throttle the deployments of this group are submitted
+         * through, so their slots are given back as soon as they finish.
+         * 
+         * @param throttle
+         *            The throttle of the project.
+         */
+        public void setThrottle(ApiThrottle throttle) {
+            this.throttle = throttle;
+        }
+
         /**
          * Deploys all apps in this deployment group, then waits for all the
-         * deployments in the group to succeed. Deployments in a group will run
-         * in parallel.
+         * deployments in the group to succeed. The deployments in a group are
+         * submitted concurrently and run in parallel.
          */
         public void deployApps() {
+            submitDeployments();
+
+            try {
+                waitForDeploymentGroupToSucceed(deploymentIds, client);
+            } catch (InterruptedException e) {
+                throw new BuildException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Submits all deployments in this group concurrently, without waiting
+         * for them to finish.
+         * 
+         * @return The IDs of the submitted deployments.
+         */
+        protected Set<String> submitDeployments() {
+            List<Task> tasks = new ArrayList<Task>(deployAppTasks.size());
             for (Task deployAppTask : deployAppTasks) {
-                
+
                 // This is in case of a rare bug that occurs in some JVM implementations
                 if (deployAppTask instanceof UnknownElement) {
                     deployAppTask.maybeConfigure();
                     deployAppTask = ((UnknownElement) deployAppTask).getTask();
                 }
-                if (!deployAppTask.getTaskName().equals("deploy-opsworks-app")) {
+                if (!(deployAppTask instanceof DeployAppTask)
+                        && !"deploy-opsworks-app".equals(deployAppTask
+                                .getTaskName())) {
                     throw new BuildException(
                             "Only <deploy-opsworks-app> elements are supported");
                 }
-                deployAppTask.execute();
-                deploymentIds.add(deployAppTask.getDescription());
+                tasks.add(deployAppTask);
             }
+            submitDeployments(tasks);
+            return new HashSet<String>(deploymentIds);
+        }
 
+        private void submitDeployments(List<Task> tasks) {
+            if (tasks.isEmpty()) {
+                return;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                    tasks.size(), MAX_CONCURRENT_SUBMISSIONS));
             try {
-                waitForDeploymentGroupToSucceed(deploymentIds, client);
-            } catch (InterruptedException e) {
-                throw new BuildException(e.getMessage(), e);
+                List<Future<String>> futures = new ArrayList<Future<String>>(
+                        tasks.size());
+                for (final Task task : tasks) {
+                    futures.add(executor.submit(new Callable<String>() {
+                        public String call() {
+                            task.execute();
+                            if (task instanceof DeployAppTask) {
+                                return ((DeployAppTask) task).getDeploymentId();
+                            }
+                            return task.getDescription();
+                        }
+                    }));
+                }
+                for (Future<String> future : futures) {
+                    try {
+                        String deploymentId = future.get();
+                        if (deploymentId != null) {
+                            deploymentIds.add(deploymentId);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new BuildException(e.getMessage(), e);
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof BuildException) {
+                            throw (BuildException) e.getCause();
+                        }
+                        throw new BuildException(e.getCause().getMessage(),
+                                e.getCause());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
             }
         }
 
@@ -138,35 +262,139 @@ public class IncrementalDeploymentTask extends AWSAntTask {
          */
         public void waitForDeploymentGroupToSucceed(Set<String> deploymentIds,
                 AWSOpsWorksClient client) throws InterruptedException {
-            int count = 0;
-            while (true) {
-                if (deploymentIds.isEmpty()) {
-                    return;
-                }
+            new DeploymentWaiter(client).withTracer(tracer)
+                    .withThrottle(throttle).waitForDeployments(deploymentIds);
+            deploymentIds.clear();
+        }
+    }
 
-                Thread.sleep(1000 * 10);
-                if (count++ > 100) {
-                    throw new BuildException(
-                            "Deployment never failed or succeeded");
+
+    /**
+     * A deployment group that is deployed before all other groups, then
+     * watched for a soak period. If too many of its deployments fail, or any of
+     * its instances enter a failed state during the soak period, the build
+     * fails and the remaining groups are never deployed.
+     */
+    public static class CanaryGroup extends DeploymentGroup {
+        private int soakTimeInSeconds = 300;
+        private int pollPeriodInSeconds = 30;
+        private int maxFailurePercentage = 0;
+
+        public CanaryGroup() {
+            // required by Ant
+        }
+
+        /**
+         * Set how long to watch the canary after its deployments have
+         * finished. Not required, default is 300.
+         * 
+         * @param soakTimeInSeconds
+         *            How long to watch the canary, in seconds.
+         */
+        public void setSoakTimeInSeconds(int soakTimeInSeconds) {
+            this.soakTimeInSeconds = soakTimeInSeconds;
+        }
+
+        /**
+         * Set how often to check the canary during the soak period. Not
+         * required, default is 30.
+         * 
+         * @param pollPeriodInSeconds
+         *            How often to check the canary, in seconds.
+         */
+        public void setPollPeriodInSeconds(int pollPeriodInSeconds) {
+            this.pollPeriodInSeconds = pollPeriodInSeconds;
+        }
+
+        /**
+         * Set the highest percentage of failed canary deployments that is
+         * tolerated. Not required, default is 0.
+         * 
+         * @param maxFailurePercentage
+         *            The highest tolerated percentage of failed deployments.
+         */
+        public void setMaxFailurePercentage(int maxFailurePercentage) {
+            this.maxFailurePercentage = maxFailurePercentage;
+        }
+
+        /**
+         * Deploys the canary, waits for its deployments to finish, checks the
+         * failure criteria and then watches it for the soak period.
+         */
+        @Override
+        public void deployApps() {
+            Set<String> canaryDeploymentIds = submitDeployments();
+            try {
+                Map<String, String> statuses = new DeploymentWaiter(client)
+                        .withTracer(tracer).withThrottle(throttle)
+                        .withFailFast(maxFailurePercentage == 0)
+                        .waitForDeployments(canaryDeploymentIds);
+                checkFailurePercentage(statuses);
+                soak(canaryDeploymentIds);
+            } catch (InterruptedException e) {
+                throw new BuildException(e.getMessage(), e);
+            }
+            System.out.println("Canary passed its soak period");
+        }
+
+        private void checkFailurePercentage(Map<String, String> statuses) {
+            int failed = 0;
+            for (String status : statuses.values()) {
+                if (DeploymentWaiter.FAILED.equals(status)) {
+                    failed++;
                 }
+            }
+            // Compared without dividing, so that a fraction of a percent
+            // above the threshold isn't rounded away
+            if (failed * 100 > maxFailurePercentage * statuses.size()) {
+                throw new BuildException("Canary failed: " + failed + " of "
+                        + statuses.size() + " deployments failed.");
+            }
+        }
+
+        private void soak(Set<String> canaryDeploymentIds)
+                throws InterruptedException {
+            Set<String> instanceIds = new HashSet<String>();
+            for (Deployment deployment : client.describeDeployments(
+                    new DescribeDeploymentsRequest()
+                            .withDeploymentIds(canaryDeploymentIds))
+                    .getDeployments()) {
+                instanceIds.addAll(deployment.getInstanceIds());
+            }
+            if (instanceIds.isEmpty()) {
+                return;
+            }
 
-                List<Deployment> deployments = client.describeDeployments(
-                        new DescribeDeploymentsRequest()
-                                .withDeploymentIds(deploymentIds))
-                        .getDeployments();
-                for (Deployment deployment : deployments) {
-                    String status = deployment.getStatus();
-                    System.out.println(deployment.getDeploymentId() + " : "
-                            + status);
-                    if (status.equalsIgnoreCase("failed")) {
-                        throw new BuildException("Deployment "
-                                + deployment.getDeploymentId() + " failed");
-                    } else if (status.equalsIgnoreCase("successful")) {
-                        deploymentIds.remove(deployment.getDeploymentId());
+            System.out.println("Watching " + instanceIds.size()
+                    + " canary instances for " + soakTimeInSeconds
+                    + " seconds");
+            long deadline = System.currentTimeMillis() + soakTimeInSeconds
+                    * 1000L;
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                tracer.sleep(Math.min(remaining, pollPeriodInSeconds * 1000L));
+                Span poll = tracer.startSpan("poll canary instances",
+                        Tracer.CATEGORY_POLL);
+                try {
+                    for (Instance instance : client.describeInstances(
+                            new DescribeInstancesRequest()
+                                    .withInstanceIds(instanceIds)).getInstances()) {
+                        String status = instance.getStatus();
+                        if (status.contains("failed")
+                                || status.equals("connection_lost")) {
+                            throw new BuildException("Canary failed: instance "
+                                    + instance.getInstanceId()
+                                    + " entered status " + status
+                                    + " during the soak period.");
+                        }
                     }
+                } finally {
+                    poll.end();
                 }
             }
         }
     }
-
 }
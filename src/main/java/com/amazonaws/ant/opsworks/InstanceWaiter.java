@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.tracing.Span;
+import com.amazonaws.ant.tracing.Tracer;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.Instance;
+import com.amazonaws.services.opsworks.model.ResourceNotFoundException;
+
+/**
+ * Polls OpsWorks until a set of instances all reach a given state. Outstanding
+ * instances are described in batches, each state transition is reported as it
+ * is seen, and the build fails as soon as any instance enters a failed state
+ * or can no longer be found.
+ * The delay between polls starts short, grows while nothing changes, and drops
+ * back to the minimum whenever an instance changes state.
+ */
+public class InstanceWaiter {
+
+    private static final int MAX_INSTANCES_PER_CALL = 100;
+
+    private final AWSOpsWorksClient client;
+    private long minDelayInMs = 1000 * 5;
+    private long maxDelayInMs = 1000 * 30;
+    private long timeoutInMs = 1000 * 60 * 60;
+    private Tracer tracer = Tracer.getTracer(null);
+
+    /**
+     * @param client
+     *            The client to use to access AWS OpsWorks.
+     */
+    public InstanceWaiter(AWSOpsWorksClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Set the shortest time to wait between two polls. This is used for the
+     * first poll and after every observed state transition.
+     *
+     * @param minDelayInMs
+     *            The shortest time to wait between two polls.
+     * @return This object for method chaining.
+     */
+    public InstanceWaiter withMinDelayInMs(long minDelayInMs) {
+        this.minDelayInMs = minDelayInMs;
+        return this;
+    }
+
+    /**
+     * Set the longest time to wait between two polls.
+     *
+     * @param maxDelayInMs
+     *            The longest time to wait between two polls.
+     * @return This object for method chaining.
+     */
+    public InstanceWaiter withMaxDelayInMs(long maxDelayInMs) {
+        this.maxDelayInMs = maxDelayInMs;
+        return this;
+    }
+
+    /**
+     * Set how long to wait in total before giving up.
+     *
+     * @param timeoutInMs
+     *            How long to wait in total before giving up.
+     * @return This object for method chaining.
+     */
+    public InstanceWaiter withTimeoutInMs(long timeoutInMs) {
+        this.timeoutInMs = timeoutInMs;
+        return this;
+    }
+
+    /**
+     * Set the tracer to record each poll and each sleep in.
+     *
+     * @param tracer
+     *            The tracer to record spans in.
+     * @return This object for method chaining.
+     */
+    public InstanceWaiter withTracer(Tracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    /**
+     * Waits for all of the given instances to reach the given state. Fails as
+     * soon as any instance enters a failed state or is missing from a poll,
+     * such as after it was deleted.
+     *
+     * @param instanceIds
+     *            The IDs of the instances to wait for.
+     * @param state
+     *            The state to wait for, such as "online".
+     * @throws InterruptedException
+     *             If the thread is interrupted
+     */
+    public void waitForInstances(Collection<String> instanceIds, String state)
+            throws InterruptedException {
+        System.out.println("Waiting for " + instanceIds.size()
+                + " instances to transition to " + state);
+        Set<String> pending = new LinkedHashSet<String>(instanceIds);
+        Map<String, String> lastStatuses = new HashMap<String, String>();
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        long delay = minDelayInMs;
+        while (!pending.isEmpty()) {
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new BuildException("Instances " + pending
+                        + " never reached " + state);
+            }
+            tracer.sleep(delay);
+
+            boolean sawTransition = false;
+            Span poll = tracer.startSpan("poll instances",
+                    Tracer.CATEGORY_POLL).addArg("pending", pending.size());
+            try {
+                for (Instance instance : describe(pending)) {
+                    String instanceId = instance.getInstanceId();
+                    String status = instance.getStatus();
+                    if (!status.equals(lastStatuses.put(instanceId, status))) {
+                        sawTransition = true;
+                        System.out.println(instanceId + " : " + status);
+                    }
+                    if (status.contains("failed")) {
+                        throw new BuildException("Instance " + instanceId
+                                + " failed with status " + status);
+                    }
+                    if (status.equalsIgnoreCase(state)) {
+                        pending.remove(instanceId);
+                    }
+                }
+            } finally {
+                poll.end();
+            }
+            if (sawTransition) {
+                System.out.println((instanceIds.size() - pending.size()) + "/"
+                        + instanceIds.size() + " instances are " + state);
+                delay = minDelayInMs;
+            } else {
+                delay = Math.min(delay * 2, maxDelayInMs);
+            }
+        }
+    }
+
+    private List<Instance> describe(Set<String> instanceIds) {
+        List<Instance> instances = new ArrayList<Instance>(instanceIds.size());
+        List<String> ids = new ArrayList<String>(instanceIds);
+        for (int i = 0; i < ids.size(); i += MAX_INSTANCES_PER_CALL) {
+            List<String> batch = ids.subList(i,
+                    Math.min(i + MAX_INSTANCES_PER_CALL, ids.size()));
+            try {
+                instances.addAll(client.describeInstances(
+                        new DescribeInstancesRequest().withInstanceIds(batch))
+                        .getInstances());
+            } catch (ResourceNotFoundException e) {
+                throw new BuildException("Instances " + batch
+                        + " could not all be found: " + e.getMessage(), e);
+            }
+        }
+        Set<String> missing = new LinkedHashSet<String>(instanceIds);
+        for (Instance instance : instances) {
+            missing.remove(instance.getInstanceId());
+        }
+        if (!missing.isEmpty()) {
+            throw new BuildException("Instances " + missing
+                    + " could not be found");
+        }
+        return instances;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.SimpleNestedElement;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.ant.tracing.Span;
+import com.amazonaws.ant.tracing.Tracer;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.Deployment;
+import com.amazonaws.services.opsworks.model.DescribeDeploymentsRequest;
+import com.amazonaws.services.opsworks.model.DescribeStacksRequest;
+import com.amazonaws.services.opsworks.model.Stack;
+
+/**
+ * Waits for a set of deployments, possibly spread over several stacks, from a
+ * single poll loop. The deployments are grouped by stack, each stack's
+ * outstanding deployments are described in one call per poll, and a table of
+ * how many deployments per stack are running, successful and failed is
+ * printed whenever it changes.
+ */
+public class MonitorDeploymentsTask extends AWSAntTask {
+
+    private static final String RUNNING = "running";
+    private static final long MIN_DELAY_IN_MS = 1000 * 5;
+    private static final long MAX_DELAY_IN_MS = 1000 * 30;
+
+    private List<String> deploymentIds = new LinkedList<String>();
+    private int timeoutInMinutes = 60;
+    private long timeoutInMs = 1000 * 60 * 60;
+    private long minDelayInMs = MIN_DELAY_IN_MS;
+    private long maxDelayInMs = MAX_DELAY_IN_MS;
+    private boolean failOnError = true;
+
+    /**
+     * Set a comma-separated list of the IDs of the deployments to monitor. If
+     * no deployments are specified, all deployments submitted earlier in this
+     * build are monitored.
+     *
+     * @param deploymentIds
+     *            A comma-separated list of deployment IDs.
+     */
+    public void setDeploymentIds(String deploymentIds) {
+        for (String deploymentId : deploymentIds.split(",")) {
+            if (deploymentId.trim().length() > 0) {
+                this.deploymentIds.add(deploymentId.trim());
+            }
+        }
+    }
+
+    /**
+     * Allows you to add any number of nested DeploymentId elements.
+     *
+     * @param deploymentId
+     *            A preconfigured DeploymentId object.
+     */
+    public void addConfiguredDeploymentId(DeploymentId deploymentId) {
+        deploymentIds.add(deploymentId.getValue());
+    }
+
+    /**
+     * Set how long to wait for the deployments in total. Not required,
+     * default is 60.
+     *
+     * @param timeoutInMinutes
+     *            The timeout, in minutes.
+     */
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes;
+        this.timeoutInMs = timeoutInMinutes * 60L * 1000;
+    }
+
+    /**
+     * Changes the timeout and polls at a fixed delay, so tests against a
+     * local stub do not wait for minutes.
+     */
+    void setTimingInMs(long pollDelayInMs, long timeoutInMs) {
+        this.minDelayInMs = pollDelayInMs;
+        this.maxDelayInMs = pollDelayInMs;
+        this.timeoutInMs = timeoutInMs;
+    }
+
+    /**
+     * Set whether to fail the build if any deployment failed. Not required,
+     * default is true. The task always waits for every deployment to finish
+     * before failing.
+     *
+     * @param failOnError
+     *            Whether to fail the build if any deployment failed.
+     */
+    public void setFailOnError(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    private void checkParams() {
+        if (deploymentIds.isEmpty()) {
+            deploymentIds.addAll(IdRegistry.getRegistry(getProject()).get(
+                    IdType.DEPLOYMENT));
+        }
+        if (deploymentIds.isEmpty()) {
+            throw new BuildException(
+                    "Missing parameter: no deployments were given and none were submitted earlier in this build");
+        }
+        if (timeoutInMinutes < 1) {
+            throw new BuildException(
+                    "Malformed parameter: timeoutInMinutes must be at least 1");
+        }
+    }
+
+    /**
+     * Polls all deployments until every one of them has succeeded or failed.
+     */
+    public void execute() {
+        checkParams();
+        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        try {
+            monitor(client);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e.getMessage(), e);
+        }
+    }
+
+    private void monitor(final AWSOpsWorksClient client)
+            throws InterruptedException {
+        List<Deployment> deployments = describe(client,
+                new ArrayList<String>(new LinkedHashSet<String>(deploymentIds)));
+        Map<String, Set<String>> pendingByStack = groupByStack(deployments);
+        Map<String, String> stackNames = getStackNames(client,
+                pendingByStack.keySet());
+        System.out.println("Monitoring " + deployments.size()
+                + " deployments in " + pendingByStack.size() + " stacks");
+
+        Map<String, String> statuses = new LinkedHashMap<String, String>();
+        for (Deployment deployment : deployments) {
+            record(deployment, pendingByStack, statuses);
+        }
+        String lastTable = null;
+        long deadline = System.currentTimeMillis() + timeoutInMs;
+        long delay = minDelayInMs;
+        while (true) {
+            String table = formatTable(countByStack(statuses, stackNames));
+            if (!table.equals(lastTable)) {
+                System.out.print(table);
+                lastTable = table;
+                delay = minDelayInMs;
+            } else {
+                delay = Math.min(delay * 2, maxDelayInMs);
+            }
+            if (pendingByStack.isEmpty()) {
+                break;
+            }
+            if (System.currentTimeMillis() + delay > deadline) {
+                throw new BuildException("Deployments "
+                        + pendingByStack.values()
+                        + " never failed or succeeded");
+            }
+            getTracer().sleep(delay);
+            Span poll = getTracer().startSpan("poll deployments",
+                    Tracer.CATEGORY_POLL).addArg("stacks", pendingByStack.size());
+            try {
+                pollOnce(client, pendingByStack, statuses);
+            } finally {
+                poll.end();
+            }
+        }
+        checkResults(statuses);
+    }
+
+    private Map<String, Set<String>> groupByStack(List<Deployment> deployments) {
+        Map<String, Set<String>> pendingByStack = new TreeMap<String, Set<String>>();
+        for (Deployment deployment : deployments) {
+            Set<String> pending = pendingByStack.get(deployment.getStackId());
+            if (pending == null) {
+                pending = new LinkedHashSet<String>();
+                pendingByStack.put(deployment.getStackId(), pending);
+            }
+            pending.add(deployment.getDeploymentId());
+        }
+        return pendingByStack;
+    }
+
+    private void pollOnce(AWSOpsWorksClient client,
+            Map<String, Set<String>> pendingByStack,
+            Map<String, String> statuses) {
+        for (String stackId : new ArrayList<String>(pendingByStack.keySet())) {
+            for (Deployment deployment : describe(client,
+                    new ArrayList<String>(pendingByStack.get(stackId)))) {
+                record(deployment, pendingByStack, statuses);
+            }
+        }
+    }
+
+    private void record(Deployment deployment,
+            Map<String, Set<String>> pendingByStack,
+            Map<String, String> statuses) {
+        String status = deployment.getStatus().toLowerCase();
+        statuses.put(deployment.getDeploymentId(),
+                deployment.getStackId() + "/" + status);
+        if (!RUNNING.equals(status)) {
+            ApiThrottle.getThrottle(getProject()).deploymentFinished(
+                    deployment.getDeploymentId());
+            Set<String> pending = pendingByStack.get(deployment.getStackId());
+            pending.remove(deployment.getDeploymentId());
+            if (pending.isEmpty()) {
+                pendingByStack.remove(deployment.getStackId());
+            }
+        }
+    }
+
+    private List<Deployment> describe(AWSOpsWorksClient client,
+            List<String> ids) {
+        try {
+            return client.describeDeployments(
+                    new DescribeDeploymentsRequest().withDeploymentIds(ids))
+                    .getDeployments();
+        } catch (Exception e) {
+            throw new BuildException("Could not describe deployments: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private Map<String, String> getStackNames(AWSOpsWorksClient client,
+            Set<String> stackIds) {
+        Map<String, String> stackNames = new TreeMap<String, String>();
+        try {
+            for (Stack stack : client.describeStacks(
+                    new DescribeStacksRequest().withStackIds(stackIds))
+                    .getStacks()) {
+                stackNames.put(stack.getStackId(), stack.getName());
+            }
+        } catch (Exception e) {
+            System.out.println("Could not describe stacks, showing stack IDs: "
+                    + e.getMessage());
+        }
+        return stackNames;
+    }
+
+    private void checkResults(Map<String, String> statuses) {
+        List<String> failed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : statuses.entrySet()) {
+            if (!entry.getValue().endsWith("/" + DeploymentWaiter.SUCCESSFUL)) {
+                failed.add(entry.getKey());
+            }
+        }
+        if (failed.isEmpty()) {
+            System.out.println("All " + statuses.size()
+                    + " deployments succeeded");
+        } else if (failOnError) {
+            throw new BuildException(failed.size() + " of " + statuses.size()
+                    + " deployments failed: " + failed);
+        } else {
+            System.out.println(failed.size() + " of " + statuses.size()
+                    + " deployments failed: " + failed);
+        }
+    }
+
+    /**
+     * Counts the deployments of each stack by status.
+     *
+     * @param statuses
+     *            The status of each deployment, as "stackId/status".
+     * @param stackNames
+     *            The names of the stacks, by ID. Stacks without a name are
+     *            shown by ID.
+     * @return The number of running, successful and failed deployments of each
+     *         stack, keyed and sorted by stack name.
+     */
+    static Map<String, int[]> countByStack(Map<String, String> statuses,
+            Map<String, String> stackNames) {
+        Map<String, int[]> counts = new TreeMap<String, int[]>();
+        for (String value : statuses.values()) {
+            int separator = value.lastIndexOf('/');
+            String stackId = value.substring(0, separator);
+            String status = value.substring(separator + 1);
+            String stack = stackNames.containsKey(stackId) ? stackNames
+                    .get(stackId) : stackId;
+            int[] count = counts.get(stack);
+            if (count == null) {
+                count = new int[3];
+                counts.put(stack, count);
+            }
+            if (RUNNING.equals(status)) {
+                count[0]++;
+            } else if (DeploymentWaiter.SUCCESSFUL.equals(status)) {
+                count[1]++;
+            } else {
+                count[2]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Formats deployment counts as a table with one row per stack.
+     *
+     * @param counts
+     *            The number of running, successful and failed deployments of
+     *            each stack.
+     * @return The table, ending with a newline.
+     */
+    static String formatTable(Map<String, int[]> counts) {
+        int width = "Stack".length();
+        for (String stack : counts.keySet()) {
+            width = Math.max(width, stack.length());
+        }
+        String rowFormat = "%-" + width + "s %8s %11s %7s%n";
+        StringBuilder table = new StringBuilder(String.format(rowFormat,
+                "Stack", "Running", "Successful", "Failed"));
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            int[] count = entry.getValue();
+            table.append(String.format(rowFormat, entry.getKey(), count[0],
+                    count[1], count[2]));
+        }
+        return table.toString();
+    }
+
+    /**
+     * A class to be used as a nested element, specifying the ID of a
+     * deployment to monitor.
+     */
+    public static class DeploymentId extends SimpleNestedElement {
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.ant.ConcurrentCache;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.App;
+import com.amazonaws.services.opsworks.model.DescribeAppsRequest;
+import com.amazonaws.services.opsworks.model.DescribeLayersRequest;
+import com.amazonaws.services.opsworks.model.DescribeStacksRequest;
+import com.amazonaws.services.opsworks.model.Layer;
+import com.amazonaws.services.opsworks.model.Stack;
+
+/**
+ * A project-scoped index of existing OpsWorks stacks, layers and apps, used by
+ * the create tasks when ifExists is set to "reuse". Stacks are listed once per
+ * build and indexed by name; layers and apps are listed once per stack and
+ * indexed by shortname (apps also by name). Resources created later in the
+ * build are added to the index as they are created.
+ *
+ * The cache is safe for tasks running inside &lt;parallel&gt;: each listing is
+ * made once even if several tasks need it at the same time, and lookups in
+ * different stacks do not wait for each other. The findOrCreate methods make
+ * lookup and creation atomic per resource, so tasks reusing the same stack,
+ * layer or app at the same time create it at most once.
+ */
+public class ResourceCache {
+
+    private static final String ALL_STACKS = "";
+
+    private final ConcurrentCache<String, Map<String, String>> stackIdsByName = new ConcurrentCache<String, Map<String, String>>();
+    private final ConcurrentCache<String, Map<String, String>> layerIdsByStack = new ConcurrentCache<String, Map<String, String>>();
+    private final ConcurrentCache<String, Map<String, String>> appIdsByStack = new ConcurrentCache<String, Map<String, String>>();
+    private final ConcurrentCache<String, String> reusedIds = new ConcurrentCache<String, String>();
+
+    /**
+     * Returns the cache of the given project, creating it if needed.
+     *
+     * @param project
+     *            The project whose cache to return.
+     * @return The cache of the project.
+     */
+    public static ResourceCache getCache(Project project) {
+        synchronized (project) {
+            ResourceCache cache = project
+                    .getReference(Constants.RESOURCE_CACHE_REFERENCE);
+            if (cache == null) {
+                cache = new ResourceCache();
+                project.addReference(Constants.RESOURCE_CACHE_REFERENCE, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Checks that an ifExists attribute has a supported value.
+     *
+     * @param ifExists
+     *            The value to check.
+     * @return The value, in lower case.
+     */
+    public static String checkIfExists(String ifExists) {
+        String value = ifExists.toLowerCase();
+        if (!Constants.IF_EXISTS_CREATE.equals(value)
+                && !Constants.IF_EXISTS_REUSE.equals(value)) {
+            throw new BuildException("ifExists must be either \""
+                    + Constants.IF_EXISTS_CREATE + "\" or \""
+                    + Constants.IF_EXISTS_REUSE + "\"");
+        }
+        return value;
+    }
+
+    /**
+     * Finds the ID of the stack with the given name.
+     *
+     * @param client
+     *            The client to list stacks with, if they haven't been listed
+     *            yet.
+     * @param name
+     *            The name of the stack.
+     * @return The ID of the stack, or null if there is none with that name.
+     */
+    public String findStackId(final AWSOpsWorksClient client, String name) {
+        return stackIdsByName.get(ALL_STACKS,
+                new Callable<Map<String, String>>() {
+                    public Map<String, String> call() {
+                        Map<String, String> stackIds = new ConcurrentHashMap<String, String>();
+                        for (Stack stack : client.describeStacks(
+                                new DescribeStacksRequest()).getStacks()) {
+                            stackIds.put(stack.getName(), stack.getStackId());
+                        }
+                        return stackIds;
+                    }
+                }).get(name);
+    }
+
+    /**
+     * Finds the ID of the layer with the given shortname in a stack.
+     *
+     * @param client
+     *            The client to list layers with, if they haven't been listed
+     *            yet.
+     * @param stackId
+     *            The ID of the stack the layer is in.
+     * @param shortname
+     *            The shortname of the layer.
+     * @return The ID of the layer, or null if there is none with that
+     *         shortname.
+     */
+    public String findLayerId(final AWSOpsWorksClient client,
+            final String stackId, String shortname) {
+        return layerIdsByStack.get(stackId,
+                new Callable<Map<String, String>>() {
+                    public Map<String, String> call() {
+                        Map<String, String> layerIds = new ConcurrentHashMap<String, String>();
+                        for (Layer layer : client.describeLayers(
+                                new DescribeLayersRequest()
+                                        .withStackId(stackId)).getLayers()) {
+                            layerIds.put(layer.getShortname(),
+                                    layer.getLayerId());
+                        }
+                        return layerIds;
+                    }
+                }).get(shortname);
+    }
+
+    /**
+     * Finds the ID of an app in a stack. The app is looked up by shortname if
+     * one is given, otherwise by name.
+     *
+     * @param client
+     *            The client to list apps with, if they haven't been listed
+     *            yet.
+     * @param stackId
+     *            The ID of the stack the app is in.
+     * @param name
+     *            The name of the app.
+     * @param shortname
+     *            The shortname of the app. May be null.
+     * @return The ID of the app, or null if there is no matching app.
+     */
+    public String findAppId(final AWSOpsWorksClient client,
+            final String stackId, String name, String shortname) {
+        return appIdsByStack.get(stackId,
+                new Callable<Map<String, String>>() {
+                    public Map<String, String> call() {
+                        Map<String, String> appIds = new ConcurrentHashMap<String, String>();
+                        for (App app : client.describeApps(
+                                new DescribeAppsRequest().withStackId(stackId))
+                                .getApps()) {
+                            appIds.put(appKey(app.getName(), null),
+                                    app.getAppId());
+                            appIds.put(appKey(null, app.getShortname()),
+                                    app.getAppId());
+                        }
+                        return appIds;
+                    }
+                }).get(appKey(name, shortname));
+    }
+
+    /**
+     * Finds the ID of the stack with the given name, or creates the stack if
+     * there is none. Tasks asking for the same name at the same time wait for
+     * one lookup, and the stack is created at most once.
+     *
+     * @param client
+     *            The client to list stacks with, if they haven't been listed
+     *            yet.
+     * @param name
+     *            The name of the stack.
+     * @param creator
+     *            Creates the stack and returns its ID. Only called by the task
+     *            that ends up creating the stack.
+     * @return The ID of the existing or created stack.
+     */
+    public String findOrCreateStack(final AWSOpsWorksClient client,
+            final String name, final Callable<String> creator) {
+        return reusedIds.get("stack/" + name, new Callable<String>() {
+            public String call() throws Exception {
+                String stackId;
+                try {
+                    stackId = findStackId(client, name);
+                } catch (Exception e) {
+                    throw new BuildException("Could not describe stacks: "
+                            + e.getMessage(), e);
+                }
+                if (stackId == null) {
+                    stackId = creator.call();
+                    putStack(name, stackId);
+                }
+                return stackId;
+            }
+        });
+    }
+
+    /**
+     * Finds the ID of the layer with the given shortname in a stack, or
+     * creates the layer if there is none. Tasks asking for the same layer at
+     * the same time wait for one lookup, and the layer is created at most
+     * once.
+     *
+     * @param client
+     *            The client to list layers with, if they haven't been listed
+     *            yet.
+     * @param stackId
+     *            The ID of the stack the layer is in.
+     * @param shortname
+     *            The shortname of the layer.
+     * @param creator
+     *            Creates the layer and returns its ID. Only called by the task
+     *            that ends up creating the layer.
+     * @return The ID of the existing or created layer.
+     */
+    public String findOrCreateLayer(final AWSOpsWorksClient client,
+            final String stackId, final String shortname,
+            final Callable<String> creator) {
+        return reusedIds.get("layer/" + stackId + "/" + shortname,
+                new Callable<String>() {
+                    public String call() throws Exception {
+                        String layerId;
+                        try {
+                            layerId = findLayerId(client, stackId, shortname);
+                        } catch (Exception e) {
+                            throw new BuildException(
+                                    "Could not describe layers: "
+                                            + e.getMessage(), e);
+                        }
+                        if (layerId == null) {
+                            layerId = creator.call();
+                            putLayer(stackId, shortname, layerId);
+                        }
+                        return layerId;
+                    }
+                });
+    }
+
+    /**
+     * Finds the ID of an app in a stack, or creates the app if there is none.
+     * The app is looked up by shortname if one is given, otherwise by name.
+     * Tasks asking for the same app at the same time wait for one lookup, and
+     * the app is created at most once.
+     *
+     * @param client
+     *            The client to list apps with, if they haven't been listed
+     *            yet.
+     * @param stackId
+     *            The ID of the stack the app is in.
+     * @param name
+     *            The name of the app.
+     * @param shortname
+     *            The shortname of the app. May be null.
+     * @param creator
+     *            Creates the app and returns its ID. Only called by the task
+     *            that ends up creating the app.
+     * @return The ID of the existing or created app.
+     */
+    public String findOrCreateApp(final AWSOpsWorksClient client,
+            final String stackId, final String name, final String shortname,
+            final Callable<String> creator) {
+        return reusedIds.get("app/" + stackId + "/" + appKey(name, shortname),
+                new Callable<String>() {
+                    public String call() throws Exception {
+                        String appId;
+                        try {
+                            appId = findAppId(client, stackId, name, shortname);
+                        } catch (Exception e) {
+                            throw new BuildException(
+                                    "Could not describe apps: "
+                                            + e.getMessage(), e);
+                        }
+                        if (appId == null) {
+                            appId = creator.call();
+                            putApp(stackId, name, shortname, appId);
+                        }
+                        return appId;
+                    }
+                });
+    }
+
+    /**
+     * Records a newly created stack.
+     *
+     * @param name
+     *            The name of the stack.
+     * @param stackId
+     *            The ID of the stack.
+     */
+    public void putStack(String name, String stackId) {
+        Map<String, String> stackIds = stackIdsByName.getIfPresent(ALL_STACKS);
+        if (stackIds != null) {
+            stackIds.put(name, stackId);
+        }
+    }
+
+    /**
+     * Records a newly created layer.
+     *
+     * @param stackId
+     *            The ID of the stack the layer is in.
+     * @param shortname
+     *            The shortname of the layer.
+     * @param layerId
+     *            The ID of the layer.
+     */
+    public void putLayer(String stackId, String shortname, String layerId) {
+        Map<String, String> layerIds = layerIdsByStack.getIfPresent(stackId);
+        if (layerIds != null) {
+            layerIds.put(shortname, layerId);
+        }
+    }
+
+    /**
+     * Records a newly created app.
+     *
+     * @param stackId
+     *            The ID of the stack the app is in.
+     * @param name
+     *            The name of the app.
+     * @param shortname
+     *            The shortname of the app. May be null.
+     * @param appId
+     *            The ID of the app.
+     */
+    public void putApp(String stackId, String name, String shortname,
+            String appId) {
+        Map<String, String> appIds = appIdsByStack.getIfPresent(stackId);
+        if (appIds != null) {
+            appIds.put(appKey(name, null), appId);
+            if (shortname != null) {
+                appIds.put(appKey(null, shortname), appId);
+            }
+        }
+    }
+
+    private static String appKey(String name, String shortname) {
+        return shortname != null ? "shortname:" + shortname : "name:" + name;
+    }
+}
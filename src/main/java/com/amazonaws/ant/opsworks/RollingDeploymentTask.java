@@ -0,0 +1,398 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.opsworks.DeployAppTask.Command;
+import com.amazonaws.ant.opsworks.DeployAppTask.InstanceId;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateDeploymentRequest;
+import com.amazonaws.services.opsworks.model.DeploymentCommand;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.Instance;
+
+/**
+ * Deploys an app to a set of instances in batches. Every instance in a batch
+ * gets its own deployment, and all deployments of a batch are submitted
+ * concurrently. The next batch is only started once enough deployments of the
+ * current batch have succeeded.
+ */
+public class RollingDeploymentTask extends AWSAntTask {
+
+    private static final String ONLINE = "online";
+
+    private List<String> instanceIds = new LinkedList<String>();
+    private String stackId;
+    private String appId;
+    private String comment;
+    private String customJson;
+    private DeploymentCommand command;
+    private int batchSize;
+    private int batchPercentage;
+    private int healthThreshold = 100;
+    private int maxConcurrentSubmissions = 10;
+    private boolean useProjectInstanceIds;
+    private long pollDelayInMs = 1000 * 5;
+
+    /**
+     * The ID of the stack to deploy to. If not set, the "stackId" property is
+     * used.
+     *
+     * @param stackId
+     *            The ID of the stack to deploy to.
+     */
+    public void setStackId(String stackId) {
+        this.stackId = stackId;
+    }
+
+    /**
+     * The ID of the app to deploy. If not set, the "appId" property is used.
+     *
+     * @param appId
+     *            The ID of the app to deploy.
+     */
+    public void setAppId(String appId) {
+        this.appId = appId;
+    }
+
+    /**
+     * Set a comment to go with each deployment.
+     *
+     * @param comment
+     *            A user-defined comment.
+     */
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    /**
+     * Set a JSON string used to override stack configuration JSON attributes.
+     * Must be well-formed and properly escaped JSON.
+     *
+     * @param customJson
+     *            A string containing user-defined, custom JSON.
+     */
+    public void setCustomJson(String customJson) {
+        this.customJson = customJson;
+    }
+
+    /**
+     * Set how many instances to deploy to in each batch. Either this or
+     * batchPercentage must be set.
+     *
+     * @param batchSize
+     *            The number of instances in each batch.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the percentage of all instances to deploy to in each batch. Either
+     * this or batchSize must be set.
+     *
+     * @param batchPercentage
+     *            The percentage of instances in each batch, from 1 to 100.
+     */
+    public void setBatchPercentage(int batchPercentage) {
+        this.batchPercentage = batchPercentage;
+    }
+
+    /**
+     * Set the percentage of deployments in a batch that must succeed before
+     * the next batch is started. Not required, default is 100.
+     *
+     * @param healthThreshold
+     *            The percentage of successful deployments required per batch.
+     */
+    public void setHealthThreshold(int healthThreshold) {
+        this.healthThreshold = healthThreshold;
+    }
+
+    /**
+     * Set how many deployments of a batch are submitted concurrently. Not
+     * required, default is 10. How many may be running at once is set with
+     * configure-opsworks-throttling.
+     *
+     * @param maxConcurrentSubmissions
+     *            The number of deployments to submit concurrently.
+     */
+    public void setMaxConcurrentSubmissions(int maxConcurrentSubmissions) {
+        this.maxConcurrentSubmissions = maxConcurrentSubmissions;
+    }
+
+    /**
+     * Set whether to deploy to all instances created earlier in this project,
+     * as recorded in the "instanceIds" property. Not required, default is
+     * false. If no instances are specified at all, the task deploys to every
+     * online instance in the stack.
+     *
+     * @param useProjectInstanceIds
+     *            Whether to deploy to the instances created earlier in this
+     *            project.
+     */
+    public void setUseProjectInstanceIds(boolean useProjectInstanceIds) {
+        this.useProjectInstanceIds = useProjectInstanceIds;
+    }
+
+    /**
+     * Changes how long to wait between polls of a batch's deployments, so
+     * tests against a local stub do not wait for the default delays.
+     */
+    void setPollDelayInMs(long pollDelayInMs) {
+        this.pollDelayInMs = pollDelayInMs;
+    }
+
+    /**
+     * Allows you to add any number of preconfigured InstanceId nested elements.
+     *
+     * @param instanceId
+     *            A preconfigured InstanceId object.
+     */
+    public void addConfiguredInstanceId(InstanceId instanceId) {
+        instanceIds.add(instanceId.getValue());
+    }
+
+    /**
+     * Allows you to add a preconfigured Command nested element.
+     *
+     * @param command
+     *            A preconfigured Command object.
+     */
+    public void addConfiguredCommand(Command command) {
+        this.command = new DeploymentCommand().withName(command.getName())
+                .withArgs(command.getArgs());
+    }
+
+    private void checkParams() {
+        StringBuilder errors = new StringBuilder("");
+        boolean areMalformedParams = false;
+        if (stackId == null) {
+            if (!Boolean.TRUE.equals(getProject().getReference(Constants.STACK_ID_REFERENCE))) {
+                stackId = getProject().getProperty(Constants.STACK_ID_PROPERTY);
+            }
+            if (stackId == null) {
+                areMalformedParams = true;
+                errors.append("Missing parameter: stackId is required \n");
+            }
+        }
+        if (appId == null) {
+            if (!Boolean.TRUE.equals(getProject().getReference(Constants.APP_ID_REFERENCE))) {
+                appId = getProject().getProperty(Constants.APP_ID_PROPERTY);
+            }
+            if (appId == null) {
+                areMalformedParams = true;
+                errors.append("Missing parameter: appId is required \n");
+            }
+        }
+        if (command == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: You must specify one Command \n");
+        }
+        if ((batchSize > 0) == (batchPercentage > 0)) {
+            areMalformedParams = true;
+            errors.append("Exactly one of batchSize or batchPercentage must be set \n");
+        }
+        if (batchPercentage > 100) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: batchPercentage cannot be more than 100 \n");
+        }
+        if (healthThreshold < 0 || healthThreshold > 100) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: healthThreshold must be between 0 and 100 \n");
+        }
+        if (maxConcurrentSubmissions < 1) {
+            areMalformedParams = true;
+            errors.append("Malformed parameter: maxConcurrentSubmissions must be at least 1 \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        List<String> targets = getTargetInstanceIds(client);
+        if (targets.isEmpty()) {
+            throw new BuildException("No instances to deploy to in stack "
+                    + stackId);
+        }
+
+        List<List<String>> batches = splitIntoBatches(targets,
+                batchSize > 0 ? batchSize : (int) Math.ceil(targets.size()
+                        * batchPercentage / 100.0));
+        System.out.println("Deploying to " + targets.size()
+                + " instances in " + batches.size() + " batches");
+
+        ExecutorService executor = Executors
+                .newFixedThreadPool(maxConcurrentSubmissions);
+        try {
+            int batchNumber = 1;
+            for (List<String> batch : batches) {
+                System.out.println("Starting batch " + batchNumber + " of "
+                        + batches.size() + " (" + batch.size()
+                        + " instances)");
+                List<String> deploymentIds = submitBatch(executor, client,
+                        batch);
+                Map<String, String> statuses = new DeploymentWaiter(client)
+                        .withTracer(getTracer())
+                        .withThrottle(ApiThrottle.getThrottle(getProject()))
+                        .withInitialDelayInMs(pollDelayInMs)
+                        .withMaxDelayInMs(Math.max(pollDelayInMs, 1000 * 30))
+                        .withFailFast(healthThreshold == 100)
+                        .waitForDeployments(deploymentIds);
+                checkBatchHealth(batchNumber, statuses);
+                batchNumber++;
+            }
+        } catch (InterruptedException e) {
+            throw new BuildException(e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<String> getTargetInstanceIds(AWSOpsWorksClient client) {
+        List<String> targets = new ArrayList<String>(instanceIds);
+        if (useProjectInstanceIds) {
+            for (String instanceId : IdRegistry.getRegistry(getProject()).get(
+                    IdType.INSTANCE)) {
+                if (!targets.contains(instanceId)) {
+                    targets.add(instanceId);
+                }
+            }
+        }
+        if (targets.isEmpty()) {
+            for (Instance instance : client.describeInstances(
+                    new DescribeInstancesRequest().withStackId(stackId))
+                    .getInstances()) {
+                if (ONLINE.equalsIgnoreCase(instance.getStatus())) {
+                    targets.add(instance.getInstanceId());
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Splits a list of instance IDs into consecutive batches.
+     *
+     * @param instanceIds
+     *            The instance IDs to split.
+     * @param size
+     *            The maximum size of each batch. Values below 1 are treated
+     *            as 1.
+     * @return The batches, in order.
+     */
+    public static List<List<String>> splitIntoBatches(List<String> instanceIds,
+            int size) {
+        size = Math.max(size, 1);
+        List<List<String>> batches = new ArrayList<List<String>>();
+        for (int i = 0; i < instanceIds.size(); i += size) {
+            batches.add(new ArrayList<String>(instanceIds.subList(i,
+                    Math.min(i + size, instanceIds.size()))));
+        }
+        return batches;
+    }
+
+    /**
+     * Submits one deployment per instance of a batch and records each
+     * deployment in the project's IdRegistry as soon as it is created. If any
+     * submission fails, the others are still waited for, so the error can
+     * name every deployment that was created.
+     */
+    private List<String> submitBatch(ExecutorService executor,
+            final AWSOpsWorksClient client, List<String> batch)
+            throws InterruptedException {
+        final ApiThrottle throttle = ApiThrottle.getThrottle(getProject());
+        final IdRegistry registry = IdRegistry.getRegistry(getProject());
+        List<Future<String>> futures = new ArrayList<Future<String>>(
+                batch.size());
+        for (final String instanceId : batch) {
+            futures.add(executor.submit(new Callable<String>() {
+                public String call() {
+                    final CreateDeploymentRequest request = new CreateDeploymentRequest()
+                            .withStackId(stackId).withAppId(appId)
+                            .withCommand(command)
+                            .withInstanceIds(instanceId);
+                    if (comment != null) {
+                        request.setComment(comment);
+                    }
+                    if (customJson != null) {
+                        request.setCustomJson(customJson);
+                    }
+                    String deploymentId = throttle.submitDeployment(client,
+                            new Callable<String>() {
+                                public String call() {
+                                    return client.createDeployment(request)
+                                            .getDeploymentId();
+                                }
+                            });
+                    registry.add(IdType.DEPLOYMENT, deploymentId);
+                    return deploymentId;
+                }
+            }));
+        }
+        List<String> deploymentIds = new ArrayList<String>(batch.size());
+        Throwable failure = null;
+        for (Future<String> future : futures) {
+            try {
+                deploymentIds.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            throw new BuildException("Could not create deployment: "
+                    + failure.getMessage()
+                    + ". Deployments already created in this batch: "
+                    + deploymentIds, failure);
+        }
+        return deploymentIds;
+    }
+
+    private void checkBatchHealth(int batchNumber, Map<String, String> statuses) {
+        int successful = 0;
+        for (String status : statuses.values()) {
+            if (DeploymentWaiter.SUCCESSFUL.equals(status)) {
+                successful++;
+            }
+        }
+        int healthyPercentage = statuses.isEmpty() ? 100 : successful * 100
+                / statuses.size();
+        System.out.println("Batch " + batchNumber + ": " + successful + "/"
+                + statuses.size() + " deployments successful");
+        if (healthyPercentage < healthThreshold) {
+            throw new BuildException("Batch " + batchNumber + " was only "
+                    + healthyPercentage + "% successful, below the threshold of "
+                    + healthThreshold + "%. Stopping deployment.");
+        }
+    }
+}
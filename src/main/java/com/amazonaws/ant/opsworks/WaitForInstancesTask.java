@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.SimpleNestedElement;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+
+/**
+ * Blocks the build until a set of OpsWorks instances all reach a given state.
+ * Fails the build as soon as any of them enters a failed state or can no
+ * longer be found.
+ */
+public class WaitForInstancesTask extends AWSAntTask {
+
+    private Set<String> instanceIds = new LinkedHashSet<String>();
+    private String state = "online";
+    private int timeoutInMinutes = 60;
+    private boolean useProjectInstanceIds;
+
+    /**
+     * Allows you to add any number of preconfigured InstanceId nested elements.
+     *
+     * @param instanceId
+     *            A preconfigured InstanceId object.
+     */
+    public void addConfiguredInstanceId(InstanceId instanceId) {
+        instanceIds.add(instanceId.getValue());
+    }
+
+    /**
+     * Set a comma-separated list of the IDs of the instances to wait for.
+     *
+     * @param instanceIds
+     *            The IDs of the instances to wait for.
+     */
+    public void setInstanceIds(String instanceIds) {
+        for (String instanceId : instanceIds.split(",")) {
+            if (instanceId.trim().length() > 0) {
+                this.instanceIds.add(instanceId.trim());
+            }
+        }
+    }
+
+    /**
+     * Set the state to wait for. Not required, defaults to "online".
+     *
+     * @param state
+     *            The state to wait for the instances to reach.
+     */
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    /**
+     * Set how long to wait before failing the build. Not required, defaults to
+     * 60.
+     *
+     * @param timeoutInMinutes
+     *            How long to wait, in minutes.
+     */
+    public void setTimeoutInMinutes(int timeoutInMinutes) {
+        this.timeoutInMinutes = timeoutInMinutes;
+    }
+
+    /**
+     * Set whether to also wait for all instances created earlier in this
+     * project. Not required, defaults to false, but if no instances are
+     * specified at all the instances created earlier in this project are used.
+     *
+     * @param useProjectInstanceIds
+     *            Whether to wait for the instances created earlier in this
+     *            project.
+     */
+    public void setUseProjectInstanceIds(boolean useProjectInstanceIds) {
+        this.useProjectInstanceIds = useProjectInstanceIds;
+    }
+
+    private void checkParams() {
+        if (useProjectInstanceIds || instanceIds.isEmpty()) {
+            instanceIds.addAll(IdRegistry.getRegistry(getProject()).get(
+                    IdType.INSTANCE));
+        }
+        if (instanceIds.isEmpty()) {
+            throw new BuildException(
+                    "Missing parameter: no instanceIds were specified and no instances were created earlier in this project");
+        }
+    }
+
+    public void execute() {
+        checkParams();
+        AWSOpsWorksClient client = getOrCreateClient(AWSOpsWorksClient.class);
+        try {
+            new InstanceWaiter(client).withTracer(getTracer())
+                    .withTimeoutInMs(timeoutInMinutes * 60 * 1000L)
+                    .waitForInstances(instanceIds, state);
+        } catch (InterruptedException e) {
+            throw new BuildException(e.getMessage(), e);
+        }
+        System.out.println("All " + instanceIds.size() + " instances are "
+                + state);
+    }
+
+    /**
+     * A class to be used as a nested element, specifying the ID of an instance
+     * to wait for.
+     */
+    public static class InstanceId extends SimpleNestedElement {
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+/**
+ * Packs files into tar archives that are uploaded while they are written,
+ * starting a new archive whenever the next file would take the current one
+ * past its size limit. When done, it uploads an index with a line per file:
+ * the key of its archive, the offset of its content in the archive, its size
+ * and its name, separated by tabs. The offsets let a single file be fetched
+ * from its archive with a range request.
+ */
+class ArchivePacker {
+
+    static final String ARCHIVE_SUFFIX = ".tar";
+    static final String INDEX_SUFFIX = ".index";
+    static final String ENCODING = "UTF-8";
+
+    static final int RECORD_SIZE = 512;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String baseKey;
+    private final long maxArchiveSize;
+    private final StringBuilder index = new StringBuilder();
+    private final List<String> keys = new ArrayList<String>();
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private int archiveCount;
+    private int fileCount;
+    private String archiveKey;
+    private MultipartUploadOutputStream upload;
+    private CountingOutputStream counter;
+    private TarOutputStream tar;
+    private int archiveFileCount;
+
+    /**
+     * @param client
+     *            The client to upload with.
+     * @param bucketName
+     *            The bucket to upload to.
+     * @param baseKey
+     *            The key the keys of the archives and of the index are made
+     *            from, such as "files/archive" for "files/archive-0.tar" and
+     *            "files/archive.index".
+     * @param maxArchiveSize
+     *            The size in bytes an archive should not grow past, unless a
+     *            single file is larger.
+     */
+    ArchivePacker(AmazonS3 client, String bucketName, String baseKey,
+            long maxArchiveSize) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.baseKey = baseKey;
+        this.maxArchiveSize = maxArchiveSize;
+    }
+
+    static String archiveKey(String baseKey, int number) {
+        return baseKey + "-" + number + ARCHIVE_SUFFIX;
+    }
+
+    static String indexKey(String baseKey) {
+        return baseKey + INDEX_SUFFIX;
+    }
+
+    /**
+     * Adds a file to the current archive, starting a new one if needed.
+     *
+     * @param file
+     *            The file to add.
+     * @param name
+     *            The path of the file in the archive, with forward slashes.
+     */
+    void add(File file, String name) throws IOException {
+        long size = file.length();
+        InputStream in = new FileInputStream(file);
+        try {
+            if (tar != null && archiveFileCount > 0
+                    && position() + bytesFor(name, size) > maxArchiveSize) {
+                finishArchive();
+            }
+            if (tar == null) {
+                startArchive();
+            }
+            TarEntry entry = new TarEntry(name);
+            entry.setSize(size);
+            entry.setModTime(file.lastModified());
+            tar.putNextEntry(entry);
+            long offset = position();
+            long copied = 0;
+            int read;
+            while (copied < size && (read = in.read(buffer, 0,
+                    (int) Math.min(buffer.length, size - copied))) != -1) {
+                tar.write(buffer, 0, read);
+                copied += read;
+            }
+            if (copied != size) {
+                throw new IOException(file + " changed while it was packed");
+            }
+            tar.closeEntry();
+            index.append(archiveKey).append('\t').append(offset).append('\t')
+                    .append(size).append('\t').append(name).append('\n');
+            archiveFileCount++;
+            fileCount++;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Completes the last archive and uploads the index.
+     *
+     * @return The number of archives uploaded.
+     */
+    int finish() throws IOException {
+        if (tar != null) {
+            finishArchive();
+        }
+        byte[] indexBytes = index.toString().getBytes(ENCODING);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(indexBytes.length);
+        metadata.setContentType("text/plain; charset=utf-8");
+        client.putObject(bucketName, indexKey(baseKey),
+                new ByteArrayInputStream(indexBytes), metadata);
+        keys.add(indexKey(baseKey));
+        return archiveCount;
+    }
+
+    /**
+     * Discards the archive being uploaded, if any.
+     */
+    void abort() {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+            tar = null;
+        }
+    }
+
+    int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return The keys of the archives and the index uploaded so far.
+     */
+    List<String> getKeys() {
+        return keys;
+    }
+
+    private void startArchive() throws UnsupportedEncodingException {
+        archiveKey = archiveKey(baseKey, archiveCount);
+        upload = new MultipartUploadOutputStream(client, bucketName,
+                archiveKey);
+        counter = new CountingOutputStream(upload);
+        // One record per block, so that the records reach the counter one by
+        // one and position() can tell where the next entry's content starts
+        tar = new TarOutputStream(counter, RECORD_SIZE, RECORD_SIZE, ENCODING);
+        tar.setLongFileMode(TarOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarOutputStream.BIGNUMBER_POSIX);
+        archiveFileCount = 0;
+    }
+
+    private void finishArchive() throws IOException {
+        tar.close();
+        System.out.println("Uploaded archive " + archiveKey + " with "
+                + archiveFileCount + " files (" + counter.count + " bytes)");
+        keys.add(archiveKey);
+        archiveCount++;
+        tar = null;
+        upload = null;
+    }
+
+    /**
+     * @return The number of bytes written to the current archive, including
+     *         the record the tar buffer holds until the next one is written.
+     */
+    private long position() {
+        return counter.count + RECORD_SIZE;
+    }
+
+    /**
+     * Estimates the bytes a file adds to an archive: its header, an extended
+     * header for long names, and its content padded to whole records, plus
+     * the two records that end the archive.
+     */
+    private static long bytesFor(String name, long size) {
+        long headers = name.length() < 100 ? RECORD_SIZE : 3 * RECORD_SIZE;
+        return headers + (size + RECORD_SIZE - 1) / RECORD_SIZE * RECORD_SIZE
+                + 2 * RECORD_SIZE;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
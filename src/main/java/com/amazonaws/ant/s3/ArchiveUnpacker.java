@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Downloads the archives written by an {@link ArchivePacker} and unpacks them
+ * into a directory while they are streamed, without storing the archives.
+ */
+class ArchiveUnpacker {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String baseKey;
+
+    /**
+     * @param client
+     *            The client to download with.
+     * @param bucketName
+     *            The bucket to download from.
+     * @param baseKey
+     *            The key the archives and the index were packed under.
+     */
+    ArchiveUnpacker(AmazonS3 client, String bucketName, String baseKey) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.baseKey = baseKey;
+    }
+
+    /**
+     * Unpacks every archive listed in the index.
+     *
+     * @param dir
+     *            The directory to unpack into.
+     * @return The number of files unpacked.
+     */
+    int unpack(File dir) throws IOException {
+        Map<String, Integer> archives = readIndex();
+        File root = dir.getCanonicalFile();
+        int fileCount = 0;
+        for (Map.Entry<String, Integer> archive : archives.entrySet()) {
+            int unpacked = unpackArchive(archive.getKey(), root);
+            if (unpacked != archive.getValue()) {
+                throw new IOException("Archive " + archive.getKey()
+                        + " holds " + unpacked + " files, but the index lists "
+                        + archive.getValue());
+            }
+            System.out.println("Unpacked " + unpacked + " files from archive "
+                    + archive.getKey());
+            fileCount += unpacked;
+        }
+        return fileCount;
+    }
+
+    /**
+     * @return The keys of the archives in the index, in order, with the
+     *         number of files in each.
+     */
+    private Map<String, Integer> readIndex() throws IOException {
+        Map<String, Integer> archives = new LinkedHashMap<String, Integer>();
+        S3Object index = client.getObject(bucketName,
+                ArchivePacker.indexKey(baseKey));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                index.getObjectContent(), ArchivePacker.ENCODING));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                String archiveKey = line.substring(0, line.indexOf('\t'));
+                Integer count = archives.get(archiveKey);
+                archives.put(archiveKey, count == null ? 1 : count + 1);
+            }
+        } finally {
+            reader.close();
+        }
+        return archives;
+    }
+
+    private int unpackArchive(String archiveKey, File root) throws IOException {
+        S3Object archive = client.getObject(bucketName, archiveKey);
+        TarInputStream tar = new TarInputStream(new BufferedInputStream(
+                archive.getObjectContent(), BUFFER_SIZE),
+                ArchivePacker.RECORD_SIZE, ArchivePacker.RECORD_SIZE,
+                ArchivePacker.ENCODING);
+        int unpacked = 0;
+        try {
+            TarEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                File target = new File(root, entry.getName());
+                if (!target.getCanonicalPath().startsWith(
+                        root.getPath() + File.separator)) {
+                    throw new IOException("Entry " + entry.getName()
+                            + " of archive " + archiveKey
+                            + " is outside the target directory");
+                }
+                target.getParentFile().mkdirs();
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    tar.copyEntryContents(out);
+                } finally {
+                    out.close();
+                }
+                target.setLastModified(entry.getModTime().getTime());
+                unpacked++;
+            }
+        } finally {
+            tar.close();
+        }
+        return unpacked;
+    }
+}
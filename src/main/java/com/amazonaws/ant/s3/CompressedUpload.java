@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/**
+ * The gzip-compressed content of a file, ready to be uploaded with a
+ * Content-Encoding of gzip. The file is read once; its compressed content is
+ * kept in memory unless it grows past a threshold, in which case it is
+ * written to a temporary file that {@link #discard()} deletes.
+ */
+class CompressedUpload {
+
+    /**
+     * The compressed size up to which content is kept in memory.
+     */
+    static final int MEMORY_THRESHOLD = 8 * 1024 * 1024;
+
+    private final long originalLength;
+    private final DeferredFileOutputStream compressed;
+
+    private CompressedUpload(long originalLength,
+            DeferredFileOutputStream compressed) {
+        this.originalLength = originalLength;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Compresses a file.
+     *
+     * @param file
+     *            The file to compress.
+     * @return Its compressed content.
+     */
+    static CompressedUpload compress(File file) throws IOException {
+        DeferredFileOutputStream compressed = new DeferredFileOutputStream(
+                MEMORY_THRESHOLD, "upload", ".gz", null);
+        InputStream in = new FileInputStream(file);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            try {
+                IOUtils.copy(in, gzip);
+            } finally {
+                gzip.close();
+            }
+        } catch (IOException e) {
+            deleteFile(compressed);
+            throw e;
+        } finally {
+            in.close();
+        }
+        return new CompressedUpload(file.length(), compressed);
+    }
+
+    long getOriginalLength() {
+        return originalLength;
+    }
+
+    long getCompressedLength() {
+        return compressed.getByteCount();
+    }
+
+    /**
+     * @param percent
+     *            How much smaller, in percent of the original size, the
+     *            compressed content must be.
+     * @return Whether compression saves at least that much.
+     */
+    boolean savesAtLeast(int percent) {
+        return getCompressedLength() * 100 <= originalLength * (100 - percent);
+    }
+
+    /**
+     * Creates a request to upload the compressed content.
+     *
+     * @param bucketName
+     *            The bucket to upload to.
+     * @param key
+     *            The key to upload to.
+     * @param contentType
+     *            The content type of the original file.
+     */
+    PutObjectRequest toRequest(String bucketName, String key,
+            String contentType) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentEncoding("gzip");
+        metadata.setContentType(contentType);
+        metadata.setContentLength(getCompressedLength());
+        if (compressed.isInMemory()) {
+            return new PutObjectRequest(bucketName, key,
+                    new ByteArrayInputStream(compressed.getData()), metadata);
+        }
+        return new PutObjectRequest(bucketName, key, compressed.getFile())
+                .withMetadata(metadata);
+    }
+
+    /**
+     * Deletes the temporary file of the compressed content, if there is one.
+     */
+    void discard() {
+        deleteFile(compressed);
+    }
+
+    private static void deleteFile(DeferredFileOutputStream compressed) {
+        if (!compressed.isInMemory() && compressed.getFile() != null) {
+            compressed.getFile().delete();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Ant task for copying the objects under a prefix to another prefix or bucket
+ * in S3, such as to promote a build from staging to release. The objects are
+ * copied by S3 itself, so their content never passes through the machine
+ * running the build.
+ */
+public class CopyS3ObjectsTask extends AWSAntTask {
+    private String sourceBucketName;
+    private String sourceKeyPrefix = "";
+    private String destinationBucketName;
+    private String destinationKeyPrefix = "";
+    private boolean skipUnchanged = false;
+    private int threads = 10;
+    private int multipartThresholdInMb = 5 * 1024;
+    private int partSizeInMb = 512;
+
+    /**
+     * Specify the bucket to copy objects from
+     *
+     * @param sourceBucketName
+     *            The name of the bucket the objects are in.
+     */
+    public void setSourceBucketName(String sourceBucketName) {
+        this.sourceBucketName = sourceBucketName;
+    }
+
+    /**
+     * Specify the prefix of the keys of the objects to copy. Not required, by
+     * default every object in the bucket is copied.
+     *
+     * @param sourceKeyPrefix
+     *            The prefix, such as "staging/".
+     */
+    public void setSourceKeyPrefix(String sourceKeyPrefix) {
+        this.sourceKeyPrefix = sourceKeyPrefix;
+    }
+
+    /**
+     * Specify the bucket to copy objects to. Not required, default is the
+     * source bucket.
+     *
+     * @param destinationBucketName
+     *            The name of the bucket to copy to.
+     */
+    public void setDestinationBucketName(String destinationBucketName) {
+        this.destinationBucketName = destinationBucketName;
+    }
+
+    /**
+     * Specify the prefix that replaces sourceKeyPrefix in the keys of the
+     * copies. For example, with a sourceKeyPrefix of "staging/" and a
+     * destinationKeyPrefix of "release/", staging/app.war is copied to
+     * release/app.war. Not required, default is "".
+     *
+     * @param destinationKeyPrefix
+     *            The prefix of the copies.
+     */
+    public void setDestinationKeyPrefix(String destinationKeyPrefix) {
+        this.destinationKeyPrefix = destinationKeyPrefix;
+    }
+
+    /**
+     * Specify whether to skip objects whose copy already exists with the same
+     * size and ETag, so that copying again only copies what changed. Copies
+     * made in parts are compared by the source ETag recorded in their
+     * metadata. Not required, default is false.
+     *
+     * @param skipUnchanged
+     *            Whether to skip unchanged objects.
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Set how many copy requests to issue at once. Not required, default is
+     * 10.
+     *
+     * @param threads
+     *            The number of concurrent requests.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Set the size, in megabytes, past which objects are copied in parts.
+     * Must be between 5 and 5120, the largest object S3 copies in a single
+     * request. Not required, default is 5120.
+     *
+     * @param multipartThresholdInMb
+     *            The threshold in megabytes.
+     */
+    public void setMultipartThresholdInMb(int multipartThresholdInMb) {
+        this.multipartThresholdInMb = multipartThresholdInMb;
+    }
+
+    /**
+     * Set the size, in megabytes, of the parts of objects copied in parts.
+     * Must be between 5 and 5120. Not required, default is 512.
+     *
+     * @param partSizeInMb
+     *            The part size in megabytes.
+     */
+    public void setPartSizeInMb(int partSizeInMb) {
+        this.partSizeInMb = partSizeInMb;
+    }
+
+    public void checkParams() {
+        boolean areMalformedParams = false;
+        StringBuilder errors = new StringBuilder("");
+        if (sourceBucketName == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: sourceBucketName is required \n");
+        }
+        if (sourceKeyPrefix == null || destinationKeyPrefix == null) {
+            areMalformedParams = true;
+            errors.append("Invalid parameters: sourceKeyPrefix and destinationKeyPrefix cannot be null \n");
+        } else if (sourceBucketName != null
+                && (destinationBucketName == null || sourceBucketName
+                        .equals(destinationBucketName))
+                && destinationKeyPrefix.startsWith(sourceKeyPrefix)) {
+            areMalformedParams = true;
+            errors.append("Invalid parameters: when copying within a bucket, destinationKeyPrefix cannot be inside sourceKeyPrefix \n");
+        }
+        if (threads < 1) {
+            areMalformedParams = true;
+            errors.append("Invalid parameter: threads must be at least 1 \n");
+        }
+        if (multipartThresholdInMb < 5 || multipartThresholdInMb > 5 * 1024
+                || partSizeInMb < 5 || partSizeInMb > 5 * 1024) {
+            areMalformedParams = true;
+            errors.append("Invalid parameters: multipartThresholdInMb and partSizeInMb must be between 5 and 5120 \n");
+        }
+        if (areMalformedParams) {
+            throw new BuildException(errors.toString());
+        }
+    }
+
+    /**
+     * Copies the objects
+     */
+    public void execute() {
+        checkParams();
+        String destinationBucket = destinationBucketName == null ? sourceBucketName
+                : destinationBucketName;
+        ObjectCopier copier = new ObjectCopier(
+                getOrCreateClient(AmazonS3Client.class), sourceBucketName,
+                sourceKeyPrefix, destinationBucket, destinationKeyPrefix);
+        copier.setSkipUnchanged(skipUnchanged);
+        copier.setMultipartThreshold(multipartThresholdInMb * 1024L * 1024);
+        copier.setPartSize(partSizeInMb * 1024L * 1024);
+        System.out.println("Copying objects from " + sourceBucketName + "/"
+                + sourceKeyPrefix + " to " + destinationBucket + "/"
+                + destinationKeyPrefix + "...");
+        try {
+            copier.copy(threads);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Could not copy objects from bucket "
+                    + sourceBucketName + ": " + e.getMessage(), e);
+        } finally {
+            System.out.println("Copied " + copier.getCopiedCount()
+                    + " objects (" + copier.getCopiedBytes() + " bytes)"
+                    + (skipUnchanged ? ", skipped "
+                            + copier.getSkippedCount() + " unchanged objects"
+                            : ""));
+        }
+    }
+}
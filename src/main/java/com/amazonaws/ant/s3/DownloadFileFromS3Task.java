@@ -20,10 +20,13 @@ import java.util.Iterator;
 
 import org.apache.tools.ant.BuildException;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.BandwidthLimiter;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 /**
@@ -39,6 +42,11 @@ public class DownloadFileFromS3Task extends AWSAntTask {
     private String key;
     private String keyPrefix;
     private File file;
+    private boolean unpack = false;
+    private String archiveName = "archive";
+    private int priority = BandwidthLimiter.DEFAULT_PRIORITY;
+    private boolean skipUnchanged = false;
+    private FileHasher hasher;
 
     /**
      * Specify the name of your S3 bucket
@@ -95,6 +103,54 @@ public class DownloadFileFromS3Task extends AWSAntTask {
         this.dir = dir;
     }
 
+    /**
+     * Specify whether to unpack archives uploaded by upload-to-s3 with pack
+     * set, instead of downloading objects. The archives under keyPrefix are
+     * streamed and unpacked into dir, and the files in them are checked
+     * against their index. Not required, default is false.
+     *
+     * @param unpack
+     *            Whether to unpack archives.
+     */
+    public void setUnpack(boolean unpack) {
+        this.unpack = unpack;
+    }
+
+    /**
+     * Set the name the archives were packed under, if it isn't the default.
+     * Not required, default is "archive".
+     *
+     * @param archiveName
+     *            The name of the archives.
+     */
+    public void setArchiveName(String archiveName) {
+        this.archiveName = archiveName;
+    }
+
+    /**
+     * Specify whether to skip the objects whose files already exist with the
+     * same content, that is with the same size and the same ETag, computed
+     * from the file the way S3 computes it. Not required, default is false.
+     *
+     * @param skipUnchanged
+     *            Whether to skip the objects that are already downloaded.
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Set the priority of this task's transfers under the bandwidth limit set
+     * with set-aws-bandwidth-limit. When transfers wait for bandwidth, those
+     * with a higher priority go first. Not required, default is 0.
+     *
+     * @param priority
+     *            The priority of the transfers.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     public void checkParams() {
         boolean areMalformedParams = false;
         StringBuilder errors = new StringBuilder("");
@@ -118,12 +174,25 @@ public class DownloadFileFromS3Task extends AWSAntTask {
             areMalformedParams = true;
             errors.append("If keyPrefix is set, then dir must be set to specify what directory to download the files to. \n");
         }
+        if (unpack && key != null) {
+            areMalformedParams = true;
+            errors.append("If unpack is set, set keyPrefix to the prefix the archives were uploaded with instead of key. \n");
+        }
+        if (unpack && skipUnchanged) {
+            areMalformedParams = true;
+            errors.append("skipUnchanged cannot be set when unpacking archives. \n");
+        }
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
     }
 
-    private void downloadObjectToFile(AmazonS3Client client, File file, String key) {
+    private void downloadObjectToFile(AmazonS3Client client, File file,
+            String key, long size, String eTag) {
+        if (hasher != null && isUnchanged(client, file, key, size, eTag)) {
+            System.out.println("Skipping unchanged S3Object with key " + key);
+            return;
+        }
         System.out.println("Downloading S3Object with key " + key
                 + " from bucket " + bucketName + " to file " + file + "...");
         try {
@@ -146,11 +215,75 @@ public class DownloadFileFromS3Task extends AWSAntTask {
         System.out.println("Download successful");
     }
 
+    /**
+     * Tells whether a file has the content of an object. The size and ETag of
+     * the object are looked up if they aren't known.
+     */
+    private boolean isUnchanged(AmazonS3Client client, File file, String key,
+            long size, String eTag) {
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            if (eTag == null) {
+                ObjectMetadata metadata = client.getObjectMetadata(bucketName,
+                        key);
+                size = metadata.getContentLength();
+                eTag = metadata.getETag();
+            }
+            return size == file.length() && hasher.matches(file, eTag);
+        } catch (IOException e) {
+            throw new BuildException("IOException while reading file " + file
+                    + ": " + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Exception while looking up object: "
+                    + bucketName + "/" + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void unpackArchives(AmazonS3Client client) {
+        ArchiveUnpacker unpacker = new ArchiveUnpacker(client, bucketName,
+                keyPrefix + archiveName);
+        try {
+            int fileCount = unpacker.unpack(new File(dir));
+            System.out.println("Unpacked " + fileCount + " files to " + dir);
+        } catch (IOException e) {
+            throw new BuildException("Error while unpacking archives: "
+                    + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Error while downloading archives: "
+                    + e.getMessage(), e);
+        }
+    }
+
     public void execute() {
+        BandwidthLimiter bandwidthLimiter = BandwidthLimiter
+                .getBandwidthLimiter(getProject());
+        int previousPriority = bandwidthLimiter.setCurrentPriority(priority);
+        try {
+            if (skipUnchanged) {
+                hasher = FileHasher.forAvailableProcessors();
+            }
+            download();
+        } finally {
+            if (hasher != null) {
+                hasher.shutdown();
+                hasher = null;
+            }
+            bandwidthLimiter.setCurrentPriority(previousPriority);
+        }
+    }
+
+    private void download() {
         AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+        if (unpack) {
+            checkParams();
+            unpackArchives(client);
+            return;
+        }
         if (key != null) {
             File targetFile = file == null ? new File(key) : file;
-            downloadObjectToFile(client, targetFile, key);
+            downloadObjectToFile(client, targetFile, key, -1, null);
         } else {
             ObjectListing objectListing = client.listObjects(bucketName);
 
@@ -162,7 +295,9 @@ public class DownloadFileFromS3Task extends AWSAntTask {
                     String key = objectSummary.getKey();
                     if (key.startsWith(keyPrefix)) {
                         downloadObjectToFile(client, new File(dir
-                                + File.pathSeparator + key), key);
+                                + File.pathSeparator + key), key,
+                                objectSummary.getSize(),
+                                objectSummary.getETag());
                     }
                 }
 
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Deletes the objects under a prefix that a mirrored upload didn't write,
+ * with multi-object deletes of up to a thousand keys issued in parallel.
+ */
+class ExtraneousObjectDeleter {
+
+    static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String keyPrefix;
+
+    /**
+     * @param client
+     *            The client to list and delete with.
+     * @param bucketName
+     *            The bucket to mirror to.
+     * @param keyPrefix
+     *            The prefix of the keys to consider, ending in "/", or ""
+     *            for the whole bucket.
+     */
+    ExtraneousObjectDeleter(AmazonS3 client, String bucketName,
+            String keyPrefix) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * Lists the keys under the prefix that aren't in the given set.
+     *
+     * @param keptKeys
+     *            The keys of the objects to keep.
+     * @return The keys of the other objects, in listing order.
+     */
+    List<String> findExtraneous(Set<String> keptKeys) {
+        List<String> extraneous = new ArrayList<String>();
+        ObjectListing listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(bucketName).withPrefix(keyPrefix));
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                if (!keptKeys.contains(summary.getKey())) {
+                    extraneous.add(summary.getKey());
+                }
+            }
+            if (!listing.isTruncated()) {
+                return extraneous;
+            }
+            listing = client.listNextBatchOfObjects(listing);
+        }
+    }
+
+    /**
+     * Deletes objects in batches, issuing up to the given number of requests
+     * at a time.
+     *
+     * @param keys
+     *            The keys of the objects to delete.
+     * @param threads
+     *            How many delete requests to issue at once.
+     * @return The number of objects deleted.
+     */
+    int delete(List<String> keys, int threads) {
+        int batchCount = (keys.size() + MAX_KEYS_PER_DELETE - 1)
+                / MAX_KEYS_PER_DELETE;
+        if (batchCount == 0) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+                threads, batchCount));
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>(
+                    batchCount);
+            List<Integer> batchSizes = new ArrayList<Integer>(batchCount);
+            for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_DELETE) {
+                final List<KeyVersion> batch = new ArrayList<KeyVersion>();
+                for (String key : keys.subList(i,
+                        Math.min(i + MAX_KEYS_PER_DELETE, keys.size()))) {
+                    batch.add(new KeyVersion(key));
+                }
+                batchSizes.add(batch.size());
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        client.deleteObjects(new DeleteObjectsRequest(
+                                bucketName).withKeys(batch).withQuiet(true));
+                        return batch.size();
+                    }
+                }));
+            }
+
+            int deleted = 0;
+            List<String> failedKeys = new ArrayList<String>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    deleted += futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BuildException(e.getMessage(), e);
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof MultiObjectDeleteException)) {
+                        throw new BuildException(
+                                "Could not delete extraneous objects from bucket "
+                                        + bucketName + ": "
+                                        + e.getCause().getMessage(),
+                                e.getCause());
+                    }
+                    MultiObjectDeleteException deleteException = (MultiObjectDeleteException) e
+                            .getCause();
+                    // Quiet deletes report only the keys that failed
+                    deleted += batchSizes.get(i)
+                            - deleteException.getErrors().size();
+                    for (MultiObjectDeleteException.DeleteError error : deleteException
+                            .getErrors()) {
+                        failedKeys.add(error.getKey());
+                    }
+                }
+            }
+            if (!failedKeys.isEmpty()) {
+                throw new BuildException(failedKeys.size()
+                        + " extraneous objects could not be deleted from bucket "
+                        + bucketName + ", such as " + failedKeys.get(0));
+            }
+            return deleted;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Computes the S3 ETags of local files, to tell whether an object already has
+ * a file's content. Large files are read through memory-mapped windows and
+ * small ones through a direct buffer, so content is never copied onto the
+ * heap, and the parts of multipart ETags are hashed in parallel.
+ */
+class FileHasher {
+
+    static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PART_SIZE_ALIGNMENT = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final ExecutorService executor;
+
+    /**
+     * @param threads
+     *            How many parts to hash at once.
+     */
+    FileHasher(int threads) {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * @return A hasher with a thread for each processor.
+     */
+    static FileHasher forAvailableProcessors() {
+        return new FileHasher(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Tells whether a file has the content of an object with the given ETag.
+     * The ETag of an object uploaded in parts is the MD5 digest of the digests
+     * of its parts, followed by the number of parts. The part size is taken
+     * to be the smallest whole number of megabytes that gives that number of
+     * parts, which is what S3 clients use.
+     *
+     * @param file
+     *            The file to check.
+     * @param eTag
+     *            The ETag of the object.
+     * @return Whether the file's ETag is the same, false if it can't be known.
+     */
+    boolean matches(File file, String eTag) throws IOException {
+        if (eTag == null) {
+            return false;
+        }
+        eTag = eTag.replace("\"", "");
+        int dash = eTag.indexOf('-');
+        if (dash < 0) {
+            return eTag.equalsIgnoreCase(eTag(file, 0));
+        }
+        int partCount;
+        try {
+            partCount = Integer.parseInt(eTag.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        long partSize = partSizeFor(file.length(), partCount);
+        return partSize > 0 && eTag.equalsIgnoreCase(eTag(file, partSize));
+    }
+
+    /**
+     * Computes the ETag the file would have if uploaded.
+     *
+     * @param file
+     *            The file to hash.
+     * @param partSize
+     *            The part size the file would be uploaded with, or 0 if it
+     *            would be uploaded in a single request.
+     * @return The ETag, without quotes.
+     */
+    String eTag(File file, long partSize) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            long length = channel.size();
+            if (partSize <= 0) {
+                return BinaryUtils.toHex(md5(channel, 0, length));
+            }
+            List<Future<byte[]>> parts = new ArrayList<Future<byte[]>>();
+            for (long position = 0; position < length || parts.isEmpty(); position += partSize) {
+                final long partPosition = position;
+                final long partLength = Math.min(partSize, length - position);
+                parts.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return md5(channel, partPosition, partLength);
+                    }
+                }));
+            }
+            MessageDigest digest = newMd5();
+            try {
+                for (Future<byte[]> part : parts) {
+                    digest.update(part.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while hashing "
+                        + file);
+            } catch (ExecutionException e) {
+                for (Future<byte[]> part : parts) {
+                    part.cancel(true);
+                }
+                throw e.getCause() instanceof IOException ? (IOException) e
+                        .getCause() : new IOException(e.getCause());
+            }
+            return BinaryUtils.toHex(digest.digest()) + "-" + parts.size();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stops the hashing threads.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the smallest whole number of megabytes that splits a file into
+     * the given number of parts.
+     *
+     * @return The part size, or -1 if there is none.
+     */
+    static long partSizeFor(long length, int partCount) {
+        if (partCount < 1) {
+            return -1;
+        }
+        long partSize = (length + partCount - 1) / partCount;
+        partSize = Math.max(1, (partSize + PART_SIZE_ALIGNMENT - 1)
+                / PART_SIZE_ALIGNMENT)
+                * PART_SIZE_ALIGNMENT;
+        long parts = Math.max(1, (length + partSize - 1) / partSize);
+        return parts == partCount ? partSize : -1;
+    }
+
+    private static byte[] md5(FileChannel channel, long position, long length)
+            throws IOException {
+        // Mapping has a fixed cost, and mappings are only released when they
+        // are collected, so small ranges are read instead
+        return md5(channel, position, length, length >= MAP_THRESHOLD);
+    }
+
+    /**
+     * Hashes a range of a file either through memory-mapped windows or
+     * through a direct buffer.
+     */
+    static byte[] md5(FileChannel channel, long position, long length,
+            boolean mapped) throws IOException {
+        MessageDigest digest = newMd5();
+        if (!mapped) {
+            ByteBuffer buffer = BUFFER.get();
+            long end = position + length;
+            while (position < end) {
+                // Called through Buffer, as ByteBuffer only overrides these
+                // from Java 9 on
+                ((Buffer) buffer).clear();
+                ((Buffer) buffer).limit((int) Math.min(buffer.capacity(), end
+                        - position));
+                int count = channel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("The file was truncated while it was hashed");
+                }
+                position += count;
+                ((Buffer) buffer).flip();
+                digest.update(buffer);
+            }
+        } else {
+            for (long offset = 0; offset < length; offset += WINDOW_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                        position + offset,
+                        Math.min(WINDOW_SIZE, length - offset)));
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.apache.tools.ant.util.SymbolicLinkUtils;
+
+/**
+ * Finds the files of a fileset while they are iterated over, instead of
+ * collecting them all first like DirectoryScanner.scan does. The first files
+ * are found right away, and only the listings of the directories being
+ * walked are held, however large the tree is. Files are matched with the
+ * fileset's patterns and selectors the way DirectoryScanner matches them,
+ * and directories that can't hold included files aren't entered.
+ */
+class FileSetScanner implements Iterator<String> {
+
+    private static final SymbolicLinkUtils SYMLINK_UTILS = SymbolicLinkUtils
+            .getSymbolicLinkUtils();
+
+    private final Matcher matcher = new Matcher();
+    private final LinkedList<Directory> directories = new LinkedList<Directory>();
+    private String next;
+
+    /**
+     * @param fileSet
+     *            The fileset to scan.
+     * @param project
+     *            The project the fileset belongs to.
+     */
+    FileSetScanner(FileSet fileSet, Project project) {
+        File dir = fileSet.getDir(project);
+        if (dir == null) {
+            throw new BuildException("No directory specified for fileset");
+        }
+        fileSet.setupDirectoryScanner(matcher, project);
+        matcher.setFollowSymlinks(fileSet.isFollowSymlinks());
+        matcher.init();
+        if (!dir.isDirectory()) {
+            if (dir.exists()) {
+                throw new BuildException(dir.getAbsolutePath()
+                        + " is not a directory.");
+            }
+            if (fileSet.getErrorOnMissingDir()) {
+                throw new BuildException(dir.getAbsolutePath()
+                        + DirectoryScanner.DOES_NOT_EXIST_POSTFIX);
+            }
+            return;
+        }
+        directories.add(new Directory(dir, "", 0));
+    }
+
+    /**
+     * @return The base directory of the fileset.
+     */
+    File getBasedir() {
+        return matcher.getBasedir();
+    }
+
+    public boolean hasNext() {
+        while (next == null && !directories.isEmpty()) {
+            Directory directory = directories.getLast();
+            if (directory.index == directory.names.length) {
+                directories.removeLast();
+                continue;
+            }
+            String name = directory.names[directory.index++];
+            String path = directory.path + name;
+            File file = new File(directory.dir, name);
+            if (file.isDirectory()) {
+                enter(directory, file, path);
+            } else if (file.isFile()
+                    && (matcher.isFollowSymlinks() || !isSymlink(directory.dir,
+                            name)) && matcher.includes(path, file)) {
+                next = path;
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * @return The path of the next file, relative to the base directory and
+     *         with the platform's separators.
+     */
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String path = next;
+        next = null;
+        return path;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void enter(Directory parent, File dir, String path) {
+        if (!matcher.couldHold(path)) {
+            return;
+        }
+        int symlinkLevels = parent.symlinkLevels;
+        if (isSymlink(parent.dir, dir.getName())) {
+            // Like DirectoryScanner, follow links only so deep, as they may
+            // lead back up the tree
+            if (!matcher.isFollowSymlinks()
+                    || symlinkLevels == DirectoryScanner.MAX_LEVELS_OF_SYMLINKS) {
+                return;
+            }
+            symlinkLevels++;
+        }
+        directories.add(new Directory(dir, path + File.separator,
+                symlinkLevels));
+    }
+
+    private static boolean isSymlink(File parent, String name) {
+        try {
+            return SYMLINK_UTILS.isSymbolicLink(parent, name);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A directory being walked, and how far it has been.
+     */
+    private static class Directory {
+        final File dir;
+        /** The path relative to the base directory, ending in a separator */
+        final String path;
+        final int symlinkLevels;
+        final String[] names;
+        int index;
+
+        Directory(File dir, String path, int symlinkLevels) {
+            this.dir = dir;
+            this.path = path;
+            this.symlinkLevels = symlinkLevels;
+            names = dir.list();
+            if (names == null) {
+                throw new BuildException("IO error scanning directory '"
+                        + dir.getAbsolutePath() + "'");
+            }
+            Arrays.sort(names);
+        }
+    }
+
+    /**
+     * Exposes the pattern and selector matching of DirectoryScanner, without
+     * its scan.
+     */
+    private static class Matcher extends DirectoryScanner {
+
+        /**
+         * Fills in the defaults that scan() would.
+         */
+        void init() {
+            if (includes == null) {
+                includes = new String[] { SelectorUtils.DEEP_TREE_MATCH };
+            }
+            if (excludes == null) {
+                excludes = new String[0];
+            }
+            // Prepares the patterns, which isIncluded does but
+            // couldHoldIncluded relies on
+            isIncluded("");
+        }
+
+        boolean includes(String path, File file) {
+            return isIncluded(path) && !isExcluded(path)
+                    && isSelected(path, file);
+        }
+
+        boolean couldHold(String path) {
+            if (!couldHoldIncluded(path)) {
+                return false;
+            }
+            // An exclude like "**/build/**" excludes everything under the
+            // directory, so there is no need to walk it
+            String contents = path + File.separator;
+            for (String exclude : excludes) {
+                if (exclude.endsWith(SelectorUtils.DEEP_TREE_MATCH)
+                        && SelectorUtils.matchPath(exclude.substring(0,
+                                exclude.length()
+                                        - SelectorUtils.DEEP_TREE_MATCH
+                                                .length()), contents,
+                                isCaseSensitive())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.util.FileNameMapper;
+
+/**
+ * Maps the files of filesets to S3 keys. By default a file's key is the key
+ * prefix followed by its path relative to the base directory of its fileset,
+ * with forward slashes. An Ant mapper can rename the paths first; files it
+ * doesn't map are left out.
+ */
+class KeyMapper {
+
+    private static final int MAX_REPORTED_COLLISIONS = 10;
+
+    private final String keyPrefix;
+    private final FileNameMapper mapper;
+
+    /**
+     * @param keyPrefix
+     *            The prefix of every key, or null for none.
+     * @param mapper
+     *            The mapper to rename paths with, or null to keep them.
+     */
+    KeyMapper(String keyPrefix, FileNameMapper mapper) {
+        this.keyPrefix = keyPrefix == null ? "" : keyPrefix;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Maps a path relative to a fileset's base directory.
+     *
+     * @param relativePath
+     *            The path, with the platform's separators.
+     * @return The mapped path with forward slashes and without the key
+     *         prefix, or null if the mapper doesn't map it.
+     */
+    String nameFor(String relativePath) {
+        String name = relativePath;
+        if (mapper != null) {
+            String[] names = mapper.mapFileName(relativePath);
+            if (names == null || names.length == 0 || names[0] == null) {
+                return null;
+            }
+            name = names[0];
+        }
+        name = name.replace(File.separatorChar, '/');
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return name;
+    }
+
+    String keyFor(String name) {
+        return keyPrefix + name;
+    }
+
+    /**
+     * Tells whether files are sure to map to distinct keys, without checking.
+     * Without a mapper, the keys of a fileset's files are their distinct
+     * relative paths, but files of different filesets can share a path.
+     *
+     * @param filesetCount
+     *            How many filesets the files come from.
+     */
+    boolean keysAreUnique(int filesetCount) {
+        return mapper == null && filesetCount == 1;
+    }
+
+    /**
+     * Maps the files of a fileset while it is scanned, without checking that
+     * their keys are distinct. See {@link #keysAreUnique(int)}.
+     *
+     * @param fileSet
+     *            The fileset to scan.
+     * @param project
+     *            The project the fileset belongs to.
+     * @return The mapped files, found as they are iterated over.
+     */
+    Iterator<MappedFile> streamFiles(FileSet fileSet, Project project) {
+        final FileSetScanner scanner = new FileSetScanner(fileSet, project);
+        return new Iterator<MappedFile>() {
+            private MappedFile next;
+
+            public boolean hasNext() {
+                while (next == null && scanner.hasNext()) {
+                    String includedFile = scanner.next();
+                    next = map(scanner.getBasedir(), includedFile);
+                }
+                return next != null;
+            }
+
+            public MappedFile next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                MappedFile mappedFile = next;
+                next = null;
+                return mappedFile;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return The mapped file, or null if the mapper doesn't map it.
+     */
+    private MappedFile map(File base, String includedFile) {
+        File file = new File(base, includedFile);
+        String name = nameFor(includedFile);
+        if (name == null) {
+            System.out.println("Skipping file " + file
+                    + ", which the mapper doesn't map");
+            return null;
+        }
+        return new MappedFile(file, includedFile, name, keyFor(name));
+    }
+
+    /**
+     * Scans filesets and maps their files, failing if two files map to the
+     * same key, so that nothing is uploaded in that case.
+     *
+     * @param filesets
+     *            The filesets to scan.
+     * @param project
+     *            The project the filesets belong to.
+     * @return The mapped files, in fileset order.
+     */
+    List<MappedFile> mapFiles(List<FileSet> filesets, Project project) {
+        List<MappedFile> mappedFiles = new ArrayList<MappedFile>();
+        Map<String, File> filesByKey = new LinkedHashMap<String, File>();
+        List<String> collisions = new ArrayList<String>();
+        int collisionCount = 0;
+        for (FileSet fileSet : filesets) {
+            DirectoryScanner directoryScanner = fileSet
+                    .getDirectoryScanner(project);
+            File base = directoryScanner.getBasedir();
+            for (String includedFile : directoryScanner.getIncludedFiles()) {
+                MappedFile mappedFile = map(base, includedFile);
+                if (mappedFile == null) {
+                    continue;
+                }
+                File previous = filesByKey.put(mappedFile.key, mappedFile.file);
+                if (previous != null) {
+                    if (++collisionCount <= MAX_REPORTED_COLLISIONS) {
+                        collisions.add(mappedFile.key + " (" + previous
+                                + " and " + mappedFile.file + ")");
+                    }
+                    continue;
+                }
+                mappedFiles.add(mappedFile);
+            }
+        }
+        if (collisionCount > 0) {
+            StringBuilder message = new StringBuilder().append(collisionCount)
+                    .append(" files map to keys that other files map to. ")
+                    .append("Nothing was uploaded. Colliding keys:");
+            for (String collision : collisions) {
+                message.append("\n  ").append(collision);
+            }
+            throw new BuildException(message.toString());
+        }
+        return mappedFiles;
+    }
+
+    /**
+     * A file of a fileset and the key it maps to.
+     */
+    static class MappedFile {
+        final File file;
+        /** The path relative to the fileset, with the platform's separators */
+        final String relativePath;
+        /** The mapped path, without the key prefix */
+        final String name;
+        final String key;
+
+        MappedFile(File file, String relativePath, String name, String key) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.name = name;
+            this.key = key;
+        }
+    }
+}
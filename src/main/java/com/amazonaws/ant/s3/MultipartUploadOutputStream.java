@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * Streams what is written to it into a multipart upload, so that an object of
+ * unknown length can be uploaded while it is being produced. At most one part
+ * is held in memory. The object is complete once the stream is closed; if
+ * writing fails, {@link #abort()} discards the parts uploaded so far. A close
+ * that fails aborts the upload itself.
+ */
+class MultipartUploadOutputStream extends OutputStream {
+
+    /**
+     * The size of every part but the last. S3 allows at most 10,000 parts, so
+     * objects of up to about 78 GB can be written.
+     */
+    static final int PART_SIZE = 8 * 1024 * 1024;
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String key;
+    private final String uploadId;
+    private final List<PartETag> partETags = new ArrayList<PartETag>();
+    private final byte[] buffer = new byte[PART_SIZE];
+    private int buffered;
+    private long length;
+    private boolean closed;
+
+    /**
+     * Starts a multipart upload.
+     *
+     * @param client
+     *            The client to upload with.
+     * @param bucketName
+     *            The bucket to upload to.
+     * @param key
+     *            The key of the object to create.
+     */
+    MultipartUploadOutputStream(AmazonS3 client, String bucketName, String key) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.uploadId = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, key))
+                .getUploadId();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Upload of " + key + " is closed");
+        }
+        while (len > 0) {
+            int count = Math.min(len, buffer.length - buffered);
+            System.arraycopy(b, off, buffer, buffered, count);
+            buffered += count;
+            off += count;
+            len -= count;
+            if (buffered == buffer.length) {
+                uploadPart();
+            }
+        }
+    }
+
+    /**
+     * Uploads what is left and completes the upload. If that fails, the
+     * upload is aborted before the error is rethrown.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (buffered > 0 || partETags.isEmpty()) {
+                uploadPart();
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    bucketName, key, uploadId, partETags));
+        } catch (RuntimeException e) {
+            abort();
+            throw e;
+        }
+        closed = true;
+    }
+
+    /**
+     * Discards the upload. Never throws, so that it can be called while
+     * handling another error.
+     */
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                    bucketName, key, uploadId));
+        } catch (RuntimeException e) {
+            // The parts are left for a lifecycle rule to expire
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    long getLength() {
+        return length;
+    }
+
+    private void uploadPart() {
+        UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucketName).withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partETags.size() + 1)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, buffered))
+                .withPartSize(buffered);
+        partETags.add(client.uploadPart(request).getPartETag());
+        length += buffered;
+        buffered = 0;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Copies the objects under a prefix to another prefix or bucket without
+ * transferring their content through the client. Objects are copied with
+ * CopyObject, or in parts with UploadPartCopy when they are larger than the
+ * multipart threshold, and requests are issued in parallel.
+ */
+class ObjectCopier {
+
+    static final long MAX_PARTS = 10000;
+
+    /**
+     * The user metadata in which copies record the ETag of their source, for
+     * copies whose ETag differs from it.
+     */
+    static final String SOURCE_ETAG = "source-etag";
+
+    private final AmazonS3 client;
+    private final String sourceBucketName;
+    private final String sourceKeyPrefix;
+    private final String destinationBucketName;
+    private final String destinationKeyPrefix;
+    private long multipartThreshold = 5L * 1024 * 1024 * 1024;
+    private long partSize = 512L * 1024 * 1024;
+    private boolean skipUnchanged = false;
+
+    private int copiedCount;
+    private int skippedCount;
+    private long copiedBytes;
+
+    /**
+     * @param client
+     *            The client to list and copy with.
+     * @param sourceBucketName
+     *            The bucket to copy from.
+     * @param sourceKeyPrefix
+     *            The prefix of the keys to copy, or "" for the whole bucket.
+     * @param destinationBucketName
+     *            The bucket to copy to.
+     * @param destinationKeyPrefix
+     *            The prefix that replaces sourceKeyPrefix in the keys of the
+     *            copies.
+     */
+    ObjectCopier(AmazonS3 client, String sourceBucketName,
+            String sourceKeyPrefix, String destinationBucketName,
+            String destinationKeyPrefix) {
+        this.client = client;
+        this.sourceBucketName = sourceBucketName;
+        this.sourceKeyPrefix = sourceKeyPrefix;
+        this.destinationBucketName = destinationBucketName;
+        this.destinationKeyPrefix = destinationKeyPrefix;
+    }
+
+    /**
+     * Set the size, in bytes, past which objects are copied in parts.
+     */
+    void setMultipartThreshold(long multipartThreshold) {
+        this.multipartThreshold = multipartThreshold;
+    }
+
+    /**
+     * Set the size, in bytes, of the parts of multipart copies. Larger parts
+     * are used if an object would otherwise have more than 10000 parts.
+     */
+    void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Set whether to skip objects whose copy already exists with the same size
+     * and either the same ETag or the source's ETag recorded in its metadata.
+     */
+    void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Copies the objects, a page of the source listing at a time.
+     *
+     * @param threads
+     *            How many copy requests to issue at once.
+     */
+    void copy(int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Iterator<S3ObjectSummary> destination = skipUnchanged ? new SummaryIterator(
+                    destinationBucketName, destinationKeyPrefix) : null;
+            S3ObjectSummary existing = destination == null ? null
+                    : nextOrNull(destination);
+            List<String> failedKeys = new ArrayList<String>();
+            ObjectListing listing = client.listObjects(new ListObjectsRequest()
+                    .withBucketName(sourceBucketName).withPrefix(
+                            sourceKeyPrefix));
+            while (true) {
+                List<Future<?>> copies = new ArrayList<Future<?>>();
+                List<String> copiedKeys = new ArrayList<String>();
+                List<MultipartCopy> multipartCopies = new ArrayList<MultipartCopy>();
+                for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                    String name = summary.getKey().substring(
+                            sourceKeyPrefix.length());
+                    // Both listings are sorted by key, and the copies of the
+                    // source objects sort the same way
+                    while (existing != null
+                            && nameOf(existing).compareTo(name) < 0) {
+                        existing = nextOrNull(destination);
+                    }
+                    if (existing != null && nameOf(existing).equals(name)
+                            && isUnchanged(existing, summary)) {
+                        skippedCount++;
+                        continue;
+                    }
+                    String key = destinationKeyPrefix + name;
+                    try {
+                        if (summary.getSize() > multipartThreshold) {
+                            multipartCopies.add(startMultipartCopy(summary,
+                                    key, executor));
+                        } else {
+                            copies.add(executor.submit(copyObject(summary,
+                                    key)));
+                            copiedKeys.add(summary.getKey());
+                        }
+                    } catch (RuntimeException e) {
+                        failed(failedKeys, summary.getKey(), e);
+                    }
+                }
+                for (int i = 0; i < copies.size(); i++) {
+                    try {
+                        copies.get(i).get();
+                    } catch (ExecutionException e) {
+                        failed(failedKeys, copiedKeys.get(i), e.getCause());
+                    }
+                }
+                for (MultipartCopy multipartCopy : multipartCopies) {
+                    try {
+                        multipartCopy.complete();
+                    } catch (ExecutionException e) {
+                        multipartCopy.abort();
+                        failed(failedKeys, multipartCopy.summary.getKey(),
+                                e.getCause());
+                    } catch (RuntimeException e) {
+                        multipartCopy.abort();
+                        failed(failedKeys, multipartCopy.summary.getKey(), e);
+                    }
+                }
+                if (!listing.isTruncated()) {
+                    break;
+                }
+                listing = client.listNextBatchOfObjects(listing);
+            }
+            if (!failedKeys.isEmpty()) {
+                throw new BuildException(failedKeys.size()
+                        + " objects could not be copied from bucket "
+                        + sourceBucketName + ", such as " + failedKeys.get(0));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void failed(List<String> failedKeys, String key,
+            Throwable cause) {
+        System.err.println("The object " + key + " failed to copy: " + cause);
+        failedKeys.add(key);
+    }
+
+    private synchronized void copied(long bytes) {
+        copiedCount++;
+        copiedBytes += bytes;
+    }
+
+    private static S3ObjectSummary nextOrNull(
+            Iterator<S3ObjectSummary> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private String nameOf(S3ObjectSummary destinationSummary) {
+        return destinationSummary.getKey().substring(
+                destinationKeyPrefix.length());
+    }
+
+    /**
+     * A copy made with CopyObject has the ETag of its source, unless the
+     * source was uploaded in parts, and a copy made in parts has an ETag of
+     * its own. Those copies record the ETag of their source, which is checked
+     * when the ETags differ.
+     */
+    private boolean isUnchanged(S3ObjectSummary existing,
+            S3ObjectSummary summary) {
+        if (existing.getSize() != summary.getSize()) {
+            return false;
+        }
+        if (existing.getETag().equals(summary.getETag())) {
+            return true;
+        }
+        String sourceETag = client
+                .getObjectMetadata(destinationBucketName, existing.getKey())
+                .getUserMetadata().get(SOURCE_ETAG);
+        return summary.getETag().equals(sourceETag);
+    }
+
+    private static boolean isMultipartETag(String eTag) {
+        return eTag.indexOf('-') >= 0;
+    }
+
+    private Callable<Void> copyObject(final S3ObjectSummary summary,
+            final String key) {
+        return new Callable<Void>() {
+            public Void call() {
+                CopyObjectRequest request = new CopyObjectRequest(
+                        sourceBucketName, summary.getKey(),
+                        destinationBucketName, key);
+                if (isMultipartETag(summary.getETag())) {
+                    request.setNewObjectMetadata(copyMetadata(summary));
+                }
+                client.copyObject(request);
+                copied(summary.getSize());
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Returns the metadata of a source object for its copy, with the source's
+     * ETag added. Only the metadata that is stored with the object is carried
+     * over.
+     */
+    private ObjectMetadata copyMetadata(S3ObjectSummary summary) {
+        ObjectMetadata sourceMetadata = client.getObjectMetadata(
+                sourceBucketName, summary.getKey());
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setUserMetadata(sourceMetadata.getUserMetadata());
+        metadata.addUserMetadata(SOURCE_ETAG, summary.getETag());
+        if (sourceMetadata.getContentType() != null) {
+            metadata.setContentType(sourceMetadata.getContentType());
+        }
+        if (sourceMetadata.getContentEncoding() != null) {
+            metadata.setContentEncoding(sourceMetadata.getContentEncoding());
+        }
+        if (sourceMetadata.getCacheControl() != null) {
+            metadata.setCacheControl(sourceMetadata.getCacheControl());
+        }
+        if (sourceMetadata.getContentDisposition() != null) {
+            metadata.setContentDisposition(sourceMetadata
+                    .getContentDisposition());
+        }
+        return metadata;
+    }
+
+    /**
+     * Starts a multipart upload for the copy of an object, with the source's
+     * metadata and ETag, and submits the copies of its parts.
+     */
+    private MultipartCopy startMultipartCopy(final S3ObjectSummary summary,
+            final String key, ExecutorService executor) {
+        ObjectMetadata metadata = copyMetadata(summary);
+        final String uploadId = client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(destinationBucketName, key,
+                        metadata)).getUploadId();
+        System.out.println("Copying object " + summary.getKey() + " in parts...");
+
+        MultipartCopy multipartCopy = new MultipartCopy(summary, key, uploadId);
+        long size = summary.getSize();
+        long objectPartSize = Math.max(partSize, (size + MAX_PARTS - 1)
+                / MAX_PARTS);
+        int partNumber = 1;
+        for (long firstByte = 0; firstByte < size; firstByte += objectPartSize) {
+            final CopyPartRequest request = new CopyPartRequest()
+                    .withSourceBucketName(sourceBucketName)
+                    .withSourceKey(summary.getKey())
+                    .withDestinationBucketName(destinationBucketName)
+                    .withDestinationKey(key).withUploadId(uploadId)
+                    .withPartNumber(partNumber++).withFirstByte(firstByte)
+                    .withLastByte(Math.min(firstByte + objectPartSize, size) - 1)
+                    // Fails the part if the object changed since it was listed
+                    .withMatchingETagConstraint(summary.getETag());
+            multipartCopy.parts.add(executor.submit(new Callable<PartETag>() {
+                public PartETag call() {
+                    CopyPartResult result = client.copyPart(request);
+                    if (result == null) {
+                        throw new BuildException("The object changed while it was being copied");
+                    }
+                    return result.getPartETag();
+                }
+            }));
+        }
+        return multipartCopy;
+    }
+
+    int getCopiedCount() {
+        return copiedCount;
+    }
+
+    int getSkippedCount() {
+        return skippedCount;
+    }
+
+    long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * The copy of an object in parts.
+     */
+    private class MultipartCopy {
+        final S3ObjectSummary summary;
+        final String key;
+        final String uploadId;
+        final List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+
+        MultipartCopy(S3ObjectSummary summary, String key, String uploadId) {
+            this.summary = summary;
+            this.key = key;
+            this.uploadId = uploadId;
+        }
+
+        void complete() throws InterruptedException, ExecutionException {
+            List<PartETag> partETags = new ArrayList<PartETag>(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                    destinationBucketName, key, uploadId, partETags));
+            copied(summary.getSize());
+        }
+
+        void abort() {
+            for (Future<PartETag> part : parts) {
+                part.cancel(true);
+            }
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(
+                        destinationBucketName, key, uploadId));
+            } catch (RuntimeException e) {
+                System.err.println("Could not abort the copy of "
+                        + summary.getKey() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Iterates over the objects under a prefix, listing a page at a time.
+     */
+    private class SummaryIterator implements Iterator<S3ObjectSummary> {
+        private ObjectListing listing;
+        private Iterator<S3ObjectSummary> page;
+
+        SummaryIterator(String bucketName, String keyPrefix) {
+            listing = client.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucketName).withPrefix(keyPrefix));
+            page = listing.getObjectSummaries().iterator();
+        }
+
+        public boolean hasNext() {
+            while (!page.hasNext() && listing.isTruncated()) {
+                listing = client.listNextBatchOfObjects(listing);
+                page = listing.getObjectSummaries().iterator();
+            }
+            return page.hasNext();
+        }
+
+        public S3ObjectSummary next() {
+            hasNext();
+            return page.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
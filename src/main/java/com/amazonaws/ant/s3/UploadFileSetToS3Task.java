@@ -16,14 +16,39 @@
 package com.amazonaws.ant.s3;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.DirectoryScanner;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Mapper;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+import org.apache.tools.ant.util.FileNameMapper;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.BandwidthLimiter;
+import com.amazonaws.ant.s3.KeyMapper.MappedFile;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 
@@ -31,12 +56,29 @@ import com.amazonaws.services.s3.transfer.Upload;
  * Ant Task for uploading a fileset or filesets to S3.
  */
 public class UploadFileSetToS3Task extends AWSAntTask {
+    // How many found files may wait for an upload thread while the filesets
+    // are scanned
+    private static final int MAX_QUEUED_FILES = 1000;
+
     private Vector<FileSet> filesets = new Vector<FileSet>();
     private String bucketName;
     private String keyPrefix;
+    private Mapper mapper;
     private boolean printStatusUpdates = false;
     private boolean continueOnFail = false;
     private int statusUpdatePeriodInMs = 500;
+    private boolean pack = false;
+    private final List<String> compressIncludes = new ArrayList<String>();
+    private final List<String> compressContentTypes = new ArrayList<String>();
+    private int minCompressionPercent = 10;
+    private boolean deleteExtraneous = false;
+    private int maxDeletions = 1000;
+    private int deleteThreads = 4;
+    private String archiveName = "archive";
+    private int maxArchiveSizeInMb = 1024;
+    private int uploadThreads = 1;
+    private boolean skipUnchanged = false;
+    private int priority = BandwidthLimiter.DEFAULT_PRIORITY;
 
     /**
      * Specify a fileset to be deployed.
@@ -65,13 +107,42 @@ public class UploadFileSetToS3Task extends AWSAntTask {
      * @param keyPrefix
      *            If specified, all of your files in the fileset will have this
      *            prefixed to their key. For example, you can name this
-     *            "myfiles/", and if you upload myfile.txt, its key in S3 will
-     *            be myfiles/myfile.txt.
+     *            "myfiles/", and if you upload dir/myfile.txt, its key in S3
+     *            will be myfiles/dir/myfile.txt.
      */
     public void setKeyPrefix(String keyPrefix) {
         this.keyPrefix = keyPrefix;
     }
 
+    /**
+     * Specify a mapper to rename files with before they are uploaded. By
+     * default, a file's key is keyPrefix followed by its path relative to the
+     * directory of its fileset. The mapper is given that path, and its result
+     * is used instead; files it doesn't map are skipped. Use a flattenmapper
+     * to upload files by name only. At most one mapper can be set.
+     *
+     * @return The mapper to configure.
+     */
+    public Mapper createMapper() {
+        if (mapper != null) {
+            throw new BuildException("Cannot define more than one mapper",
+                    getLocation());
+        }
+        mapper = new Mapper(getProject());
+        return mapper;
+    }
+
+    /**
+     * Specify a mapper implementation, such as a nested globmapper, to rename
+     * files with. See {@link #createMapper()}.
+     *
+     * @param fileNameMapper
+     *            The mapper.
+     */
+    public void add(FileNameMapper fileNameMapper) {
+        createMapper().add(fileNameMapper);
+    }
+
     /**
      * Specify whether you want to continue uploading your fileset if the upload
      * of one file fails. False by default.
@@ -111,6 +182,189 @@ public class UploadFileSetToS3Task extends AWSAntTask {
         this.statusUpdatePeriodInMs = statusUpdatePeriodInMs;
     }
 
+    /**
+     * Set how many files to upload at once. Files are uploaded while a single
+     * fileset is scanned, in the order they are found. With a mapper or
+     * several filesets, every file is found first to check that no two files
+     * map to the same key, and files are then uploaded largest first, so that
+     * long multipart uploads start early and small files fill in around them.
+     * The common single-fileset case gives up that ordering to start sooner:
+     * a large file found last is started last, and can leave the other
+     * threads idle while it uploads. Not required, default is 1.
+     *
+     * @param uploadThreads
+     *            The number of files to upload at once.
+     */
+    public void setUploadThreads(int uploadThreads) {
+        this.uploadThreads = uploadThreads;
+    }
+
+    /**
+     * Specify whether to skip the files whose objects already have the same
+     * content. The objects under keyPrefix are listed first, and a file is
+     * skipped if its object has the same size and the same ETag, which is
+     * computed from the file the way S3 computes it, for objects uploaded in
+     * parts too. Compressed files are always uploaded. The listing of every
+     * object under keyPrefix is held in memory for the whole upload, since
+     * files are not found in the order S3 lists keys, so a prefix with
+     * millions of objects needs a large heap. Not required, default is false.
+     *
+     * @param skipUnchanged
+     *            Whether to skip the files that are already uploaded.
+     */
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /**
+     * Set the priority of this task's transfers under the bandwidth limit set
+     * with set-aws-bandwidth-limit. When transfers wait for bandwidth, those
+     * with a higher priority go first. Not required, default is 0.
+     *
+     * @param priority
+     *            The priority of the transfers.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Specify which files to compress with gzip while they are uploaded. The
+     * objects get a Content-Encoding of gzip and the Content-Type of the
+     * original file, so that browsers and CDNs serve them transparently. Not
+     * required, by default no files are compressed.
+     *
+     * @param compressIncludes
+     *            A comma- or space-separated list of patterns, such as
+     *            "**&#47;*.css, **&#47;*.js", matched against the paths of the
+     *            files relative to their fileset like fileset includes.
+     */
+    public void setCompressIncludes(String compressIncludes) {
+        for (String pattern : compressIncludes.split("[,\\s]+")) {
+            if (pattern.length() > 0) {
+                pattern = pattern.replace('/', File.separatorChar).replace(
+                        '\\', File.separatorChar);
+                if (pattern.endsWith(File.separator)) {
+                    pattern += "**";
+                }
+                this.compressIncludes.add(pattern);
+            }
+        }
+    }
+
+    /**
+     * Specify the content types of files to compress with gzip while they
+     * are uploaded, in addition to the files matched by compressIncludes.
+     * Content types are determined from file extensions. Not required.
+     *
+     * @param compressContentTypes
+     *            A comma-separated list of content types, such as
+     *            "text/*, application/json". A type ending in "/*" matches
+     *            every subtype.
+     */
+    public void setCompressContentTypes(String compressContentTypes) {
+        for (String contentType : compressContentTypes.split(",")) {
+            contentType = contentType.trim().toLowerCase();
+            if (contentType.length() > 0) {
+                this.compressContentTypes.add(contentType);
+            }
+        }
+    }
+
+    /**
+     * Set how much smaller, in percent, a compressed file must be for it to
+     * be uploaded compressed. Files that don't compress as well, such as
+     * already minified or compressed content, are uploaded as they are. Not
+     * required, default is 10.
+     *
+     * @param minCompressionPercent
+     *            The percentage of the file size compression must save.
+     */
+    public void setMinCompressionPercent(int minCompressionPercent) {
+        this.minCompressionPercent = minCompressionPercent;
+    }
+
+    /**
+     * Specify whether to mirror the filesets: once everything is uploaded,
+     * the objects under keyPrefix that this upload didn't write are deleted.
+     * keyPrefix must be set, to "" to mirror the whole bucket or to a prefix
+     * ending in "/" otherwise, since the objects are listed by plain prefix
+     * match: a keyPrefix of "site" would also take in "site-backup/". Not
+     * required, default is false.
+     *
+     * @param deleteExtraneous
+     *            Whether to delete the objects under keyPrefix that weren't
+     *            uploaded.
+     */
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+    /**
+     * Set how many objects deleteExtraneous may delete. If more objects are
+     * extraneous, the task fails without deleting any, as a guard against a
+     * misconfigured fileset or prefix. Not required, default is 1000.
+     *
+     * @param maxDeletions
+     *            The maximum number of objects to delete.
+     */
+    public void setMaxDeletions(int maxDeletions) {
+        this.maxDeletions = maxDeletions;
+    }
+
+    /**
+     * Set how many multi-object delete requests, of up to 1000 keys each,
+     * deleteExtraneous issues at once. Not required, default is 4.
+     *
+     * @param deleteThreads
+     *            The number of threads to issue delete requests with.
+     */
+    public void setDeleteThreads(int deleteThreads) {
+        this.deleteThreads = deleteThreads;
+    }
+
+    /**
+     * Specify whether to pack the files into tar archives instead of
+     * uploading each one as its own object. Meant for filesets of many small
+     * files, where the cost of a request per file dominates. The archives
+     * are uploaded while they are written, along with an index of the files
+     * in them, and can be unpacked with download-from-s3. Files keep their
+     * paths relative to their fileset in the archives. Not required, default
+     * is false.
+     *
+     * @param pack
+     *            Whether to pack the files into archives.
+     */
+    public void setPack(boolean pack) {
+        this.pack = pack;
+    }
+
+    /**
+     * Set the name of the archives and of their index when packing. The
+     * archives are uploaded as keyPrefix + archiveName + "-0.tar", "-1.tar"
+     * and so on, and the index as keyPrefix + archiveName + ".index". Not
+     * required, default is "archive".
+     *
+     * @param archiveName
+     *            The name of the archives.
+     */
+    public void setArchiveName(String archiveName) {
+        this.archiveName = archiveName;
+    }
+
+    /**
+     * Set the size an archive may grow to when packing, in megabytes. Once
+     * the next file would take an archive past it, a new archive is started.
+     * A file larger than this gets an archive of its own. Not required,
+     * default is 1024.
+     *
+     * @param maxArchiveSizeInMb
+     *            The maximum size of an archive, in megabytes.
+     */
+    public void setMaxArchiveSizeInMb(int maxArchiveSizeInMb) {
+        this.maxArchiveSizeInMb = maxArchiveSizeInMb;
+    }
+
     /**
      * Verifies that all necessary parameters were set
      */
@@ -125,6 +379,40 @@ public class UploadFileSetToS3Task extends AWSAntTask {
             areMalformedParams = true;
             errors.append("Missing parameter: you must specify at least one fileset \n");
         }
+        if (pack
+                && (!compressIncludes.isEmpty() || !compressContentTypes
+                        .isEmpty())) {
+            areMalformedParams = true;
+            errors.append("Invalid parameters: files cannot be compressed when they are packed \n");
+        }
+        if (minCompressionPercent < 0 || minCompressionPercent > 99) {
+            areMalformedParams = true;
+            errors.append("Invalid parameter: minCompressionPercent must be between 0 and 99 \n");
+        }
+        if (deleteExtraneous && keyPrefix == null) {
+            areMalformedParams = true;
+            errors.append("Missing parameter: keyPrefix is required with deleteExtraneous. Set it to \"\" to mirror the whole bucket \n");
+        } else if (deleteExtraneous && keyPrefix.length() > 0
+                && !keyPrefix.endsWith("/")) {
+            areMalformedParams = true;
+            errors.append("Invalid parameter: keyPrefix must end with \"/\" with deleteExtraneous, so that other folders starting with it are not deleted \n");
+        }
+        if (deleteExtraneous && (maxDeletions < 0 || deleteThreads < 1)) {
+            areMalformedParams = true;
+            errors.append("Invalid parameters: maxDeletions must not be negative and deleteThreads must be at least 1 \n");
+        }
+        if (uploadThreads < 1) {
+            areMalformedParams = true;
+            errors.append("Invalid parameter: uploadThreads must be at least 1 \n");
+        }
+        if (pack && skipUnchanged) {
+            areMalformedParams = true;
+            errors.append("Invalid parameters: skipUnchanged cannot be set when files are packed \n");
+        }
+        if (pack && maxArchiveSizeInMb < 1) {
+            areMalformedParams = true;
+            errors.append("Invalid parameter: maxArchiveSizeInMb must be at least 1 \n");
+        }
         if (areMalformedParams) {
             throw new BuildException(errors.toString());
         }
@@ -136,57 +424,303 @@ public class UploadFileSetToS3Task extends AWSAntTask {
     @Override
 	public void execute() {
         checkParameters();
-        TransferManager transferManager;
-        if (awsSecretKey != null && awsAccessKeyId != null) {
-            transferManager = new TransferManager(getOrCreateClient(AmazonS3Client.class));
+        KeyMapper keyMapper = new KeyMapper(keyPrefix, mapper == null ? null
+                : mapper.getImplementation());
+        Iterator<MappedFile> files;
+        if (keyMapper.keysAreUnique(filesets.size())) {
+            files = keyMapper.streamFiles(filesets.get(0), getProject());
         } else {
-            transferManager = new TransferManager();
-        }
-        for (FileSet fileSet : filesets) {
-            DirectoryScanner directoryScanner = fileSet.getDirectoryScanner(getProject());
-            String[] includedFiles = directoryScanner.getIncludedFiles();
-            try {
-                for (String includedFile : includedFiles) {
-                    File base = directoryScanner.getBasedir();
-                    File file = new File(base, includedFile);
-                    String key = keyPrefix + file.getName();
-                    try {
-                        System.out.println("Uploading file " + file.getName()
-                                + "...");
-                        Upload upload = transferManager.upload(bucketName, key, file);
-                        if (printStatusUpdates) {
-                            while (!upload.isDone()) {
-                                System.out.print(upload.getProgress()
-                                        .getBytesTransferred()
-                                        + "/"
-                                        + upload.getProgress()
-                                                .getTotalBytesToTransfer()
-                                        + " bytes transferred...\r");
-                                Thread.sleep(statusUpdatePeriodInMs);
+            List<MappedFile> mappedFiles = keyMapper.mapFiles(filesets,
+                    getProject());
+            files = (pack ? mappedFiles : largestFirst(mappedFiles))
+                    .iterator();
+        }
+        BandwidthLimiter bandwidthLimiter = BandwidthLimiter
+                .getBandwidthLimiter(getProject());
+        int previousPriority = bandwidthLimiter.setCurrentPriority(priority);
+        try {
+            if (pack) {
+                packFiles(files);
+                return;
+            }
+            Set<String> keys = uploadFiles(files);
+            if (deleteExtraneous) {
+                deleteExtraneousObjects(keys);
+            }
+        } finally {
+            bandwidthLimiter.setCurrentPriority(previousPriority);
+        }
+    }
+
+    private static List<MappedFile> largestFirst(List<MappedFile> files) {
+        final Map<MappedFile, Long> lengths = new HashMap<MappedFile, Long>();
+        for (MappedFile mappedFile : files) {
+            lengths.put(mappedFile, mappedFile.file.length());
+        }
+        List<MappedFile> largestFirst = new ArrayList<MappedFile>(files);
+        Collections.sort(largestFirst, new Comparator<MappedFile>() {
+            public int compare(MappedFile a, MappedFile b) {
+                return lengths.get(b).compareTo(lengths.get(a));
+            }
+        });
+        return largestFirst;
+    }
+
+    /**
+     * Uploads files, up to uploadThreads at a time, as they come. Only a
+     * bounded number of files wait for a thread, so that files are found no
+     * faster than they are uploaded.
+     *
+     * @return The keys of the files if deleteExtraneous is set, otherwise
+     *         null.
+     */
+    private Set<String> uploadFiles(Iterator<MappedFile> files) {
+        Set<String> keys = deleteExtraneous ? new HashSet<String>() : null;
+        AmazonS3Client client = getOrCreateClient(AmazonS3Client.class);
+        final Map<String, S3ObjectSummary> existing = skipUnchanged ? listExisting(client)
+                : null;
+        final FileHasher hasher = skipUnchanged ? FileHasher
+                .forAvailableProcessors() : null;
+        final TransferManager transferManager = new TransferManager(client);
+        ExecutorService executor = Executors.newFixedThreadPool(uploadThreads);
+        final Semaphore queueSlots = new Semaphore(uploadThreads
+                + MAX_QUEUED_FILES);
+        final AtomicReference<BuildException> failure = new AtomicReference<BuildException>();
+        try {
+            while (failure.get() == null && files.hasNext()) {
+                final MappedFile mappedFile = files.next();
+                if (keys != null) {
+                    keys.add(mappedFile.key);
+                }
+                queueSlots.acquire();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (failure.get() == null
+                                    && (existing == null || !isUnchanged(
+                                            hasher, mappedFile,
+                                            existing.get(mappedFile.key)))) {
+                                uploadFile(transferManager, mappedFile);
                             }
-                            System.out.print(upload.getProgress()
-                                        .getBytesTransferred()
-                                        + "/"
-                                        + upload.getProgress()
-                                                .getTotalBytesToTransfer()
-                                        + " bytes transferred...\n");
-                        } else {
-                            upload.waitForCompletion();
-                        }
-                        System.out.println("Upload succesful");
-                    } catch (Exception e) {
-                        if (!continueOnFail) {
-                            throw new BuildException(
-                                    "Error. The file that failed to upload was: "
-                                            + file.getName() + ": " + e, e);
-                        } else {
-                            System.err.println("The file " + file.getName()
-                                    + " failed to upload. Continuing...");
+                        } catch (Exception e) {
+                            uploadFailed(mappedFile, e, failure);
+                        } finally {
+                            queueSlots.release();
                         }
                     }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            transferManager.shutdownNow(false);
+            if (hasher != null) {
+                hasher.shutdown();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return keys;
+    }
+
+    /**
+     * Records the first failure to fail the task with, unless continueOnFail
+     * is set.
+     */
+    private void uploadFailed(MappedFile mappedFile, Exception e,
+            AtomicReference<BuildException> failure) {
+        String includedFile = mappedFile.relativePath;
+        if (!continueOnFail) {
+            failure.compareAndSet(null, new BuildException(
+                    "Error. The file that failed to upload was: "
+                            + includedFile + ": " + e, e));
+        } else {
+            System.err.println("The file " + includedFile
+                    + " failed to upload. Continuing...");
+        }
+    }
+
+    /**
+     * Lists the objects under keyPrefix, which every key starts with.
+     *
+     * @return The objects, by key.
+     */
+    private Map<String, S3ObjectSummary> listExisting(AmazonS3Client client) {
+        Map<String, S3ObjectSummary> existing = new HashMap<String, S3ObjectSummary>();
+        ObjectListing listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(bucketName).withPrefix(
+                        keyPrefix == null ? "" : keyPrefix));
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                existing.put(summary.getKey(), summary);
+            }
+            if (!listing.isTruncated()) {
+                return existing;
+            }
+            listing = client.listNextBatchOfObjects(listing);
+        }
+    }
+
+    /**
+     * Tells whether an object already has the content of a file, and prints
+     * that the file is skipped if it does.
+     */
+    private boolean isUnchanged(FileHasher hasher, MappedFile mappedFile,
+            S3ObjectSummary summary) throws IOException {
+        if (summary == null || summary.getSize() != mappedFile.file.length()
+                || !hasher.matches(mappedFile.file, summary.getETag())) {
+            return false;
+        }
+        System.out.println("Skipping unchanged file " + mappedFile.relativePath);
+        return true;
+    }
+
+    private void uploadFile(TransferManager transferManager,
+            MappedFile mappedFile) throws Exception {
+        File file = mappedFile.file;
+        String includedFile = mappedFile.relativePath;
+        String key = mappedFile.key;
+        CompressedUpload compressed = null;
+        try {
+            compressed = compress(includedFile, file);
+            Upload upload;
+            if (compressed == null) {
+                System.out.println("Uploading file " + includedFile + "...");
+                upload = transferManager.upload(bucketName, key, file);
+            } else {
+                System.out.println("Uploading file " + includedFile
+                        + " compressed from " + compressed.getOriginalLength()
+                        + " to " + compressed.getCompressedLength()
+                        + " bytes...");
+                upload = transferManager.upload(compressed.toRequest(
+                        bucketName, key,
+                        Mimetypes.getInstance().getMimetype(file)));
+            }
+            if (printStatusUpdates) {
+                while (!upload.isDone()) {
+                    System.out.print(upload.getProgress().getBytesTransferred()
+                            + "/"
+                            + upload.getProgress().getTotalBytesToTransfer()
+                            + " bytes transferred...\r");
+                    Thread.sleep(statusUpdatePeriodInMs);
+                }
+                System.out.print(upload.getProgress().getBytesTransferred()
+                        + "/" + upload.getProgress().getTotalBytesToTransfer()
+                        + " bytes transferred...\n");
+            } else {
+                upload.waitForCompletion();
+            }
+            System.out.println("Upload succesful");
+        } finally {
+            if (compressed != null) {
+                compressed.discard();
+            }
+        }
+    }
+
+    /**
+     * Deletes the objects under keyPrefix whose keys aren't in the given set.
+     */
+    private void deleteExtraneousObjects(Set<String> keys) {
+        ExtraneousObjectDeleter deleter = new ExtraneousObjectDeleter(
+                getOrCreateClient(AmazonS3Client.class), bucketName, keyPrefix);
+        List<String> extraneous = deleter.findExtraneous(keys);
+        if (extraneous.size() > maxDeletions) {
+            throw new BuildException("Found " + extraneous.size()
+                    + " extraneous objects under \"" + keyPrefix
+                    + "\" in bucket " + bucketName + ", more than maxDeletions ("
+                    + maxDeletions + "). Nothing was deleted.");
+        }
+        if (!extraneous.isEmpty()) {
+            System.out.println("Deleting " + extraneous.size()
+                    + " extraneous objects...");
+            int deleted = deleter.delete(extraneous, deleteThreads);
+            System.out.println("Deleted " + deleted + " extraneous objects");
+        }
+    }
+
+    /**
+     * Compresses a file if it should be compressed and compression saves
+     * enough.
+     *
+     * @return The compressed file, or null to upload the file as it is.
+     */
+    private CompressedUpload compress(String includedFile, File file)
+            throws IOException {
+        if (!shouldCompress(includedFile, file)) {
+            return null;
+        }
+        CompressedUpload compressed = CompressedUpload.compress(file);
+        if (!compressed.savesAtLeast(minCompressionPercent)) {
+            compressed.discard();
+            return null;
+        }
+        return compressed;
+    }
+
+    private boolean shouldCompress(String includedFile, File file) {
+        for (String pattern : compressIncludes) {
+            if (SelectorUtils.matchPath(pattern, includedFile)) {
+                return true;
+            }
+        }
+        if (!compressContentTypes.isEmpty()) {
+            String contentType = Mimetypes.getInstance().getMimetype(file);
+            for (String compressContentType : compressContentTypes) {
+                if (compressContentType.endsWith("/*") ? contentType
+                        .startsWith(compressContentType.substring(0,
+                                compressContentType.length() - 1))
+                        : contentType.equals(compressContentType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Packs the files of all filesets into archives and uploads them.
+     */
+    private void packFiles(Iterator<MappedFile> files) {
+        ArchivePacker packer = new ArchivePacker(
+                getOrCreateClient(AmazonS3Client.class), bucketName,
+                (keyPrefix == null ? "" : keyPrefix) + archiveName,
+                maxArchiveSizeInMb * 1024L * 1024);
+        boolean finished = false;
+        try {
+            while (files.hasNext()) {
+                MappedFile mappedFile = files.next();
+                try {
+                    packer.add(mappedFile.file, mappedFile.name);
+                } catch (FileNotFoundException e) {
+                    if (!continueOnFail) {
+                        throw e;
+                    }
+                    System.err.println("The file " + mappedFile.relativePath
+                            + " could not be read. Continuing...");
                 }
-            } finally {
-                transferManager.shutdownNow(false);
+            }
+            int archiveCount = packer.finish();
+            finished = true;
+            System.out.println("Packed " + packer.getFileCount()
+                    + " files into " + archiveCount + " archives");
+            if (deleteExtraneous) {
+                deleteExtraneousObjects(new HashSet<String>(packer.getKeys()));
+            }
+        } catch (IOException e) {
+            throw new BuildException("Error while packing files: "
+                    + e.getMessage(), e);
+        } catch (AmazonClientException e) {
+            throw new BuildException("Error while uploading archives: "
+                    + e.getMessage(), e);
+        } finally {
+            if (!finished) {
+                packer.abort();
             }
         }
     }
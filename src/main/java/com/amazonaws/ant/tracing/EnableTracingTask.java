@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.tracing;
+
+import java.io.File;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Enables tracing for this project. Tasks, AWS calls and polling loops that
+ * run after this task are recorded, and written to a Chrome trace file when
+ * the build finishes.
+ */
+public class EnableTracingTask extends Task {
+
+    private File file;
+
+    /**
+     * Set the file to write the trace to. Required.
+     *
+     * @param file
+     *            The file to write the trace to.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public void execute() {
+        if (file == null) {
+            throw new BuildException("Missing parameter: file is required");
+        }
+        Tracer.enable(getProject(), file);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed section of work, such as a task, an API call or one iteration of a
+ * polling loop. A span is started by a {@link Tracer} on the thread doing the
+ * work and is recorded when it is ended. Spans of a disabled tracer are a
+ * shared instance that records nothing.
+ */
+public class Span {
+
+    static final Span NOOP = new Span(null, null, null);
+
+    private final Tracer tracer;
+    private final String name;
+    private final String category;
+    private final long startNanos;
+    private final long threadId;
+    private long durationNanos = -1;
+    private Map<String, Object> args;
+
+    Span(Tracer tracer, String name, String category) {
+        this.tracer = tracer;
+        this.name = name;
+        this.category = category;
+        if (tracer == null) {
+            this.startNanos = 0;
+            this.threadId = 0;
+        } else {
+            this.startNanos = System.nanoTime();
+            this.threadId = Thread.currentThread().getId();
+        }
+    }
+
+    /**
+     * Attaches a value to the span, shown with it in the trace viewer.
+     *
+     * @param key
+     *            The name of the value.
+     * @param value
+     *            The value, a number, boolean or string.
+     * @return This object for method chaining.
+     */
+    public Span addArg(String key, Object value) {
+        if (tracer != null) {
+            synchronized (this) {
+                if (args == null) {
+                    args = new LinkedHashMap<String, Object>();
+                }
+                args.put(key, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Ends the span and records it. Ending a span more than once has no
+     * effect.
+     */
+    public void end() {
+        if (tracer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (durationNanos >= 0) {
+                return;
+            }
+            durationNanos = System.nanoTime() - startNanos;
+        }
+        tracer.record(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    synchronized long getDurationNanos() {
+        return durationNanos;
+    }
+
+    long getThreadId() {
+        return threadId;
+    }
+
+    synchronized Map<String, Object> getArgs() {
+        return args;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.tracing;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+import com.amazonaws.ant.JsonUtils;
+
+/**
+ * Records the spans of a build and writes them to a file in the Chrome trace
+ * event format when the build finishes. The file can be opened offline in
+ * chrome://tracing or in Perfetto, showing one row per thread.
+ *
+ * Tracing is off until it is enabled for the project. Until then
+ * {@link #getTracer(Project)} returns a disabled tracer whose spans are a
+ * shared instance that records nothing.
+ */
+public class Tracer implements BuildListener {
+
+    public static final String CATEGORY_TASK = "task";
+    public static final String CATEGORY_API = "api";
+    public static final String CATEGORY_POLL = "poll";
+    public static final String CATEGORY_SLEEP = "sleep";
+
+    private static final String TRACER_REFERENCE = "awsTracer";
+    private static final Tracer DISABLED = new Tracer(null);
+
+    private final long originNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<Span>();
+    private final ConcurrentMap<Long, String> threadNames = new ConcurrentHashMap<Long, String>();
+    private final ConcurrentMap<Task, Span> taskSpans = new ConcurrentHashMap<Task, Span>();
+    private volatile File file;
+
+    private Tracer(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the tracer of the given project.
+     *
+     * @param project
+     *            The project whose tracer to return. May be null.
+     * @return The tracer of the project, or a disabled tracer if tracing was
+     *         not enabled for it.
+     */
+    public static Tracer getTracer(Project project) {
+        if (project == null) {
+            return DISABLED;
+        }
+        Tracer tracer = project.getReference(TRACER_REFERENCE);
+        return tracer == null ? DISABLED : tracer;
+    }
+
+    /**
+     * Enables tracing for the given project. Tasks that start after this are
+     * traced, and the trace is written to the given file when the build
+     * finishes. Enabling tracing again only changes the file.
+     *
+     * @param project
+     *            The project to trace.
+     * @param file
+     *            The file to write the trace to.
+     * @return The tracer of the project.
+     */
+    public static Tracer enable(Project project, File file) {
+        synchronized (project) {
+            Tracer tracer = project.getReference(TRACER_REFERENCE);
+            if (tracer == null) {
+                tracer = new Tracer(file);
+                project.addReference(TRACER_REFERENCE, tracer);
+                project.addBuildListener(tracer);
+            } else {
+                tracer.file = file;
+            }
+            return tracer;
+        }
+    }
+
+    /**
+     * @return Whether this tracer records spans.
+     */
+    public boolean isEnabled() {
+        return this != DISABLED;
+    }
+
+    /**
+     * Starts a span on the current thread. Call {@link Span#end()} when the
+     * work is done, usually in a finally block.
+     *
+     * @param name
+     *            The name of the span.
+     * @param category
+     *            The category of the span, such as {@link #CATEGORY_API}.
+     * @return The started span.
+     */
+    public Span startSpan(String name, String category) {
+        if (this == DISABLED) {
+            return Span.NOOP;
+        }
+        Thread thread = Thread.currentThread();
+        if (!threadNames.containsKey(thread.getId())) {
+            threadNames.putIfAbsent(thread.getId(), thread.getName());
+        }
+        return new Span(this, name, category);
+    }
+
+    /**
+     * Sleeps, recording the sleep as a span so that time spent waiting can be
+     * told apart from time spent working.
+     *
+     * @param millis
+     *            How long to sleep.
+     * @throws InterruptedException
+     *             If the thread is interrupted
+     */
+    public void sleep(long millis) throws InterruptedException {
+        Span span = startSpan(CATEGORY_SLEEP, CATEGORY_SLEEP);
+        try {
+            Thread.sleep(millis);
+        } finally {
+            span.end();
+        }
+    }
+
+    void record(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * @return The spans recorded so far, in the order they ended.
+     */
+    public List<Span> getSpans() {
+        return new ArrayList<Span>(spans);
+    }
+
+    /**
+     * Writes the recorded spans as a Chrome trace event JSON document.
+     *
+     * @param writer
+     *            The writer to write the document to.
+     * @throws IOException
+     *             If the writer fails
+     */
+    public void writeTrace(Writer writer) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":"
+                    + thread.getKey() + ",\"args\":{\"name\":"
+                    + JsonUtils.quote(thread.getValue()) + "}}");
+        }
+        for (Span span : spans) {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("{\"name\":" + JsonUtils.quote(span.getName())
+                    + ",\"cat\":" + JsonUtils.quote(span.getCategory())
+                    + ",\"ph\":\"X\",\"pid\":1,\"tid\":" + span.getThreadId()
+                    + ",\"ts\":" + (span.getStartNanos() - originNanos) / 1000
+                    + ",\"dur\":" + span.getDurationNanos() / 1000);
+            Map<String, Object> args = span.getArgs();
+            if (args != null) {
+                writer.write(",\"args\":{");
+                boolean firstArg = true;
+                for (Map.Entry<String, Object> arg : args.entrySet()) {
+                    if (!firstArg) {
+                        writer.write(",");
+                    }
+                    firstArg = false;
+                    writer.write(JsonUtils.quote(arg.getKey()) + ":"
+                            + jsonValue(arg.getValue()));
+                }
+                writer.write("}");
+            }
+            writer.write("}");
+        }
+        writer.write("\n]}\n");
+    }
+
+    private static String jsonValue(Object value) {
+        if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        return JsonUtils.quote(String.valueOf(value));
+    }
+
+    public void taskStarted(BuildEvent event) {
+        Task task = event.getTask();
+        taskSpans.put(task, startSpan(task.getTaskName() != null ? task
+                .getTaskName() : task.getClass().getSimpleName(),
+                CATEGORY_TASK));
+    }
+
+    public void taskFinished(BuildEvent event) {
+        Span span = taskSpans.remove(event.getTask());
+        if (span != null) {
+            if (event.getException() != null) {
+                span.addArg("error", event.getException().getMessage());
+            }
+            span.end();
+        }
+    }
+
+    public void buildFinished(BuildEvent event) {
+        File traceFile = file;
+        if (traceFile == null) {
+            return;
+        }
+        try {
+            File parent = traceFile.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(traceFile), "UTF-8"));
+            try {
+                writeTrace(writer);
+            } finally {
+                writer.close();
+            }
+            System.out.println("Wrote trace of " + spans.size()
+                    + " spans to " + traceFile);
+        } catch (IOException e) {
+            System.out.println("Could not write trace to " + traceFile + ": "
+                    + e.getMessage());
+        }
+    }
+
+    public void buildStarted(BuildEvent event) {
+    }
+
+    public void targetStarted(BuildEvent event) {
+    }
+
+    public void targetFinished(BuildEvent event) {
+    }
+
+    public void messageLogged(BuildEvent event) {
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.tracing;
+
+import org.apache.tools.ant.Project;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.ant.RequestUtils;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+
+/**
+ * Records a span for every call made by one client, if tracing is enabled for
+ * the project. The span covers the whole call, including retries.
+ */
+public class TracingHandler extends RequestHandler2 {
+
+    private final Project project;
+    private final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+    private volatile String service;
+
+    /**
+     * @param project
+     *            The project whose tracer to record spans in.
+     */
+    public TracingHandler(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Set the service of the client. Should be called before the client is
+     * used.
+     *
+     * @param service
+     *            The service name, such as "s3".
+     */
+    public void setService(String service) {
+        this.service = service;
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        Tracer tracer = Tracer.getTracer(project);
+        if (tracer.isEnabled()) {
+            currentSpan.set(tracer.startSpan(service + "."
+                    + RequestUtils.operationOf(request), Tracer.CATEGORY_API));
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        endSpan(request, null);
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response,
+            Exception e) {
+        endSpan(request, e);
+    }
+
+    private void endSpan(Request<?> request, Exception e) {
+        Span span = currentSpan.get();
+        if (span == null) {
+            return;
+        }
+        currentSpan.remove();
+        TimingInfo timing = request.getAWSRequestMetrics().getTimingInfo();
+        Number attempts = timing.getCounter(Field.RequestCount.name());
+        if (attempts != null) {
+            span.addArg("attempts", attempts);
+        }
+        if (e != null) {
+            span.addArg("error", e.getMessage());
+        }
+        span.end();
+    }
+}
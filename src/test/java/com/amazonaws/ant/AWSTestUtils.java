@@ -18,34 +18,78 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.ant.opsworks.InstanceWaiter;
+import com.amazonaws.ant.stub.LocalAwsStub;
 import com.amazonaws.services.elasticbeanstalk.AWSElasticBeanstalkClient;
 import com.amazonaws.services.elasticbeanstalk.model.DescribeEnvironmentsRequest;
 import com.amazonaws.services.elasticbeanstalk.model.EnvironmentDescription;
 import com.amazonaws.services.elasticbeanstalk.model.EnvironmentHealth;
 import com.amazonaws.services.elasticbeanstalk.model.EnvironmentStatus;
 import com.amazonaws.services.opsworks.AWSOpsWorksClient;
-import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
-import com.amazonaws.services.opsworks.model.Instance;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 public class AWSTestUtils {
 
+    private static final String STUB_KEY = "stub";
+
+    /**
+     * Points a task at a local stub, with placeholder credentials.
+     */
+    public static void useStub(AWSAntTask task, LocalAwsStub stub) {
+        task.setAWSEndpoint(stub.getEndpoint());
+        task.setAWSAccessKeyId(STUB_KEY);
+        task.setAWSSecretKey(STUB_KEY);
+    }
+
+    /**
+     * Creates a client of a local stub, for setting up and checking the state
+     * tasks work on.
+     */
+    public static <T extends AmazonWebServiceClient> T createStubClient(
+            Class<T> clientClass, LocalAwsStub stub) {
+        T client;
+        try {
+            client = clientClass.getConstructor(AWSCredentials.class)
+                    .newInstance(new BasicAWSCredentials(STUB_KEY, STUB_KEY));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        client.setEndpoint(stub.getEndpoint());
+        if (client instanceof AmazonS3Client) {
+            ((AmazonS3Client) client).setS3ClientOptions(new S3ClientOptions()
+                    .withPathStyleAccess(true));
+        }
+        return client;
+    }
+
     public static void emptyAndDeleteBucket(AmazonS3Client client,
             String bucketName) {
         ObjectListing objectListing = client.listObjects(bucketName);
 
         while (true) {
-            for (Iterator<?> iterator = objectListing.getObjectSummaries()
-                    .iterator(); iterator.hasNext();) {
-                S3ObjectSummary objectSummary = (S3ObjectSummary) iterator
-                        .next();
-                client.deleteObject(bucketName, objectSummary.getKey());
+            List<KeyVersion> keys = new ArrayList<KeyVersion>();
+            for (S3ObjectSummary objectSummary : objectListing
+                    .getObjectSummaries()) {
+                keys.add(new KeyVersion(objectSummary.getKey()));
+            }
+            if (!keys.isEmpty()) {
+                // A listing holds at most 1000 keys, as many as one request
+                // can delete
+                client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                        .withKeys(keys).withQuiet(true));
             }
 
             if (objectListing.isTruncated()) {
@@ -119,29 +163,7 @@ public class AWSTestUtils {
             AWSOpsWorksClient client, String instanceId, String state)
             throws InterruptedException {
 
-        System.out.println("Waiting for instance " + instanceId
-                + " to transition to " + state);
-        int count = 0;
-        while (true) {
-            Thread.sleep(1000 * 30);
-            if (count++ > 100) {
-                throw new RuntimeException("Never reached " + state);
-            }
-            Instance instance = client
-                    .describeInstances(
-                            new DescribeInstancesRequest()
-                                    .withInstanceIds(instanceId))
-                    .getInstances().get(0);
-            String status = instance.getStatus();
-            System.out.println(status);
-            if (status.contains("failed")) {
-                throw new RuntimeException("instance failed to launch");
-            }
-            if (!status.equalsIgnoreCase(state)) {
-                continue;
-            }
-            return;
-        }
-
+        new InstanceWaiter(client).waitForInstances(
+                Collections.singleton(instanceId), state);
     }
 }
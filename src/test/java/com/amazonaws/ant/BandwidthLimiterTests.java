@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+public class BandwidthLimiterTests {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void testUnlimitedByDefault() throws IOException {
+        BandwidthLimiter limiter = BandwidthLimiter
+                .getBandwidthLimiter(new Project());
+        long start = System.nanoTime();
+        assertEquals(64 * MB, IOUtils.toByteArray(
+                limiter.throttle(new ByteArrayInputStream(new byte[64 * MB])))
+                .length);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took " + elapsedMs + "ms", elapsedMs < 2000);
+    }
+
+    @Test
+    public void testLimitsRate() throws IOException {
+        BandwidthLimiter limiter = BandwidthLimiter
+                .getBandwidthLimiter(new Project());
+        limiter.setLimit(4 * MB);
+        long start = System.nanoTime();
+        // The first second's worth is a burst, the rest takes half a second
+        IOUtils.toByteArray(limiter.throttle(new ByteArrayInputStream(
+                new byte[6 * MB])));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took only " + elapsedMs + "ms", elapsedMs >= 400);
+    }
+
+    @Test
+    public void testHigherPriorityGoesFirst() throws Exception {
+        final BandwidthLimiter limiter = BandwidthLimiter
+                .getBandwidthLimiter(new Project());
+        limiter.setLimit(MB);
+        limiter.acquire(MB, BandwidthLimiter.DEFAULT_PRIORITY);
+
+        final AtomicLong lowFinished = new AtomicLong();
+        final AtomicLong highFinished = new AtomicLong();
+        Thread low = reader(limiter, 0, lowFinished);
+        low.start();
+        Thread.sleep(50);
+        Thread high = reader(limiter, 10, highFinished);
+        high.start();
+        low.join();
+        high.join();
+        assertTrue(highFinished.get() > 0 && lowFinished.get() > 0);
+        assertTrue("The transfer with the higher priority finished last",
+                highFinished.get() < lowFinished.get());
+    }
+
+    private static Thread reader(final BandwidthLimiter limiter,
+            final int priority, final AtomicLong finished) {
+        return new Thread() {
+            public void run() {
+                limiter.setCurrentPriority(priority);
+                InputStream in = limiter.throttle(new ByteArrayInputStream(
+                        new byte[MB / 2]));
+                try {
+                    IOUtils.toByteArray(in);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                finished.set(System.nanoTime());
+            }
+        };
+    }
+}
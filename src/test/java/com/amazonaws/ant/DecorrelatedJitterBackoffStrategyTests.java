@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DecorrelatedJitterBackoffStrategyTests {
+
+    @Test
+    public void testDelaysStayBetweenBaseAndThreeTimesPrevious() {
+        DecorrelatedJitterBackoffStrategy strategy = new DecorrelatedJitterBackoffStrategy(
+                100, 1000 * 1000);
+        for (int run = 0; run < 100; run++) {
+            long previous = 100;
+            for (int retries = 0; retries < 5; retries++) {
+                long delay = strategy.delayBeforeNextRetry(null, null, retries);
+                assertTrue(delay >= 100);
+                assertTrue(delay <= previous * 3);
+                previous = delay;
+            }
+        }
+    }
+
+    @Test
+    public void testDelaysAreCapped() {
+        DecorrelatedJitterBackoffStrategy strategy = new DecorrelatedJitterBackoffStrategy(
+                100, 150);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(strategy.nextDelay(1000 * 1000) <= 150);
+        }
+        assertEquals(150, new DecorrelatedJitterBackoffStrategy(200, 150)
+                .nextDelay(200));
+    }
+
+    @Test
+    public void testFirstRetryStartsFromBaseDelay() {
+        DecorrelatedJitterBackoffStrategy strategy = new DecorrelatedJitterBackoffStrategy(
+                100, 1000 * 1000);
+        for (int retries = 0; retries < 20; retries++) {
+            strategy.delayBeforeNextRetry(null, null, retries);
+        }
+        // A new request must not inherit the long delays of the last one
+        assertTrue(strategy.delayBeforeNextRetry(null, null, 0) <= 300);
+    }
+}
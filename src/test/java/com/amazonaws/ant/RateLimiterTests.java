@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+public class RateLimiterTests {
+
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void testUnconfiguredServicesAreNotLimited() {
+        RateLimiter limiter = RateLimiter.getRateLimiter(new Project());
+        limiter.setLimit("opsworks", RateLimiter.ANY, 5, 5);
+        assertEquals(0, limiter.getCurrentRate("s3", "us-east-1"), DELTA);
+        assertEquals(5, limiter.getCurrentRate("opsworks", "us-east-1"), DELTA);
+    }
+
+    @Test
+    public void testMostSpecificLimitWins() {
+        RateLimiter limiter = RateLimiter.getRateLimiter(new Project());
+        limiter.setLimit(RateLimiter.ANY, RateLimiter.ANY, 50, 50);
+        limiter.setLimit("s3", RateLimiter.ANY, 20, 20);
+        limiter.setLimit("s3", "eu-west-1", 10, 10);
+        assertEquals(10, limiter.getCurrentRate("s3", "eu-west-1"), DELTA);
+        assertEquals(20, limiter.getCurrentRate("s3", "us-east-1"), DELTA);
+        assertEquals(50, limiter.getCurrentRate("opsworks", null), DELTA);
+    }
+
+    @Test
+    public void testRateBacksOffAndRecovers() {
+        RateLimiter limiter = RateLimiter.getRateLimiter(new Project());
+        limiter.setLimit("s3", RateLimiter.ANY, 100, 10);
+        limiter.onThrottle("s3", "us-east-1");
+        limiter.onThrottle("s3", "us-east-1");
+        assertEquals(25, limiter.getCurrentRate("s3", "us-east-1"), DELTA);
+        assertEquals(100, limiter.getCurrentRate("s3", "eu-west-1"), DELTA);
+
+        limiter.onSuccess("s3", "us-east-1");
+        assertEquals(26, limiter.getCurrentRate("s3", "us-east-1"), DELTA);
+        for (int i = 0; i < 200; i++) {
+            limiter.onSuccess("s3", "us-east-1");
+        }
+        assertEquals(100, limiter.getCurrentRate("s3", "us-east-1"), DELTA);
+    }
+
+    @Test
+    public void testBucketLimitsRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            bucket.acquire();
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Took only " + elapsedMs + "ms", elapsedMs >= 90);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.cloudformation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.cloudformation.CreateStackTask.StackParameter;
+import com.amazonaws.ant.cloudformation.CreateStackTask.StackTag;
+import com.amazonaws.ant.cloudformation.DescribeStackTask.StackItem;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * Runs the CloudFormation tasks against a {@link LocalAwsStub}, so they can be
+ * tested without an AWS account.
+ */
+public class OfflineCloudFormationTests {
+
+    private static final String STACK_NAME = "offline-stack";
+    private static final String TEMPLATE = "{\"Resources\":{}}";
+
+    private LocalAwsStub stub;
+    private Project project;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void testCreateUpdateAndDescribeStack() {
+        CreateStackTask create = new CreateStackTask();
+        configure(create);
+        create.setStackName(STACK_NAME);
+        create.setTemplateBody(TEMPLATE);
+        create.setTimeoutInMinutes(10);
+        StackParameter parameter = new StackParameter();
+        parameter.setKey("InstanceType");
+        parameter.setValue("t1.micro");
+        create.addConfiguredStackParameter(parameter);
+        StackTag tag = new StackTag();
+        tag.setKey("team");
+        tag.setValue("build");
+        create.addConfiguredStackTag(tag);
+        create.execute();
+
+        UpdateStackTask update = new UpdateStackTask();
+        configure(update);
+        update.setStackName(STACK_NAME);
+        update.setUsePreviousTemplate(true);
+        UpdateStackTask.StackParameter updatedParameter = new UpdateStackTask.StackParameter();
+        updatedParameter.setKey("InstanceType");
+        updatedParameter.setValue("m1.small");
+        update.addConfiguredStackParameter(updatedParameter);
+        update.execute();
+
+        DescribeStackTask describe = new DescribeStackTask();
+        configure(describe);
+        describe.setStackName(STACK_NAME);
+        StackItem item = new StackItem();
+        item.setName("InstanceType");
+        item.setProperty("instance.type");
+        describe.addConfiguredStackParameter(item);
+        describe.execute();
+
+        assertEquals("m1.small", project.getProperty("instance.type"));
+        Stack stack = AWSTestUtils
+                .createStubClient(AmazonCloudFormationClient.class, stub)
+                .describeStacks(
+                        new DescribeStacksRequest().withStackName(STACK_NAME))
+                .getStacks().get(0);
+        assertEquals("UPDATE_COMPLETE", stack.getStackStatus());
+        assertEquals("build", stack.getTags().get(0).getValue());
+    }
+
+    @Test
+    public void testThrottledCallIsRetried() {
+        stub.injectErrors("CreateStack", 400, "Throttling", 2);
+
+        CreateStackTask create = new CreateStackTask();
+        configure(create);
+        create.setStackName(STACK_NAME);
+        create.setTemplateBody(TEMPLATE);
+        create.setTimeoutInMinutes(10);
+        create.execute();
+
+        assertEquals(3, stub.getCallCount("CreateStack"));
+    }
+
+    @Test
+    public void testErrorOfMissingStackFailsTask() {
+        SetStackPolicyTask task = new SetStackPolicyTask();
+        configure(task);
+        task.setStackName("missing-stack");
+        task.setStackPolicyBody("{}");
+        try {
+            task.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("does not exist"));
+        }
+    }
+
+    private void configure(AWSAntTask task) {
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.elasticbeanstalk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.elasticbeanstalk.AWSElasticBeanstalkClient;
+import com.amazonaws.services.elasticbeanstalk.model.ApplicationVersionDescription;
+import com.amazonaws.services.elasticbeanstalk.model.DescribeApplicationVersionsRequest;
+import com.amazonaws.services.elasticbeanstalk.model.DescribeEnvironmentsRequest;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+
+/**
+ * Runs the Elastic Beanstalk tasks against a {@link LocalAwsStub}, so they
+ * can be tested without an AWS account.
+ */
+public class OfflineBeanstalkTests {
+
+    private static final String APPLICATION_NAME = "offline-app";
+    private static final String ENVIRONMENT_NAME = "offline-env";
+    private static final String BUCKET_NAME = "offline-bundles";
+
+    private LocalAwsStub stub;
+    private Project project;
+    private File bundle;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+        AWSTestUtils.createStubClient(AmazonS3Client.class, stub)
+                .createBucket(BUCKET_NAME);
+        bundle = AWSTestUtils.createRandomFile("bundle", ".zip");
+
+        CreateBeanstalkApplicationTask createApplication = new CreateBeanstalkApplicationTask();
+        configure(createApplication);
+        createApplication.setApplicationName(APPLICATION_NAME);
+        createApplication.setApplicationDescription("Offline test");
+        createApplication.execute();
+
+        CreateBeanstalkEnvironmentTask createEnvironment = new CreateBeanstalkEnvironmentTask();
+        configure(createEnvironment);
+        createEnvironment.setApplicationName(APPLICATION_NAME);
+        createEnvironment.setEnvironmentName(ENVIRONMENT_NAME);
+        createEnvironment.setEnvironmentDescription("Offline test");
+        createEnvironment.setSolutionStackName("64bit Amazon Linux");
+        createEnvironment.execute();
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+        bundle.delete();
+    }
+
+    @Test
+    public void testDeployUploadsBundleAndUpdatesEnvironment() {
+        deploy("v1");
+
+        AWSElasticBeanstalkClient client = AWSTestUtils.createStubClient(
+                AWSElasticBeanstalkClient.class, stub);
+        assertEquals("v1", client
+                .describeEnvironments(
+                        new DescribeEnvironmentsRequest()
+                                .withEnvironmentNames(ENVIRONMENT_NAME))
+                .getEnvironments().get(0).getVersionLabel());
+        assertEquals(bundle.length(),
+                AWSTestUtils.createStubClient(AmazonS3Client.class, stub)
+                        .getObjectMetadata(BUCKET_NAME, "v1.zip")
+                        .getContentLength());
+    }
+
+    @Test
+    public void testPruneKeepsDeployedVersion() {
+        for (int i = 1; i <= 5; i++) {
+            deploy("v" + i);
+        }
+        PruneApplicationVersionsTask prune = new PruneApplicationVersionsTask();
+        configure(prune);
+        prune.setApplicationName(APPLICATION_NAME);
+        prune.setVersionsToKeep(1);
+        prune.setDeleteSourceBundles(true);
+        prune.execute();
+
+        // v5 is deployed, v4 is the one version kept
+        assertEquals(new HashSet<String>(Arrays.asList("v4", "v5")),
+                versionLabels());
+        assertFalse(bundleExists("v1.zip"));
+        assertTrue(bundleExists("v4.zip"));
+    }
+
+    @Test
+    public void testPruneKeepsSharedSourceBundle() {
+        // Both versions are uploaded to the same key
+        deploy("v1", "app.zip");
+        deploy("v2", "app.zip");
+        deploy("v3", "v3.zip");
+        PruneApplicationVersionsTask prune = new PruneApplicationVersionsTask();
+        configure(prune);
+        prune.setApplicationName(APPLICATION_NAME);
+        prune.setVersionsToKeep(1);
+        prune.setDeleteSourceBundles(true);
+        prune.execute();
+
+        assertEquals(new HashSet<String>(Arrays.asList("v2", "v3")),
+                versionLabels());
+        // v1 is deleted, but v2 is kept and still uses its bundle
+        assertTrue(bundleExists("app.zip"));
+        assertTrue(bundleExists("v3.zip"));
+    }
+
+    private void deploy(String versionLabel) {
+        deploy(versionLabel, versionLabel + ".zip");
+    }
+
+    private void deploy(String versionLabel, String key) {
+        DeployAppToBeanstalkTask deploy = new DeployAppToBeanstalkTask();
+        configure(deploy);
+        deploy.setApplicationName(APPLICATION_NAME);
+        deploy.setEnvironmentName(ENVIRONMENT_NAME);
+        deploy.setBucketName(BUCKET_NAME);
+        deploy.setFile(bundle);
+        deploy.setKey(key);
+        deploy.setVersionLabel(versionLabel);
+        deploy.setVersionDescription("Version " + versionLabel);
+        deploy.execute();
+    }
+
+    private Set<String> versionLabels() {
+        List<ApplicationVersionDescription> versions = AWSTestUtils
+                .createStubClient(AWSElasticBeanstalkClient.class, stub)
+                .describeApplicationVersions(
+                        new DescribeApplicationVersionsRequest()
+                                .withApplicationName(APPLICATION_NAME))
+                .getApplicationVersions();
+        Set<String> labels = new HashSet<String>();
+        for (ApplicationVersionDescription version : versions) {
+            labels.add(version.getVersionLabel());
+        }
+        return labels;
+    }
+
+    private boolean bundleExists(String key) {
+        try {
+            AWSTestUtils.createStubClient(AmazonS3Client.class, stub)
+                    .getObjectMetadata(BUCKET_NAME, key);
+            return true;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private void configure(AWSAntTask task) {
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.Test;
+
+public class MetricsRegistryTests {
+
+    @Test
+    public void testCallsAreAttributedToCurrentTask() throws Exception {
+        final MetricsRegistry registry = MetricsRegistry
+                .getRegistry(new Project());
+        Task outer = task("outer");
+        Task inner = task("inner");
+
+        registry.enterTask(outer);
+        registry.getMetrics("s3", "PutObject").record(10, false, 0, 0, 5, 0);
+        registry.enterTask(inner);
+        Thread worker = new Thread() {
+            public void run() {
+                registry.getMetrics("s3", "PutObject").record(20, false, 0,
+                        0, 5, 0);
+            }
+        };
+        worker.start();
+        worker.join();
+        registry.exitTask(inner);
+        registry.getMetrics("s3", "PutObject").record(30, false, 0, 0, 5, 0);
+        registry.exitTask(outer);
+        registry.getMetrics("s3", "GetObject").record(30, true, 1, 1, 0, 9);
+
+        List<OperationMetrics> all = registry.getAllMetrics();
+        assertEquals(3, all.size());
+        assertEquals("(none)", all.get(0).getTask());
+        assertEquals("inner", all.get(1).getTask());
+        assertEquals(1, all.get(1).getCalls());
+        assertEquals("outer", all.get(2).getTask());
+        assertEquals(2, all.get(2).getCalls());
+        assertEquals(10, all.get(2).getBytesSent());
+    }
+
+    @Test
+    public void testPercentilesUseBucketBounds() {
+        OperationMetrics metrics = new OperationMetrics("t", "s3", "PutObject");
+        for (int i = 0; i < 98; i++) {
+            metrics.record(7, false, 0, 0, 0, 0);
+        }
+        metrics.record(400, false, 0, 0, 0, 0);
+        metrics.record(70000, false, 0, 0, 0, 0);
+        assertEquals(10, metrics.getLatencyPercentileInMs(50));
+        assertEquals(500, metrics.getLatencyPercentileInMs(99));
+        assertEquals(70000, metrics.getLatencyPercentileInMs(100));
+        assertEquals(70000, metrics.getLatencyMaxInMs());
+    }
+
+    @Test
+    public void testPrometheusHistogramIsCumulative() {
+        MetricsRegistry registry = MetricsRegistry.getRegistry(new Project());
+        registry.enterTask(task("deploy \"app\""));
+        registry.getMetrics("opsworks", "CreateDeployment").record(3, false,
+                2, 1, 0, 0);
+        registry.getMetrics("opsworks", "CreateDeployment").record(700,
+                false, 0, 0, 0, 0);
+        String text = MetricsFormatter.formatPrometheus(registry
+                .getAllMetrics());
+        String labels = "task=\"deploy \\\"app\\\"\",service=\"opsworks\",operation=\"CreateDeployment\"";
+        assertTrue(text.contains("aws_ant_api_calls_total{" + labels + "} 2\n"));
+        assertTrue(text.contains("aws_ant_api_retries_total{" + labels + "} 2\n"));
+        assertTrue(text.contains("aws_ant_api_latency_ms_bucket{" + labels
+                + ",le=\"5\"} 1\n"));
+        assertTrue(text.contains("aws_ant_api_latency_ms_bucket{" + labels
+                + ",le=\"1000\"} 2\n"));
+        assertTrue(text.contains("aws_ant_api_latency_ms_bucket{" + labels
+                + ",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("aws_ant_api_latency_ms_sum{" + labels
+                + "} 703\n"));
+
+        String json = MetricsFormatter.formatJson(registry.getAllMetrics());
+        assertTrue(json.contains("\"task\":\"deploy \\\"app\\\"\""));
+        assertTrue(json.contains("\"throttles\":1"));
+    }
+
+    private static Task task(String name) {
+        Task task = new Task() {
+        };
+        task.setTaskName(name);
+        return task;
+    }
+}
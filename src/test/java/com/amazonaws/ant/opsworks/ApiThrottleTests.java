@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.RateLimiter;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateDeploymentRequest;
+import com.amazonaws.services.opsworks.model.CreateStackRequest;
+import com.amazonaws.services.opsworks.model.DeploymentCommand;
+
+public class ApiThrottleTests {
+
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void testOpsWorksIsNotLimitedByDefault() {
+        RateLimiter limiter = RateLimiter.getRateLimiter(new Project());
+        assertEquals(0, limiter.getCurrentRate("opsworks", "us-east-1"),
+                DELTA);
+    }
+
+    @Test
+    public void testConfigureThrottlingDefaults() {
+        Project project = new Project();
+        ConfigureThrottlingTask task = new ConfigureThrottlingTask();
+        task.setProject(project);
+        task.execute();
+        assertEquals(ConfigureThrottlingTask.DEFAULT_REQUESTS_PER_SECOND,
+                RateLimiter.getRateLimiter(project).getCurrentRate(
+                        "opsworks", "us-east-1"), DELTA);
+        assertEquals(0, RateLimiter.getRateLimiter(project).getCurrentRate(
+                "s3", "us-east-1"), DELTA);
+    }
+
+    @Test
+    public void testConfigureThrottlingSetsOpsWorksLimit() {
+        Project project = new Project();
+        ConfigureThrottlingTask task = new ConfigureThrottlingTask();
+        task.setProject(project);
+        task.setRequestsPerSecond(2);
+        task.setBurst(4);
+        task.execute();
+        assertEquals(2, RateLimiter.getRateLimiter(project).getCurrentRate(
+                "opsworks", null), DELTA);
+    }
+
+    @Test
+    public void testDeploymentsHoldSlotsUntilFinished() throws Exception {
+        LocalAwsStub stub = new LocalAwsStub();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            stub.setDeploymentRunningPolls(1000);
+            AWSOpsWorksClient client = AWSTestUtils.createStubClient(
+                    AWSOpsWorksClient.class, stub);
+            String stackId = client.createStack(
+                    new CreateStackRequest().withName("throttled"))
+                    .getStackId();
+            ApiThrottle throttle = ApiThrottle.getThrottle(new Project());
+            throttle.setMaxInFlightDeployments(1);
+            throttle.setPollIntervalInMs(10);
+
+            String first = submit(throttle, client, stackId);
+            Future<String> second = executor.submit(submitter(throttle,
+                    client, stackId));
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("Expected the second deployment to wait for the first");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertEquals(1, stub.getCallCount("CreateDeployment"));
+
+            throttle.deploymentFinished(first);
+            assertTrue(second.get(5, TimeUnit.SECONDS) != null);
+            assertEquals(1, throttle.getInFlightCount());
+        } finally {
+            executor.shutdownNow();
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testBlockedSubmissionReleasesFinishedDeployments()
+            throws Exception {
+        LocalAwsStub stub = new LocalAwsStub();
+        try {
+            stub.setDeploymentRunningPolls(2);
+            AWSOpsWorksClient client = AWSTestUtils.createStubClient(
+                    AWSOpsWorksClient.class, stub);
+            String stackId = client.createStack(
+                    new CreateStackRequest().withName("throttled"))
+                    .getStackId();
+            ApiThrottle throttle = ApiThrottle.getThrottle(new Project());
+            throttle.setMaxInFlightDeployments(1);
+            throttle.setPollIntervalInMs(10);
+
+            // Nobody waits for the first deployment, so the second submission
+            // has to poll until it has finished
+            submit(throttle, client, stackId);
+            submit(throttle, client, stackId);
+            assertEquals(2, stub.getCallCount("CreateDeployment"));
+            assertEquals(3, stub.getCallCount("DescribeDeployments"));
+            assertEquals(1, throttle.getInFlightCount());
+        } finally {
+            stub.stop();
+        }
+    }
+
+    @Test
+    public void testFailedSubmissionGivesSlotBack() {
+        ApiThrottle throttle = ApiThrottle.getThrottle(new Project());
+        throttle.setMaxInFlightDeployments(1);
+        try {
+            throttle.submitDeployment(null, new Callable<String>() {
+                public String call() {
+                    throw new AmazonServiceException("rejected");
+                }
+            });
+            fail("Expected the submission to fail");
+        } catch (AmazonServiceException e) {
+            // expected
+        }
+        assertEquals("d-1", throttle.submitDeployment(null,
+                new Callable<String>() {
+                    public String call() {
+                        return "d-1";
+                    }
+                }));
+    }
+
+    private static String submit(ApiThrottle throttle,
+            AWSOpsWorksClient client, String stackId) throws Exception {
+        return submitter(throttle, client, stackId).call();
+    }
+
+    private static Callable<String> submitter(final ApiThrottle throttle,
+            final AWSOpsWorksClient client, final String stackId) {
+        return new Callable<String>() {
+            public String call() {
+                return throttle.submitDeployment(client,
+                        new Callable<String>() {
+                            public String call() {
+                                return client.createDeployment(
+                                        new CreateDeploymentRequest()
+                                                .withStackId(stackId)
+                                                .withAppId("app")
+                                                .withCommand(
+                                                        new DeploymentCommand()
+                                                                .withName("deploy")))
+                                        .getDeploymentId();
+                            }
+                        });
+            }
+        };
+    }
+}
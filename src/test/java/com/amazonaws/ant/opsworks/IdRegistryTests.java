@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.Test;
+
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+
+public class IdRegistryTests {
+
+    @Test
+    public void testRegistryIsSharedWithinProject() {
+        Project project = new Project();
+        assertSame(IdRegistry.getRegistry(project),
+                IdRegistry.getRegistry(project));
+    }
+
+    @Test
+    public void testPropertyViewIsJoinedOnRead() {
+        Project project = new Project();
+        IdRegistry registry = IdRegistry.getRegistry(project);
+        assertNull(project.getProperty(Constants.INSTANCE_IDS_PROPERTY));
+
+        registry.add(IdType.INSTANCE, "i1");
+        registry.addAll(IdType.INSTANCE, Arrays.asList("i2", "i3"));
+        registry.add(IdType.LAYER, "l1");
+
+        assertEquals("i1,i2,i3",
+                project.getProperty(Constants.INSTANCE_IDS_PROPERTY));
+        assertEquals("l1", project.getProperty(Constants.LAYER_IDS_PROPERTY));
+        assertEquals("l1", project.replaceProperties("${layerIds}"));
+        assertNull(project.getProperty(Constants.DEPLOYMENT_IDS_PROPERTY));
+    }
+
+    @Test
+    public void testIdsAreStoredForSubprojects() {
+        Project project = new Project();
+        AddInstanceIdsTask task = new AddInstanceIdsTask();
+        task.setProject(project);
+        task.perform();
+
+        // antcall and ant copy the stored properties into the subproject
+        assertEquals("i1,i2",
+                project.getProperties().get(Constants.INSTANCE_IDS_PROPERTY));
+        Project subproject = project.createSubProject();
+        subproject.setProperty(Constants.INSTANCE_IDS_PROPERTY, (String) project
+                .getProperties().get(Constants.INSTANCE_IDS_PROPERTY));
+        assertEquals(Arrays.asList("i1", "i2"), IdRegistry.getRegistry(
+                subproject).get(IdType.INSTANCE));
+    }
+
+    @Test
+    public void testExistingPropertyIsImported() {
+        Project project = new Project();
+        project.setProperty(Constants.LAYER_IDS_PROPERTY, "l1,l2");
+        IdRegistry registry = IdRegistry.getRegistry(project);
+        registry.add(IdType.LAYER, "l3");
+        assertEquals(Arrays.asList("l1", "l2", "l3"),
+                registry.get(IdType.LAYER));
+        assertEquals("l1,l2,l3",
+                project.getProperty(Constants.LAYER_IDS_PROPERTY));
+    }
+
+    /**
+     * Records two instance IDs, the way a task that creates instances does.
+     */
+    public static class AddInstanceIdsTask extends Task {
+        @Override
+        public void execute() {
+            IdRegistry registry = IdRegistry.getRegistry(getProject());
+            registry.add(IdType.INSTANCE, "i1");
+            registry.add(IdType.INSTANCE, "i2");
+            // Stored once, when the task has finished
+            assertNull(getProject().getProperties().get(
+                    Constants.INSTANCE_IDS_PROPERTY));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.opsworks.DeployAppTask.Command;
+import com.amazonaws.ant.opsworks.DeployAppTask.InstanceId;
+import com.amazonaws.ant.opsworks.IncrementalDeploymentTask.CanaryGroup;
+import com.amazonaws.ant.opsworks.IncrementalDeploymentTask.DeploymentGroup;
+import com.amazonaws.ant.stub.LocalAwsStub;
+
+/**
+ * Runs incremental deployments with a canary group against a
+ * {@link LocalAwsStub}. Each test waits for the first poll of the canary's
+ * deployments and for a one second soak period.
+ */
+public class IncrementalDeploymentTaskTests {
+
+    private LocalAwsStub stub;
+    private Project project;
+    private String instanceId;
+    private String healthyAppId;
+    private String failingAppId;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+
+        CreateStackTask createStack = new CreateStackTask();
+        configure(createStack);
+        createStack.setName("canary-stack");
+        createStack.setRegion("us-east-1");
+        createStack.setServiceRoleArn("arn:aws:iam::123456789012:role/service");
+        createStack.setDefaultInstanceProfileArn("arn:aws:iam::123456789012:instance-profile/default");
+        createStack.execute();
+
+        CreateLayerTask createLayer = new CreateLayerTask();
+        configure(createLayer);
+        createLayer.setType("custom");
+        createLayer.setName("web");
+        createLayer.setShortname("web");
+        createLayer.execute();
+
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        createInstance.execute();
+        instanceId = createInstance.getInstanceIds().get(0);
+
+        healthyAppId = createApp("healthy");
+        failingAppId = createApp("failing");
+        stub.failDeploymentsOf(failingAppId);
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void testFailingCanaryStopsDeployment() {
+        CanaryGroup canary = newCanary(0);
+        canary.addTask(newDeployment(failingAppId));
+        assertCanaryFails(canary, 1, "failed");
+    }
+
+    @Test
+    public void testTooManyFailedCanaryDeploymentsStopDeployment() {
+        CanaryGroup canary = newCanary(40);
+        canary.addTask(newDeployment(healthyAppId));
+        canary.addTask(newDeployment(failingAppId));
+        assertCanaryFails(canary, 2, "1 of 2 deployments failed");
+    }
+
+    @Test
+    public void testFailuresJustAboveThresholdStopDeployment() {
+        // 1 of 3 is 33.3%, which must not be rounded down to 33%
+        CanaryGroup canary = newCanary(33);
+        canary.addTask(newDeployment(healthyAppId));
+        canary.addTask(newDeployment(healthyAppId));
+        canary.addTask(newDeployment(failingAppId));
+        assertCanaryFails(canary, 3, "1 of 3 deployments failed");
+    }
+
+    @Test
+    public void testToleratedCanaryFailuresContinueDeployment() {
+        CanaryGroup canary = newCanary(50);
+        canary.addTask(newDeployment(healthyAppId));
+        canary.addTask(newDeployment(failingAppId));
+        IncrementalDeploymentTask task = newTask(canary);
+        task.execute();
+        // Both canary deployments and the remaining group's deployment
+        assertEquals(3, stub.getCallCount("CreateDeployment"));
+    }
+
+    @Test
+    public void testLostConnectionDuringSoakStopsDeployment() {
+        CanaryGroup canary = newCanary(0);
+        canary.addTask(newDeployment(healthyAppId));
+        // Deployments in the stub finish at once, so the instance is already
+        // disconnected when the soak period starts
+        stub.setInstanceStatus(instanceId, "connection_lost");
+        assertCanaryFails(canary, 1, "entered status connection_lost");
+    }
+
+    private void assertCanaryFails(CanaryGroup canary,
+            int canaryDeployments, String message) {
+        IncrementalDeploymentTask task = newTask(canary);
+        try {
+            task.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+            assertTrue(e.getMessage().contains(
+                    "The remaining 1 deployment groups were not deployed."));
+        }
+        // Only the canary was deployed
+        assertEquals(canaryDeployments, stub.getCallCount("CreateDeployment"));
+    }
+
+    private IncrementalDeploymentTask newTask(CanaryGroup canary) {
+        IncrementalDeploymentTask task = new IncrementalDeploymentTask();
+        configure(task);
+        task.addConfiguredCanaryGroup(canary);
+        DeploymentGroup remaining = new DeploymentGroup();
+        remaining.addTask(newDeployment(healthyAppId));
+        task.addConfiguredDeploymentGroup(remaining);
+        return task;
+    }
+
+    private CanaryGroup newCanary(int maxFailurePercentage) {
+        CanaryGroup canary = new CanaryGroup();
+        canary.setSoakTimeInSeconds(1);
+        canary.setPollPeriodInSeconds(1);
+        canary.setMaxFailurePercentage(maxFailurePercentage);
+        return canary;
+    }
+
+    private DeployAppTask newDeployment(String appId) {
+        DeployAppTask deploy = new DeployAppTask();
+        configure(deploy);
+        deploy.setAppId(appId);
+        Command command = new Command();
+        command.setName("deploy");
+        deploy.addConfiguredCommand(command);
+        InstanceId id = new InstanceId();
+        id.setValue(instanceId);
+        deploy.addConfiguredInstanceId(id);
+        return deploy;
+    }
+
+    private String createApp(String name) {
+        CreateAppTask createApp = new CreateAppTask();
+        configure(createApp);
+        createApp.setName(name);
+        createApp.setType("java");
+        createApp.execute();
+        return createApp.getAppId();
+    }
+
+    private void configure(AWSAntTask task) {
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateInstanceRequest;
+import com.amazonaws.services.opsworks.model.CreateStackRequest;
+import com.amazonaws.services.opsworks.model.DeleteInstanceRequest;
+import com.amazonaws.services.opsworks.model.StartInstanceRequest;
+
+/**
+ * Waits for instances of a {@link LocalAwsStub} that stay booting for a
+ * number of polls after they are started.
+ */
+public class InstanceWaiterTests {
+
+    private LocalAwsStub stub;
+    private AWSOpsWorksClient client;
+    private List<String> instanceIds = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        client = AWSTestUtils.createStubClient(AWSOpsWorksClient.class, stub);
+        String stackId = client.createStack(
+                new CreateStackRequest().withName("waited")).getStackId();
+        for (int i = 0; i < 2; i++) {
+            instanceIds.add(client.createInstance(
+                    new CreateInstanceRequest().withStackId(stackId)
+                            .withInstanceType("t1.micro")).getInstanceId());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void testBootingInstancesAreWaitedFor() throws InterruptedException {
+        stub.setInstanceBootingPolls(2);
+        start();
+        newWaiter(10, 10).waitForInstances(instanceIds, "online");
+        // Booting for two polls, online on the third
+        assertEquals(3, stub.getCallCount("DescribeInstances"));
+    }
+
+    @Test
+    public void testDelayGrowsWhileNothingChanges() {
+        // The instances are never started, so their status never changes
+        try {
+            newWaiter(20, 80).withTimeoutInMs(400).waitForInstances(
+                    instanceIds, "online");
+            fail("Expected a BuildException");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().contains("never reached online"));
+        }
+        // 20, 40, 80, 80 and 80 ms fit before the timeout; polling every
+        // 20 ms would take about 20 polls
+        int polls = stub.getCallCount("DescribeInstances");
+        assertTrue("Polled " + polls + " times", polls <= 6);
+    }
+
+    @Test
+    public void testFailedInstanceFailsAtOnce() throws InterruptedException {
+        stub.setInstanceBootingPolls(1000);
+        start();
+        stub.setInstanceStatus(instanceIds.get(1), "start_failed");
+        try {
+            newWaiter(10, 10).waitForInstances(instanceIds, "online");
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertEquals("Instance " + instanceIds.get(1)
+                    + " failed with status start_failed", e.getMessage());
+        }
+        assertEquals(1, stub.getCallCount("DescribeInstances"));
+    }
+
+    @Test
+    public void testDeletedInstanceFailsAtOnce() throws InterruptedException {
+        stub.setInstanceBootingPolls(1000);
+        start();
+        client.deleteInstance(new DeleteInstanceRequest()
+                .withInstanceId(instanceIds.get(0)));
+        try {
+            newWaiter(10, 10).waitForInstances(instanceIds, "online");
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().contains("could not all be found"));
+        }
+        assertEquals(1, stub.getCallCount("DescribeInstances"));
+    }
+
+    @Test
+    public void testWaitForInstancesTaskFailsOnFailedInstance() {
+        stub.setInstanceStatus(instanceIds.get(0), "setup_failed");
+        Project project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+        WaitForInstancesTask task = new WaitForInstancesTask();
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+        task.setInstanceIds(instanceIds.get(0) + "," + instanceIds.get(1));
+        try {
+            task.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("setup_failed"));
+        }
+    }
+
+    private InstanceWaiter newWaiter(long minDelayInMs, long maxDelayInMs) {
+        return new InstanceWaiter(client).withMinDelayInMs(minDelayInMs)
+                .withMaxDelayInMs(maxDelayInMs).withTimeoutInMs(1000 * 10);
+    }
+
+    private void start() {
+        for (String instanceId : instanceIds) {
+            client.startInstance(new StartInstanceRequest()
+                    .withInstanceId(instanceId));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateDeploymentRequest;
+import com.amazonaws.services.opsworks.model.CreateStackRequest;
+import com.amazonaws.services.opsworks.model.DeploymentCommand;
+
+/**
+ * Tests the counting and formatting of deployment statuses, and runs the poll
+ * loop against a {@link LocalAwsStub} whose deployments stay running for a
+ * number of polls before they succeed or fail.
+ */
+public class MonitorDeploymentsTaskTests {
+
+    private LocalAwsStub stub;
+    private Project project;
+    private AWSOpsWorksClient client;
+    private String stackId;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+        client = AWSTestUtils.createStubClient(AWSOpsWorksClient.class, stub);
+        stackId = client.createStack(
+                new CreateStackRequest().withName("monitored")).getStackId();
+        stub.failDeploymentsOf("failing-app");
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void testRunningDeploymentsArePolledUntilTheySucceed() {
+        stub.setDeploymentRunningPolls(2);
+        MonitorDeploymentsTask task = newTask();
+        task.setDeploymentIds(deploy("app") + "," + deploy("app"));
+        task.execute();
+        // Described once to group them by stack, then polled twice
+        assertEquals(3, stub.getCallCount("DescribeDeployments"));
+    }
+
+    @Test
+    public void testFailedDeploymentFailsTheBuildOnceAllFinish() {
+        stub.setDeploymentRunningPolls(1);
+        String failed = deploy("failing-app");
+        MonitorDeploymentsTask task = newTask();
+        task.setDeploymentIds(deploy("app") + "," + failed);
+        try {
+            task.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertEquals("1 of 2 deployments failed: [" + failed + "]",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testFailedDeploymentIsOnlyReportedWithoutFailOnError() {
+        MonitorDeploymentsTask task = newTask();
+        task.setDeploymentIds(deploy("failing-app"));
+        task.setFailOnError(false);
+        task.execute();
+    }
+
+    @Test
+    public void testDeploymentsThatNeverFinishTimeOut() {
+        stub.setDeploymentRunningPolls(1000);
+        MonitorDeploymentsTask task = newTask();
+        task.setDeploymentIds(deploy("app"));
+        task.setTimingInMs(10, 100);
+        try {
+            task.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().contains("never failed or succeeded"));
+        }
+    }
+
+    @Test
+    public void testDeploymentsOfTheBuildAreMonitoredByDefault() {
+        IdRegistry.getRegistry(project).add(IdType.DEPLOYMENT, deploy("app"));
+        IdRegistry.getRegistry(project).add(IdType.DEPLOYMENT, deploy("app"));
+        newTask().execute();
+        assertEquals(1, stub.getCallCount("DescribeDeployments"));
+    }
+
+    @Test
+    public void testDeploymentsAreCountedPerStack() {
+        Map<String, String> statuses = new LinkedHashMap<String, String>();
+        statuses.put("d1", "s1/running");
+        statuses.put("d2", "s1/successful");
+        statuses.put("d3", "s2/failed");
+        statuses.put("d4", "s1/successful");
+        Map<String, String> stackNames = new HashMap<String, String>();
+        stackNames.put("s1", "web");
+
+        Map<String, int[]> counts = MonitorDeploymentsTask.countByStack(
+                statuses, stackNames);
+
+        assertEquals(Arrays.asList("s2", "web"),
+                Arrays.asList(counts.keySet().toArray()));
+        assertArrayEquals(new int[] { 1, 2, 0 }, counts.get("web"));
+        assertArrayEquals(new int[] { 0, 0, 1 }, counts.get("s2"));
+    }
+
+    @Test
+    public void testTableHasOneRowPerStack() {
+        Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        counts.put("a-long-stack-name", new int[] { 1, 2, 3 });
+        String[] rows = MonitorDeploymentsTask.formatTable(counts).split(
+                System.getProperty("line.separator"));
+        assertEquals(2, rows.length);
+        assertEquals("Stack             ", rows[0].substring(0, 18));
+        assertEquals("a-long-stack-name        1           2       3", rows[1]);
+    }
+
+    private MonitorDeploymentsTask newTask() {
+        MonitorDeploymentsTask task = new MonitorDeploymentsTask();
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+        task.setTimingInMs(10, 1000 * 10);
+        return task;
+    }
+
+    private String deploy(String appId) {
+        return client.createDeployment(
+                new CreateDeploymentRequest().withStackId(stackId)
+                        .withAppId(appId)
+                        .withCommand(new DeploymentCommand().withName("deploy")))
+                .getDeploymentId();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.opsworks.DeployAppTask.Command;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.DescribeInstancesRequest;
+import com.amazonaws.services.opsworks.model.Instance;
+
+/**
+ * Runs the OpsWorks tasks against a {@link LocalAwsStub}, so they can be
+ * tested without an AWS account. Waiters poll with short delays, since the
+ * stub completes operations immediately.
+ */
+public class OfflineOpsWorksTests {
+
+    private static final int INSTANCES = 3;
+
+    private LocalAwsStub stub;
+    private Project project;
+    private AWSOpsWorksClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+        client = AWSTestUtils.createStubClient(AWSOpsWorksClient.class, stub);
+
+        CreateStackTask createStack = new CreateStackTask();
+        configure(createStack);
+        createStack.setName("offline-stack");
+        createStack.setRegion("us-east-1");
+        createStack.setServiceRoleArn("arn:aws:iam::123456789012:role/service");
+        createStack.setDefaultInstanceProfileArn("arn:aws:iam::123456789012:instance-profile/default");
+        createStack.execute();
+
+        CreateLayerTask createLayer = new CreateLayerTask();
+        configure(createLayer);
+        createLayer.setType("custom");
+        createLayer.setName("web");
+        createLayer.setShortname("web");
+        createLayer.execute();
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void testCreateInstancesAndDeploy() throws InterruptedException {
+        CreateInstanceTask createInstances = new CreateInstanceTask();
+        configure(createInstances);
+        createInstances.setInstanceType("t1.micro");
+        createInstances.setCount(INSTANCES);
+        createInstances.execute();
+        List<String> instanceIds = IdRegistry.getRegistry(project).get(
+                IdType.INSTANCE);
+        assertEquals(INSTANCES, instanceIds.size());
+        new InstanceWaiter(client).withMinDelayInMs(10).withMaxDelayInMs(10)
+                .waitForInstances(instanceIds, "online");
+
+        CreateAppTask createApp = new CreateAppTask();
+        configure(createApp);
+        createApp.setName("offline-app");
+        createApp.setType("java");
+        createApp.execute();
+
+        DeployAppTask deploy = new DeployAppTask();
+        configure(deploy);
+        Command command = new Command();
+        command.setName("deploy");
+        deploy.addConfiguredCommand(command);
+        deploy.execute();
+
+        List<String> deploymentIds = IdRegistry.getRegistry(project).get(
+                IdType.DEPLOYMENT);
+        Map<String, String> statuses = new DeploymentWaiter(client)
+                .withInitialDelayInMs(10).withMaxDelayInMs(10)
+                .waitForDeployments(deploymentIds);
+        assertEquals("successful", statuses.get(deploymentIds.get(0)));
+        assertEquals(INSTANCES, stub.getCallCount("StartInstance"));
+    }
+
+    @Test
+    public void testSlowServiceTimesOutWaiter() throws InterruptedException {
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        createInstance.setStartOnCreate(false);
+        createInstance.execute();
+
+        stub.setLatencyInMs(100);
+        long start = System.currentTimeMillis();
+        try {
+            new InstanceWaiter(client).withMinDelayInMs(10)
+                    .withMaxDelayInMs(10).withTimeoutInMs(250)
+                    .waitForInstances(
+                            IdRegistry.getRegistry(project).get(
+                                    IdType.INSTANCE), "online");
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("never reached online"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void testRerunningCreateInstanceAddsLayersOnce() {
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        createInstance.setStartOnCreate(false);
+        createInstance.execute();
+        createInstance.execute();
+
+        List<String> instanceIds = createInstance.getInstanceIds();
+        assertEquals(2, instanceIds.size());
+        assertEquals(instanceIds,
+                IdRegistry.getRegistry(project).get(IdType.INSTANCE));
+        List<Instance> instances = client.describeInstances(
+                new DescribeInstancesRequest().withInstanceIds(instanceIds))
+                .getInstances();
+        for (Instance instance : instances) {
+            assertEquals(IdRegistry.getRegistry(project).get(IdType.LAYER),
+                    instance.getLayerIds());
+        }
+    }
+
+    @Test
+    public void testMissingStackFailsTask() {
+        CreateLayerTask createLayer = new CreateLayerTask();
+        configure(createLayer);
+        createLayer.setStackId("missing-stack");
+        createLayer.setType("custom");
+        createLayer.setName("db");
+        createLayer.setShortname("db");
+        try {
+            createLayer.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("missing-stack"));
+        }
+    }
+
+    @Test
+    public void testInstanceThatFailsToStartIsRecorded() {
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        stub.injectErrors("StartInstance", 400, "ValidationException", 1);
+        try {
+            createInstance.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("Could not create Instance"));
+        }
+        assertEquals(1, createInstance.getInstanceIds().size());
+        assertEquals(createInstance.getInstanceIds(), IdRegistry.getRegistry(
+                project).get(IdType.INSTANCE));
+    }
+
+    @Test
+    public void testEnvironmentInstancesJoinOnlyItsLayers() {
+        EnvironmentTask environment = new EnvironmentTask();
+        configure(environment);
+        environment.addTask(newStack("environment-stack"));
+        CreateLayerTask createLayer = new CreateLayerTask();
+        configure(createLayer);
+        createLayer.setType("custom");
+        createLayer.setName("db");
+        createLayer.setShortname("db");
+        environment.addTask(createLayer);
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        environment.addTask(createInstance);
+        environment.execute();
+
+        // The web layer of the project's other stack is not joined
+        List<String> layerIds = client
+                .describeInstances(
+                        new DescribeInstancesRequest()
+                                .withInstanceIds(createInstance
+                                        .getInstanceIds())).getInstances()
+                .get(0).getLayerIds();
+        assertEquals(Collections.singletonList(createLayer.getLayerId()),
+                layerIds);
+    }
+
+    @Test
+    public void testStackThatFailsToStartIsRolledBack() {
+        EnvironmentTask environment = new EnvironmentTask();
+        configure(environment);
+        environment.addTask(newStack("unstartable-stack"));
+        stub.injectErrors("StartStack", 400, "ValidationException", 1);
+        try {
+            environment.execute();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("rolled back"));
+        }
+        assertEquals(1, stub.getCallCount("DeleteStack"));
+    }
+
+    @Test
+    public void testRolledBackResourcesAreRemovedFromRegistry() {
+        EnvironmentTask environment = new EnvironmentTask();
+        configure(environment);
+        environment.addTask(newStack("rolled-back-stack"));
+        CreateLayerTask createLayer = new CreateLayerTask();
+        configure(createLayer);
+        createLayer.setType("custom");
+        createLayer.setName("db");
+        createLayer.setShortname("db");
+        environment.addTask(createLayer);
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        environment.addTask(createInstance);
+        stub.injectErrors("StartInstance", 400, "ValidationException", 1);
+        try {
+            environment.perform();
+            fail("Expected a BuildException");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage().contains("rolled back"));
+        }
+
+        IdRegistry registry = IdRegistry.getRegistry(project);
+        assertEquals(1, stub.getCallCount("DeleteInstance"));
+        assertTrue(registry.get(IdType.INSTANCE).isEmpty());
+        assertFalse(registry.get(IdType.LAYER).contains(
+                createLayer.getLayerId()));
+        // The properties subprojects inherit are rewritten too
+        assertEquals("", project.getProperties().get(
+                Constants.INSTANCE_IDS_PROPERTY));
+        assertFalse(String.valueOf(
+                project.getProperties().get(Constants.LAYER_IDS_PROPERTY))
+                .contains(createLayer.getLayerId()));
+    }
+
+    private CreateStackTask newStack(String name) {
+        CreateStackTask createStack = new CreateStackTask();
+        configure(createStack);
+        createStack.setName(name);
+        createStack.setRegion("us-east-1");
+        createStack.setServiceRoleArn("arn:aws:iam::123456789012:role/service");
+        createStack.setDefaultInstanceProfileArn("arn:aws:iam::123456789012:instance-profile/default");
+        return createStack;
+    }
+
+    private void configure(AWSAntTask task) {
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+    }
+}
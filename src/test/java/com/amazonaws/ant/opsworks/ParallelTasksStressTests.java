@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Parallel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.opsworks.AWSOpsWorksClient;
+import com.amazonaws.services.opsworks.model.CreateLayerRequest;
+import com.amazonaws.services.opsworks.model.CreateStackRequest;
+
+/**
+ * Runs hundreds of OpsWorks tasks inside &lt;parallel&gt; against a local stub
+ * of the OpsWorks API, and checks that the state they share is neither
+ * duplicated nor lost.
+ */
+public class ParallelTasksStressTests {
+
+    private static final int TASKS = 300;
+    private static final int THREADS = 50;
+    private static final int STACKS = 5;
+
+    private final AtomicInteger clientsCreated = new AtomicInteger();
+    private LocalAwsStub stub;
+    private String[] stackIds = new String[STACKS];
+    private String[] webLayerIds = new String[STACKS];
+
+    @Before
+    public void startStub() throws IOException {
+        stub = new LocalAwsStub();
+        AWSOpsWorksClient client = AWSTestUtils.createStubClient(
+                AWSOpsWorksClient.class, stub);
+        for (int i = 0; i < STACKS; i++) {
+            stackIds[i] = client.createStack(
+                    new CreateStackRequest().withName("stack " + i))
+                    .getStackId();
+            webLayerIds[i] = client.createLayer(
+                    new CreateLayerRequest().withStackId(stackIds[i])
+                            .withType("custom").withName("web")
+                            .withShortname("web")).getLayerId();
+        }
+    }
+
+    @After
+    public void stopStub() {
+        stub.stop();
+    }
+
+    @Test
+    public void testParallelLayerTasksShareClientAndListings() {
+        Project project = new Project();
+        project.init();
+
+        Parallel parallel = new Parallel();
+        parallel.setProject(project);
+        parallel.setThreadCount(THREADS);
+        List<CreateLayerTask> tasks = new ArrayList<CreateLayerTask>();
+        for (int i = 0; i < TASKS; i++) {
+            CreateLayerTask task = new CreateLayerTask() {
+                @Override
+                public <T extends AmazonWebServiceClient> T createClient(
+                        Class<T> clientClass) {
+                    clientsCreated.incrementAndGet();
+                    return super.createClient(clientClass);
+                }
+            };
+            task.setProject(project);
+            task.setTaskName("create-opsworks-layer");
+            AWSTestUtils.useStub(task, stub);
+            task.setStackId(stackIds[i % STACKS]);
+            task.setType("custom");
+            task.setName("layer " + i);
+            task.setShortname(i % 3 == 0 ? "web" : "layer" + i);
+            task.setIfExists("reuse");
+            tasks.add(task);
+            parallel.addTask(task);
+        }
+        parallel.execute();
+
+        assertEquals(1, clientsCreated.get());
+        assertEquals(STACKS, stub.getCallCount("DescribeLayers"));
+        assertEquals(STACKS + TASKS - TASKS / 3,
+                stub.getCallCount("CreateLayer"));
+        assertEquals(TASKS, IdRegistry.getRegistry(project).get(IdType.LAYER)
+                .size());
+        for (int i = 0; i < TASKS; i += 3) {
+            assertEquals(webLayerIds[i % STACKS], tasks.get(i).getLayerId());
+        }
+    }
+
+    @Test
+    public void testParallelTasksReusingNewResourcesCreateEachOnce() {
+        Project project = new Project();
+        project.init();
+
+        Parallel parallel = new Parallel();
+        parallel.setProject(project);
+        parallel.setThreadCount(THREADS);
+        List<CreateStackTask> stackTasks = new ArrayList<CreateStackTask>();
+        List<CreateLayerTask> layerTasks = new ArrayList<CreateLayerTask>();
+        List<CreateAppTask> appTasks = new ArrayList<CreateAppTask>();
+        for (int i = 0; i < TASKS; i++) {
+            if (i % 3 == 0) {
+                CreateStackTask task = new CreateStackTask();
+                configure(task, project);
+                task.setName("new stack " + i % 2);
+                task.setRegion("us-east-1");
+                task.setServiceRoleArn("arn:aws:iam::123456789012:role/service");
+                task.setDefaultInstanceProfileArn("arn:aws:iam::123456789012:instance-profile/default");
+                task.setIfExists("reuse");
+                stackTasks.add(task);
+                parallel.addTask(task);
+            } else if (i % 3 == 1) {
+                CreateLayerTask task = new CreateLayerTask();
+                configure(task, project);
+                task.setStackId(stackIds[i % STACKS]);
+                task.setType("custom");
+                task.setName("layer " + i);
+                task.setShortname("new" + i % 4);
+                task.setIfExists("reuse");
+                layerTasks.add(task);
+                parallel.addTask(task);
+            } else {
+                CreateAppTask task = new CreateAppTask();
+                configure(task, project);
+                task.setStackId(stackIds[i % STACKS]);
+                task.setName("app " + i);
+                task.setShortname("app" + i % 4);
+                task.setType("java");
+                task.setIfExists("reuse");
+                appTasks.add(task);
+                parallel.addTask(task);
+            }
+        }
+        parallel.execute();
+
+        // Two stack names, and four shortnames in each of the stacks
+        assertEquals(STACKS + 2, stub.getCallCount("CreateStack"));
+        assertEquals(STACKS + STACKS * 4, stub.getCallCount("CreateLayer"));
+        assertEquals(STACKS * 4, stub.getCallCount("CreateApp"));
+        assertOneCreatorPerId(stackTasks, 2);
+        assertOneCreatorPerId(layerTasks, STACKS * 4);
+        assertOneCreatorPerId(appTasks, STACKS * 4);
+    }
+
+    private void assertOneCreatorPerId(List<? extends AWSAntTask> tasks,
+            int expectedIds) {
+        Set<String> ids = new HashSet<String>();
+        int creators = 0;
+        for (AWSAntTask task : tasks) {
+            if (task instanceof CreateStackTask) {
+                ids.add(((CreateStackTask) task).getStackId());
+                creators += ((CreateStackTask) task).isCreated() ? 1 : 0;
+            } else if (task instanceof CreateLayerTask) {
+                ids.add(((CreateLayerTask) task).getLayerId());
+                creators += ((CreateLayerTask) task).isCreated() ? 1 : 0;
+            } else {
+                ids.add(((CreateAppTask) task).getAppId());
+                creators += ((CreateAppTask) task).isCreated() ? 1 : 0;
+            }
+        }
+        assertEquals(expectedIds, ids.size());
+        assertEquals(expectedIds, creators);
+    }
+
+    private void configure(AWSAntTask task, Project project) {
+        task.setProject(project);
+        AWSTestUtils.useStub(task, stub);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.opsworks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSAntTask;
+import com.amazonaws.ant.opsworks.DeployAppTask.Command;
+import com.amazonaws.ant.opsworks.DeployAppTask.InstanceId;
+import com.amazonaws.ant.opsworks.IdRegistry.IdType;
+import com.amazonaws.ant.stub.LocalAwsStub;
+
+/**
+ * Tests batch splitting, and runs rolling deployments to five instances
+ * against a {@link LocalAwsStub}, where deployments finish at once.
+ */
+public class RollingDeploymentTaskTests {
+
+    private static final List<String> INSTANCE_IDS = Arrays.asList("i1", "i2",
+            "i3", "i4", "i5");
+
+    private LocalAwsStub stub;
+    private Project project;
+    private List<String> instanceIds;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new LocalAwsStub();
+        project = new Project();
+        project.setProperty(AWSAntTask.ENDPOINT_PROPERTY, stub.getEndpoint());
+
+        CreateStackTask createStack = new CreateStackTask();
+        configure(createStack);
+        createStack.setName("rolling-stack");
+        createStack.setRegion("us-east-1");
+        createStack.setServiceRoleArn("arn:aws:iam::123456789012:role/service");
+        createStack.setDefaultInstanceProfileArn("arn:aws:iam::123456789012:instance-profile/default");
+        createStack.execute();
+
+        CreateLayerTask createLayer = new CreateLayerTask();
+        configure(createLayer);
+        createLayer.setType("custom");
+        createLayer.setName("web");
+        createLayer.setShortname("web");
+        createLayer.execute();
+
+        CreateInstanceTask createInstance = new CreateInstanceTask();
+        configure(createInstance);
+        createInstance.setInstanceType("t1.micro");
+        createInstance.setCount(5);
+        createInstance.execute();
+        instanceIds = createInstance.getInstanceIds();
+
+        CreateAppTask createApp = new CreateAppTask();
+        configure(createApp);
+        createApp.setName("app");
+        createApp.setType("java");
+        createApp.execute();
+    }
+
+    @After
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Test
+    public void testAllBatchesAreDeployed() {
+        RollingDeploymentTask task = newTask();
+        task.setBatchSize(2);
+        task.execute();
+        assertEquals(5, stub.getCallCount("CreateDeployment"));
+        assertEquals(5, IdRegistry.getRegistry(project)
+                .get(IdType.DEPLOYMENT).size());
+    }
+
+    @Test
+    public void testFailedDeploymentStopsLaterBatches() {
+        stub.failDeploymentsTo(instanceIds.get(1));
+        RollingDeploymentTask task = newTask();
+        task.setBatchSize(2);
+        assertFails(task, "failed");
+        // The default threshold of 100 fails on the first batch
+        assertEquals(2, stub.getCallCount("CreateDeployment"));
+        assertEquals(2, IdRegistry.getRegistry(project)
+                .get(IdType.DEPLOYMENT).size());
+    }
+
+    @Test
+    public void testBatchBelowHealthThresholdStopsLaterBatches() {
+        stub.failDeploymentsTo(instanceIds.get(2));
+        RollingDeploymentTask task = newTask();
+        task.setBatchSize(2);
+        task.setHealthThreshold(75);
+        assertFails(task, "Batch 2 was only 50% successful");
+        assertEquals(4, stub.getCallCount("CreateDeployment"));
+    }
+
+    @Test
+    public void testBatchAtHealthThresholdContinues() {
+        stub.failDeploymentsTo(instanceIds.get(2));
+        RollingDeploymentTask task = newTask();
+        task.setBatchSize(2);
+        task.setHealthThreshold(50);
+        task.execute();
+        assertEquals(5, stub.getCallCount("CreateDeployment"));
+    }
+
+    @Test
+    public void testBatchPercentageIsRoundedUp() {
+        // 40% of 5 instances is 2 per batch, so the third instance fails the
+        // second batch
+        stub.failDeploymentsTo(instanceIds.get(2));
+        RollingDeploymentTask task = newTask();
+        task.setBatchPercentage(40);
+        assertFails(task, "failed");
+        assertEquals(4, stub.getCallCount("CreateDeployment"));
+    }
+
+    @Test
+    public void testFailedSubmissionReportsCreatedDeployments() {
+        stub.injectErrors("CreateDeployment", 400, "ValidationException", 1);
+        RollingDeploymentTask task = newTask();
+        task.setBatchSize(2);
+        task.setMaxConcurrentSubmissions(1);
+        try {
+            task.execute();
+            fail("Expected the rolling deployment to fail");
+        } catch (BuildException e) {
+            List<String> created = IdRegistry.getRegistry(project).get(
+                    IdType.DEPLOYMENT);
+            assertEquals(1, created.size());
+            assertTrue(e.getMessage(), e.getMessage().contains(created.get(0)));
+        }
+        assertEquals(2, stub.getCallCount("CreateDeployment"));
+    }
+
+    @Test
+    public void testSplitIntoEvenBatches() {
+        List<List<String>> batches = RollingDeploymentTask.splitIntoBatches(
+                INSTANCE_IDS.subList(0, 4), 2);
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList("i1", "i2"), batches.get(0));
+        assertEquals(Arrays.asList("i3", "i4"), batches.get(1));
+    }
+
+    @Test
+    public void testSplitIntoBatchesWithRemainder() {
+        List<List<String>> batches = RollingDeploymentTask.splitIntoBatches(
+                INSTANCE_IDS, 2);
+        assertEquals(3, batches.size());
+        assertEquals(Arrays.asList("i5"), batches.get(2));
+    }
+
+    @Test
+    public void testBatchSizeBelowOneIsTreatedAsOne() {
+        assertEquals(5, RollingDeploymentTask.splitIntoBatches(INSTANCE_IDS, 0)
+                .size());
+    }
+
+    private RollingDeploymentTask newTask() {
+        RollingDeploymentTask task = new RollingDeploymentTask();
+        configure(task);
+        task.setPollDelayInMs(10);
+        Command command = new Command();
+        command.setName("deploy");
+        task.addConfiguredCommand(command);
+        for (String instanceId : instanceIds) {
+            InstanceId id = new InstanceId();
+            id.setValue(instanceId);
+            task.addConfiguredInstanceId(id);
+        }
+        return task;
+    }
+
+    private void assertFails(RollingDeploymentTask task, String message) {
+        try {
+            task.execute();
+            fail("Expected the rolling deployment to fail");
+        } catch (BuildException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private void configure(AWSAntTask task) {
+        task.setProject(project);
+        task.setAWSAccessKeyId("stub");
+        task.setAWSSecretKey("stub");
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.stub.LocalAwsStub;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+
+public class CopyS3ObjectsTaskTests {
+    private static final String SOURCE_BUCKET_NAME = "copys3objectstestsource";
+    private static final String DESTINATION_BUCKET_NAME = "copys3objectstestdestination";
+    private static final String SOURCE_PREFIX = "staging/";
+    private static final String DESTINATION_PREFIX = "release/";
+    private static final String PARTS_SOURCE_PREFIX = "parts/";
+    private static final String PARTS_DESTINATION_PREFIX = "parts-release/";
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+    private static LocalAwsStub stub;
+    private static AmazonS3Client client;
+    private static byte[] large;
+    private static byte[] uploadedInParts;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        stub = new LocalAwsStub();
+        client = AWSTestUtils.createStubClient(AmazonS3Client.class, stub);
+        client.createBucket(SOURCE_BUCKET_NAME);
+        client.createBucket(DESTINATION_BUCKET_NAME);
+        put(SOURCE_PREFIX + "app.war", "app".getBytes("UTF-8"));
+        put(SOURCE_PREFIX + "conf/app.properties", "conf".getBytes("UTF-8"));
+        put("other/ignored.txt", "ignored".getBytes("UTF-8"));
+
+        // Uploaded in parts of the size the task copies with, so that its
+        // copy ends up with the same ETag
+        large = new byte[PART_SIZE + 1024];
+        new Random().nextBytes(large);
+        TransferManagerConfiguration configuration = new TransferManagerConfiguration();
+        configuration.setMultipartUploadThreshold(PART_SIZE);
+        configuration.setMinimumUploadPartSize(PART_SIZE);
+        TransferManager transferManager = new TransferManager(client);
+        transferManager.setConfiguration(configuration);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(large.length);
+        metadata.setContentType("application/x-tar");
+        transferManager.upload(SOURCE_BUCKET_NAME, SOURCE_PREFIX + "large.tar",
+                new ByteArrayInputStream(large), metadata).waitForCompletion();
+        transferManager.shutdownNow(false);
+
+        // Uploaded in parts of another size, so that no copy of it has the
+        // same ETag
+        uploadedInParts = new byte[3 * PART_SIZE];
+        new Random().nextBytes(uploadedInParts);
+        configuration = new TransferManagerConfiguration();
+        configuration.setMultipartUploadThreshold(PART_SIZE);
+        configuration.setMinimumUploadPartSize(PART_SIZE * 3 / 2);
+        transferManager = new TransferManager(client);
+        transferManager.setConfiguration(configuration);
+        metadata = new ObjectMetadata();
+        metadata.setContentLength(uploadedInParts.length);
+        transferManager.upload(SOURCE_BUCKET_NAME,
+                PARTS_SOURCE_PREFIX + "parts.tar",
+                new ByteArrayInputStream(uploadedInParts), metadata)
+                .waitForCompletion();
+        transferManager.shutdownNow(false);
+    }
+
+    private static void put(String key, byte[] content) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        client.putObject(SOURCE_BUCKET_NAME, key, new ByteArrayInputStream(
+                content), metadata);
+    }
+
+    private static CopyS3ObjectsTask createTask() {
+        CopyS3ObjectsTask task = new CopyS3ObjectsTask();
+        task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
+        task.setSourceBucketName(SOURCE_BUCKET_NAME);
+        task.setSourceKeyPrefix(SOURCE_PREFIX);
+        task.setDestinationBucketName(DESTINATION_BUCKET_NAME);
+        task.setDestinationKeyPrefix(DESTINATION_PREFIX);
+        task.setMultipartThresholdInMb(5);
+        task.setPartSizeInMb(5);
+        return task;
+    }
+
+    @Test
+    public void testCopyAndSkipUnchanged() throws Exception {
+        int getCalls = stub.getCallCount("GetObject");
+        int partCopyCalls = stub.getCallCount("UploadPartCopy");
+        createTask().execute();
+        assertEquals(getCalls, stub.getCallCount("GetObject"));
+        assertEquals(partCopyCalls + 2, stub.getCallCount("UploadPartCopy"));
+        assertEquals("app", IOUtils.toString(client.getObject(
+                DESTINATION_BUCKET_NAME, DESTINATION_PREFIX + "app.war")
+                .getObjectContent(), "UTF-8"));
+        assertEquals("conf", IOUtils.toString(client.getObject(
+                DESTINATION_BUCKET_NAME,
+                DESTINATION_PREFIX + "conf/app.properties").getObjectContent(),
+                "UTF-8"));
+        assertArrayEquals(large, IOUtils.toByteArray(client.getObject(
+                DESTINATION_BUCKET_NAME, DESTINATION_PREFIX + "large.tar")
+                .getObjectContent()));
+        assertEquals("application/x-tar", client.getObjectMetadata(
+                DESTINATION_BUCKET_NAME, DESTINATION_PREFIX + "large.tar")
+                .getContentType());
+        assertEquals(3, client.listObjects(DESTINATION_BUCKET_NAME,
+                DESTINATION_PREFIX).getObjectSummaries().size());
+
+        put(SOURCE_PREFIX + "app.war", "app2".getBytes("UTF-8"));
+        int copyCalls = stub.getCallCount("CopyObject");
+        CopyS3ObjectsTask task = createTask();
+        task.setSkipUnchanged(true);
+        task.execute();
+        // Only the changed object is copied again
+        assertEquals(copyCalls + 1, stub.getCallCount("CopyObject"));
+        assertEquals(partCopyCalls + 2, stub.getCallCount("UploadPartCopy"));
+        assertEquals("app2", IOUtils.toString(client.getObject(
+                DESTINATION_BUCKET_NAME, DESTINATION_PREFIX + "app.war")
+                .getObjectContent(), "UTF-8"));
+    }
+
+    @Test
+    public void testSkipUnchangedCopyOfObjectUploadedInParts()
+            throws Exception {
+        CopyS3ObjectsTask task = createTask();
+        task.setSourceKeyPrefix(PARTS_SOURCE_PREFIX);
+        task.setDestinationKeyPrefix(PARTS_DESTINATION_PREFIX);
+        task.execute();
+        String sourceETag = client.getObjectMetadata(SOURCE_BUCKET_NAME,
+                PARTS_SOURCE_PREFIX + "parts.tar").getETag();
+        ObjectMetadata copyMetadata = client.getObjectMetadata(
+                DESTINATION_BUCKET_NAME, PARTS_DESTINATION_PREFIX + "parts.tar");
+        assertFalse(sourceETag.equals(copyMetadata.getETag()));
+        assertEquals(sourceETag,
+                copyMetadata.getUserMetadata().get(ObjectCopier.SOURCE_ETAG));
+
+        int partCopyCalls = stub.getCallCount("UploadPartCopy");
+        int copyCalls = stub.getCallCount("CopyObject");
+        task = createTask();
+        task.setSourceKeyPrefix(PARTS_SOURCE_PREFIX);
+        task.setDestinationKeyPrefix(PARTS_DESTINATION_PREFIX);
+        task.setSkipUnchanged(true);
+        task.execute();
+        assertEquals(partCopyCalls, stub.getCallCount("UploadPartCopy"));
+        assertEquals(copyCalls, stub.getCallCount("CopyObject"));
+        assertArrayEquals(uploadedInParts, IOUtils.toByteArray(client
+                .getObject(DESTINATION_BUCKET_NAME,
+                        PARTS_DESTINATION_PREFIX + "parts.tar")
+                .getObjectContent()));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testDestinationInsideSource() {
+        CopyS3ObjectsTask task = createTask();
+        task.setDestinationBucketName(SOURCE_BUCKET_NAME);
+        task.setDestinationKeyPrefix(SOURCE_PREFIX + "copy/");
+        task.execute();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        AWSTestUtils.emptyAndDeleteBucket(client, SOURCE_BUCKET_NAME);
+        AWSTestUtils.emptyAndDeleteBucket(client, DESTINATION_BUCKET_NAME);
+        stub.stop();
+    }
+}
@@ -28,6 +28,7 @@ import org.junit.Test;
 
 import com.amazonaws.ant.AWSTestUtils;
 import com.amazonaws.ant.s3.DownloadFileFromS3Task;
+import com.amazonaws.ant.stub.LocalAwsStub;
 import com.amazonaws.services.s3.AmazonS3Client;
 
 public class DownloadFromS3TaskTests {
@@ -42,6 +43,7 @@ public class DownloadFromS3TaskTests {
     private static final String DIR = USER_DIR + File.pathSeparator
             + KEY_PREFIX;
     private static File testFile1, testFile2, testFile3;
+    private static LocalAwsStub stub;
     private static AmazonS3Client client;
     private File resFile1, resFile2, resFile3;
 
@@ -50,7 +52,8 @@ public class DownloadFromS3TaskTests {
         testFile1 = AWSTestUtils.createRandomFile(TEST_FILE_1, TESTFILE_SUFFIX);
         testFile2 = AWSTestUtils.createRandomFile(TEST_FILE_2, TESTFILE_SUFFIX);
         testFile3 = AWSTestUtils.createRandomFile(TEST_FILE_3, TESTFILE_SUFFIX);
-        client = new AmazonS3Client();
+        stub = new LocalAwsStub();
+        client = AWSTestUtils.createStubClient(AmazonS3Client.class, stub);
         client.createBucket(BUCKET_NAME);
         client.putObject(BUCKET_NAME, KEY_PREFIX + testFile1.getName(),
                 testFile1);
@@ -64,6 +67,7 @@ public class DownloadFromS3TaskTests {
     public void testDownloadSingleFile() throws IOException {
         DownloadFileFromS3Task task = new DownloadFileFromS3Task();
         task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
         task.setBucketName(BUCKET_NAME);
         task.setKey(KEY_PREFIX + testFile1.getName());
         resFile1 = File.createTempFile(RES_FILE, TESTFILE_SUFFIX);
@@ -77,6 +81,7 @@ public class DownloadFromS3TaskTests {
     public void testDownloadFilesWithPrefix() throws IOException {
         DownloadFileFromS3Task task = new DownloadFileFromS3Task();
         task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
         task.setBucketName(BUCKET_NAME);
         task.setKeyPrefix(KEY_PREFIX);
         task.setDir(USER_DIR);
@@ -89,6 +94,29 @@ public class DownloadFromS3TaskTests {
         assertTrue(FileUtils.contentEquals(testFile3, resFile3));
     }
 
+    @Test
+    public void testSkipUnchanged() throws IOException {
+        DownloadFileFromS3Task task = new DownloadFileFromS3Task();
+        task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
+        task.setBucketName(BUCKET_NAME);
+        task.setKey(KEY_PREFIX + testFile2.getName());
+        resFile2 = File.createTempFile(RES_FILE, TESTFILE_SUFFIX);
+        task.setFile(resFile2);
+        task.setSkipUnchanged(true);
+        task.execute();
+        assertTrue(FileUtils.contentEquals(testFile2, resFile2));
+
+        int getCalls = stub.getCallCount("GetObject");
+        task.execute();
+        assertEquals(getCalls, stub.getCallCount("GetObject"));
+
+        FileUtils.writeStringToFile(resFile2, "changed");
+        task.execute();
+        assertEquals(getCalls + 1, stub.getCallCount("GetObject"));
+        assertTrue(FileUtils.contentEquals(testFile2, resFile2));
+    }
+
     @After
     public void tearDown() throws IOException {
         if (resFile1 != null) {
@@ -106,6 +134,7 @@ public class DownloadFromS3TaskTests {
     @AfterClass
     public static void tearDownAfterClass() {
         AWSTestUtils.emptyAndDeleteBucket(client, BUCKET_NAME);
+        stub.stop();
         testFile1.delete();
         testFile2.delete();
         testFile3.delete();
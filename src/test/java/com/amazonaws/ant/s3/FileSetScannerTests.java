@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.selectors.SizeSelector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileSetScannerTests {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "scannertest"
+                + System.nanoTime());
+        for (String path : new String[] { "a.txt", "b.bin", "sub/c.txt",
+                "sub/deep/d.txt", "sub/build/e.txt", "build/f.txt",
+                ".git/config", "other/g.bin" }) {
+            FileUtils.writeStringToFile(new File(dir, path), path);
+        }
+        FileUtils.writeStringToFile(new File(dir, "sub/large.txt"),
+                "more than twenty bytes of content");
+    }
+
+    @Test
+    public void testMatchesDirectoryScanner() {
+        Project project = new Project();
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(dir);
+        fileSet.setIncludes("**/*.txt");
+        fileSet.setExcludes("**/build/**");
+        assertSameFiles(fileSet, project);
+
+        fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(dir);
+        SizeSelector size = new SizeSelector();
+        size.setValue(20);
+        SizeSelector.SizeComparisons less = new SizeSelector.SizeComparisons();
+        less.setValue("less");
+        size.setWhen(less);
+        fileSet.addSize(size);
+        assertSameFiles(fileSet, project);
+
+        fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setFile(new File(dir, "sub/c.txt"));
+        assertEquals(Arrays.asList("c.txt"), scan(fileSet, project));
+    }
+
+    @Test
+    public void testFindsFilesLazily() {
+        Project project = new Project();
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(dir);
+        FileSetScanner scanner = new FileSetScanner(fileSet, project);
+        assertTrue(scanner.hasNext());
+        assertEquals("a.txt", scanner.next());
+        // Deleted before the walk gets there, so it isn't found
+        assertTrue(new File(dir, "other/g.bin").delete());
+        List<String> rest = new ArrayList<String>();
+        while (scanner.hasNext()) {
+            rest.add(scanner.next());
+        }
+        assertFalse(rest.contains("other" + File.separator + "g.bin"));
+        assertTrue(rest.contains("sub" + File.separator + "c.txt"));
+    }
+
+    private static void assertSameFiles(FileSet fileSet, Project project) {
+        List<String> expected = new ArrayList<String>(Arrays.asList(fileSet
+                .getDirectoryScanner(project).getIncludedFiles()));
+        Collections.sort(expected);
+        assertEquals(expected, scan(fileSet, project));
+    }
+
+    private static List<String> scan(FileSet fileSet, Project project) {
+        List<String> files = new ArrayList<String>();
+        FileSetScanner scanner = new FileSetScanner(fileSet, project);
+        while (scanner.hasNext()) {
+            files.add(scanner.next());
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+}
@@ -16,22 +16,36 @@ package com.amazonaws.ant.s3;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.util.FlatFileNameMapper;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.amazonaws.ant.AWSTestUtils;
+import com.amazonaws.ant.SetBandwidthLimitTask;
 import com.amazonaws.ant.s3.UploadFileSetToS3Task;
+import com.amazonaws.ant.stub.LocalAwsStub;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
 public class UploadFileSetToS3TaskTests {
 
@@ -44,6 +58,7 @@ public class UploadFileSetToS3TaskTests {
     private static final String TEST_FILE_1 = "test";
     private static final String BUCKET_NAME = "deployfilesettos3testbucket";
     private static final String KEY_PREFIX = "deployfilesettos3test/";
+    private static LocalAwsStub stub;
     private static AmazonS3Client client;
     private static String fileName1, fileName2, fileName3;
     private static File testFile1, testFile2, testFile3;
@@ -58,7 +73,8 @@ public class UploadFileSetToS3TaskTests {
         fileName2 = testFile2.getName();
         fileName3 = testFile3.getName();
 
-        client = new AmazonS3Client();
+        stub = new LocalAwsStub();
+        client = AWSTestUtils.createStubClient(AmazonS3Client.class, stub);
         client.createBucket(BUCKET_NAME);
     }
 
@@ -67,6 +83,7 @@ public class UploadFileSetToS3TaskTests {
             IOException {
         UploadFileSetToS3Task task = new UploadFileSetToS3Task();
         task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
         FileSet fileset = new FileSet();
         fileset.setDir(testFile1.getParentFile());
         fileset.setFile(testFile1);
@@ -84,6 +101,7 @@ public class UploadFileSetToS3TaskTests {
     public void testExecuteMultipleFiles() throws IOException {
         UploadFileSetToS3Task task = new UploadFileSetToS3Task();
         task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
         FileSet fileset = new FileSet();
         fileset.setDir(testFile1.getParentFile());
         fileset.setIncludes("*.txt");
@@ -105,6 +123,356 @@ public class UploadFileSetToS3TaskTests {
         assertTrue(FileUtils.contentEquals(testFile1, resFile1));
     }
 
+    @Test
+    public void testPackAndUnpack() throws IOException {
+        File source = new File(testFile1.getParentFile(), "packtest"
+                + System.nanoTime());
+        File target = new File(source.getPath() + "-unpacked");
+        try {
+            byte[] content = new byte[400 * 1024];
+            Random random = new Random();
+            for (int i = 0; i < 6; i++) {
+                random.nextBytes(content);
+                FileUtils.writeByteArrayToFile(new File(source, "dir" + i % 2
+                        + "/file" + i + ".bin"), content);
+            }
+
+            UploadFileSetToS3Task upload = new UploadFileSetToS3Task();
+            upload.setProject(new Project());
+            AWSTestUtils.useStub(upload, stub);
+            FileSet fileset = new FileSet();
+            fileset.setDir(source);
+            upload.addFileset(fileset);
+            upload.setBucketName(BUCKET_NAME);
+            upload.setKeyPrefix(KEY_PREFIX);
+            upload.setPack(true);
+            upload.setMaxArchiveSizeInMb(1);
+            upload.execute();
+
+            // Two files fit in an archive of a megabyte
+            assertEquals(3, client
+                    .listObjects(BUCKET_NAME, KEY_PREFIX + "archive-")
+                    .getObjectSummaries().size());
+            String index = IOUtils.toString(client.getObject(BUCKET_NAME,
+                    KEY_PREFIX + "archive.index").getObjectContent(), "UTF-8");
+            String[] line = index.split("\n")[0].split("\t");
+            assertEquals("dir0/file0.bin", line[3]);
+            long offset = Long.parseLong(line[1]);
+            byte[] entry = IOUtils.toByteArray(client.getObject(
+                    new GetObjectRequest(BUCKET_NAME, line[0]).withRange(
+                            offset, offset + Long.parseLong(line[2]) - 1))
+                    .getObjectContent());
+            assertArrayEquals(FileUtils.readFileToByteArray(new File(source,
+                    "dir0/file0.bin")), entry);
+
+            DownloadFileFromS3Task download = new DownloadFileFromS3Task();
+            download.setProject(new Project());
+            AWSTestUtils.useStub(download, stub);
+            download.setBucketName(BUCKET_NAME);
+            download.setKeyPrefix(KEY_PREFIX);
+            download.setDir(target.getPath());
+            download.setUnpack(true);
+            download.execute();
+            for (int i = 0; i < 6; i++) {
+                String name = "dir" + i % 2 + "/file" + i + ".bin";
+                assertTrue(FileUtils.contentEquals(new File(source, name),
+                        new File(target, name)));
+            }
+        } finally {
+            FileUtils.deleteDirectory(source);
+            FileUtils.deleteDirectory(target);
+        }
+    }
+
+    @Test
+    public void testFailedArchiveIsAborted() throws IOException {
+        File source = new File(testFile1.getParentFile(), "aborttest"
+                + System.nanoTime());
+        try {
+            FileUtils.writeByteArrayToFile(new File(source, "file.bin"),
+                    new byte[1024]);
+            UploadFileSetToS3Task upload = new UploadFileSetToS3Task();
+            upload.setProject(new Project());
+            AWSTestUtils.useStub(upload, stub);
+            FileSet fileset = new FileSet();
+            fileset.setDir(source);
+            upload.addFileset(fileset);
+            upload.setBucketName(BUCKET_NAME);
+            upload.setKeyPrefix("aborttest/");
+            upload.setPack(true);
+
+            int abortCalls = stub.getCallCount("AbortMultipartUpload");
+            stub.injectErrors("CompleteMultipartUpload", 400, "InvalidPart", 1);
+            try {
+                upload.execute();
+                fail("Expected a BuildException");
+            } catch (BuildException expected) {
+            }
+            assertEquals(abortCalls + 1,
+                    stub.getCallCount("AbortMultipartUpload"));
+            assertTrue(client.listObjects(BUCKET_NAME, "aborttest/")
+                    .getObjectSummaries().isEmpty());
+        } finally {
+            FileUtils.deleteDirectory(source);
+        }
+    }
+
+    @Test
+    public void testCompressIncludes() throws IOException {
+        File source = new File(testFile1.getParentFile(), "compresstest"
+                + System.nanoTime());
+        try {
+            StringBuilder css = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                css.append(".rule").append(i).append(" { color: red; }\n");
+            }
+            byte[] random = new byte[16 * 1024];
+            new Random().nextBytes(random);
+            File text = new File(source, "css/site.css");
+            FileUtils.writeStringToFile(text, css.toString(), "UTF-8");
+            FileUtils.writeByteArrayToFile(new File(source, "css/noise.css"),
+                    random);
+            FileUtils.writeStringToFile(new File(source, "site.txt"),
+                    css.toString(), "UTF-8");
+
+            UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+            task.setProject(new Project());
+            AWSTestUtils.useStub(task, stub);
+            FileSet fileset = new FileSet();
+            fileset.setDir(source);
+            task.addFileset(fileset);
+            task.setBucketName(BUCKET_NAME);
+            task.setKeyPrefix(KEY_PREFIX);
+            task.setCompressIncludes("**/*.css");
+            task.execute();
+
+            S3Object compressed = client.getObject(BUCKET_NAME, KEY_PREFIX
+                    + "css/site.css");
+            assertEquals("gzip", compressed.getObjectMetadata()
+                    .getContentEncoding());
+            assertEquals("text/css", compressed.getObjectMetadata()
+                    .getContentType());
+            assertEquals(css.toString(), IOUtils.toString(new GZIPInputStream(
+                    compressed.getObjectContent()), "UTF-8"));
+            // Random content doesn't compress, and text files don't match
+            assertNull(client.getObjectMetadata(BUCKET_NAME,
+                    KEY_PREFIX + "css/noise.css").getContentEncoding());
+            assertNull(client.getObjectMetadata(BUCKET_NAME,
+                    KEY_PREFIX + "site.txt").getContentEncoding());
+        } finally {
+            FileUtils.deleteDirectory(source);
+        }
+    }
+
+    @Test
+    public void testKeyMapping() throws IOException {
+        File source = new File(testFile1.getParentFile(), "mappingtest"
+                + System.nanoTime());
+        try {
+            FileUtils.writeStringToFile(new File(source, "a/index.html"), "a");
+            FileUtils.writeStringToFile(new File(source, "b/index.html"), "b");
+
+            UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+            task.setProject(new Project());
+            AWSTestUtils.useStub(task, stub);
+            FileSet fileset = new FileSet();
+            fileset.setDir(source);
+            task.addFileset(fileset);
+            task.setBucketName(BUCKET_NAME);
+            task.execute();
+
+            // Same-named files keep their paths, with no prefix
+            assertEquals("a", IOUtils.toString(client.getObject(BUCKET_NAME,
+                    "a/index.html").getObjectContent()));
+            assertEquals("b", IOUtils.toString(client.getObject(BUCKET_NAME,
+                    "b/index.html").getObjectContent()));
+
+            String prefix = "flattentest/";
+            task = new UploadFileSetToS3Task();
+            task.setProject(new Project());
+            AWSTestUtils.useStub(task, stub);
+            task.addFileset(fileset);
+            task.setBucketName(BUCKET_NAME);
+            task.setKeyPrefix(prefix);
+            task.add(new FlatFileNameMapper());
+            int putCalls = stub.getCallCount("PutObject");
+            try {
+                task.execute();
+                fail("Expected colliding keys to fail");
+            } catch (BuildException expected) {
+                assertTrue(expected.getMessage().contains(
+                        prefix + "index.html"));
+            }
+            assertEquals(putCalls, stub.getCallCount("PutObject"));
+        } finally {
+            FileUtils.deleteDirectory(source);
+        }
+    }
+
+    @Test
+    public void testBandwidthLimit() throws IOException {
+        File source = new File(testFile1.getParentFile(), "bandwidthtest"
+                + System.nanoTime());
+        try {
+            Random random = new Random();
+            int[] sizes = { 256 * 1024, 2 * 1024 * 1024, 1024 * 1024 };
+            for (int i = 0; i < sizes.length; i++) {
+                byte[] content = new byte[sizes[i]];
+                random.nextBytes(content);
+                FileUtils.writeByteArrayToFile(new File(source, "file" + i),
+                        content);
+            }
+
+            Project project = new Project();
+            SetBandwidthLimitTask limit = new SetBandwidthLimitTask();
+            limit.setProject(project);
+            limit.setKilobytesPerSecond(2048);
+            limit.execute();
+            UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+            task.setProject(project);
+            AWSTestUtils.useStub(task, stub);
+            FileSet fileset = new FileSet();
+            fileset.setDir(source);
+            task.addFileset(fileset);
+            task.setBucketName(BUCKET_NAME);
+            task.setKeyPrefix("bandwidthtest/");
+            task.setUploadThreads(3);
+            task.setPriority(5);
+            long start = System.nanoTime();
+            task.execute();
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+            // 2 MB go through as a burst, the remaining 1.25 MB take 0.6s
+            assertTrue("Took only " + elapsedMs + "ms", elapsedMs >= 500);
+            for (int i = 0; i < sizes.length; i++) {
+                assertEquals(sizes[i], client.getObjectMetadata(BUCKET_NAME,
+                        "bandwidthtest/file" + i).getContentLength());
+            }
+        } finally {
+            FileUtils.deleteDirectory(source);
+        }
+    }
+
+    @Test
+    public void testSkipUnchanged() throws IOException {
+        File source = new File(testFile1.getParentFile(), "skiptest"
+                + System.nanoTime());
+        try {
+            Random random = new Random();
+            byte[] content = new byte[20 * 1024 * 1024];
+            random.nextBytes(content);
+            FileUtils.writeByteArrayToFile(new File(source, "large.bin"),
+                    content);
+            FileUtils.writeStringToFile(new File(source, "small.txt"), "small");
+
+            UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+            task.setProject(new Project());
+            AWSTestUtils.useStub(task, stub);
+            FileSet fileset = new FileSet();
+            fileset.setDir(source);
+            task.addFileset(fileset);
+            task.setBucketName(BUCKET_NAME);
+            task.setKeyPrefix("skiptest/");
+            task.setSkipUnchanged(true);
+            task.execute();
+            // Uploaded in parts, so its ETag is a multipart one
+            assertTrue(client.getObjectMetadata(BUCKET_NAME,
+                    "skiptest/large.bin").getETag().endsWith("-4"));
+
+            int putCalls = stub.getCallCount("PutObject");
+            int partCalls = stub.getCallCount("UploadPart");
+            task.execute();
+            assertEquals(putCalls, stub.getCallCount("PutObject"));
+            assertEquals(partCalls, stub.getCallCount("UploadPart"));
+
+            FileUtils.writeStringToFile(new File(source, "small.txt"), "changed");
+            task.execute();
+            assertEquals(putCalls + 1, stub.getCallCount("PutObject"));
+            assertEquals(partCalls, stub.getCallCount("UploadPart"));
+            assertEquals("changed", IOUtils.toString(client.getObject(
+                    BUCKET_NAME, "skiptest/small.txt").getObjectContent()));
+        } finally {
+            FileUtils.deleteDirectory(source);
+        }
+    }
+
+    @Test
+    public void testDeleteExtraneous() throws IOException {
+        String prefix = "mirrortest/";
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(0);
+        for (int i = 0; i < 1500; i++) {
+            client.putObject(BUCKET_NAME, prefix + "orphan" + i,
+                    new ByteArrayInputStream(new byte[0]), metadata);
+        }
+        client.putObject(BUCKET_NAME, "elsewhere", new ByteArrayInputStream(
+                new byte[0]), metadata);
+
+        UploadFileSetToS3Task task = new UploadFileSetToS3Task();
+        task.setProject(new Project());
+        AWSTestUtils.useStub(task, stub);
+        FileSet fileset = new FileSet();
+        fileset.setDir(testFile1.getParentFile());
+        fileset.setFile(testFile1);
+        task.addFileset(fileset);
+        task.setBucketName(BUCKET_NAME);
+        task.setKeyPrefix(prefix);
+        task.setDeleteExtraneous(true);
+        try {
+            task.execute();
+            fail("Expected more deletions than maxDeletions to fail");
+        } catch (BuildException expected) {
+        }
+        // More keys than fit in one page of a listing
+        int orphans = 0;
+        for (String key : listKeys(prefix)) {
+            if (key.startsWith(prefix + "orphan")) {
+                orphans++;
+            }
+        }
+        assertEquals(1500, orphans);
+
+        int deleteCalls = stub.getCallCount("DeleteObjects");
+        task.setMaxDeletions(1500);
+        // Without the trailing slash, "mirrortest-backup/" would be mirrored
+        // too
+        task.setKeyPrefix("mirrortest");
+        try {
+            task.execute();
+            fail("Expected a keyPrefix without a trailing slash to fail");
+        } catch (BuildException expected) {
+            assertTrue(expected.getMessage(),
+                    expected.getMessage().contains("must end with \"/\""));
+        }
+        assertEquals(deleteCalls, stub.getCallCount("DeleteObjects"));
+
+        task.setKeyPrefix(prefix);
+        task.execute();
+        // Two batches of at most 1000 keys
+        assertEquals(deleteCalls + 2, stub.getCallCount("DeleteObjects"));
+        List<S3ObjectSummary> remaining = client.listObjects(BUCKET_NAME,
+                prefix).getObjectSummaries();
+        assertEquals(1, remaining.size());
+        assertEquals(prefix + fileName1, remaining.get(0).getKey());
+        assertTrue(client.doesBucketExist(BUCKET_NAME));
+        assertEquals(1, client.listObjects(BUCKET_NAME, "elsewhere")
+                .getObjectSummaries().size());
+    }
+
+    private static List<String> listKeys(String prefix) {
+        List<String> keys = new ArrayList<String>();
+        ObjectListing listing = client.listObjects(BUCKET_NAME, prefix);
+        while (true) {
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                keys.add(summary.getKey());
+            }
+            if (!listing.isTruncated()) {
+                return keys;
+            }
+            listing = client.listNextBatchOfObjects(listing);
+        }
+    }
+
     @After
     public void tearDown() {
 
@@ -122,6 +490,7 @@ public class UploadFileSetToS3TaskTests {
     @AfterClass
     public static void tearDownAfterClass() {
         AWSTestUtils.emptyAndDeleteBucket(client, BUCKET_NAME);
+        stub.stop();
         testFile1.delete();
         testFile2.delete();
         testFile3.delete();
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import static com.amazonaws.ant.stub.CloudFormationStub.required;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Serves the AWS Elastic Beanstalk query API. Environments are ready as soon
+ * as they are created, and updates are applied immediately.
+ */
+class BeanstalkStub {
+
+    private static final long CREATION_TIME = 1388534400000L;
+
+    private final Map<String, Map<String, Version>> applications = new LinkedHashMap<String, Map<String, Version>>();
+    private final Map<String, Environment> environments = new LinkedHashMap<String, Environment>();
+    private long versionsCreated;
+
+    synchronized StubResponse handle(String action, Map<String, String> form) {
+        if ("CreateApplication".equals(action)) {
+            String name = required(form, "ApplicationName");
+            if (applications.containsKey(name)) {
+                throw new StubException(400, "InvalidParameterValue",
+                        "Application " + name + " already exists.");
+            }
+            applications.put(name, new LinkedHashMap<String, Version>());
+            return StubResponse.queryResult(action, "<Application>"
+                    + StubResponse.element("ApplicationName", name)
+                    + StubResponse.element("Description",
+                            form.get("Description")) + "</Application>");
+        } else if ("DeleteApplication".equals(action)) {
+            applications.remove(required(form, "ApplicationName"));
+            return StubResponse.queryResult(action, "");
+        } else if ("CreateApplicationVersion".equals(action)) {
+            // Versions are a second apart, so their order is well defined
+            Version version = new Version(required(form, "VersionLabel"),
+                    form.get("SourceBundle.S3Bucket"),
+                    form.get("SourceBundle.S3Key"), new Date(
+                            CREATION_TIME + 1000 * versionsCreated++));
+            versions(required(form, "ApplicationName")).put(version.label,
+                    version);
+            return StubResponse.queryResult(action, "<ApplicationVersion>"
+                    + version.toXml(form.get("ApplicationName"))
+                    + "</ApplicationVersion>");
+        } else if ("DescribeApplicationVersions".equals(action)) {
+            StringBuilder members = new StringBuilder();
+            String name = form.get("ApplicationName");
+            for (Map.Entry<String, Map<String, Version>> application : applications
+                    .entrySet()) {
+                if (name == null || name.equals(application.getKey())) {
+                    for (Version version : application.getValue().values()) {
+                        members.append("<member>")
+                                .append(version.toXml(application.getKey()))
+                                .append("</member>");
+                    }
+                }
+            }
+            return StubResponse.queryResult(action, "<ApplicationVersions>"
+                    + members + "</ApplicationVersions>");
+        } else if ("DeleteApplicationVersion".equals(action)) {
+            if (versions(required(form, "ApplicationName")).remove(
+                    required(form, "VersionLabel")) == null) {
+                throw new StubException(400, "InvalidParameterValue",
+                        "No Application Version named '"
+                                + form.get("VersionLabel") + "' found.");
+            }
+            return StubResponse.queryResult(action, "");
+        } else if ("CheckDNSAvailability".equals(action)) {
+            String prefix = required(form, "CNAMEPrefix");
+            boolean available = true;
+            for (Environment environment : environments.values()) {
+                available &= !prefix.equals(environment.cnamePrefix);
+            }
+            return StubResponse.queryResult(action,
+                    StubResponse.element("Available", available)
+                            + StubResponse.element("FullyQualifiedCNAME",
+                                    prefix + ".elasticbeanstalk.com"));
+        } else if ("CreateEnvironment".equals(action)) {
+            String applicationName = required(form, "ApplicationName");
+            versions(applicationName);
+            Environment environment = new Environment(applicationName,
+                    required(form, "EnvironmentName"));
+            environment.versionLabel = form.get("VersionLabel");
+            environment.cnamePrefix = form.get("CNAMEPrefix");
+            environments.put(environment.name, environment);
+            return StubResponse.queryResult(action, environment.toXml());
+        } else if ("UpdateEnvironment".equals(action)) {
+            Environment environment = environment(form);
+            if (form.containsKey("VersionLabel")) {
+                environment.versionLabel = form.get("VersionLabel");
+            }
+            return StubResponse.queryResult(action, environment.toXml());
+        } else if ("TerminateEnvironment".equals(action)) {
+            Environment environment = environment(form);
+            environment.status = "Terminated";
+            return StubResponse.queryResult(action, environment.toXml());
+        } else if ("DescribeEnvironments".equals(action)) {
+            StringBuilder members = new StringBuilder();
+            String applicationName = form.get("ApplicationName");
+            boolean includeDeleted = !"false".equals(form
+                    .get("IncludeDeleted"));
+            for (Environment environment : environments.values()) {
+                if ((applicationName == null || applicationName
+                        .equals(environment.applicationName))
+                        && (includeDeleted || !"Terminated"
+                                .equals(environment.status))) {
+                    members.append("<member>").append(environment.toXml())
+                            .append("</member>");
+                }
+            }
+            return StubResponse.queryResult(action, "<Environments>"
+                    + members + "</Environments>");
+        }
+        throw new StubException(400, "InvalidAction", action
+                + " is not supported by the stub");
+    }
+
+    private Map<String, Version> versions(String applicationName) {
+        Map<String, Version> versions = applications.get(applicationName);
+        if (versions == null) {
+            throw new StubException(400, "InvalidParameterValue",
+                    "No Application named '" + applicationName + "' found.");
+        }
+        return versions;
+    }
+
+    private Environment environment(Map<String, String> form) {
+        String name = form.get("EnvironmentName");
+        for (Environment environment : environments.values()) {
+            if (environment.name.equals(name)
+                    || environment.id.equals(form.get("EnvironmentId"))) {
+                return environment;
+            }
+        }
+        throw new StubException(400, "InvalidParameterValue",
+                "No Environment found for EnvironmentName = '" + name + "'.");
+    }
+
+    private static class Version {
+        final String label;
+        final String bucket;
+        final String key;
+        final Date created;
+
+        Version(String label, String bucket, String key, Date created) {
+            this.label = label;
+            this.bucket = bucket;
+            this.key = key;
+            this.created = created;
+        }
+
+        String toXml(String applicationName) {
+            String sourceBundle = bucket == null ? "" : "<SourceBundle>"
+                    + StubResponse.element("S3Bucket", bucket)
+                    + StubResponse.element("S3Key", key) + "</SourceBundle>";
+            return StubResponse.element("ApplicationName", applicationName)
+                    + StubResponse.element("VersionLabel", label)
+                    + sourceBundle
+                    + StubResponse.element("DateCreated",
+                            S3Stub.iso8601(created));
+        }
+    }
+
+    private static class Environment {
+        final String applicationName;
+        final String name;
+        final String id = "e-" + UUID.randomUUID().toString().substring(0, 10);
+        String versionLabel;
+        String cnamePrefix;
+        String status = "Ready";
+
+        Environment(String applicationName, String name) {
+            this.applicationName = applicationName;
+            this.name = name;
+        }
+
+        String toXml() {
+            return StubResponse.element("EnvironmentName", name)
+                    + StubResponse.element("EnvironmentId", id)
+                    + StubResponse.element("ApplicationName", applicationName)
+                    + StubResponse.element("VersionLabel", versionLabel)
+                    + StubResponse.element("CNAME",
+                            cnamePrefix == null ? null : cnamePrefix
+                                    + ".elasticbeanstalk.com")
+                    + StubResponse.element("Status", status)
+                    + StubResponse.element("Health", "Green");
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Serves the AWS CloudFormation query API. Stacks reach their complete state
+ * as soon as they are created or updated.
+ */
+class CloudFormationStub {
+
+    private final Map<String, Stack> stacks = new LinkedHashMap<String, Stack>();
+
+    synchronized StubResponse handle(String action, Map<String, String> form) {
+        if ("CreateStack".equals(action)) {
+            String name = required(form, "StackName");
+            if (stacks.containsKey(name)) {
+                throw new StubException(400, "AlreadyExistsException",
+                        "Stack [" + name + "] already exists");
+            }
+            Stack stack = new Stack(name);
+            stack.update(form);
+            stack.status = "CREATE_COMPLETE";
+            stacks.put(name, stack);
+            return StubResponse.queryResult(action,
+                    StubResponse.element("StackId", stack.id));
+        } else if ("UpdateStack".equals(action)) {
+            Stack stack = stack(required(form, "StackName"));
+            stack.update(form);
+            stack.status = "UPDATE_COMPLETE";
+            return StubResponse.queryResult(action,
+                    StubResponse.element("StackId", stack.id));
+        } else if ("DescribeStacks".equals(action)) {
+            StringBuilder members = new StringBuilder();
+            String name = form.get("StackName");
+            if (name != null) {
+                members.append(stack(name).toXml());
+            } else {
+                for (Stack stack : stacks.values()) {
+                    members.append(stack.toXml());
+                }
+            }
+            return StubResponse.queryResult(action, "<Stacks>" + members
+                    + "</Stacks>");
+        } else if ("SetStackPolicy".equals(action)) {
+            stack(required(form, "StackName")).policy = form
+                    .get("StackPolicyBody");
+            return StubResponse.queryResult(action, "");
+        } else if ("DeleteStack".equals(action)) {
+            stacks.remove(required(form, "StackName"));
+            return StubResponse.queryResult(action, "");
+        }
+        throw new StubException(400, "InvalidAction", action
+                + " is not supported by the stub");
+    }
+
+    private Stack stack(String name) {
+        Stack stack = stacks.get(name);
+        if (stack == null) {
+            for (Stack candidate : stacks.values()) {
+                if (candidate.id.equals(name)) {
+                    return candidate;
+                }
+            }
+            throw new StubException(400, "ValidationError", "Stack with id "
+                    + name + " does not exist");
+        }
+        return stack;
+    }
+
+    static String required(Map<String, String> form, String name) {
+        String value = form.get(name);
+        if (value == null) {
+            throw new StubException(400, "ValidationError", name
+                    + " is required");
+        }
+        return value;
+    }
+
+    private static class Stack {
+        final String name;
+        final String id;
+        final Map<String, String> parameters = new LinkedHashMap<String, String>();
+        final Map<String, String> tags = new LinkedHashMap<String, String>();
+        String status;
+        String policy;
+
+        Stack(String name) {
+            this.name = name;
+            this.id = "arn:aws:cloudformation:us-east-1:123456789012:stack/"
+                    + name + "/" + UUID.randomUUID();
+        }
+
+        void update(Map<String, String> form) {
+            for (int i = 1; form.containsKey("Parameters.member." + i
+                    + ".ParameterKey"); i++) {
+                String prefix = "Parameters.member." + i + ".";
+                if (!"true".equals(form.get(prefix + "UsePreviousValue"))) {
+                    parameters.put(form.get(prefix + "ParameterKey"),
+                            form.get(prefix + "ParameterValue"));
+                }
+            }
+            for (int i = 1; form.containsKey("Tags.member." + i + ".Key"); i++) {
+                tags.put(form.get("Tags.member." + i + ".Key"),
+                        form.get("Tags.member." + i + ".Value"));
+            }
+            if (form.containsKey("StackPolicyBody")) {
+                policy = form.get("StackPolicyBody");
+            }
+        }
+
+        String toXml() {
+            StringBuilder xml = new StringBuilder("<member>")
+                    .append(StubResponse.element("StackName", name))
+                    .append(StubResponse.element("StackId", id))
+                    .append(StubResponse.element("StackStatus", status))
+                    .append(StubResponse.element("CreationTime",
+                            "2014-01-01T00:00:00Z"))
+                    .append("<Parameters>");
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                xml.append("<member>")
+                        .append(StubResponse.element("ParameterKey",
+                                parameter.getKey()))
+                        .append(StubResponse.element("ParameterValue",
+                                parameter.getValue())).append("</member>");
+            }
+            xml.append("</Parameters><Tags>");
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                xml.append("<member>")
+                        .append(StubResponse.element("Key", tag.getKey()))
+                        .append(StubResponse.element("Value", tag.getValue()))
+                        .append("</member>");
+            }
+            return xml.append("</Tags></member>").toString();
+        }
+    }
+}
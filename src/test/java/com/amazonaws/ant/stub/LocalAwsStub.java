@@ -0,0 +1,525 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.impl.DefaultBHttpServerConnectionFactory;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.ResponseDate;
+import org.apache.http.protocol.UriHttpRequestHandlerMapper;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * An in-process stand-in for the parts of Amazon S3, AWS CloudFormation, AWS
+ * Elastic Beanstalk and AWS OpsWorks that the tasks use, so that tests can
+ * run without an AWS account or a network connection. All four services are
+ * served from one endpoint; point tasks at it with their awsEndpoint
+ * attribute or the "aws.endpoint" property.
+ *
+ * State is kept in memory, and operations complete immediately: stacks are
+ * created complete, instances start online and deployments succeed. Latency
+ * and errors can be injected to exercise retries, throttling and timeouts,
+ * and OpsWorks deployments and instances can be made to fail.
+ */
+public class LocalAwsStub {
+
+    public static final String S3 = "s3";
+    public static final String CLOUDFORMATION = "cloudformation";
+    public static final String ELASTICBEANSTALK = "elasticbeanstalk";
+    public static final String OPSWORKS = "opsworks";
+
+    private static final String CLOUDFORMATION_VERSION = "2010-05-15";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final HttpService httpService;
+    private final Set<DefaultBHttpServerConnection> connections = Collections
+            .newSetFromMap(new ConcurrentHashMap<DefaultBHttpServerConnection, Boolean>());
+    private final S3Stub s3 = new S3Stub();
+    private final CloudFormationStub cloudFormation = new CloudFormationStub();
+    private final BeanstalkStub beanstalk = new BeanstalkStub();
+    private final OpsWorksStub opsWorks = new OpsWorksStub();
+
+    private final ConcurrentMap<String, AtomicInteger> callCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final List<InjectedError> injectedErrors = new CopyOnWriteArrayList<InjectedError>();
+    private final Random random = new Random();
+    private volatile long latencyInMs;
+    private volatile InjectedError randomError;
+    private volatile double errorRate;
+
+    /**
+     * Starts a stub on a free local port.
+     *
+     * @throws IOException
+     *             If the server can't be started
+     */
+    public LocalAwsStub() throws IOException {
+        serverSocket = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "local-aws-stub");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        UriHttpRequestHandlerMapper handlers = new UriHttpRequestHandlerMapper();
+        handlers.register("*", new HttpRequestHandler() {
+            public void handle(HttpRequest request, HttpResponse response,
+                    HttpContext context) throws IOException {
+                LocalAwsStub.this.handle(request, response);
+            }
+        });
+        // The response headers are written as given: the SDK matches some
+        // of them, such as ETag, case-sensitively
+        httpService = new HttpService(HttpProcessorBuilder.create()
+                .add(new ResponseDate()).add(new ResponseContent(true))
+                .add(new ResponseConnControl()).build(), handlers);
+        executor.execute(new Runnable() {
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * @return The endpoint URL of the stub, such as "http://127.0.0.1:4567".
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops the stub. Its state is lost.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (DefaultBHttpServerConnection connection : connections) {
+            try {
+                connection.shutdown();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Makes the stub keep the content of S3 objects in files in the given
+     * directory instead of in memory, so that it can hold objects larger than
+     * the heap. Only objects stored afterwards are affected. The directory is
+     * not cleaned up by the stub.
+     *
+     * @param directory
+     *            An existing directory, or null to keep content in memory.
+     */
+    public void setStorageDirectory(File directory) {
+        s3.setStorageDirectory(directory);
+    }
+
+    /**
+     * Set how long every request is delayed before it is handled.
+     *
+     * @param latencyInMs
+     *            The delay, in milliseconds.
+     */
+    public void setLatencyInMs(long latencyInMs) {
+        this.latencyInMs = latencyInMs;
+    }
+
+    /**
+     * Makes the next calls of an operation fail.
+     *
+     * @param operation
+     *            The operation to fail, such as "DescribeStacks" or
+     *            "PutObject", or "*" for any operation.
+     * @param status
+     *            The HTTP status to answer with.
+     * @param errorCode
+     *            The error code to answer with, such as "Throttling".
+     * @param count
+     *            How many calls to fail.
+     */
+    public void injectErrors(String operation, int status, String errorCode,
+            int count) {
+        injectedErrors.add(new InjectedError(operation, status, errorCode,
+                count));
+    }
+
+    /**
+     * Makes a random fraction of all calls fail.
+     *
+     * @param rate
+     *            The fraction of calls to fail, between 0 and 1.
+     * @param status
+     *            The HTTP status to answer with.
+     * @param errorCode
+     *            The error code to answer with, such as "Throttling".
+     */
+    public void setErrorRate(double rate, int status, String errorCode) {
+        randomError = new InjectedError("*", status, errorCode, 0);
+        errorRate = rate;
+    }
+
+    /**
+     * Makes the OpsWorks deployments of an app fail from now on.
+     *
+     * @param appId
+     *            The ID of the app whose deployments should fail.
+     */
+    public void failDeploymentsOf(String appId) {
+        opsWorks.failDeploymentsOf(appId);
+    }
+
+    /**
+     * Makes the OpsWorks deployments to an instance fail from now on.
+     *
+     * @param instanceId
+     *            The ID of the instance whose deployments should fail.
+     */
+    public void failDeploymentsTo(String instanceId) {
+        opsWorks.failDeploymentsTo(instanceId);
+    }
+
+    /**
+     * Keeps OpsWorks deployments created from now on running until they have
+     * been described the given number of times. They are seen to finish by
+     * the next describe. The default of 0 makes deployments finish at once.
+     *
+     * @param polls
+     *            How many describes see each new deployment running.
+     */
+    public void setDeploymentRunningPolls(int polls) {
+        opsWorks.setDeploymentRunningPolls(polls);
+    }
+
+    /**
+     * Keeps OpsWorks instances started from now on booting until they have
+     * been described the given number of times. They are seen online by the
+     * next describe. The default of 0 brings instances online at once.
+     *
+     * @param polls
+     *            How many describes see each started instance booting.
+     */
+    public void setInstanceBootingPolls(int polls) {
+        opsWorks.setInstanceBootingPolls(polls);
+    }
+
+    /**
+     * Changes the status of an OpsWorks instance, such as to simulate it
+     * losing its connection.
+     *
+     * @param instanceId
+     *            The ID of the instance.
+     * @param status
+     *            The new status, such as "connection_lost".
+     */
+    public void setInstanceStatus(String instanceId, String status) {
+        opsWorks.setInstanceStatus(instanceId, status);
+    }
+
+    /**
+     * @param operation
+     *            The operation, such as "CreateDeployment".
+     * @return How many times the operation was called, including calls that
+     *         failed.
+     */
+    public int getCallCount(String operation) {
+        AtomicInteger count = callCounts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            executor.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        DefaultBHttpServerConnection connection = null;
+        try {
+            connection = DefaultBHttpServerConnectionFactory.INSTANCE
+                    .createConnection(socket);
+            connections.add(connection);
+            while (connection.isOpen() && !serverSocket.isClosed()) {
+                httpService.handleRequest(connection, new BasicHttpContext());
+            }
+        } catch (ConnectionClosedException e) {
+            // The client closed the connection
+        } catch (IOException e) {
+            // The connection was reset or the stub stopped
+        } catch (HttpException e) {
+            // Malformed request; drop the connection
+        } finally {
+            if (connection != null) {
+                connections.remove(connection);
+                try {
+                    connection.shutdown();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+    }
+
+    private void handle(HttpRequest httpRequest, HttpResponse httpResponse)
+            throws IOException {
+        Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+                String.CASE_INSENSITIVE_ORDER);
+        for (Header header : httpRequest.getAllHeaders()) {
+            List<String> values = headers.get(header.getName());
+            if (values == null) {
+                values = new ArrayList<String>();
+                headers.put(header.getName(), values);
+            }
+            values.add(header.getValue());
+        }
+        HttpEntity entity = httpRequest instanceof HttpEntityEnclosingRequest ? ((HttpEntityEnclosingRequest) httpRequest)
+                .getEntity() : null;
+        InputStream body = entity == null ? new ByteArrayInputStream(
+                new byte[0]) : entity.getContent();
+        StubRequest request = new StubRequest(httpRequest.getRequestLine()
+                .getMethod(), httpRequest.getRequestLine().getUri(), headers,
+                body);
+        try {
+            send(httpResponse, dispatch(request), "HEAD".equals(request.method));
+        } finally {
+            // Whatever a handler left unread must not be taken for the next
+            // request on the connection
+            EntityUtils.consume(entity);
+        }
+    }
+
+    private StubResponse dispatch(StubRequest request) {
+        String target = request.header("X-Amz-Target");
+        // Query protocol calls are posted to the root. Amazon S3 requests are
+        // always addressed to a bucket, and their bodies, which the SDK may
+        // label as form data, are left unread for the S3 stub to stream.
+        Map<String, String> form = "/".equals(request.path) ? request.form()
+                : new HashMap<String, String>();
+        String service;
+        String operation;
+        if (target != null) {
+            service = OPSWORKS;
+            operation = target.substring(target.indexOf('.') + 1);
+        } else if (form.containsKey("Action")) {
+            service = CLOUDFORMATION_VERSION.equals(form.get("Version")) ? CLOUDFORMATION
+                    : ELASTICBEANSTALK;
+            operation = form.get("Action");
+        } else {
+            service = S3;
+            operation = S3Stub.operationOf(request);
+        }
+        count(operation);
+
+        StubResponse response;
+        try {
+            if (latencyInMs > 0) {
+                Thread.sleep(latencyInMs);
+            }
+            failIfInjected(operation);
+            if (OPSWORKS.equals(service)) {
+                if (!target.startsWith("OpsWorks_")) {
+                    throw new StubException(400, "UnknownOperationException",
+                            "Unsupported target " + target);
+                }
+                response = opsWorks.handle(operation, request.bodyAsString());
+            } else if (CLOUDFORMATION.equals(service)) {
+                response = cloudFormation.handle(operation, form);
+            } else if (ELASTICBEANSTALK.equals(service)) {
+                response = beanstalk.handle(operation, form);
+            } else {
+                response = s3.handle(operation, request);
+            }
+        } catch (StubException e) {
+            response = errorResponse(service, request, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = errorResponse(service, request, new StubException(500,
+                    "InternalError", "Interrupted"));
+        } catch (RuntimeException e) {
+            response = errorResponse(service, request, new StubException(500,
+                    "InternalError", e.toString()));
+        }
+        return response;
+    }
+
+    private void count(String operation) {
+        AtomicInteger count = callCounts.get(operation);
+        if (count == null) {
+            callCounts.putIfAbsent(operation, new AtomicInteger());
+            count = callCounts.get(operation);
+        }
+        count.incrementAndGet();
+    }
+
+    private void failIfInjected(String operation) {
+        for (InjectedError error : injectedErrors) {
+            if (error.matches(operation)
+                    && error.remaining.getAndDecrement() > 0) {
+                throw new StubException(error.status, error.errorCode,
+                        "Injected error");
+            }
+        }
+        InjectedError error = randomError;
+        if (error != null && random.nextDouble() < errorRate) {
+            throw new StubException(error.status, error.errorCode,
+                    "Injected error");
+        }
+    }
+
+    private static StubResponse errorResponse(String service,
+            StubRequest request, StubException e) {
+        String message = e.getMessage() == null ? "" : e.getMessage();
+        if (OPSWORKS.equals(service)) {
+            return StubResponse.json(e.status, "{\"__type\":\"" + e.code
+                    + "\",\"message\":\"" + message.replace("\"", "'")
+                    + "\"}");
+        } else if (S3.equals(service)) {
+            if ("HEAD".equals(request.method)) {
+                return StubResponse.empty(e.status);
+            }
+            return StubResponse.xml(e.status, "<Error>"
+                    + StubResponse.element("Code", e.code)
+                    + StubResponse.element("Message", message)
+                    + "<RequestId>stub</RequestId></Error>");
+        }
+        return StubResponse.xml(e.status, "<ErrorResponse><Error>"
+                + "<Type>Sender</Type>"
+                + StubResponse.element("Code", e.code)
+                + StubResponse.element("Message", message)
+                + "</Error><RequestId>stub</RequestId></ErrorResponse>");
+    }
+
+    private static void send(HttpResponse httpResponse, StubResponse response,
+            boolean head) {
+        httpResponse.setStatusCode(response.status);
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            httpResponse.setHeader(header.getKey(), header.getValue());
+        }
+        httpResponse.setHeader("x-amz-request-id", "stub");
+        if (head) {
+            // HttpService writes the entity of every response, so a HEAD
+            // response gets one with the length of the content but no content
+            long length = response.file != null ? response.file.length()
+                    : response.body != null ? response.body.length : 0;
+            httpResponse.setEntity(new HeadEntity(length));
+        } else if (response.file != null) {
+            httpResponse.setEntity(new FileEntity(response.file));
+        } else if (response.body != null) {
+            httpResponse.setEntity(new ByteArrayEntity(response.body));
+        }
+    }
+
+    private static class InjectedError {
+        final String operation;
+        final int status;
+        final String errorCode;
+        final AtomicInteger remaining;
+
+        InjectedError(String operation, int status, String errorCode,
+                int count) {
+            this.operation = operation;
+            this.status = status;
+            this.errorCode = errorCode;
+            this.remaining = new AtomicInteger(count);
+        }
+
+        boolean matches(String calledOperation) {
+            return "*".equals(operation) || operation.equals(calledOperation);
+        }
+    }
+
+    private static class HeadEntity extends AbstractHttpEntity {
+        private final long length;
+
+        HeadEntity(long length) {
+            this.length = length;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+
+        public InputStream getContent() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public void writeTo(OutputStream out) {
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Serves the AWS OpsWorks JSON API. Resources are stored as the requests that
+ * created them, plus their ID and status. Instances come online as soon as
+ * they are started unless they were made to stay booting for a number of
+ * polls. Deployments succeed unless their app or one of their instances was
+ * made to fail, and finish immediately unless they were made to stay running
+ * for a number of polls.
+ */
+class OpsWorksStub {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, ObjectNode> stacks = new LinkedHashMap<String, ObjectNode>();
+    private final Map<String, ObjectNode> layers = new LinkedHashMap<String, ObjectNode>();
+    private final Map<String, ObjectNode> apps = new LinkedHashMap<String, ObjectNode>();
+    private final Map<String, ObjectNode> instances = new LinkedHashMap<String, ObjectNode>();
+    private final Map<String, ObjectNode> deployments = new LinkedHashMap<String, ObjectNode>();
+    private final Set<String> failingAppIds = new HashSet<String>();
+    private final Set<String> failingInstanceIds = new HashSet<String>();
+    private final Map<String, Integer> runningPolls = new HashMap<String, Integer>();
+    private final Map<String, String> finalStatuses = new HashMap<String, String>();
+    private int deploymentRunningPolls;
+    private int instanceBootingPolls;
+
+    synchronized void failDeploymentsOf(String appId) {
+        failingAppIds.add(appId);
+    }
+
+    synchronized void failDeploymentsTo(String instanceId) {
+        failingInstanceIds.add(instanceId);
+    }
+
+    synchronized void setDeploymentRunningPolls(int polls) {
+        deploymentRunningPolls = polls;
+    }
+
+    synchronized void setInstanceBootingPolls(int polls) {
+        instanceBootingPolls = polls;
+    }
+
+    synchronized void setInstanceStatus(String instanceId, String status) {
+        ObjectNode instance = instances.get(instanceId);
+        if (instance == null) {
+            throw new IllegalArgumentException("No instance " + instanceId);
+        }
+        instance.put("Status", status);
+        runningPolls.remove(instanceId);
+        finalStatuses.remove(instanceId);
+    }
+
+    synchronized StubResponse handle(String operation, String body) {
+        ObjectNode request;
+        try {
+            JsonNode parsed = mapper.readTree(body.length() == 0 ? "{}" : body);
+            request = parsed instanceof ObjectNode ? (ObjectNode) parsed
+                    : mapper.createObjectNode();
+        } catch (IOException e) {
+            throw new StubException(400, "SerializationException",
+                    e.getMessage());
+        }
+
+        ObjectNode result = mapper.createObjectNode();
+        if ("CreateStack".equals(operation)) {
+            result.put("StackId", create(stacks, "StackId", request));
+        } else if ("DescribeStacks".equals(operation)) {
+            result.set("Stacks",
+                    describe(stacks, "StackId", request.get("StackIds"), null,
+                            null));
+        } else if ("StartStack".equals(operation)) {
+            String stackId = get(stacks, "StackId", request).get("StackId")
+                    .asText();
+            for (ObjectNode instance : instances.values()) {
+                if (stackId.equals(instance.path("StackId").asText())) {
+                    instance.put("Status", "online");
+                }
+            }
+        } else if ("DeleteStack".equals(operation)) {
+            delete(stacks, "StackId", request);
+        } else if ("CreateLayer".equals(operation)) {
+            get(stacks, "StackId", request);
+            result.put("LayerId", create(layers, "LayerId", request));
+        } else if ("DescribeLayers".equals(operation)) {
+            result.set("Layers",
+                    describe(layers, "LayerId", request.get("LayerIds"),
+                            "StackId", request.get("StackId")));
+        } else if ("DeleteLayer".equals(operation)) {
+            delete(layers, "LayerId", request);
+        } else if ("CreateApp".equals(operation)) {
+            get(stacks, "StackId", request);
+            result.put("AppId", create(apps, "AppId", request));
+        } else if ("DescribeApps".equals(operation)) {
+            result.set("Apps",
+                    describe(apps, "AppId", request.get("AppIds"), "StackId",
+                            request.get("StackId")));
+        } else if ("UpdateApp".equals(operation)) {
+            get(apps, "AppId", request).setAll(request);
+        } else if ("DeleteApp".equals(operation)) {
+            delete(apps, "AppId", request);
+        } else if ("CreateInstance".equals(operation)) {
+            get(stacks, "StackId", request);
+            request.put("Status", "stopped");
+            result.put("InstanceId", create(instances, "InstanceId", request));
+        } else if ("StartInstance".equals(operation)) {
+            ObjectNode instance = get(instances, "InstanceId", request);
+            if (instanceBootingPolls > 0) {
+                instance.put("Status", "booting");
+                runningPolls.put(instance.get("InstanceId").asText(),
+                        instanceBootingPolls);
+                finalStatuses.put(instance.get("InstanceId").asText(),
+                        "online");
+            } else {
+                instance.put("Status", "online");
+            }
+        } else if ("StopInstance".equals(operation)) {
+            get(instances, "InstanceId", request).put("Status", "stopped");
+        } else if ("DeleteInstance".equals(operation)) {
+            delete(instances, "InstanceId", request);
+        } else if ("DescribeInstances".equals(operation)) {
+            ArrayNode described = request.has("LayerId") ? describeInLayer(request
+                    .get("LayerId").asText()) : describe(instances,
+                    "InstanceId", request.get("InstanceIds"), "StackId",
+                    request.get("StackId"));
+            result.set("Instances", described);
+            for (JsonNode instance : described) {
+                advance((ObjectNode) instance, "InstanceId");
+            }
+        } else if ("CreateDeployment".equals(operation)) {
+            get(stacks, "StackId", request);
+            String status = failingAppIds.contains(request.path("AppId")
+                    .asText()) ? "failed" : "successful";
+            for (JsonNode instanceId : request.path("InstanceIds")) {
+                if (failingInstanceIds.contains(instanceId.asText())) {
+                    status = "failed";
+                }
+            }
+            request.put("Status", deploymentRunningPolls > 0 ? "running"
+                    : status);
+            request.put("CreatedAt", "2014-01-01T00:00:00+00:00");
+            request.put("CompletedAt", "2014-01-01T00:00:01+00:00");
+            String deploymentId = create(deployments, "DeploymentId", request);
+            if (deploymentRunningPolls > 0) {
+                runningPolls.put(deploymentId, deploymentRunningPolls);
+                finalStatuses.put(deploymentId, status);
+            }
+            result.put("DeploymentId", deploymentId);
+        } else if ("DescribeDeployments".equals(operation)) {
+            String parentField = request.has("AppId") ? "AppId" : "StackId";
+            ArrayNode described = describe(deployments, "DeploymentId",
+                    request.get("DeploymentIds"), parentField,
+                    request.get(parentField));
+            result.set("Deployments", described);
+            for (JsonNode deployment : described) {
+                advance((ObjectNode) deployment, "DeploymentId");
+            }
+        } else {
+            throw new StubException(400, "UnknownOperationException",
+                    operation + " is not supported by the stub");
+        }
+        return StubResponse.json(200, result.toString());
+    }
+
+    private static String create(Map<String, ObjectNode> resources,
+            String idField, ObjectNode request) {
+        String id = UUID.randomUUID().toString();
+        request.put(idField, id);
+        resources.put(id, request);
+        return id;
+    }
+
+    private static ObjectNode get(Map<String, ObjectNode> resources,
+            String idField, ObjectNode request) {
+        JsonNode id = request.get(idField);
+        if (id == null) {
+            throw new StubException(400, "ValidationException", idField
+                    + " is required");
+        }
+        ObjectNode resource = resources.get(id.asText());
+        if (resource == null) {
+            throw new StubException(400, "ResourceNotFoundException",
+                    "Unable to find " + idField + " " + id.asText());
+        }
+        return resource;
+    }
+
+    private static void delete(Map<String, ObjectNode> resources,
+            String idField, ObjectNode request) {
+        get(resources, idField, request);
+        resources.remove(request.get(idField).asText());
+    }
+
+    private ArrayNode describe(Map<String, ObjectNode> resources,
+            String idField, JsonNode ids, String parentField, JsonNode parentId) {
+        ArrayNode described = mapper.createArrayNode();
+        if (ids != null) {
+            for (JsonNode id : ids) {
+                ObjectNode resource = resources.get(id.asText());
+                if (resource == null) {
+                    throw new StubException(400, "ResourceNotFoundException",
+                            "Unable to find " + idField + " " + id.asText());
+                }
+                described.add(resource);
+            }
+            return described;
+        }
+        for (ObjectNode resource : resources.values()) {
+            if (parentId == null
+                    || parentId.asText().equals(
+                            resource.path(parentField).asText())) {
+                described.add(resource);
+            }
+        }
+        return described;
+    }
+
+    /**
+     * Counts a poll of a running deployment or booting instance. The poll that
+     * finds no polls left sees it in its final status.
+     */
+    private void advance(ObjectNode resource, String idField) {
+        String id = resource.path(idField).asText();
+        Integer polls = runningPolls.get(id);
+        if (polls == null) {
+            return;
+        }
+        if (polls > 0) {
+            runningPolls.put(id, polls - 1);
+        } else {
+            resource.put("Status", finalStatuses.remove(id));
+            runningPolls.remove(id);
+        }
+    }
+
+    private ArrayNode describeInLayer(String layerId) {
+        ArrayNode described = mapper.createArrayNode();
+        for (ObjectNode instance : instances.values()) {
+            for (JsonNode id : instance.path("LayerIds")) {
+                if (layerId.equals(id.asText())) {
+                    described.add(instance);
+                    break;
+                }
+            }
+        }
+        return described;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the S3 REST API with path-style addressing: buckets, objects,
+ * listings, copies, multipart uploads and multi-object deletes. Objects keep
+ * their content type, content encoding, cache control and user metadata.
+ */
+class S3Stub {
+
+    private static final int DEFAULT_MAX_KEYS = 1000;
+    private static final Pattern DELETE_KEY = Pattern
+            .compile("<Key>([^<]*)</Key>");
+    private static final Pattern RANGE = Pattern
+            .compile("bytes=(\\d*)-(\\d*)");
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, StoredObject>> buckets = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoredObject>>();
+    private final ConcurrentMap<String, MultipartUpload> uploads = new ConcurrentHashMap<String, MultipartUpload>();
+    private volatile File storageDirectory;
+
+    void setStorageDirectory(File storageDirectory) {
+        this.storageDirectory = storageDirectory;
+    }
+
+    static String operationOf(StubRequest request) {
+        String[] bucketAndKey = split(request.path);
+        boolean hasKey = bucketAndKey[1].length() > 0;
+        String method = request.method;
+        if ("POST".equals(method)) {
+            if (request.query.containsKey("uploads")) {
+                return "CreateMultipartUpload";
+            } else if (request.query.containsKey("uploadId")) {
+                return "CompleteMultipartUpload";
+            }
+            return "DeleteObjects";
+        } else if ("PUT".equals(method)) {
+            if (!hasKey) {
+                return "CreateBucket";
+            } else if (request.query.containsKey("uploadId")) {
+                return request.header("x-amz-copy-source") != null ? "UploadPartCopy"
+                        : "UploadPart";
+            } else if (request.header("x-amz-copy-source") != null) {
+                return "CopyObject";
+            }
+            return "PutObject";
+        } else if ("DELETE".equals(method)) {
+            if (!hasKey) {
+                return "DeleteBucket";
+            } else if (request.query.containsKey("uploadId")) {
+                return "AbortMultipartUpload";
+            }
+            return "DeleteObject";
+        } else if ("HEAD".equals(method)) {
+            return hasKey ? "HeadObject" : "HeadBucket";
+        }
+        if (hasKey && request.query.containsKey("uploadId")) {
+            return "ListParts";
+        }
+        return hasKey ? "GetObject" : "ListObjects";
+    }
+
+    StubResponse handle(String operation, StubRequest request) {
+        String[] bucketAndKey = split(request.path);
+        String bucket = bucketAndKey[0];
+        String key = bucketAndKey[1];
+        if ("CreateBucket".equals(operation)) {
+            buckets.putIfAbsent(bucket,
+                    new ConcurrentSkipListMap<String, StoredObject>());
+            return StubResponse.empty(200).header("Location", "/" + bucket);
+        } else if ("HeadBucket".equals(operation)) {
+            objects(bucket);
+            return StubResponse.empty(200);
+        } else if ("DeleteBucket".equals(operation)) {
+            if (!objects(bucket).isEmpty()) {
+                throw new StubException(409, "BucketNotEmpty",
+                        "The bucket you tried to delete is not empty");
+            }
+            buckets.remove(bucket);
+            return StubResponse.empty(204);
+        } else if ("ListObjects".equals(operation)) {
+            return listObjects(bucket, request.query);
+        } else if ("PutObject".equals(operation)) {
+            StubContent content = StubContent.read(request.bodyStream(),
+                    storageDirectory);
+            StoredObject object = new StoredObject(content,
+                    metadataOf(request), StubContent.hex(content.md5));
+            objects(bucket).put(key, object);
+            return StubResponse.empty(200).header("ETag",
+                    "\"" + object.eTag + "\"");
+        } else if ("CopyObject".equals(operation)) {
+            return copyObject(bucket, key, request);
+        } else if ("GetObject".equals(operation)
+                || "HeadObject".equals(operation)) {
+            return getObject(bucket, key, request);
+        } else if ("DeleteObject".equals(operation)) {
+            objects(bucket).remove(key);
+            return StubResponse.empty(204);
+        } else if ("DeleteObjects".equals(operation)) {
+            return deleteObjects(bucket, request);
+        } else if ("CreateMultipartUpload".equals(operation)) {
+            objects(bucket);
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new MultipartUpload(bucket, key,
+                    metadataOf(request)));
+            return StubResponse.xml(200, "<InitiateMultipartUploadResult>"
+                    + StubResponse.element("Bucket", bucket)
+                    + StubResponse.element("Key", key)
+                    + StubResponse.element("UploadId", uploadId)
+                    + "</InitiateMultipartUploadResult>");
+        } else if ("UploadPart".equals(operation)) {
+            MultipartUpload upload = upload(request.query.get("uploadId"));
+            StubContent part = StubContent.read(request.bodyStream(),
+                    storageDirectory);
+            upload.parts.put(
+                    Integer.parseInt(request.query.get("partNumber")), part);
+            return StubResponse.empty(200).header("ETag",
+                    "\"" + StubContent.hex(part.md5) + "\"");
+        } else if ("UploadPartCopy".equals(operation)) {
+            return uploadPartCopy(request);
+        } else if ("CompleteMultipartUpload".equals(operation)) {
+            return completeMultipartUpload(request.query.get("uploadId"));
+        } else if ("ListParts".equals(operation)) {
+            return listParts(request.query);
+        } else if ("AbortMultipartUpload".equals(operation)) {
+            MultipartUpload upload = uploads.remove(request.query
+                    .get("uploadId"));
+            if (upload != null) {
+                for (StubContent part : upload.parts.values()) {
+                    part.discard();
+                }
+            }
+            return StubResponse.empty(204);
+        }
+        throw new StubException(400, "NotImplemented", operation
+                + " is not supported by the stub");
+    }
+
+    private StubResponse listObjects(String bucket, Map<String, String> query) {
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String marker = query.containsKey("marker") ? query.get("marker") : "";
+        String delimiter = query.get("delimiter");
+        int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query
+                .get("max-keys")) : DEFAULT_MAX_KEYS;
+
+        StringBuilder contents = new StringBuilder();
+        Map<String, Boolean> commonPrefixes = new LinkedHashMap<String, Boolean>();
+        int count = 0;
+        String lastKey = null;
+        boolean truncated = false;
+        NavigableMap<String, StoredObject> candidates = objects(bucket)
+                .tailMap(marker, false);
+        for (Map.Entry<String, StoredObject> entry : candidates.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                if (key.compareTo(prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            lastKey = key;
+            if (delimiter != null && delimiter.length() > 0) {
+                int index = key.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    String commonPrefix = key.substring(0,
+                            index + delimiter.length());
+                    if (commonPrefixes.put(commonPrefix, true) == null) {
+                        count++;
+                    }
+                    continue;
+                }
+            }
+            StoredObject object = entry.getValue();
+            contents.append("<Contents>")
+                    .append(StubResponse.element("Key", key))
+                    .append(StubResponse.element("LastModified",
+                            iso8601(object.lastModified)))
+                    .append(StubResponse.element("ETag",
+                            "\"" + object.eTag + "\""))
+                    .append(StubResponse.element("Size", object.content.length))
+                    .append("<StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+        }
+
+        StringBuilder xml = new StringBuilder("<ListBucketResult>")
+                .append(StubResponse.element("Name", bucket))
+                .append(StubResponse.element("Prefix", prefix))
+                .append(StubResponse.element("Marker", marker))
+                .append(StubResponse.element("MaxKeys", maxKeys))
+                .append(StubResponse.element("Delimiter", delimiter))
+                .append(StubResponse.element("IsTruncated", truncated));
+        if (truncated) {
+            xml.append(StubResponse.element("NextMarker", lastKey));
+        }
+        xml.append(contents);
+        for (String commonPrefix : commonPrefixes.keySet()) {
+            xml.append("<CommonPrefixes>")
+                    .append(StubResponse.element("Prefix", commonPrefix))
+                    .append("</CommonPrefixes>");
+        }
+        return StubResponse.xml(200, xml.append("</ListBucketResult>")
+                .toString());
+    }
+
+    private StubResponse getObject(String bucket, String key,
+            StubRequest request) {
+        StoredObject object = objects(bucket).get(key);
+        if (object == null) {
+            throw new StubException(404, "NoSuchKey",
+                    "The specified key does not exist.");
+        }
+        StubContent content = object.content;
+        long length = content.length;
+        int status = 200;
+        StubResponse response;
+        String range = request.header("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.matches()
+                && "GetObject".equals(operationOf(request))) {
+            long start;
+            long end;
+            if (matcher.group(1).length() == 0) {
+                start = Math.max(0, length - Long.parseLong(matcher.group(2)));
+                end = length - 1;
+            } else {
+                start = Long.parseLong(matcher.group(1));
+                end = matcher.group(2).length() == 0 ? length - 1 : Math
+                        .min(length - 1, Long.parseLong(matcher.group(2)));
+            }
+            status = 206;
+            response = new StubResponse(status, content.read(start,
+                    (int) (end - start + 1))).header("Content-Range",
+                    "bytes " + start + "-" + end + "/" + length);
+        } else {
+            response = content.toResponse(status);
+        }
+        response.header("ETag", "\"" + object.eTag + "\"");
+        response.header("Last-Modified", rfc822(object.lastModified));
+        response.header("Accept-Ranges", "bytes");
+        for (Map.Entry<String, String> header : object.metadata.entrySet()) {
+            response.header(header.getKey(), header.getValue());
+        }
+        return response;
+    }
+
+    private StubResponse copyObject(String bucket, String key,
+            StubRequest request) {
+        String[] source = split(request.header("x-amz-copy-source"));
+        StoredObject sourceObject = objects(source[0]).get(source[1]);
+        if (sourceObject == null) {
+            throw new StubException(404, "NoSuchKey",
+                    "The specified key does not exist.");
+        }
+        Map<String, String> metadata = "REPLACE".equals(request
+                .header("x-amz-metadata-directive")) ? metadataOf(request)
+                : sourceObject.metadata;
+        StoredObject copy = new StoredObject(sourceObject.content, metadata,
+                sourceObject.eTag);
+        objects(bucket).put(key, copy);
+        return StubResponse.xml(200, "<CopyObjectResult>"
+                + StubResponse.element("LastModified",
+                        iso8601(copy.lastModified))
+                + StubResponse.element("ETag", "\"" + copy.eTag + "\"")
+                + "</CopyObjectResult>");
+    }
+
+    private StubResponse uploadPartCopy(StubRequest request) {
+        MultipartUpload upload = upload(request.query.get("uploadId"));
+        String[] source = split(request.header("x-amz-copy-source"));
+        StoredObject sourceObject = objects(source[0]).get(source[1]);
+        if (sourceObject == null) {
+            throw new StubException(404, "NoSuchKey",
+                    "The specified key does not exist.");
+        }
+        String ifMatch = request.header("x-amz-copy-source-if-match");
+        if (ifMatch != null
+                && !ifMatch.replace("\"", "").equals(sourceObject.eTag)) {
+            throw new StubException(412, "PreconditionFailed",
+                    "At least one of the pre-conditions you specified did not hold");
+        }
+        long length = sourceObject.content.length;
+        long start = 0;
+        long end = length - 1;
+        String range = request.header("x-amz-copy-source-range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.matches()) {
+            start = Long.parseLong(matcher.group(1));
+            end = Math.min(end, Long.parseLong(matcher.group(2)));
+        }
+        StubContent part = StubContent.read(new ByteArrayInputStream(
+                sourceObject.content.read(start, (int) (end - start + 1))),
+                storageDirectory);
+        upload.parts.put(Integer.parseInt(request.query.get("partNumber")),
+                part);
+        return StubResponse.xml(200, "<CopyPartResult>"
+                + StubResponse.element("LastModified", iso8601(new Date()))
+                + StubResponse.element("ETag", "\"" + StubContent.hex(part.md5)
+                        + "\"") + "</CopyPartResult>");
+    }
+
+    private StubResponse deleteObjects(String bucket, StubRequest request) {
+        ConcurrentSkipListMap<String, StoredObject> objects = objects(bucket);
+        StringBuilder xml = new StringBuilder("<DeleteResult>");
+        Matcher matcher = DELETE_KEY.matcher(request.bodyAsString());
+        while (matcher.find()) {
+            String key = matcher.group(1).replace("&lt;", "<")
+                    .replace("&gt;", ">").replace("&quot;", "\"")
+                    .replace("&amp;", "&");
+            objects.remove(key);
+            xml.append("<Deleted>").append(StubResponse.element("Key", key))
+                    .append("</Deleted>");
+        }
+        return StubResponse.xml(200, xml.append("</DeleteResult>").toString());
+    }
+
+    private StubResponse completeMultipartUpload(String uploadId) {
+        MultipartUpload upload = upload(uploadId);
+        MessageDigest partDigests = StubContent.newMd5();
+        for (StubContent part : upload.parts.values()) {
+            partDigests.update(part.md5);
+        }
+        String eTag = StubContent.hex(partDigests.digest()) + "-"
+                + upload.parts.size();
+        StubContent content = StubContent.concatenate(upload.parts.values(),
+                storageDirectory);
+        objects(upload.bucket).put(upload.key,
+                new StoredObject(content, upload.metadata, eTag));
+        uploads.remove(uploadId);
+        for (StubContent part : upload.parts.values()) {
+            part.discard();
+        }
+        return StubResponse.xml(200, "<CompleteMultipartUploadResult>"
+                + StubResponse.element("Location", "/" + upload.bucket + "/"
+                        + upload.key)
+                + StubResponse.element("Bucket", upload.bucket)
+                + StubResponse.element("Key", upload.key)
+                + StubResponse.element("ETag", "\"" + eTag + "\"")
+                + "</CompleteMultipartUploadResult>");
+    }
+
+    private StubResponse listParts(Map<String, String> query) {
+        String uploadId = query.get("uploadId");
+        MultipartUpload upload = upload(uploadId);
+        int marker = query.containsKey("part-number-marker") ? Integer
+                .parseInt(query.get("part-number-marker")) : 0;
+        StringBuilder xml = new StringBuilder("<ListPartsResult>")
+                .append(StubResponse.element("Bucket", upload.bucket))
+                .append(StubResponse.element("Key", upload.key))
+                .append(StubResponse.element("UploadId", uploadId))
+                .append(StubResponse.element("PartNumberMarker", marker))
+                .append(StubResponse.element("IsTruncated", false));
+        for (Map.Entry<Integer, StubContent> part : upload.parts.tailMap(
+                marker, false).entrySet()) {
+            xml.append("<Part>")
+                    .append(StubResponse.element("PartNumber", part.getKey()))
+                    .append(StubResponse.element("LastModified",
+                            iso8601(new Date())))
+                    .append(StubResponse.element("ETag", "\""
+                            + StubContent.hex(part.getValue().md5) + "\""))
+                    .append(StubResponse.element("Size",
+                            part.getValue().length)).append("</Part>");
+        }
+        return StubResponse.xml(200, xml.append("</ListPartsResult>")
+                .toString());
+    }
+
+    private ConcurrentSkipListMap<String, StoredObject> objects(String bucket) {
+        ConcurrentSkipListMap<String, StoredObject> objects = buckets
+                .get(bucket);
+        if (objects == null) {
+            throw new StubException(404, "NoSuchBucket",
+                    "The specified bucket does not exist");
+        }
+        return objects;
+    }
+
+    private MultipartUpload upload(String uploadId) {
+        MultipartUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            throw new StubException(404, "NoSuchUpload",
+                    "The specified upload does not exist.");
+        }
+        return upload;
+    }
+
+    private static Map<String, String> metadataOf(StubRequest request) {
+        Map<String, String> metadata = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : request.headers
+                .entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ENGLISH);
+            if (name.startsWith("x-amz-meta-") || name.equals("content-type")
+                    || name.equals("content-encoding")
+                    || name.equals("cache-control")
+                    || name.equals("content-disposition")) {
+                metadata.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        return metadata;
+    }
+
+    private static String[] split(String path) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        int slash = trimmed.indexOf('/');
+        if (slash < 0) {
+            return new String[] { trimmed, "" };
+        }
+        return new String[] { trimmed.substring(0, slash),
+                trimmed.substring(slash + 1) };
+    }
+
+    static String iso8601(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static String rfc822(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
+    private static class StoredObject {
+        final StubContent content;
+        final Map<String, String> metadata;
+        final String eTag;
+        final Date lastModified = new Date();
+
+        StoredObject(StubContent content, Map<String, String> metadata,
+                String eTag) {
+            this.content = content;
+            this.metadata = metadata;
+            this.eTag = eTag;
+        }
+    }
+
+    private static class MultipartUpload {
+        final String bucket;
+        final String key;
+        final Map<String, String> metadata;
+        final ConcurrentSkipListMap<Integer, StubContent> parts = new ConcurrentSkipListMap<Integer, StubContent>();
+
+        MultipartUpload(String bucket, String key, Map<String, String> metadata) {
+            this.bucket = bucket;
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+
+/**
+ * The content of an S3 object or upload part, held either in memory or in a
+ * file. Content never changes once stored, so copies of an object share it.
+ */
+class StubContent {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    final byte[] bytes;
+    final File file;
+    final long length;
+    /** The MD5 digest of the content, or null if it wasn't computed. */
+    final byte[] md5;
+
+    private StubContent(byte[] bytes, File file, long length, byte[] md5) {
+        this.bytes = bytes;
+        this.file = file;
+        this.length = length;
+        this.md5 = md5;
+    }
+
+    /**
+     * Reads content from a stream, computing its MD5 digest on the way.
+     *
+     * @param in
+     *            The stream to read.
+     * @param directory
+     *            The directory to store the content in, or null to keep it in
+     *            memory.
+     */
+    static StubContent read(InputStream in, File directory) {
+        MessageDigest digest = newMd5();
+        DigestInputStream digestIn = new DigestInputStream(in, digest);
+        try {
+            if (directory == null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                copy(digestIn, out);
+                byte[] bytes = out.toByteArray();
+                return new StubContent(bytes, null, bytes.length,
+                        digest.digest());
+            }
+            File file = File.createTempFile("object", ".bin", directory);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                copy(digestIn, out);
+            } finally {
+                out.close();
+            }
+            return new StubContent(null, file, file.length(), digest.digest());
+        } catch (IOException e) {
+            throw new StubException(500, "InternalError", e.toString());
+        }
+    }
+
+    /**
+     * Joins the parts of a multipart upload. The digest of the result is not
+     * computed, since the ETag of such an object is derived from the digests
+     * of its parts.
+     */
+    static StubContent concatenate(Collection<StubContent> parts,
+            File directory) {
+        try {
+            OutputStream out;
+            File file = null;
+            if (directory == null) {
+                out = new ByteArrayOutputStream();
+            } else {
+                file = File.createTempFile("object", ".bin", directory);
+                out = new FileOutputStream(file);
+            }
+            long length = 0;
+            try {
+                for (StubContent part : parts) {
+                    InputStream in = part.open();
+                    try {
+                        length += copy(in, out);
+                    } finally {
+                        in.close();
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            return file == null ? new StubContent(
+                    ((ByteArrayOutputStream) out).toByteArray(), null, length,
+                    null) : new StubContent(null, file, length, null);
+        } catch (IOException e) {
+            throw new StubException(500, "InternalError", e.toString());
+        }
+    }
+
+    InputStream open() throws IOException {
+        return bytes != null ? new ByteArrayInputStream(bytes)
+                : new FileInputStream(file);
+    }
+
+    /**
+     * Deletes the file of content that is no longer needed.
+     */
+    void discard() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads part of the content into memory, for range requests.
+     */
+    byte[] read(long start, int count) {
+        byte[] part = new byte[count];
+        if (bytes != null) {
+            System.arraycopy(bytes, (int) start, part, 0, count);
+            return part;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                in.seek(start);
+                in.readFully(part);
+            } finally {
+                in.close();
+            }
+            return part;
+        } catch (IOException e) {
+            throw new StubException(500, "InternalError", e.toString());
+        }
+    }
+
+    /**
+     * @return A response with the whole content as its body.
+     */
+    StubResponse toResponse(int status) {
+        return bytes != null ? new StubResponse(status, bytes)
+                : new StubResponse(status, file);
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+}
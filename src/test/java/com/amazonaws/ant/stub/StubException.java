@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+/**
+ * An error returned by a stubbed service, sent back in the error format of
+ * that service's protocol.
+ */
+class StubException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+    final String code;
+
+    StubException(int status, String code, String message) {
+        super(message);
+        this.status = status;
+        this.code = code;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request received by the {@link LocalAwsStub}, with its query string
+ * parsed. The body is read when it is first needed, or streamed by handlers
+ * that store it.
+ */
+class StubRequest {
+
+    final String method;
+    final String path;
+    final Map<String, String> query;
+    final Map<String, List<String>> headers;
+    private final InputStream bodyStream;
+    private byte[] body;
+
+    /**
+     * @param method
+     *            The HTTP method.
+     * @param uri
+     *            The raw request URI, with its query string.
+     * @param headers
+     *            The request headers, keyed case-insensitively.
+     * @param bodyStream
+     *            The raw request body.
+     */
+    StubRequest(String method, String uri, Map<String, List<String>> headers,
+            InputStream bodyStream) {
+        int question = uri.indexOf('?');
+        this.method = method;
+        this.path = decode(question < 0 ? uri : uri.substring(0, question));
+        this.query = parseParameters(question < 0 ? null : uri
+                .substring(question + 1));
+        this.headers = headers;
+        this.bodyStream = bodyStream;
+    }
+
+    String header(String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @return The request body, read fully.
+     */
+    synchronized byte[] body() {
+        if (body == null) {
+            try {
+                body = decodeChunks(readFully(bodyStream));
+            } catch (IOException e) {
+                throw new StubException(400, "IncompleteBody", e.getMessage());
+            }
+        }
+        return body;
+    }
+
+    /**
+     * @return The request body as a stream, without reading it into memory
+     *         unless it has to be decoded.
+     */
+    synchronized InputStream bodyStream() {
+        if (body == null && !isChunkSigned()) {
+            return bodyStream;
+        }
+        return new ByteArrayInputStream(body());
+    }
+
+    String bodyAsString() {
+        try {
+            return new String(body(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The form parameters of a query protocol request, or an empty map.
+     */
+    Map<String, String> form() {
+        String contentType = header("Content-Type");
+        if (contentType == null
+                || !contentType.startsWith("application/x-www-form-urlencoded")) {
+            return new LinkedHashMap<String, String>();
+        }
+        return parseParameters(bodyAsString());
+    }
+
+    static Map<String, String> parseParameters(String encoded) {
+        Map<String, String> parameters = new LinkedHashMap<String, String>();
+        if (encoded == null || encoded.length() == 0) {
+            return parameters;
+        }
+        for (String pair : encoded.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals < 0) {
+                parameters.put(decode(pair), "");
+            } else {
+                parameters.put(decode(pair.substring(0, equals)),
+                        decode(pair.substring(equals + 1)));
+            }
+        }
+        return parameters;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean isChunkSigned() {
+        return "STREAMING-AWS4-HMAC-SHA256-PAYLOAD"
+                .equals(header("x-amz-content-sha256"));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Strips the chunk headers of a SigV4 streaming upload, if the body is one.
+     */
+    private byte[] decodeChunks(byte[] raw) {
+        if (!isChunkSigned()) {
+            return raw;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < raw.length) {
+            int lineEnd = position;
+            while (raw[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            String chunkHeader = new String(raw, position, lineEnd - position);
+            int size = Integer.parseInt(
+                    chunkHeader.substring(0, chunkHeader.indexOf(';')), 16);
+            if (size == 0) {
+                break;
+            }
+            out.write(raw, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return out.toByteArray();
+    }
+}
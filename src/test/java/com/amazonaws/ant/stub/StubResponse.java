@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.stub;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A response to send from the {@link LocalAwsStub}.
+ */
+class StubResponse {
+
+    final int status;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    final byte[] body;
+    final File file;
+
+    StubResponse(int status, byte[] body) {
+        this.status = status;
+        this.body = body;
+        this.file = null;
+    }
+
+    /**
+     * A response whose body is the content of a file.
+     */
+    StubResponse(int status, File file) {
+        this.status = status;
+        this.body = null;
+        this.file = file;
+    }
+
+    StubResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    static StubResponse empty(int status) {
+        return new StubResponse(status, (byte[]) null);
+    }
+
+    static StubResponse xml(int status, String xml) {
+        return new StubResponse(status, utf8(xml)).header("Content-Type",
+                "text/xml");
+    }
+
+    static StubResponse json(int status, String json) {
+        return new StubResponse(status, utf8(json)).header("Content-Type",
+                "application/x-amz-json-1.1");
+    }
+
+    /**
+     * Wraps the result of a query protocol action in the usual response
+     * envelope.
+     */
+    static StubResponse queryResult(String action, String result) {
+        return xml(200, "<" + action + "Response><" + action + "Result>"
+                + result + "</" + action + "Result><ResponseMetadata>"
+                + "<RequestId>stub</RequestId></ResponseMetadata></" + action
+                + "Response>");
+    }
+
+    static String element(String name, Object value) {
+        if (value == null) {
+            return "";
+        }
+        return "<" + name + ">" + escape(value.toString()) + "</" + name + ">";
+    }
+
+    static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
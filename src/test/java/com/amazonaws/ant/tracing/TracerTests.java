@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.amazonaws.ant.tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TracerTests {
+
+    @Test
+    public void testDisabledTracerRecordsNothing() throws Exception {
+        Tracer tracer = Tracer.getTracer(new Project());
+        assertFalse(tracer.isEnabled());
+        Span span = tracer.startSpan("call", Tracer.CATEGORY_API);
+        assertSame(span, tracer.startSpan("other", Tracer.CATEGORY_POLL));
+        span.addArg("key", "value").end();
+        tracer.sleep(1);
+        assertTrue(tracer.getSpans().isEmpty());
+    }
+
+    @Test
+    public void testRecordsTasksSpansAndSleeps() throws Exception {
+        Project project = new Project();
+        Tracer tracer = Tracer.enable(project, new File("trace.json"));
+        assertSame(tracer, Tracer.getTracer(project));
+
+        Task task = new Task() {
+        };
+        task.setProject(project);
+        task.setTaskName("deploy");
+        tracer.taskStarted(new BuildEvent(task));
+        tracer.startSpan("opsworks.DescribeDeployments", Tracer.CATEGORY_API)
+                .addArg("attempts", 2).end();
+        tracer.sleep(1);
+        BuildEvent finished = new BuildEvent(task);
+        finished.setException(new RuntimeException("failed"));
+        tracer.taskFinished(finished);
+
+        List<Span> spans = tracer.getSpans();
+        assertEquals(3, spans.size());
+        assertEquals("opsworks.DescribeDeployments", spans.get(0).getName());
+        assertEquals(Tracer.CATEGORY_SLEEP, spans.get(1).getCategory());
+        assertEquals("deploy", spans.get(2).getName());
+        assertTrue(spans.get(2).getDurationNanos() >= spans.get(1)
+                .getDurationNanos());
+        assertEquals("failed", spans.get(2).getArgs().get("error"));
+    }
+
+    @Test
+    public void testEndingTwiceRecordsOnce() {
+        Tracer tracer = Tracer.enable(new Project(), new File("trace.json"));
+        Span span = tracer.startSpan("poll", Tracer.CATEGORY_POLL);
+        span.end();
+        span.end();
+        assertEquals(1, tracer.getSpans().size());
+    }
+
+    @Test
+    public void testWritesChromeTraceEvents() throws Exception {
+        Tracer tracer = Tracer.enable(new Project(), new File("trace.json"));
+        tracer.startSpan("stack \"web\"\n", Tracer.CATEGORY_POLL)
+                .addArg("pending", 3).addArg("note", "a\\b").end();
+        StringWriter writer = new StringWriter();
+        tracer.writeTrace(writer);
+
+        JsonNode events = new ObjectMapper().readTree(writer.toString()).get(
+                "traceEvents");
+        assertEquals(2, events.size());
+        assertEquals("M", events.get(0).get("ph").asText());
+        assertEquals(Thread.currentThread().getName(), events.get(0)
+                .get("args").get("name").asText());
+        JsonNode span = events.get(1);
+        assertEquals("X", span.get("ph").asText());
+        assertEquals("stack \"web\"\n", span.get("name").asText());
+        assertEquals(Tracer.CATEGORY_POLL, span.get("cat").asText());
+        assertEquals(Thread.currentThread().getId(), span.get("tid").asLong());
+        assertTrue(span.get("ts").asLong() >= 0);
+        assertEquals(3, span.get("args").get("pending").asInt());
+        assertEquals("a\\b", span.get("args").get("note").asText());
+    }
+}